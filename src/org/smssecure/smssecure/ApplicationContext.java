@@ -26,16 +26,11 @@ import android.support.v4.app.NotificationManagerCompat;
 
 import org.smssecure.smssecure.crypto.PRNGFixes;
 import org.smssecure.smssecure.dependencies.InjectableType;
-import org.smssecure.smssecure.jobs.persistence.EncryptingJobSerializer;
-import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirementProvider;
-import org.smssecure.smssecure.jobs.requirements.MediaNetworkRequirementProvider;
-import org.smssecure.smssecure.jobs.requirements.ServiceRequirementProvider;
+import org.smssecure.smssecure.jobs.JobDispatcher;
 import org.smssecure.smssecure.notifications.NotificationChannels;
 import org.smssecure.smssecure.util.SilencePreferences;
 import org.smssecure.smssecure.util.dualsim.SimChangedReceiver;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.dependencies.DependencyInjector;
-import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
 import org.whispersystems.libsignal.logging.SignalProtocolLoggerProvider;
 import org.whispersystems.libsignal.util.AndroidSignalProtocolLogger;
 
@@ -54,10 +49,8 @@ import dagger.ObjectGraph;
 public class ApplicationContext extends Application implements DependencyInjector {
   private static final String TAG = ApplicationContext.class.getSimpleName();
 
-  private JobManager  jobManager;
-  private ObjectGraph objectGraph;
-
-  private MediaNetworkRequirementProvider mediaNetworkRequirementProvider = new MediaNetworkRequirementProvider();
+  private JobDispatcher jobManager;
+  private ObjectGraph   objectGraph;
 
   public static ApplicationContext getInstance(Context context) {
     return (ApplicationContext)context.getApplicationContext();
@@ -80,7 +73,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
     }
   }
 
-  public JobManager getJobManager() {
+  public JobDispatcher getJobManager() {
     return jobManager;
   }
 
@@ -93,20 +86,11 @@ public class ApplicationContext extends Application implements DependencyInjecto
   }
 
   private void initializeJobManager() {
-    this.jobManager = JobManager.newBuilder(this)
-                                .withName("SilenceJobs")
-                                .withDependencyInjector(this)
-                                .withJobSerializer(new EncryptingJobSerializer())
-                                .withRequirementProviders(new MasterSecretRequirementProvider(this),
-                                                          new ServiceRequirementProvider(this),
-                                                          new NetworkRequirementProvider(this),
-                                                          mediaNetworkRequirementProvider)
-                                .withConsumerThreads(5)
-                                .build();
+    this.jobManager = new JobDispatcher(this);
   }
 
   public void notifyMediaControlEvent() {
-    mediaNetworkRequirementProvider.notifyMediaControlEvent();
+    jobManager.notifyMediaControlEvent();
   }
 
   private void checkSimState() {
@@ -154,6 +154,7 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
   public static final String DISTRIBUTION_TYPE_EXTRA = "distribution_type";
   public static final String TIMING_EXTRA            = "timing";
   public static final String LAST_SEEN_EXTRA         = "last_seen";
+  public static final String SEARCH_QUERY_EXTRA      = "search_query";
 
   private static final int PICK_IMAGE        = 1;
   private static final int PICK_VIDEO        = 2;
@@ -57,6 +57,8 @@ import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.MmsSmsDatabase;
 import org.smssecure.smssecure.database.loaders.ConversationLoader;
+import org.smssecure.smssecure.database.loaders.ConversationLoader.Move;
+import org.smssecure.smssecure.database.loaders.ConversationWindow;
 import org.smssecure.smssecure.database.model.MediaMmsMessageRecord;
 import org.smssecure.smssecure.database.model.MessageRecord;
 import org.smssecure.smssecure.mms.Slide;
@@ -83,7 +85,8 @@ public class ConversationFragment extends Fragment
 {
   private static final String TAG = ConversationFragment.class.getSimpleName();
 
-  private static final long   PARTIAL_CONVERSATION_LIMIT = 500L;
+  private static final String MOVE_EXTRA        = "move";
+  private static final int    PREFETCH_DISTANCE = 30;
 
   private final ActionModeCallback actionModeCallback     = new ActionModeCallback();
   private final ItemClickListener  selectionClickListener = new ConversationFragmentItemClickListener();
@@ -94,12 +97,15 @@ public class ConversationFragment extends Fragment
   private Recipients                  recipients;
   private long                        threadId;
   private long                        lastSeen;
+  private String                      searchQuery;
   private boolean                     firstLoad;
   private ActionMode                  actionMode;
   private Locale                      locale;
   private RecyclerView                list;
   private RecyclerView.ItemDecoration lastSeenDecoration;
-  private View                        loadMoreView;
+  private ConversationWindow          window;
+  private boolean                     hasOlder;
+  private boolean                     loadingWindow;
   private View                        composeDivider;
   private View                        scrollToBottomButton;
   private TextView                    scrollDateHeader;
@@ -130,15 +136,6 @@ public class ConversationFragment extends Fragment
     list.setHasFixedSize(false);
     list.setLayoutManager(layoutManager);
 
-    loadMoreView = inflater.inflate(R.layout.load_more_header, container, false);
-    loadMoreView.setOnClickListener(new OnClickListener() {
-      @Override
-      public void onClick(View v) {
-        Bundle args = new Bundle();
-        args.putLong("limit", 0);
-        getLoaderManager().restartLoader(0, args, ConversationFragment.this);
-      }
-    });
     return view;
   }
 
@@ -182,11 +179,20 @@ public class ConversationFragment extends Fragment
     getLoaderManager().restartLoader(0, Bundle.EMPTY, this);
   }
 
+  private void loadWindow(@NonNull Move move, @NonNull Bundle args) {
+    args.putString(MOVE_EXTRA, move.name());
+
+    loadingWindow = true;
+    getLoaderManager().restartLoader(0, args, this);
+  }
+
   private void initializeResources() {
     this.recipients     = RecipientFactory.getRecipientsForIds(getActivity(), getActivity().getIntent().getLongArrayExtra("recipients"), true);
     this.threadId       = this.getActivity().getIntent().getLongExtra("thread_id", -1);
     this.lastSeen       = this.getActivity().getIntent().getLongExtra(ConversationActivity.LAST_SEEN_EXTRA, -1);
+    this.searchQuery    = this.getActivity().getIntent().getStringExtra(ConversationActivity.SEARCH_QUERY_EXTRA);
     this.firstLoad      = true;
+    this.window         = null;
 
     OnScrollListener scrollListener = new ConversationScrollListener(getActivity());
     list.addOnScrollListener(scrollListener);
@@ -199,7 +205,15 @@ public class ConversationFragment extends Fragment
       list.addItemDecoration(new StickyHeaderDecoration(adapter, false, false));
 
       setLastSeen(lastSeen);
-      getLoaderManager().restartLoader(0, Bundle.EMPTY, this);
+      window = null;
+
+      if (TextUtils.isEmpty(searchQuery)) {
+        getLoaderManager().restartLoader(0, Bundle.EMPTY, this);
+      } else {
+        Bundle args = new Bundle();
+        args.putString(MOVE_EXTRA, Move.MATCH.name());
+        getLoaderManager().restartLoader(0, args, this);
+      }
       list.getItemAnimator().setMoveDuration(120);
     }
   }
@@ -252,7 +266,11 @@ public class ConversationFragment extends Fragment
   }
 
   public void scrollToBottom() {
-    list.scrollToPosition(0);
+    if (window != null && !window.isAtNewest()) {
+      loadWindow(Move.NEWEST, new Bundle());
+    } else {
+      list.scrollToPosition(0);
+    }
   }
 
   public void setLastSeen(long lastSeen) {
@@ -398,7 +416,9 @@ public class ConversationFragment extends Fragment
 
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-    return new ConversationLoader(getActivity(), threadId, args.getLong("limit", PARTIAL_CONVERSATION_LIMIT), lastSeen);
+    Move move = Move.valueOf(args.getString(MOVE_EXTRA, Move.RELOAD.name()));
+
+    return new ConversationLoader(getActivity(), masterSecret, threadId, lastSeen, window, move, searchQuery);
   }
 
 
@@ -406,24 +426,30 @@ public class ConversationFragment extends Fragment
   public void onLoadFinished(Loader<Cursor> cursorLoader, Cursor cursor) {
     Log.w(TAG, "onLoadFinished");
     ConversationLoader loader = (ConversationLoader)cursorLoader;
+    ConversationWindow loaded = loader.getWindow();
+    boolean            moved  = loaded != window;
 
-    if (list.getAdapter() != null) {
-      if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && loader.hasLimit()) {
-        getListAdapter().setFooterView(loadMoreView);
-      } else {
-        getListAdapter().setFooterView(null);
-      }
+    window        = loaded;
+    hasOlder      = cursor.getCount() >= loaded.getSize();
+    loadingWindow = false;
 
+    if (list.getAdapter() != null) {
       if (lastSeen == -1) {
         setLastSeen(loader.getLastSeen());
       }
 
-      getListAdapter().changeCursor(cursor);
+      if (moved && loaded.getShift() != 0) changeCursorKeepingPosition(cursor, loaded.getShift());
+      else                                 getListAdapter().changeCursor(cursor);
+
+      if (moved && !firstLoad && loaded.getTargetPosition() != -1) {
+        scrollToTargetPosition(loaded.getTargetPosition());
+      }
 
       int lastSeenPosition = getListAdapter().findLastSeenPosition(lastSeen);
 
       if (firstLoad) {
-        scrollToLastSeenPosition(lastSeenPosition);
+        if (!TextUtils.isEmpty(searchQuery) && loaded.getTargetPosition() != -1) scrollToTargetPosition(loaded.getTargetPosition());
+        else                                                                     scrollToLastSeenPosition(lastSeenPosition);
         firstLoad = false;
       }
 
@@ -440,6 +466,33 @@ public class ConversationFragment extends Fragment
     }
   }
 
+  /**
+   * Swaps in a window that gained or lost rows at its newest end, keeping the
+   * messages on screen where they are.
+   */
+  private void changeCursorKeepingPosition(Cursor cursor, int shift) {
+    LinearLayoutManager layoutManager = (LinearLayoutManager) list.getLayoutManager();
+    int                 position      = layoutManager.findFirstVisibleItemPosition();
+    View                view          = layoutManager.findViewByPosition(position);
+
+    getListAdapter().changeCursor(cursor);
+
+    if (view != null) {
+      int offset = list.getHeight() - list.getPaddingBottom() - layoutManager.getDecoratedBottom(view);
+      layoutManager.scrollToPositionWithOffset(Math.max(0, position + shift), offset);
+    }
+  }
+
+  private void scrollToTargetPosition(final int position) {
+    list.post(new Runnable() {
+      @Override
+      public void run() {
+        if (position == 0) list.scrollToPosition(0);
+        else               ((LinearLayoutManager)list.getLayoutManager()).scrollToPositionWithOffset(position, list.getHeight() / 2);
+      }
+    });
+  }
+
   private void scrollToLastSeenPosition(final int lastSeenPosition) {
     if (lastSeenPosition > 0) {
       list.post(new Runnable() {
@@ -495,6 +548,8 @@ public class ConversationFragment extends Fragment
         bindScrollHeader(conversationDateHeader, positionId);
       }
 
+      loadWindowIfNeeded(rv.getAdapter().getItemCount());
+
       wasAtBottom           = currentlyAtBottom;
       wasAtZoomScrollHeight = currentlyAtZoomScrollHeight;
       lastPositionId        = positionId;
@@ -509,6 +564,18 @@ public class ConversationFragment extends Fragment
       }
     }
 
+    private void loadWindowIfNeeded(int itemCount) {
+      if (loadingWindow || window == null || itemCount == 0) return;
+
+      LinearLayoutManager layoutManager = (LinearLayoutManager) list.getLayoutManager();
+
+      if (hasOlder && layoutManager.findLastVisibleItemPosition() >= itemCount - PREFETCH_DISTANCE) {
+        loadWindow(Move.OLDER, new Bundle());
+      } else if (!window.isAtNewest() && layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE) {
+        loadWindow(Move.NEWER, new Bundle());
+      }
+    }
+
     private boolean isAtBottom() {
       if (list.getChildCount() == 0) return true;
 
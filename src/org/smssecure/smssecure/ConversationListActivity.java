@@ -26,6 +26,7 @@ import android.support.annotation.NonNull;
 import android.support.v7.app.ActionBar;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -194,6 +195,10 @@ public class ConversationListActivity extends PassphraseRequiredActionBarActivit
     intent.putExtra(ConversationActivity.TIMING_EXTRA, System.currentTimeMillis());
     intent.putExtra(ConversationActivity.LAST_SEEN_EXTRA, lastSeen);
 
+    if (fragment != null && !TextUtils.isEmpty(fragment.getQueryFilter())) {
+      intent.putExtra(ConversationActivity.SEARCH_QUERY_EXTRA, fragment.getQueryFilter());
+    }
+
     startActivity(intent);
     overridePendingTransition(R.anim.slide_from_right, R.anim.fade_scale_out);
   }
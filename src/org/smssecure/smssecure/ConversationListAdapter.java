@@ -29,7 +29,6 @@ import android.view.View.OnLongClickListener;
 import android.view.ViewGroup;
 
 import org.smssecure.smssecure.util.Conversions;
-import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.CursorRecyclerViewAdapter;
 import org.smssecure.smssecure.database.DatabaseFactory;
@@ -57,7 +56,6 @@ public class ConversationListAdapter extends CursorRecyclerViewAdapter<Conversat
 
   private final          ThreadDatabase    threadDatabase;
   private final          MasterSecret      masterSecret;
-  private final          MasterCipher      masterCipher;
   private final          Locale            locale;
   private final          LayoutInflater    inflater;
   private final          ItemClickListener clickListener;
@@ -68,6 +66,9 @@ public class ConversationListAdapter extends CursorRecyclerViewAdapter<Conversat
 
   private LinkedList<Pair<Long, Recipients>> threadIdAndRecipients = new LinkedList<Pair<Long,Recipients>>();
 
+  private @Nullable Cursor                readerCursor;
+  private @Nullable ThreadDatabase.Reader reader;
+
   protected static class ViewHolder extends RecyclerView.ViewHolder {
     public <V extends View & BindableConversationListItem> ViewHolder(final @NonNull V itemView)
     {
@@ -100,7 +101,6 @@ public class ConversationListAdapter extends CursorRecyclerViewAdapter<Conversat
     super(context, cursor);
     try {
       this.masterSecret   = masterSecret;
-      this.masterCipher   = new MasterCipher(masterSecret);
       this.threadDatabase = DatabaseFactory.getThreadDatabase(context);
       this.locale         = locale;
       this.inflater       = LayoutInflater.from(context);
@@ -171,7 +171,12 @@ public class ConversationListAdapter extends CursorRecyclerViewAdapter<Conversat
   }
 
   private ThreadRecord getThreadRecord(@NonNull Cursor cursor) {
-    return threadDatabase.readerFor(cursor, masterCipher).getCurrent();
+    if (reader == null || readerCursor != cursor) {
+      reader       = threadDatabase.readerFor(cursor, masterSecret);
+      readerCursor = cursor;
+    }
+
+    return reader.getCurrent();
   }
 
   public void toggleThreadInBatchSet(long threadId) {
@@ -164,6 +164,10 @@ public class ConversationListFragment extends Fragment
     getLoaderManager().restartLoader(0, null, this);
   }
 
+  public String getQueryFilter() {
+    return queryFilter;
+  }
+
   public void resetQueryFilter() {
     if (!TextUtils.isEmpty(this.queryFilter)) {
       setQueryFilter("");
@@ -419,7 +423,7 @@ public class ConversationListFragment extends Fragment
 
   @Override
   public Loader<Cursor> onCreateLoader(int arg0, Bundle arg1) {
-    return new ConversationListLoader(getActivity(), queryFilter, archive);
+    return new ConversationListLoader(getActivity(), masterSecret, queryFilter, archive);
   }
 
   @Override
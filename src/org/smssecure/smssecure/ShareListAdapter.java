@@ -27,7 +27,6 @@ import android.widget.AbsListView;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.ThreadDatabase;
 import org.smssecure.smssecure.database.model.ThreadRecord;
-import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 
 /**
@@ -38,16 +37,14 @@ import org.smssecure.smssecure.crypto.MasterSecret;
 public class ShareListAdapter extends CursorAdapter implements AbsListView.RecyclerListener {
 
   private final ThreadDatabase threadDatabase;
-  private final MasterCipher   masterCipher;
+  private final MasterSecret   masterSecret;
   private final Context        context;
   private final LayoutInflater inflater;
 
   public ShareListAdapter(Context context, Cursor cursor, MasterSecret masterSecret) {
     super(context, cursor, 0);
 
-    if (masterSecret != null) this.masterCipher = new MasterCipher(masterSecret);
-    else                      this.masterCipher = null;
-
+    this.masterSecret   = masterSecret;
     this.context        = context;
     this.threadDatabase = DatabaseFactory.getThreadDatabase(context);
     this.inflater       = LayoutInflater.from(context);
@@ -60,8 +57,8 @@ public class ShareListAdapter extends CursorAdapter implements AbsListView.Recyc
 
   @Override
   public void bindView(View view, Context context, Cursor cursor) {
-    if (masterCipher != null) {
-      ThreadDatabase.Reader reader = threadDatabase.readerFor(cursor, masterCipher);
+    if (masterSecret != null) {
+      ThreadDatabase.Reader reader = threadDatabase.readerFor(cursor, masterSecret);
       ThreadRecord          record = reader.getCurrent();
 
       ((ShareListItem)view).set(record);
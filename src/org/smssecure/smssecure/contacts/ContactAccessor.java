@@ -32,8 +32,10 @@ import org.smssecure.smssecure.database.DatabaseFactory;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This class was originally a layer of indirection between
@@ -104,17 +106,21 @@ public class ContactAccessor {
     return contactData;
   }
 
+  /**
+   * @return the distinct numbers of the contacts matching the constraint.
+   */
   public List<String> getNumbersForThreadSearchFilter(Context context, String constraint) {
-    LinkedList<String> numberList = new LinkedList<>();
-    Cursor cursor                 = null;
+    Set<String> numbers = new LinkedHashSet<>();
+    Cursor      cursor  = null;
 
     try {
       cursor = context.getContentResolver().query(Uri.withAppendedPath(Phone.CONTENT_FILTER_URI,
                                                                        Uri.encode(constraint)),
-                                                  null, null, null, null);
+                                                  new String[] {Phone.NUMBER}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        numberList.add(cursor.getString(cursor.getColumnIndexOrThrow(Phone.NUMBER)));
+        String number = cursor.getString(0);
+        if (number != null) numbers.add(number);
       }
 
     } finally {
@@ -122,7 +128,7 @@ public class ContactAccessor {
         cursor.close();
     }
 
-    return numberList;
+    return new LinkedList<>(numbers);
   }
 
   public CharSequence phoneTypeToString(Context mContext, int type, CharSequence label) {
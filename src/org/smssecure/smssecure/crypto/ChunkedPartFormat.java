@@ -0,0 +1,217 @@
+package org.smssecure.smssecure.crypto;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Layout of version 2 ("chunked") encrypted parts, which can be
+ * decrypted starting from any offset.
+ *
+ * The file starts with a header:
+ *
+ * 1) 4 byte magic.
+ * 2) 1 byte version.
+ * 3) 4 byte chunk size.
+ * 4) 16 byte random salt.
+ * 5) HMAC-SHA1 of 1 through 4.
+ *
+ * Followed by one or more chunks:
+ *
+ * 1) AES-CTR(chunk plaintext)
+ * 2) HMAC-SHA1 of the salt, the 8 byte chunk index, a 1 byte "last chunk" flag and 1
+ *
+ * Every chunk but the last holds exactly chunk size bytes of plaintext.  The
+ * counter for chunk i starts at salt + i * (chunk size / 16), so each chunk is
+ * decrypted on its own, and the flag on the last chunk detects truncation.
+ */
+class ChunkedPartFormat {
+
+  static final int VERSION            = 2;
+  static final int SALT_LENGTH        = 16;
+  static final int MAC_LENGTH         = 20;
+  static final int HEADER_LENGTH      = 4 + 1 + 4 + SALT_LENGTH + MAC_LENGTH;
+  static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+  static final int MAX_CHUNK_SIZE     = 1024 * 1024;
+
+  private static final byte[] MAGIC      = {'S', 'P', 'R', 'T'};
+  private static final int    BLOCK_SIZE = 16;
+
+  static @NonNull byte[] createHeader(@NonNull Mac mac, int chunkSize, @NonNull byte[] salt) {
+    byte[] header = new byte[HEADER_LENGTH];
+    int    offset = 0;
+
+    System.arraycopy(MAGIC, 0, header, offset, MAGIC.length);
+    offset += MAGIC.length;
+
+    header[offset++] = (byte)VERSION;
+    header[offset++] = (byte)(chunkSize >>> 24);
+    header[offset++] = (byte)(chunkSize >>> 16);
+    header[offset++] = (byte)(chunkSize >>> 8);
+    header[offset++] = (byte)chunkSize;
+
+    System.arraycopy(salt, 0, header, offset, salt.length);
+    offset += salt.length;
+
+    mac.update(header, 0, offset);
+    System.arraycopy(mac.doFinal(), 0, header, offset, MAC_LENGTH);
+
+    return header;
+  }
+
+  /**
+   * @return the parsed header, or null if the bytes are not an authentic
+   *         version 2 header (in which case the part is version 1).
+   */
+  static @Nullable Header parseHeader(@NonNull Mac mac, @NonNull byte[] header) {
+    if (header.length < HEADER_LENGTH) return null;
+
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (header[i] != MAGIC[i]) return null;
+    }
+
+    int offset = MAGIC.length;
+
+    if (header[offset++] != VERSION) return null;
+
+    int chunkSize = ((header[offset++] & 0xff) << 24) |
+                    ((header[offset++] & 0xff) << 16) |
+                    ((header[offset++] & 0xff) << 8)  |
+                    ((header[offset++] & 0xff));
+
+    byte[] salt = new byte[SALT_LENGTH];
+    System.arraycopy(header, offset, salt, 0, SALT_LENGTH);
+    offset += SALT_LENGTH;
+
+    mac.update(header, 0, offset);
+    byte[] ourMac = mac.doFinal();
+
+    if (!isEqual(ourMac, header, offset, MAC_LENGTH))                                 return null;
+    if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || chunkSize % BLOCK_SIZE != 0) return null;
+
+    return new Header(chunkSize, salt);
+  }
+
+  static long getChunkOffset(long chunkIndex, int chunkSize) {
+    return HEADER_LENGTH + chunkIndex * (chunkSize + MAC_LENGTH);
+  }
+
+  /**
+   * @return the number of chunks in a part of the given file length, or -1
+   *         if the length cannot be a valid version 2 part.
+   */
+  static long getChunkCount(long fileLength, int chunkSize) {
+    long body   = fileLength - HEADER_LENGTH;
+    long stride = chunkSize + MAC_LENGTH;
+
+    if (body < MAC_LENGTH) return -1;
+
+    long chunkCount = (body + stride - 1) / stride;
+    long lastLength = body - (chunkCount - 1) * stride;
+
+    if (lastLength < MAC_LENGTH) return -1;
+    else                         return chunkCount;
+  }
+
+  static long getPlaintextLength(long fileLength, int chunkSize) {
+    long chunkCount = getChunkCount(fileLength, chunkSize);
+
+    if (chunkCount < 0) return -1;
+    else                return fileLength - HEADER_LENGTH - chunkCount * MAC_LENGTH;
+  }
+
+  /**
+   * Writes the initial counter block for a chunk into counter.
+   */
+  static void getChunkCounter(@NonNull byte[] salt, long chunkIndex, int chunkSize, @NonNull byte[] counter) {
+    long increment = chunkIndex * (chunkSize / BLOCK_SIZE);
+    int  carry     = 0;
+
+    for (int i = BLOCK_SIZE - 1; i >= 0; i--) {
+      int sum = (salt[i] & 0xff) + (int)(increment & 0xff) + carry;
+
+      counter[i] = (byte)sum;
+      carry      = sum >>> 8;
+      increment >>>= 8;
+    }
+  }
+
+  static void calculateChunkMac(@NonNull Mac mac, @NonNull byte[] salt, long chunkIndex, boolean last,
+                                @NonNull byte[] ciphertext, int offset, int length,
+                                @NonNull byte[] out)
+  {
+    try {
+      mac.update(salt);
+
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        mac.update((byte)(chunkIndex >>> shift));
+      }
+
+      mac.update((byte)(last ? 1 : 0));
+      mac.update(ciphertext, offset, length);
+      mac.doFinal(out, 0);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Encrypts and MACs one chunk.  The ciphertext is written to ciphertext and
+   * the chunk MAC to chunkMac, using counter as scratch space.
+   *
+   * @return the length of the ciphertext.
+   */
+  static int encryptChunk(@NonNull Cipher cipher, @NonNull Mac mac, @NonNull SecretKeySpec key,
+                          @NonNull byte[] salt, long chunkIndex, int chunkSize, boolean last,
+                          @NonNull byte[] plaintext, int length,
+                          @NonNull byte[] ciphertext, @NonNull byte[] chunkMac,
+                          @NonNull byte[] counter)
+      throws GeneralSecurityException
+  {
+    getChunkCounter(salt, chunkIndex, chunkSize, counter);
+    cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+
+    int encrypted = cipher.doFinal(plaintext, 0, length, ciphertext, 0);
+
+    calculateChunkMac(mac, salt, chunkIndex, last, ciphertext, 0, encrypted, chunkMac);
+
+    return encrypted;
+  }
+
+  static boolean isEqual(@NonNull byte[] ourMac, @NonNull byte[] buffer, int offset, int length) {
+    int result = 0;
+
+    for (int i = 0; i < length; i++) {
+      result |= ourMac[i] ^ buffer[offset + i];
+    }
+
+    return result == 0;
+  }
+
+  static @NonNull MessageDigest getDigest() {
+    try {
+      return MessageDigest.getInstance("SHA256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static class Header {
+    final int    chunkSize;
+    final byte[] salt;
+
+    Header(int chunkSize, byte[] salt) {
+      this.chunkSize = chunkSize;
+      this.salt      = salt;
+    }
+  }
+}
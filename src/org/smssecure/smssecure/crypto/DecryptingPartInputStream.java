@@ -20,12 +20,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.lang.System;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -41,6 +42,10 @@ import android.util.Log;
 /**
  * Class for streaming an encrypted MMS "part" off the disk.
  *
+ * The ciphertext and plaintext buffers are sized once when the stream is
+ * opened, and reads are served out of the plaintext buffer, so decrypting a
+ * part does not allocate per call no matter how small the reads are.
+ *
  * @author Moxie Marlinspike
  */
 
@@ -48,8 +53,16 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   private static final String TAG = DecryptingPartInputStream.class.getSimpleName();
 
-  private static final int IV_LENGTH  = 16;
-  private static final int MAC_LENGTH = 20;
+  private static final int IV_LENGTH   = 16;
+  private static final int MAC_LENGTH  = 20;
+  private static final int BUFFER_SIZE = 8192;
+
+  private final FileChannel channel;
+  private final byte[]      ciphertext;
+  private final ByteBuffer  ciphertextBuffer;
+  private final byte[]      plaintext;
+  private final byte[]      ourMac;
+  private final byte[]      singleByte;
 
   private Cipher        cipher;
   private Mac           mac;
@@ -57,12 +70,34 @@ public class DecryptingPartInputStream extends FileInputStream {
   private byte[]        theirDigest;
 
   private boolean done;
-  private long totalDataSize;
-  private long totalRead;
-  private byte[] overflowBuffer;
+  private long    totalDataSize;
+  private long    totalRead;
+  private int     plaintextOffset;
+  private int     plaintextLength;
+
+  /**
+   * Opens a part in whichever on-disk format it was written, returning a
+   * {@link SeekableDecryptingPartInputStream} for chunked parts.
+   */
+  public static InputStream createFor(File file, MasterSecret masterSecret, byte[] theirDigest)
+      throws FileNotFoundException
+  {
+    InputStream seekable = SeekableDecryptingPartInputStream.open(file, masterSecret, theirDigest);
+
+    if (seekable != null) return seekable;
+    else                  return new DecryptingPartInputStream(file, masterSecret, theirDigest);
+  }
 
   public DecryptingPartInputStream(File file, MasterSecret masterSecret, byte[] theirDigest) throws FileNotFoundException {
     super(file);
+
+    this.channel          = getChannel();
+    this.ciphertext       = new byte[BUFFER_SIZE];
+    this.ciphertextBuffer = ByteBuffer.wrap(ciphertext);
+    this.plaintext        = new byte[BUFFER_SIZE + 2 * IV_LENGTH];
+    this.ourMac           = new byte[MAC_LENGTH];
+    this.singleByte       = new byte[1];
+
     try {
       if (file.length() <= IV_LENGTH + MAC_LENGTH)
         throw new FileNotFoundException("Part shorter than crypto overhead!");
@@ -86,6 +121,14 @@ public class DecryptingPartInputStream extends FileInputStream {
     }
   }
 
+  @Override
+  public int read() throws IOException {
+    int read = read(singleByte, 0, 1);
+
+    if (read == -1) return -1;
+    else            return singleByte[0] & 0xff;
+  }
+
   @Override
   public int read(byte[] buffer) throws IOException {
     return read(buffer, 0, buffer.length);
@@ -93,12 +136,20 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if (totalRead != totalDataSize)
-      return readIncremental(buffer, offset, length);
-    else if (!done)
-      return readFinal(buffer, offset, length);
-    else
-      return -1;
+    if (length == 0) return 0;
+
+    while (plaintextLength == 0) {
+      if (done) return -1;
+      fillPlaintext();
+    }
+
+    int read = Math.min(length, plaintextLength);
+
+    System.arraycopy(plaintext, plaintextOffset, buffer, offset, read);
+    plaintextOffset += read;
+    plaintextLength -= read;
+
+    return read;
   }
 
   @Override
@@ -109,29 +160,60 @@ public class DecryptingPartInputStream extends FileInputStream {
   @Override
   public long skip(long byteCount) throws IOException {
     long skipped = 0L;
+
     while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
+      if (plaintextLength == 0) {
+        if (done) break;
+        fillPlaintext();
+        continue;
+      }
+
+      int count = (int)Math.min(plaintextLength, byteCount - skipped);
 
-      skipped += read;
+      plaintextOffset += count;
+      plaintextLength -= count;
+      skipped         += count;
     }
 
     return skipped;
   }
 
-  private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+  private void fillPlaintext() throws IOException {
+    plaintextOffset = 0;
+    plaintextLength = 0;
+
     try {
-      int flourish = cipher.doFinal(buffer, offset);
-      //mac.update(buffer, offset, flourish);
+      if (totalRead < totalDataSize) {
+        int read = readCiphertext((int)Math.min(ciphertext.length, totalDataSize - totalRead));
+
+        totalRead += read;
+
+        mac.update(ciphertext, 0, read);
+        digest.update(ciphertext, 0, read);
 
-      byte[] ourMac   = mac.doFinal();
-      byte[] theirMac = new byte[mac.getMacLength()];
-      readFully(theirMac);
+        plaintextLength = cipher.update(ciphertext, 0, read, plaintext, 0);
+      }
 
-      if (!Arrays.equals(ourMac, theirMac))
+      if (totalRead == totalDataSize) {
+        plaintextLength += readFinal(plaintextLength);
+      }
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private int readFinal(int offset) throws IOException {
+    try {
+      int flourish = cipher.doFinal(plaintext, offset);
+
+      mac.doFinal(ourMac, 0);
+      readCiphertext(MAC_LENGTH);
+
+      if (!ChunkedPartFormat.isEqual(ourMac, ciphertext, 0, MAC_LENGTH))
         throw new IOException("MAC doesn't match! Potential tampering?");
 
-      byte[] ourDigest = digest.digest(ourMac);
+      digest.update(ourMac);
+      byte[] ourDigest = digest.digest();
 
       if (theirDigest != null && !MessageDigest.isEqual(ourDigest, theirDigest)) {
         throw new IOException("Digest doesn't match!");
@@ -151,58 +233,17 @@ public class DecryptingPartInputStream extends FileInputStream {
     }
   }
 
-  private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
-    int readLength = 0;
-    if (null != overflowBuffer) {
-      if (overflowBuffer.length > length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
-        return length;
-      } else if (overflowBuffer.length == length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = null;
-        return length;
-      } else {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, overflowBuffer.length);
-        readLength += overflowBuffer.length;
-        offset += readLength;
-        length -= readLength;
-        overflowBuffer = null;
-      }
-    }
-
-    if (length + totalRead > totalDataSize)
-      length = (int)(totalDataSize - totalRead);
-
-    byte[] internalBuffer = new byte[length];
-    int read              = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
-    totalRead            += read;
-
-    try {
-      mac.update(internalBuffer, 0, read);
-      digest.update(internalBuffer, 0, read);
-
-      int outputLen = cipher.getOutputSize(read);
-
-      if (outputLen <= length) {
-        readLength += cipher.update(internalBuffer, 0, read, buffer, offset);
-        return readLength;
-      }
+  private int readCiphertext(int length) throws IOException {
+    ciphertextBuffer.clear();
+    ciphertextBuffer.limit(length);
 
-      byte[] transientBuffer = new byte[outputLen];
-      outputLen = cipher.update(internalBuffer, 0, read, transientBuffer, 0);
-      if (outputLen <= length) {
-        System.arraycopy(transientBuffer, 0, buffer, offset, outputLen);
-        readLength += outputLen;
-      } else {
-        System.arraycopy(transientBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(transientBuffer, length, outputLen);
-        readLength += length;
+    while (ciphertextBuffer.hasRemaining()) {
+      if (channel.read(ciphertextBuffer) == -1) {
+        throw new IOException("Unexpected end of part!");
       }
-      return readLength;
-    } catch (ShortBufferException e) {
-      throw new AssertionError(e);
     }
+
+    return length;
   }
 
   private Mac initializeMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
@@ -230,22 +271,10 @@ public class DecryptingPartInputStream extends FileInputStream {
   }
 
   private IvParameterSpec readIv(int size) throws IOException {
-    byte[] iv = new byte[size];
-    readFully(iv);
-
-    mac.update(iv);
-    digest.update(iv);
-    return new IvParameterSpec(iv);
-  }
+    readCiphertext(size);
 
-  private void readFully(byte[] buffer) throws IOException {
-    int offset = 0;
-
-    for (;;) {
-      int read = super.read(buffer, offset, buffer.length-offset);
-
-      if (read + offset < buffer.length) offset += read;
-      else                               return;
-    }
+    mac.update(ciphertext, 0, size);
+    digest.update(ciphertext, 0, size);
+    return new IvParameterSpec(ciphertext, 0, size);
   }
 }
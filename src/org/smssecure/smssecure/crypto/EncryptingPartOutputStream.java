@@ -20,9 +20,11 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -36,6 +38,10 @@ import android.util.Log;
 /**
  * A class for streaming an encrypted MMS "part" to disk.
  *
+ * Parts are written either in the original single-stream format, or in the
+ * chunked format described by {@link ChunkedPartFormat}, which can be read
+ * from any offset with {@link SeekableDecryptingPartInputStream}.
+ *
  * @author Moxie Marlinspike
  */
 
@@ -43,39 +49,92 @@ public class EncryptingPartOutputStream extends FileOutputStream {
 
   private static final String TAG = EncryptingPartOutputStream.class.getSimpleName();
 
+  public static final int VERSION_1 = 1;
+  public static final int VERSION_2 = ChunkedPartFormat.VERSION;
+
+  private final int version;
+
   private Cipher        cipher;
   private Mac           mac;
   private MessageDigest messageDigest;
+  private SecretKeySpec encryptionKey;
+
+  private byte[] salt;
+  private byte[] counter;
+  private byte[] chunkBuffer;
+  private byte[] cipherBuffer;
+  private byte[] chunkMac;
+  private int    chunkLength;
+  private long   chunkIndex;
 
   private boolean closed;
 
   private byte[] digest;
 
   public EncryptingPartOutputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
-    super(file);
-
-    try {
-      this.cipher        = initializeCipher();
-      this.mac           = initializeMac();
-      this.messageDigest = MessageDigest.getInstance("SHA256");
+    this(file, masterSecret, VERSION_1);
+  }
 
-      this.cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
-      this.mac.init(masterSecret.getMacKey());
+  public EncryptingPartOutputStream(File file, MasterSecret masterSecret, int version) throws FileNotFoundException {
+    super(file);
 
-      mac.update(cipher.getIV());
-      messageDigest.update(cipher.getIV());
+    this.version = version;
 
-      super.write(cipher.getIV(), 0, cipher.getIV().length);
+    try {
+      if      (version == VERSION_1) initializeVersion1(masterSecret);
+      else if (version == VERSION_2) initializeVersion2(masterSecret);
+      else                           throw new AssertionError("Unknown part version: " + version);
 
       closed = false;
     } catch (IOException ioe) {
       Log.w(TAG, ioe);
-      throw new FileNotFoundException("Couldn't write IV");
+      throw new FileNotFoundException("Couldn't write header");
     } catch (InvalidKeyException | NoSuchAlgorithmException e) {
       throw new AssertionError(e);
     }
   }
 
+  private void initializeVersion1(MasterSecret masterSecret)
+      throws IOException, InvalidKeyException, NoSuchAlgorithmException
+  {
+    this.cipher        = initializeCipher("AES/CBC/PKCS5Padding");
+    this.mac           = initializeMac();
+    this.messageDigest = MessageDigest.getInstance("SHA256");
+
+    this.cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
+    this.mac.init(masterSecret.getMacKey());
+
+    mac.update(cipher.getIV());
+    messageDigest.update(cipher.getIV());
+
+    super.write(cipher.getIV(), 0, cipher.getIV().length);
+  }
+
+  private void initializeVersion2(MasterSecret masterSecret)
+      throws IOException, InvalidKeyException, NoSuchAlgorithmException
+  {
+    this.cipher        = initializeCipher("AES/CTR/NoPadding");
+    this.mac           = initializeMac();
+    this.messageDigest = MessageDigest.getInstance("SHA256");
+    this.encryptionKey = masterSecret.getEncryptionKey();
+    this.salt          = new byte[ChunkedPartFormat.SALT_LENGTH];
+    this.counter       = new byte[ChunkedPartFormat.SALT_LENGTH];
+    this.chunkBuffer   = new byte[ChunkedPartFormat.DEFAULT_CHUNK_SIZE];
+    this.cipherBuffer  = new byte[ChunkedPartFormat.DEFAULT_CHUNK_SIZE];
+    this.chunkMac      = new byte[ChunkedPartFormat.MAC_LENGTH];
+    this.chunkLength   = 0;
+    this.chunkIndex    = 0;
+
+    this.mac.init(masterSecret.getMacKey());
+
+    new SecureRandom().nextBytes(salt);
+
+    byte[] header = ChunkedPartFormat.createHeader(mac, chunkBuffer.length, salt);
+
+    messageDigest.update(header);
+    super.write(header, 0, header.length);
+  }
+
   @Override
   public void write(byte[] buffer) throws IOException {
     this.write(buffer, 0, buffer.length);
@@ -83,6 +142,11 @@ public class EncryptingPartOutputStream extends FileOutputStream {
 
   @Override
   public void write(byte[] buffer, int offset, int length) throws IOException {
+    if (version == VERSION_2) {
+      writeChunked(buffer, offset, length);
+      return;
+    }
+
     byte[] encryptedBuffer = cipher.update(buffer, offset, length);
 
     if (encryptedBuffer != null) {
@@ -95,7 +159,12 @@ public class EncryptingPartOutputStream extends FileOutputStream {
   @Override
   public void close() throws IOException {
     try {
-      if (!closed) {
+      if (!closed && version == VERSION_2) {
+        writeChunk(true);
+        this.digest = messageDigest.digest();
+
+        closed = true;
+      } else if (!closed) {
         byte[] encryptedRemainder = cipher.doFinal();
         mac.update(encryptedRemainder);
 
@@ -122,6 +191,42 @@ public class EncryptingPartOutputStream extends FileOutputStream {
     return digest;
   }
 
+  private void writeChunked(byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (chunkLength == chunkBuffer.length) {
+        writeChunk(false);
+      }
+
+      int copy = Math.min(length, chunkBuffer.length - chunkLength);
+
+      System.arraycopy(buffer, offset, chunkBuffer, chunkLength, copy);
+
+      chunkLength += copy;
+      offset      += copy;
+      length      -= copy;
+    }
+  }
+
+  private void writeChunk(boolean last) throws IOException {
+    try {
+      int encrypted = ChunkedPartFormat.encryptChunk(cipher, mac, encryptionKey, salt,
+                                                     chunkIndex, chunkBuffer.length, last,
+                                                     chunkBuffer, chunkLength,
+                                                     cipherBuffer, chunkMac, counter);
+
+      messageDigest.update(cipherBuffer, 0, encrypted);
+      messageDigest.update(chunkMac);
+
+      super.write(cipherBuffer, 0, encrypted);
+      super.write(chunkMac, 0, chunkMac.length);
+
+      chunkIndex++;
+      chunkLength = 0;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   private Mac initializeMac() {
     try {
       return Mac.getInstance("HmacSHA1");
@@ -130,9 +235,9 @@ public class EncryptingPartOutputStream extends FileOutputStream {
     }
   }
 
-  private Cipher initializeCipher() {
+  private Cipher initializeCipher(String transformation) {
     try {
-      return Cipher.getInstance("AES/CBC/PKCS5Padding");
+      return Cipher.getInstance(transformation);
     } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
       throw new AssertionError(e);
     }
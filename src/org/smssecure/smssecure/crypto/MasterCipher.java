@@ -28,10 +28,11 @@ import org.whispersystems.libsignal.ecc.ECPrivateKey;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -50,15 +51,27 @@ import javax.crypto.spec.SecretKeySpec;
  * 2) AES-CBC(plaintext)
  * 3) HMAC-SHA1 of 1 and 2
  *
+ * Instances are not thread safe.  The MAC is keyed once at construction,
+ * so callers on hot paths should obtain a per-thread instance from
+ * {@link MasterCipherPool} rather than constructing a new one.
+ *
  * @author Moxie Marlinspike
  */
 
 public class MasterCipher {
 
+  private static final String TAG = MasterCipher.class.getSimpleName();
+
+  private static final int MAX_RETAINED_SCRATCH_SIZE = 64 * 1024;
+
   private final MasterSecret masterSecret;
   private final Cipher encryptingCipher;
   private final Cipher decryptingCipher;
   private final Mac hmac;
+  private final byte[] macBuffer;
+
+  private byte[] decodeBuffer    = new byte[0];
+  private byte[] plaintextBuffer = new byte[0];
 
   public MasterCipher(MasterSecret masterSecret) {
     try {
@@ -66,8 +79,10 @@ public class MasterCipher {
       this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
       this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
       this.hmac             = Mac.getInstance("HmacSHA1");
-    } catch (NoSuchPaddingException | NoSuchAlgorithmException nspe) {
-      throw new AssertionError(nspe);
+      this.hmac.init(masterSecret.getMacKey());
+      this.macBuffer        = new byte[hmac.getMacLength()];
+    } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
     }
   }
 
@@ -80,7 +95,42 @@ public class MasterCipher {
   }
 
   public String decryptBody(String body) throws InvalidMessageException {
-    return new String(decodeAndDecryptBytes(body));
+    try {
+      int plaintextLength = decodeAndDecrypt(body);
+      return new String(plaintextBuffer, 0, plaintextLength);
+    } finally {
+      trimScratchBuffers();
+    }
+  }
+
+  /**
+   * Decrypts a window of bodies, reusing the same decode and plaintext
+   * buffers for every entry.  Entries that are null or fail to decrypt
+   * are returned as null.
+   */
+  public @NonNull List<String> decryptBodies(@NonNull List<String> bodies) {
+    List<String> plaintexts = new ArrayList<>(bodies.size());
+
+    try {
+      for (String body : bodies) {
+        if (body == null) {
+          plaintexts.add(null);
+          continue;
+        }
+
+        try {
+          int plaintextLength = decodeAndDecrypt(body);
+          plaintexts.add(new String(plaintextBuffer, 0, plaintextLength));
+        } catch (InvalidMessageException e) {
+          Log.w(TAG, e);
+          plaintexts.add(null);
+        }
+      }
+    } finally {
+      trimScratchBuffers();
+    }
+
+    return plaintexts;
   }
 
   public ECPrivateKey decryptKey(byte[] key)
@@ -95,25 +145,19 @@ public class MasterCipher {
 
   public byte[] decryptBytes(@NonNull byte[] decodedBody) throws InvalidMessageException {
     try {
-      Mac mac              = getMac(masterSecret.getMacKey());
-      byte[] encryptedBody = verifyMacBody(mac, decodedBody);
-
-      Cipher cipher        = getDecryptingCipher(masterSecret.getEncryptionKey(), encryptedBody);
-
-      return getDecryptedBody(cipher, encryptedBody);
-    } catch (GeneralSecurityException ge) {
-      throw new InvalidMessageException(ge);
+      int plaintextLength = decrypt(decodedBody, decodedBody.length);
+      return Arrays.copyOf(plaintextBuffer, plaintextLength);
+    } finally {
+      trimScratchBuffers();
     }
   }
 
   public byte[] encryptBytes(byte[] body) {
     try {
       Cipher cipher              = getEncryptingCipher(masterSecret.getEncryptionKey());
-      Mac    mac                 = getMac(masterSecret.getMacKey());
-
       byte[] encryptedBody       = getEncryptedBody(cipher, body);
 
-      return getMacBody(mac, encryptedBody);
+      return getMacBody(hmac, encryptedBody);
     } catch (GeneralSecurityException ge) {
       Log.w("bodycipher", ge);
       return null;
@@ -130,49 +174,81 @@ public class MasterCipher {
 
   public byte[] getMacFor(String content) {
     Log.w("MasterCipher", "Macing: " + content);
-    try {
-      Mac mac = getMac(masterSecret.getMacKey());
-      return mac.doFinal(content.getBytes());
-    } catch (GeneralSecurityException ike) {
-      throw new AssertionError(ike);
-    }
+    return hmac.doFinal(content.getBytes());
   }
 
-  private byte[] decodeAndDecryptBytes(String body) throws InvalidMessageException {
+  private int decodeAndDecrypt(String body) throws InvalidMessageException {
+    int decodedLength;
+
     try {
-      byte[] decodedBody = Base64.decode(body);
-      return decryptBytes(decodedBody);
+      decodeBuffer  = getScratchBuffer(decodeBuffer, Base64.getDecodedLengthUpperBound(body.length()));
+      decodedLength = Base64.decode(body, decodeBuffer);
     } catch (IOException e) {
       throw new InvalidMessageException("Bad Base64 Encoding...", e);
     }
-  }
 
-  private String encryptAndEncodeBytes(byte[] bytes) {
-    byte[] encryptedAndMacBody = encryptBytes(bytes);
-    return Base64.encodeBytes(encryptedAndMacBody);
+    return decrypt(decodeBuffer, decodedLength);
   }
 
-  private byte[] verifyMacBody(@NonNull Mac hmac, @NonNull byte[] encryptedAndMac) throws InvalidMessageException {
-    if (encryptedAndMac.length < hmac.getMacLength()) {
+  /**
+   * Verifies the trailing MAC in place and decrypts the IV-prefixed
+   * ciphertext into {@link #plaintextBuffer}, without copying it out.
+   */
+  private int decrypt(@NonNull byte[] encryptedAndMac, int length) throws InvalidMessageException {
+    int macLength       = macBuffer.length;
+    int blockSize       = decryptingCipher.getBlockSize();
+    int encryptedLength = length - macLength;
+
+    if (encryptedLength < 0) {
       throw new InvalidMessageException("length(encrypted body + MAC) < length(MAC)");
     }
 
-    byte[] encrypted = new byte[encryptedAndMac.length - hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
+    try {
+      hmac.update(encryptedAndMac, 0, encryptedLength);
+      hmac.doFinal(macBuffer, 0);
+
+      if (!isEqual(macBuffer, encryptedAndMac, encryptedLength, macLength)) {
+        throw new InvalidMessageException("MAC doesen't match.");
+      }
+
+      if (encryptedLength < blockSize) {
+        throw new InvalidMessageException("length(encrypted body) < length(IV)");
+      }
+
+      IvParameterSpec iv = new IvParameterSpec(encryptedAndMac, 0, blockSize);
+      decryptingCipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(), iv);
+
+      plaintextBuffer = getScratchBuffer(plaintextBuffer, decryptingCipher.getOutputSize(encryptedLength - blockSize));
+
+      return decryptingCipher.doFinal(encryptedAndMac, blockSize, encryptedLength - blockSize, plaintextBuffer, 0);
+    } catch (GeneralSecurityException ge) {
+      throw new InvalidMessageException(ge);
+    }
+  }
+
+  private static boolean isEqual(byte[] mac, byte[] buffer, int offset, int length) {
+    int result = 0;
 
-    byte[] remoteMac = new byte[hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, encryptedAndMac.length - remoteMac.length, remoteMac, 0, remoteMac.length);
+    for (int i = 0; i < length; i++) {
+      result |= mac[i] ^ buffer[offset + i];
+    }
 
-    byte[] localMac  = hmac.doFinal(encrypted);
+    return result == 0;
+  }
 
-    if (!Arrays.equals(remoteMac, localMac))
-      throw new InvalidMessageException("MAC doesen't match.");
+  private static byte[] getScratchBuffer(byte[] current, int length) {
+    if (current.length >= length) return current;
+    else                          return new byte[length];
+  }
 
-    return encrypted;
+  private void trimScratchBuffers() {
+    if (decodeBuffer.length > MAX_RETAINED_SCRATCH_SIZE)    decodeBuffer    = new byte[0];
+    if (plaintextBuffer.length > MAX_RETAINED_SCRATCH_SIZE) plaintextBuffer = new byte[0];
   }
 
-  private byte[] getDecryptedBody(Cipher cipher, byte[] encryptedBody) throws IllegalBlockSizeException, BadPaddingException {
-    return cipher.doFinal(encryptedBody, cipher.getBlockSize(), encryptedBody.length - cipher.getBlockSize());
+  private String encryptAndEncodeBytes(byte[] bytes) {
+    byte[] encryptedAndMacBody = encryptBytes(bytes);
+    return Base64.encodeBytes(encryptedAndMacBody);
   }
 
   private byte[] getEncryptedBody(Cipher cipher, byte[] body) throws IllegalBlockSizeException, BadPaddingException {
@@ -186,13 +262,6 @@ public class MasterCipher {
     return ivAndBody;
   }
 
-  private Mac getMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    //		Mac hmac = Mac.getInstance("HmacSHA1");
-    hmac.init(key);
-
-    return hmac;
-  }
-
   private byte[] getMacBody(Mac hmac, byte[] encryptedBody) {
     byte[] mac             = hmac.doFinal(encryptedBody);
     byte[] encryptedAndMac = new byte[encryptedBody.length + mac.length];
@@ -203,14 +272,6 @@ public class MasterCipher {
     return encryptedAndMac;
   }
 
-  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, decryptingCipher.getBlockSize());
-    decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
-
-    return decryptingCipher;
-  }
-
   private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
     //		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
     encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
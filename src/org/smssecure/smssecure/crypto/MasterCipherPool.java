@@ -0,0 +1,109 @@
+package org.smssecure.smssecure.crypto;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Hands out thread-confined {@link MasterCipher} and {@link SearchTokenizer}
+ * instances for a given {@link MasterSecret}, so that the JCE provider
+ * lookups and key setup are done once per thread rather than once per
+ * message.
+ *
+ * An instance returned by {@link #get(MasterSecret)} or
+ * {@link #getSearchTokenizer(MasterSecret)} must only be used on the calling
+ * thread, and should not be held on to beyond the current operation.  All
+ * pooled instances are dropped by {@link #clear()} when the master secret is
+ * cleared from memory.
+ */
+public class MasterCipherPool {
+
+  private static final ThreadLocal<Entry> entries = new ThreadLocal<>();
+  private static final Set<Entry>         live    = Collections.newSetFromMap(new WeakHashMap<Entry, Boolean>());
+
+  private static volatile int generation = 0;
+
+  public static @NonNull MasterCipher get(@NonNull MasterSecret masterSecret) {
+    Entry        entry  = entries.get();
+    MasterCipher cipher = entry != null ? entry.getCipherFor(masterSecret, generation) : null;
+
+    if (cipher != null) return cipher;
+
+    cipher = new MasterCipher(masterSecret);
+    entry  = new Entry(masterSecret, cipher, generation);
+
+    synchronized (live) {
+      live.add(entry);
+    }
+
+    entries.set(entry);
+    return cipher;
+  }
+
+  public static @NonNull SearchTokenizer getSearchTokenizer(@NonNull MasterSecret masterSecret) {
+    get(masterSecret);
+    return entries.get().getTokenizer(masterSecret);
+  }
+
+  public static void clear() {
+    synchronized (live) {
+      for (Entry entry : live) {
+        entry.invalidate();
+      }
+
+      live.clear();
+      generation++;
+    }
+  }
+
+  private static class Entry {
+
+    private final    int             generation;
+    private volatile MasterSecret    masterSecret;
+    private volatile MasterCipher    cipher;
+    private volatile SearchTokenizer tokenizer;
+
+    private Entry(MasterSecret masterSecret, MasterCipher cipher, int generation) {
+      this.masterSecret = masterSecret;
+      this.cipher       = cipher;
+      this.generation   = generation;
+    }
+
+    private MasterCipher getCipherFor(MasterSecret requested, int currentGeneration) {
+      MasterSecret secret = this.masterSecret;
+      MasterCipher cipher = this.cipher;
+
+      if (generation != currentGeneration || secret == null || cipher == null) {
+        return null;
+      }
+
+      if (secret == requested ||
+          (secret.getEncryptionKey().equals(requested.getEncryptionKey()) &&
+           secret.getMacKey().equals(requested.getMacKey())))
+      {
+        return cipher;
+      }
+
+      return null;
+    }
+
+    private SearchTokenizer getTokenizer(MasterSecret requested) {
+      SearchTokenizer tokenizer = this.tokenizer;
+
+      if (tokenizer == null) {
+        tokenizer      = new SearchTokenizer(requested);
+        this.tokenizer = tokenizer;
+      }
+
+      return tokenizer;
+    }
+
+    private void invalidate() {
+      this.masterSecret = null;
+      this.cipher       = null;
+      this.tokenizer    = null;
+    }
+  }
+}
@@ -0,0 +1,369 @@
+package org.smssecure.smssecure.crypto;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Writes a chunked (version 2) part using every core.
+ *
+ * A reader thread fills chunk buffers from the source, the chunks are
+ * encrypted and MAC'd in parallel on a shared worker pool, and the calling
+ * thread writes them back in order through a {@link FileChannel} while
+ * computing the attachment digest.  Chunks are allocated as the source
+ * needs them, up to {@link #getBufferCount()} in flight at once, so memory
+ * use does not depend on the size of the source.  A source that fits in a
+ * single chunk is encrypted on the calling thread without the pools.
+ *
+ * The output is byte-for-byte the same format that {@link EncryptingPartOutputStream}
+ * writes for {@link EncryptingPartOutputStream#VERSION_2}.
+ */
+public class ParallelPartEncryptor {
+
+  private static final String TAG = ParallelPartEncryptor.class.getSimpleName();
+
+  private static final int WORKER_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+  private static final int BUFFER_COUNT = WORKER_COUNT * 2;
+
+  private static final ExecutorService WORKERS = Executors.newFixedThreadPool(WORKER_COUNT, new NamedThreadFactory("PartEncryptor"));
+  private static final ExecutorService READERS = Executors.newCachedThreadPool(new NamedThreadFactory("PartReader"));
+
+  private final MasterSecret masterSecret;
+  private final int          chunkSize;
+
+  private byte[] digest;
+
+  private volatile boolean aborted;
+
+  public ParallelPartEncryptor(@NonNull MasterSecret masterSecret) {
+    this(masterSecret, ChunkedPartFormat.DEFAULT_CHUNK_SIZE);
+  }
+
+  ParallelPartEncryptor(@NonNull MasterSecret masterSecret, int chunkSize) {
+    this.masterSecret = masterSecret;
+    this.chunkSize    = chunkSize;
+  }
+
+  public static int getBufferCount() {
+    return BUFFER_COUNT;
+  }
+
+  /**
+   * Encrypts everything in the stream to destination, closing the stream.
+   *
+   * @return the number of plaintext bytes written.
+   */
+  public long encrypt(@NonNull InputStream in, @NonNull File destination) throws IOException {
+    final byte[] salt  = new byte[ChunkedPartFormat.SALT_LENGTH];
+    final Chunk  first = new Chunk(chunkSize);
+
+    new SecureRandom().nextBytes(salt);
+
+    try {
+      first.length = fill(in, first.plaintext);
+    } catch (IOException e) {
+      close(in);
+      throw e;
+    }
+
+    if (first.length < chunkSize) {
+      close(in);
+      return encryptSequential(first, salt, destination);
+    } else {
+      return encryptParallel(in, first, salt, destination);
+    }
+  }
+
+  private long encryptSequential(Chunk chunk, byte[] salt, File destination) throws IOException {
+    FileOutputStream out      = new FileOutputStream(destination);
+    MessageDigest    digester = ChunkedPartFormat.getDigest();
+
+    try {
+      writeHeader(out.getChannel(), digester, salt);
+
+      chunk.encrypt(salt, 0, true);
+      writeChunk(out.getChannel(), digester, chunk);
+
+      this.digest = digester.digest();
+
+      return chunk.length;
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    } finally {
+      out.close();
+    }
+  }
+
+  private long encryptParallel(InputStream in, Chunk first, byte[] salt, File destination) throws IOException {
+    final BlockingQueue<Chunk>         free     = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    final BlockingQueue<Future<Chunk>> ordered  = new LinkedBlockingQueue<>();
+    final FileOutputStream             out      = new FileOutputStream(destination);
+    final FileChannel                  channel  = out.getChannel();
+    final MessageDigest                digester = ChunkedPartFormat.getDigest();
+
+    Future<Long> reader = READERS.submit(new ReadTask(in, salt, first, free, ordered));
+
+    try {
+      writeHeader(channel, digester, salt);
+
+      boolean last;
+
+      do {
+        Chunk chunk = ordered.take().get();
+
+        writeChunk(channel, digester, chunk);
+
+        last = chunk.last;
+        free.add(chunk);
+      } while (!last);
+
+      this.digest = digester.digest();
+
+      return reader.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+      else                                     throw new IOException(e.getCause());
+    } finally {
+      aborted = true;
+      out.close();
+    }
+  }
+
+  public byte[] getAttachmentDigest() {
+    return digest;
+  }
+
+  private void writeHeader(FileChannel channel, MessageDigest digester, byte[] salt) throws IOException {
+    byte[] header = ChunkedPartFormat.createHeader(initializeMac(), chunkSize, salt);
+
+    digester.update(header);
+    writeFully(channel, header, header.length);
+  }
+
+  private static void writeChunk(FileChannel channel, MessageDigest digester, Chunk chunk) throws IOException {
+    digester.update(chunk.ciphertext, 0, chunk.ciphertextLength);
+    digester.update(chunk.mac);
+
+    writeFully(channel, chunk.ciphertext, chunk.ciphertextLength);
+    writeFully(channel, chunk.mac, chunk.mac.length);
+  }
+
+  private static int fill(InputStream in, byte[] buffer) throws IOException {
+    int offset = 0;
+
+    while (offset < buffer.length) {
+      int read = in.read(buffer, offset, buffer.length - offset);
+
+      if (read == -1) break;
+      offset += read;
+    }
+
+    return offset;
+  }
+
+  private static void close(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, byte[] data, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private Mac initializeMac() {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA1");
+      mac.init(masterSecret.getMacKey());
+
+      return mac;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private class ReadTask implements Callable<Long> {
+
+    private final InputStream                  in;
+    private final byte[]                       salt;
+    private final Chunk                        first;
+    private final BlockingQueue<Chunk>         free;
+    private final BlockingQueue<Future<Chunk>> ordered;
+
+    private int allocated = 1;
+
+    private ReadTask(InputStream in, byte[] salt, Chunk first,
+                     BlockingQueue<Chunk> free, BlockingQueue<Future<Chunk>> ordered)
+    {
+      this.in      = in;
+      this.salt    = salt;
+      this.first   = first;
+      this.free    = free;
+      this.ordered = ordered;
+    }
+
+    @Override
+    public Long call() throws Exception {
+      long  total   = first.length;
+      long  index   = 0;
+      Chunk pending = first;
+
+      try {
+        while (true) {
+          Chunk chunk = takeFree();
+
+          if (chunk == null) return total;
+
+          chunk.length = fill(in, chunk.plaintext);
+          total       += chunk.length;
+
+          if (chunk.length == 0 && pending != null) {
+            free.add(chunk);
+            break;
+          }
+
+          if (pending != null) {
+            submit(pending, index++, false);
+          }
+
+          pending = chunk;
+
+          if (chunk.length < chunk.plaintext.length) break;
+        }
+
+        submit(pending, index, true);
+        return total;
+      } catch (final IOException | InterruptedException e) {
+        Log.w(TAG, e);
+
+        FutureTask<Chunk> failure = new FutureTask<>(new Callable<Chunk>() {
+          @Override
+          public Chunk call() throws Exception {
+            throw e;
+          }
+        });
+
+        failure.run();
+        ordered.add(failure);
+        throw e;
+      } finally {
+        close(in);
+      }
+    }
+
+    private Chunk takeFree() throws InterruptedException {
+      Chunk chunk = free.poll();
+
+      if (chunk != null) return chunk;
+
+      if (allocated < BUFFER_COUNT) {
+        allocated++;
+        return new Chunk(chunkSize);
+      }
+
+      while (!aborted) {
+        chunk = free.poll(100, TimeUnit.MILLISECONDS);
+        if (chunk != null) return chunk;
+      }
+
+      return null;
+    }
+
+    private void submit(final Chunk chunk, final long index, final boolean last) {
+      ordered.add(WORKERS.submit(new Callable<Chunk>() {
+        @Override
+        public Chunk call() throws GeneralSecurityException {
+          return chunk.encrypt(salt, index, last);
+        }
+      }));
+    }
+  }
+
+  private class Chunk {
+    private final byte[] plaintext;
+    private final byte[] ciphertext;
+    private final byte[] mac;
+    private final byte[] counter;
+    private final Cipher cipher;
+    private final Mac    macInstance;
+
+    private int     length;
+    private int     ciphertextLength;
+    private long    index;
+    private boolean last;
+
+    private Chunk(int chunkSize) {
+      this.plaintext   = new byte[chunkSize];
+      this.ciphertext  = new byte[chunkSize];
+      this.mac         = new byte[ChunkedPartFormat.MAC_LENGTH];
+      this.counter     = new byte[ChunkedPartFormat.SALT_LENGTH];
+      this.macInstance = initializeMac();
+
+      try {
+        this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private Chunk encrypt(byte[] salt, long index, boolean last) throws GeneralSecurityException {
+      this.index            = index;
+      this.last             = last;
+      this.ciphertextLength = ChunkedPartFormat.encryptChunk(cipher, macInstance, masterSecret.getEncryptionKey(),
+                                                             salt, index, chunkSize, last,
+                                                             plaintext, length, ciphertext, mac, counter);
+      return this;
+    }
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+    private final String        name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    private NamedThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package org.smssecure.smssecure.crypto;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Turns message text into keyed search tokens, so that message bodies can be
+ * indexed without storing any of their words.
+ *
+ * Text is lower cased, stripped of diacritics and split into words.  A word
+ * is indexed under each of its prefixes from {@link #MIN_PREFIX_LENGTH} to
+ * {@link #MAX_PREFIX_LENGTH} characters, or as a whole if it is shorter, and
+ * every term is replaced by the first 32 bits of its HMAC under a key derived
+ * from the master secret.
+ */
+public class SearchTokenizer {
+
+  static final int MIN_PREFIX_LENGTH = 3;
+  static final int MAX_PREFIX_LENGTH = 8;
+
+  private static final Charset UTF_8          = Charset.forName("UTF-8");
+  private static final byte[]  KEY_INFO       = "Search Index".getBytes(UTF_8);
+  private static final Pattern COMBINING_MARK = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+  private final Mac mac;
+
+  public SearchTokenizer(@NonNull MasterSecret masterSecret) {
+    try {
+      Mac keyMac = Mac.getInstance("HmacSHA1");
+      keyMac.init(masterSecret.getMacKey());
+
+      this.mac = Mac.getInstance("HmacSHA1");
+      this.mac.init(new SecretKeySpec(keyMac.doFinal(KEY_INFO), "HmacSHA1"));
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return the tokens to index a message body under.
+   */
+  public @NonNull Set<Integer> getIndexTokens(@Nullable String body) {
+    Set<Integer> tokens = new HashSet<>();
+
+    for (String word : getWords(body)) {
+      for (String term : getIndexTerms(word)) {
+        tokens.add(getToken(term));
+      }
+    }
+
+    return tokens;
+  }
+
+  /**
+   * @return the tokens that must all be present in a message for it to match
+   *         the query.  Each word of the query matches words starting with it,
+   *         words shorter than {@link #MIN_PREFIX_LENGTH} only match whole.
+   */
+  public @NonNull Set<Integer> getQueryTokens(@Nullable String query) {
+    Set<Integer> tokens = new HashSet<>();
+
+    for (String word : getWords(query)) {
+      tokens.add(getToken(word.length() > MAX_PREFIX_LENGTH ? word.substring(0, MAX_PREFIX_LENGTH) : word));
+    }
+
+    return tokens;
+  }
+
+  private int getToken(String term) {
+    byte[] digest = mac.doFinal(term.getBytes(UTF_8));
+
+    return ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16) |
+           ((digest[2] & 0xff) << 8)  |  (digest[3] & 0xff);
+  }
+
+  static @NonNull List<String> getWords(@Nullable String text) {
+    List<String> words = new LinkedList<>();
+
+    if (text == null) return words;
+
+    String normalized = COMBINING_MARK.matcher(Normalizer.normalize(text, Normalizer.Form.NFD))
+                                      .replaceAll("")
+                                      .toLowerCase(Locale.US);
+    int    start      = -1;
+
+    for (int i = 0; i <= normalized.length(); i++) {
+      boolean wordCharacter = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+
+      if (wordCharacter && start == -1) {
+        start = i;
+      } else if (!wordCharacter && start != -1) {
+        words.add(normalized.substring(start, i));
+        start = -1;
+      }
+    }
+
+    return words;
+  }
+
+  static @NonNull List<String> getIndexTerms(@NonNull String word) {
+    List<String> terms = new LinkedList<>();
+
+    if (word.length() < MIN_PREFIX_LENGTH) {
+      terms.add(word);
+    } else {
+      for (int length = MIN_PREFIX_LENGTH; length <= Math.min(word.length(), MAX_PREFIX_LENGTH); length++) {
+        terms.add(word.substring(0, length));
+      }
+    }
+
+    return terms;
+  }
+}
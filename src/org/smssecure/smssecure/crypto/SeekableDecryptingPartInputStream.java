@@ -0,0 +1,295 @@
+package org.smssecure.smssecure.crypto;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Class for reading a chunked (version 2) encrypted part off the disk.
+ *
+ * Any offset can be reached by decrypting the single chunk that contains
+ * it, so {@link #skip(long)} and {@link #seek(long)} are O(1).  Every chunk
+ * is authenticated before any of its plaintext is returned.  The attachment
+ * digest is only checked when the whole part is read from the start without
+ * seeking.
+ */
+public class SeekableDecryptingPartInputStream extends InputStream {
+
+  private static final String TAG = SeekableDecryptingPartInputStream.class.getSimpleName();
+
+  private final RandomAccessFile file;
+  private final FileChannel      channel;
+  private final MasterSecret     masterSecret;
+  private final Cipher           cipher;
+  private final Mac              mac;
+  private final byte[]           salt;
+  private final int              chunkSize;
+  private final long             chunkCount;
+  private final long             fileLength;
+  private final long             length;
+
+  private final byte[] ciphertext;
+  private final byte[] plaintext;
+  private final byte[] ourMac;
+  private final byte[] counter;
+
+  private @Nullable MessageDigest digest;
+  private @Nullable byte[]        theirDigest;
+  private           long          nextDigestChunk;
+
+  private long loadedChunk = -1;
+  private int  loadedLength;
+  private long position;
+
+  /**
+   * @return a stream for the part, or null if the file is not a chunked part.
+   */
+  public static @Nullable SeekableDecryptingPartInputStream open(@NonNull File file,
+                                                                 @NonNull MasterSecret masterSecret,
+                                                                 @Nullable byte[] theirDigest)
+      throws FileNotFoundException
+  {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+    try {
+      Mac    mac    = initializeMac(masterSecret);
+      byte[] header = new byte[ChunkedPartFormat.HEADER_LENGTH];
+
+      if (randomAccessFile.length() < header.length) {
+        randomAccessFile.close();
+        return null;
+      }
+
+      randomAccessFile.readFully(header);
+
+      ChunkedPartFormat.Header parsed = ChunkedPartFormat.parseHeader(mac, header);
+
+      if (parsed == null) {
+        randomAccessFile.close();
+        return null;
+      }
+
+      return new SeekableDecryptingPartInputStream(randomAccessFile, masterSecret, mac, parsed, header, theirDigest);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      try { randomAccessFile.close(); } catch (IOException ignored) {}
+      throw new FileNotFoundException("IOException while reading header!");
+    }
+  }
+
+  private SeekableDecryptingPartInputStream(@NonNull RandomAccessFile file,
+                                            @NonNull MasterSecret masterSecret,
+                                            @NonNull Mac mac,
+                                            @NonNull ChunkedPartFormat.Header header,
+                                            @NonNull byte[] headerBytes,
+                                            @Nullable byte[] theirDigest)
+      throws IOException
+  {
+    this.file         = file;
+    this.channel      = file.getChannel();
+    this.masterSecret = masterSecret;
+    this.mac          = mac;
+    this.cipher       = initializeCipher();
+    this.salt         = header.salt;
+    this.chunkSize    = header.chunkSize;
+    this.fileLength   = file.length();
+    this.chunkCount   = ChunkedPartFormat.getChunkCount(fileLength, chunkSize);
+    this.length       = ChunkedPartFormat.getPlaintextLength(fileLength, chunkSize);
+    this.ciphertext   = new byte[chunkSize + ChunkedPartFormat.MAC_LENGTH];
+    this.plaintext    = new byte[chunkSize];
+    this.ourMac       = new byte[ChunkedPartFormat.MAC_LENGTH];
+    this.counter      = new byte[ChunkedPartFormat.SALT_LENGTH];
+    this.theirDigest  = theirDigest;
+
+    if (chunkCount < 0) {
+      throw new IOException("Truncated part!");
+    }
+
+    if (theirDigest != null) {
+      this.digest = ChunkedPartFormat.getDigest();
+      this.digest.update(headerBytes);
+    }
+  }
+
+  /**
+   * @return the length of the decrypted part, in bytes.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  public long getPosition() {
+    return position;
+  }
+
+  public void seek(long position) throws IOException {
+    if (position < 0) throw new IOException("Negative seek: " + position);
+
+    if (position != this.position) {
+      stopDigest();
+    }
+
+    this.position = Math.min(position, length);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xff;
+  }
+
+  @Override
+  public int read(@NonNull byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+
+    if (position >= this.length) {
+      finishDigest();
+      return -1;
+    }
+
+    long chunkIndex  = position / chunkSize;
+    int  chunkOffset = (int)(position - chunkIndex * chunkSize);
+
+    loadChunk(chunkIndex);
+
+    int read = Math.min(length, loadedLength - chunkOffset);
+
+    System.arraycopy(plaintext, chunkOffset, buffer, offset, read);
+    position += read;
+
+    return read;
+  }
+
+  @Override
+  public long skip(long byteCount) throws IOException {
+    if (byteCount <= 0) return 0;
+
+    long skipped = Math.min(byteCount, length - position);
+    seek(position + skipped);
+
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return (int)Math.min(Integer.MAX_VALUE, length - position);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private void loadChunk(long chunkIndex) throws IOException {
+    if (chunkIndex == loadedChunk) return;
+
+    boolean last       = chunkIndex == chunkCount - 1;
+    long    offset     = ChunkedPartFormat.getChunkOffset(chunkIndex, chunkSize);
+    int     readLength = last ? (int)(fileLength - offset) : ciphertext.length;
+    int     dataLength = readLength - ChunkedPartFormat.MAC_LENGTH;
+
+    readFully(offset, readLength);
+
+    ChunkedPartFormat.calculateChunkMac(mac, salt, chunkIndex, last, ciphertext, 0, dataLength, ourMac);
+
+    if (!ChunkedPartFormat.isEqual(ourMac, ciphertext, dataLength, ourMac.length)) {
+      throw new IOException("MAC doesn't match! Potential tampering?");
+    }
+
+    try {
+      ChunkedPartFormat.getChunkCounter(salt, chunkIndex, chunkSize, counter);
+      cipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(), new IvParameterSpec(counter));
+      loadedLength = cipher.doFinal(ciphertext, 0, dataLength, plaintext, 0);
+      loadedChunk  = chunkIndex;
+    } catch (GeneralSecurityException e) {
+      Log.w(TAG, e);
+      throw new IOException("Unable to decrypt chunk " + chunkIndex);
+    }
+
+    if (digest != null) {
+      if (chunkIndex == nextDigestChunk) {
+        digest.update(ciphertext, 0, readLength);
+        nextDigestChunk++;
+      } else {
+        stopDigest();
+      }
+    }
+  }
+
+  private void readFully(long offset, int readLength) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(ciphertext, 0, readLength);
+
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) == -1) {
+        throw new IOException("Unexpected end of part!");
+      }
+    }
+  }
+
+  private void finishDigest() throws IOException {
+    if (digest == null || theirDigest == null) return;
+
+    while (nextDigestChunk < chunkCount && digest != null) {
+      loadChunk(nextDigestChunk);
+    }
+
+    if (digest != null && !MessageDigest.isEqual(digest.digest(), theirDigest)) {
+      throw new IOException("Digest doesn't match!");
+    }
+
+    stopDigest();
+  }
+
+  private void stopDigest() {
+    this.digest      = null;
+    this.theirDigest = null;
+  }
+
+  private static Mac initializeMac(MasterSecret masterSecret) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA1");
+      mac.init(masterSecret.getMacKey());
+
+      return mac;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static Cipher initializeCipher() {
+    try {
+      return Cipher.getInstance("AES/CTR/NoPadding");
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -5,6 +5,7 @@ import android.os.Build;
 import android.util.Log;
 
 import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterCipherPool;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.recipients.Recipient;
 import org.smssecure.smssecure.recipients.RecipientFactory;
@@ -53,7 +54,7 @@ public class SilenceSessionStore implements SessionStore {
   public SessionRecord loadSession(SignalProtocolAddress address) {
     synchronized (FILE_LOCK) {
       try {
-        MasterCipher    cipher = new MasterCipher(masterSecret);
+        MasterCipher    cipher = MasterCipherPool.get(masterSecret);
         FileInputStream in     = new FileInputStream(getSessionFile(address));
 
         int versionMarker  = readInteger(in);
@@ -85,7 +86,7 @@ public class SilenceSessionStore implements SessionStore {
   public void storeSession(SignalProtocolAddress address, SessionRecord record) {
     synchronized (FILE_LOCK) {
       try {
-        MasterCipher     masterCipher = new MasterCipher(masterSecret);
+        MasterCipher     masterCipher = MasterCipherPool.get(masterSecret);
         RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(address), "rw");
         FileChannel      out          = sessionFile.getChannel();
 
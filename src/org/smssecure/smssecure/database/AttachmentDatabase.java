@@ -28,7 +28,6 @@ import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
-import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
@@ -37,8 +36,8 @@ import org.smssecure.smssecure.attachments.Attachment;
 import org.smssecure.smssecure.attachments.AttachmentId;
 import org.smssecure.smssecure.attachments.DatabaseAttachment;
 import org.smssecure.smssecure.crypto.DecryptingPartInputStream;
-import org.smssecure.smssecure.crypto.EncryptingPartOutputStream;
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.crypto.ParallelPartEncryptor;
 import org.smssecure.smssecure.mms.MediaStream;
 import org.smssecure.smssecure.mms.MmsException;
 import org.smssecure.smssecure.mms.PartAuthority;
@@ -52,7 +51,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.util.LinkedList;
 import java.util.List;
@@ -87,6 +85,10 @@ public class AttachmentDatabase extends Database {
 
   private static final String PART_ID_WHERE = ROW_ID + " = ? AND " + UNIQUE_ID + " = ?";
 
+  private static final String RECLAIM_TABLE_NAME = "part_reclaim";
+  private static final String RECLAIM_ID         = "_id";
+  private static final String RECLAIM_PATH       = "path";
+
   private static final String[] PROJECTION = new String[] {ROW_ID + " AS " + ATTACHMENT_ID_ALIAS,
                                                            MMS_ID, CONTENT_TYPE, NAME, CONTENT_DISPOSITION,
                                                            CONTENT_LOCATION, DATA, THUMBNAIL, TRANSFER_STATE,
@@ -103,6 +105,15 @@ public class AttachmentDatabase extends Database {
     THUMBNAIL + " TEXT, " + THUMBNAIL_ASPECT_RATIO + " REAL, " + UNIQUE_ID + " INTEGER NOT NULL, " +
     DIGEST + " BLOB);";
 
+  /**
+   * Files of deleted attachments that have not been unlinked yet.  Paths are
+   * queued in the transaction that deletes their rows, and the files are
+   * removed later by {@link #reclaimDeletedFiles(int)}, so deleting rows never
+   * waits on the filesystem and no file is left behind by a crash.
+   */
+  public static final String CREATE_RECLAIM_TABLE = "CREATE TABLE " + RECLAIM_TABLE_NAME + " (" + RECLAIM_ID + " INTEGER PRIMARY KEY, " +
+    RECLAIM_PATH + " TEXT NOT NULL);";
+
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS part_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");",
     "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + TRANSFER_STATE + ");",
@@ -211,39 +222,76 @@ public class AttachmentDatabase extends Database {
     return attachments;
   }
 
-  @SuppressWarnings("ResultOfMethodCallIgnored")
+  /**
+   * Deletes the attachments of a message and queues their files to be
+   * reclaimed.
+   */
   public void deleteAttachmentsForMessage(long mmsId) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor cursor           = null;
+    deleteAttachmentsForMessages("= " + mmsId, null);
+  }
 
+  /**
+   * Deletes the attachments of every message matching the selection on
+   * their message id, such as "IN (SELECT ...)", with set statements, and
+   * queues their files to be reclaimed.
+   */
+  void deleteAttachmentsForMessages(@NonNull String mmsIdSelection, @Nullable String[] selectionArgs) {
+    SQLiteDatabase database  = databaseHelper.getWritableDatabase();
+    String         selection = MMS_ID + " " + mmsIdSelection;
+    String[]       bindArgs  = selectionArgs != null ? selectionArgs : new String[0];
+
+    database.beginTransaction();
     try {
-      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL}, MMS_ID + " = ?",
-                              new String[] {mmsId+""}, null, null, null);
+      for (String column : new String[] {DATA, THUMBNAIL}) {
+        database.execSQL("INSERT INTO " + RECLAIM_TABLE_NAME + " (" + RECLAIM_PATH + ") " +
+                         "SELECT " + column + " FROM " + TABLE_NAME + " WHERE " + selection + " AND " + column + " IS NOT NULL AND " + column + " != ''", bindArgs);
+      }
 
-      while (cursor != null && cursor.moveToNext()) {
-        String data = cursor.getString(0);
-        String thumbnail = cursor.getString(1);
+      database.delete(TABLE_NAME, selection, selectionArgs);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
 
-        if (!TextUtils.isEmpty(data)) {
-          new File(data).delete();
-        }
+  /**
+   * Unlinks up to limit files of deleted attachments.
+   *
+   * @return the number of queued files handled, 0 once the queue is empty.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  public int reclaimDeletedFiles(int limit) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    Cursor         cursor   = null;
+    long           lastId   = -1;
+    int            count    = 0;
 
-        if (!TextUtils.isEmpty(thumbnail)) {
-          new File(thumbnail).delete();
-        }
+    try {
+      cursor = database.query(RECLAIM_TABLE_NAME, new String[] {RECLAIM_ID, RECLAIM_PATH}, null, null,
+                              null, null, RECLAIM_ID, String.valueOf(limit));
+
+      while (cursor != null && cursor.moveToNext()) {
+        new File(cursor.getString(1)).delete();
+        lastId = cursor.getLong(0);
+        count++;
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
 
-    database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
+    if (count > 0) {
+      database.delete(RECLAIM_TABLE_NAME, RECLAIM_ID + " <= ?", new String[] {String.valueOf(lastId)});
+    }
+
+    return count;
   }
 
   @SuppressWarnings("ResultOfMethodCallIgnored")
   public void deleteAllAttachments() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
+    database.delete(RECLAIM_TABLE_NAME, null, null);
 
     File   attachmentsDirectory = context.getDir("parts", Context.MODE_PRIVATE);
     File[] attachments          = attachmentsDirectory.listFiles();
@@ -338,7 +386,7 @@ public class AttachmentDatabase extends Database {
     byte[] digest = (!dataType.equals(THUMBNAIL)) ? getAttachment(attachmentId).getDigest() : null;
 
     try {
-      if (dataFile != null) return new DecryptingPartInputStream(dataFile, masterSecret, digest);
+      if (dataFile != null) return DecryptingPartInputStream.createFor(dataFile, masterSecret, digest);
       else                  return null;
     } catch (FileNotFoundException e) {
       Log.w(TAG, e);
@@ -404,8 +452,10 @@ public class AttachmentDatabase extends Database {
       throws MmsException
   {
     try {
-      EncryptingPartOutputStream out = new EncryptingPartOutputStream(destination, masterSecret);
-      return new Pair<>(Util.copy(in, (OutputStream) out), out.getAttachmentDigest());
+      ParallelPartEncryptor encryptor = new ParallelPartEncryptor(masterSecret);
+      long                  length    = encryptor.encrypt(in, destination);
+
+      return new Pair<>(length, encryptor.getAttachmentDigest());
     } catch (IOException e) {
       throw new MmsException(e);
     }
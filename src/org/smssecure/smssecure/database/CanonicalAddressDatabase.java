@@ -34,6 +34,7 @@ import org.smssecure.smssecure.util.VisibleForTesting;
 import org.smssecure.smssecure.util.InvalidNumberException;
 import org.smssecure.smssecure.util.PhoneNumberFormatter;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -60,7 +61,7 @@ public class CanonicalAddressDatabase {
 
   private final Map<String, Long>   addressCache          = new ConcurrentHashMap<>();
   private final Map<Long, String>   idCache               = new ConcurrentHashMap<>();
-  private final Map<String, String> formattedAddressCache = Collections.synchronizedMap(new LRUCache<String, String>(100));
+  private final Map<String, String> formattedAddressCache = Collections.synchronizedMap(new LRUCache<String, String>(1000));
 
   public synchronized static CanonicalAddressDatabase getInstance(Context context) {
     if (instance == null)
@@ -143,46 +144,80 @@ public class CanonicalAddressDatabase {
   }
 
   public long getCanonicalAddressId(@NonNull String address) {
-    try {
-      long   canonicalAddressId;
-      String formattedAddress;
-
-      if ((formattedAddress = formattedAddressCache.get(address)) == null) {
-        String localNumber = SilencePreferences.getLocalNumber(context);
-
-        if (!isNumberAddress(address)                        ||
-            !SilencePreferences.isPushRegistered(context) ||
-            ShortCodeUtil.isShortCode(localNumber, address))
-        {
-          formattedAddress = address;
-        } else {
-          formattedAddress = PhoneNumberFormatter.formatNumber(address, localNumber);
-        }
-
-        formattedAddressCache.put(address, formattedAddress);
-      }
+    String formattedAddress = getFormattedAddress(address);
+    long   canonicalAddressId;
 
-      if ((canonicalAddressId = getCanonicalAddressFromCache(formattedAddress)) == -1) {
-        canonicalAddressId = getCanonicalAddressIdFromDatabase(formattedAddress);
-      }
+    if ((canonicalAddressId = getCanonicalAddressFromCache(formattedAddress)) == -1) {
+      canonicalAddressId = getCanonicalAddressIdFromDatabase(formattedAddress);
+    }
 
-      idCache.put(canonicalAddressId, formattedAddress);
-      addressCache.put(formattedAddress, canonicalAddressId);
+    idCache.put(canonicalAddressId, formattedAddress);
+    addressCache.put(formattedAddress, canonicalAddressId);
 
-      return canonicalAddressId;
-    } catch (InvalidNumberException e) {
-      throw new AssertionError(e);
-    }
+    return canonicalAddressId;
   }
 
+  /**
+   * Resolves a batch of addresses, such as every number matching a search.
+   * Addresses already known are answered from the cache, and the rest are
+   * looked up or created together in a single transaction.
+   */
   public @NonNull List<Long> getCanonicalAddressIds(@NonNull List<String> addresses) {
-    List<Long> addressList = new LinkedList<>();
+    List<Long>   addressIds = new ArrayList<>(addresses.size());
+    List<String> uncached   = new LinkedList<>();
 
     for (String address : addresses) {
-      addressList.add(getCanonicalAddressId(address));
+      String formattedAddress   = getFormattedAddress(address);
+      long   canonicalAddressId = getCanonicalAddressFromCache(formattedAddress);
+
+      if (canonicalAddressId == -1) uncached.add(formattedAddress);
+      else                          addressIds.add(canonicalAddressId);
     }
 
-    return addressList;
+    if (uncached.isEmpty()) return addressIds;
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      for (String formattedAddress : uncached) {
+        long canonicalAddressId = getCanonicalAddressIdFromDatabase(formattedAddress);
+
+        idCache.put(canonicalAddressId, formattedAddress);
+        addressCache.put(formattedAddress, canonicalAddressId);
+        addressIds.add(canonicalAddressId);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return addressIds;
+  }
+
+  private @NonNull String getFormattedAddress(@NonNull String address) {
+    String formattedAddress = formattedAddressCache.get(address);
+
+    if (formattedAddress != null) return formattedAddress;
+
+    try {
+      String localNumber = SilencePreferences.getLocalNumber(context);
+
+      if (!isNumberAddress(address)                     ||
+          !SilencePreferences.isPushRegistered(context) ||
+          ShortCodeUtil.isShortCode(localNumber, address))
+      {
+        formattedAddress = address;
+      } else {
+        formattedAddress = PhoneNumberFormatter.formatNumber(address, localNumber);
+      }
+
+      formattedAddressCache.put(address, formattedAddress);
+      return formattedAddress;
+    } catch (InvalidNumberException e) {
+      throw new AssertionError(e);
+    }
   }
 
   private long getCanonicalAddressFromCache(String address) {
@@ -17,19 +17,32 @@
 package org.smssecure.smssecure.database;
 
 import android.content.Context;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 public abstract class Database {
 
   protected static final String ID_WHERE = "_id = ?";
 
+  protected static final int DECRYPT_WINDOW_SIZE = 50;
+
   protected       SQLiteOpenHelper databaseHelper;
   protected final Context context;
 
+  private final Map<String, SQLiteStatement> statementCache = new HashMap<>();
+  private       SQLiteDatabase               statementDatabase;
+
   public Database(Context context, SQLiteOpenHelper databaseHelper) {
     this.context        = context;
     this.databaseHelper = databaseHelper;
@@ -56,7 +69,141 @@ public abstract class Database {
     cursor.setNotificationUri(context.getContentResolver(), DatabaseContentProviders.ConversationList.CONTENT_URI);
   }
 
+  /**
+   * Returns the start of the run of up to maxRows rows ending just before
+   * position that can be read without the cursor having to refill its window.
+   */
+  protected static int getWindowStart(Cursor cursor, int position, int maxRows) {
+    int start = Math.max(position - maxRows, 0);
+
+    while (cursor instanceof CursorWrapper) {
+      cursor = ((CursorWrapper)cursor).getWrappedCursor();
+    }
+
+    if (cursor instanceof AbstractWindowedCursor) {
+      CursorWindow window = ((AbstractWindowedCursor)cursor).getWindow();
+
+      if (window != null && position >= window.getStartPosition() &&
+          position < window.getStartPosition() + window.getNumRows())
+      {
+        start = Math.max(start, window.getStartPosition());
+      }
+    }
+
+    return start;
+  }
+
+  /**
+   * Returns the exclusive end of the run of up to maxRows rows starting at
+   * position that can be read without the cursor having to refill its window.
+   */
+  protected static int getWindowEnd(Cursor cursor, int position, int maxRows) {
+    int end = Math.min(position + maxRows, cursor.getCount());
+
+    while (cursor instanceof CursorWrapper) {
+      cursor = ((CursorWrapper)cursor).getWrappedCursor();
+    }
+
+    if (cursor instanceof AbstractWindowedCursor) {
+      CursorWindow window = ((AbstractWindowedCursor)cursor).getWindow();
+
+      if (window != null && position >= window.getStartPosition()) {
+        end = Math.min(end, window.getStartPosition() + window.getNumRows());
+      }
+    }
+
+    return Math.max(end, position + 1);
+  }
+
+  /**
+   * Runs an insert through a statement compiled once per DAO and connection.
+   *
+   * @return the row id of the new row, or -1 on failure.
+   */
+  protected long executeInsert(String sql, Object... args) {
+    SQLiteDatabase  db        = databaseHelper.getWritableDatabase();
+    SQLiteStatement statement = acquireStatement(db, sql, args);
+
+    try {
+      return statement.executeInsert();
+    } finally {
+      releaseStatement(db, sql, statement);
+    }
+  }
+
+  /**
+   * Runs an update or delete through a statement compiled once per DAO and
+   * connection.
+   *
+   * @return the number of rows changed.
+   */
+  protected int executeUpdateDelete(String sql, Object... args) {
+    SQLiteDatabase  db        = databaseHelper.getWritableDatabase();
+    SQLiteStatement statement = acquireStatement(db, sql, args);
+
+    try {
+      return statement.executeUpdateDelete();
+    } finally {
+      releaseStatement(db, sql, statement);
+    }
+  }
+
+  /**
+   * Takes the cached statement for the SQL out of the cache, or compiles one
+   * if it is missing or in use, and binds the arguments.  A statement is
+   * only ever used by one thread at a time, and no lock is held while it
+   * runs, so a thread in a transaction never waits on one that needs it.
+   */
+  private SQLiteStatement acquireStatement(SQLiteDatabase db, String sql, Object[] args) {
+    SQLiteStatement statement;
+
+    synchronized (statementCache) {
+      if (db != statementDatabase) {
+        closeStatements();
+        statementDatabase = db;
+      }
+
+      statement = statementCache.remove(sql);
+    }
+
+    if (statement == null) {
+      statement = db.compileStatement(sql);
+    }
+
+    for (int i = 0; i < args.length; i++) {
+      DatabaseUtils.bindObjectToProgram(statement, i + 1, args[i]);
+    }
+
+    return statement;
+  }
+
+  private void releaseStatement(SQLiteDatabase db, String sql, SQLiteStatement statement) {
+    statement.clearBindings();
+
+    synchronized (statementCache) {
+      if (db == statementDatabase && !statementCache.containsKey(sql)) {
+        statementCache.put(sql, statement);
+        return;
+      }
+    }
+
+    statement.close();
+  }
+
+  private void closeStatements() {
+    for (SQLiteStatement statement : statementCache.values()) {
+      statement.close();
+    }
+
+    statementCache.clear();
+  }
+
   public void reset(SQLiteOpenHelper databaseHelper) {
+    synchronized (statementCache) {
+      closeStatements();
+      statementDatabase = null;
+    }
+
     this.databaseHelper = databaseHelper;
   }
 
@@ -22,6 +22,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -40,6 +41,7 @@ import org.whispersystems.libsignal.InvalidMessageException;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -75,15 +77,26 @@ public class DatabaseFactory {
   private static final int INTRODUCED_LAST_SEEN                            = 29;
   private static final int INTRODUCED_NOTIFIED                             = 30;
   private static final int INTRODUCED_DIGEST                               = 31;
+  private static final int INTRODUCED_MESSAGE_TIMELINE_VERSION             = 33;
+  private static final int INTRODUCED_TIMELINE_KEY_INDEX_VERSION           = 34;
+  private static final int INTRODUCED_SEARCH_INDEX_VERSION                 = 35;
+  private static final int INTRODUCED_THREAD_SUMMARY_VERSION               = 36;
+  private static final int INTRODUCED_PART_RECLAIM_VERSION                 = 37;
 
   /*
    * Yes, INTRODUCED_XMPP_TRANSPORT > DATABASE_VERSION to allow database
    * downgrade when XMPP transport will be included in unstable branch.
    */
-  private static final int INTRODUCED_XMPP_TRANSPORT                       = 32;
-  private static final int DATABASE_VERSION                                = 31;
+  private static final int INTRODUCED_XMPP_TRANSPORT                       = 38;
+  private static final int DATABASE_VERSION                                = 37;
 
   private static final String DATABASE_NAME    = "messages.db";
+
+  private static final String   SHARED_MEMORY_SUFFIX  = "-shm";
+  private static final String[] DATABASE_FILE_SUFFIXES = {"", "-journal", "-wal", SHARED_MEMORY_SUFFIX};
+
+  private static final int CACHE_SIZE_KIB           = 4096;
+  private static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
   private static final Object lock             = new Object();
 
   private static DatabaseFactory instance;
@@ -103,6 +116,7 @@ public class DatabaseFactory {
   private final DraftDatabase draftDatabase;
   private final RecipientPreferenceDatabase recipientPreferenceDatabase;
   private final ContactsDatabase contactsDatabase;
+  private final SearchIndexDatabase searchIndexDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -165,6 +179,10 @@ public class DatabaseFactory {
     return getInstance(context).contactsDatabase;
   }
 
+  public static SearchIndexDatabase getSearchIndexDatabase(Context context) {
+    return getInstance(context).searchIndexDatabase;
+  }
+
   private DatabaseFactory(Context context) {
     this.databaseHelper              = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     this.sms                         = new SmsDatabase(context, databaseHelper);
@@ -180,6 +198,7 @@ public class DatabaseFactory {
     this.draftDatabase               = new DraftDatabase(context, databaseHelper);
     this.recipientPreferenceDatabase = new RecipientPreferenceDatabase(context, databaseHelper);
     this.contactsDatabase            = new ContactsDatabase(context);
+    this.searchIndexDatabase         = new SearchIndexDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
@@ -196,6 +215,7 @@ public class DatabaseFactory {
     this.identityDatabase.reset(databaseHelper);
     this.draftDatabase.reset(databaseHelper);
     this.recipientPreferenceDatabase.reset(databaseHelper);
+    this.searchIndexDatabase.reset(databaseHelper);
     old.close();
 
     this.address.reset(context);
@@ -216,22 +236,180 @@ public class DatabaseFactory {
     MessageNotifier.updateNotification(context, masterSecret);
   }
 
+  /**
+   * Runs a passive checkpoint, copying what it can of the write-ahead log
+   * into the database without waiting on readers or blocking writers.
+   */
+  public void checkpoint() {
+    long[] result = queryPragma(databaseHelper.getWritableDatabase(), "wal_checkpoint(PASSIVE)");
+
+    if (result.length == 3 && result[0] != 0) {
+      Log.w(TAG, "Checkpoint busy, copied " + result[2] + " of " + result[1] + " frames.");
+    }
+  }
+
+  /**
+   * Copies the message database and its write-ahead log into the directory
+   * for a backup.  The log is checkpointed into the database file first, so
+   * it is usually empty, and an immediate transaction holds writers off while
+   * the files are copied, so together they hold exactly the committed rows,
+   * as after a crash.  The shared memory index is left out, since SQLite
+   * rebuilds it from the log, and any copy of it from an older backup is
+   * removed.
+   */
+  public void backupTo(Context context, File directory) throws IOException {
+    File databaseFile = getDatabaseFile(context);
+
+    queryPragma(databaseHelper.getWritableDatabase(), "wal_checkpoint(TRUNCATE)");
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransactionNonExclusive();
+
+    try {
+      for (String suffix : DATABASE_FILE_SUFFIXES) {
+        File source      = new File(databaseFile.getPath() + suffix);
+        File destination = new File(directory, source.getName());
+
+        if (destination.exists() && !destination.delete()) {
+          throw new IOException("Could not delete " + destination.getAbsolutePath());
+        }
+
+        if (source.length() > 0 && !suffix.equals(SHARED_MEMORY_SUFFIX)) {
+          Util.copy(new FileInputStream(source), new FileOutputStream(destination));
+        }
+      }
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Closes the message database and deletes its write-ahead log and index,
+   * so that a database file restored from a backup is not replayed against
+   * the log of the database it replaces.  Call {@link #reset(Context)} once
+   * the restored files are in place.
+   */
+  public void closeForRestore(Context context) {
+    File databaseFile = getDatabaseFile(context);
+
+    databaseHelper.close();
+
+    for (String suffix : DATABASE_FILE_SUFFIXES) {
+      File file = new File(databaseFile.getPath() + suffix);
+
+      if (!suffix.isEmpty() && file.exists() && !file.delete()) {
+        Log.w(TAG, "Could not delete " + file.getAbsolutePath());
+      }
+    }
+  }
+
+  public static File getDatabaseFile(Context context) {
+    return context.getDatabasePath(DATABASE_NAME);
+  }
+
+  /**
+   * @return true if the file is the message database or one of its journals,
+   * which {@link #backupTo(Context, File)} copies itself.
+   */
+  public static boolean isDatabaseFile(Context context, File file) {
+    return getDatabaseFileSuffix(context, file) != null;
+  }
+
+  /**
+   * @return true if the file is the shared memory index of the message
+   * database, which is never restored from a backup.
+   */
+  public static boolean isSharedMemoryFile(Context context, File file) {
+    return SHARED_MEMORY_SUFFIX.equals(getDatabaseFileSuffix(context, file));
+  }
+
+  private static String getDatabaseFileSuffix(Context context, File file) {
+    String databasePath = getDatabaseFile(context).getAbsolutePath();
+
+    for (String suffix : DATABASE_FILE_SUFFIXES) {
+      if (file.getAbsolutePath().equals(databasePath + suffix)) return suffix;
+    }
+
+    return null;
+  }
+
+  /**
+   * Puts a connection in write-ahead logging mode, so that readers on other
+   * connections run alongside a writer, and tunes it for that mode.  A
+   * commit then only syncs at checkpoints, and the log is left to grow to
+   * WAL_AUTOCHECKPOINT_PAGES before a commit checkpoints it itself, since
+   * {@link org.smssecure.smssecure.jobs.WalCheckpointJob} normally does it
+   * in the background first.
+   *
+   * Each connection also keeps the largest allowed cache of prepared
+   * statements, so the statements that the DAOs cache stay compiled.
+   */
+  static void configureConnection(SQLiteDatabase db) {
+    db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+
+    if (db.enableWriteAheadLogging()) {
+      queryPragma(db, "synchronous = NORMAL");
+      queryPragma(db, "wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+    }
+
+    queryPragma(db, "cache_size = -" + CACHE_SIZE_KIB);
+  }
+
+  /**
+   * Runs a pragma through a query, since some pragmas return a row and
+   * execSQL refuses statements that do.
+   *
+   * @return the columns of the first row, if any.
+   */
+  private static long[] queryPragma(SQLiteDatabase db, String pragma) {
+    Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+
+    try {
+      if (!cursor.moveToFirst()) return new long[0];
+
+      long[] row = new long[cursor.getColumnCount()];
+
+      for (int i = 0; i < row.length; i++) {
+        row[i] = cursor.getLong(i);
+      }
+
+      return row;
+    } finally {
+      cursor.close();
+    }
+  }
+
   private static class DatabaseHelper extends SQLiteOpenHelper {
 
     public DatabaseHelper(Context context, String name, CursorFactory factory, int version) {
       super(context, name, factory, version);
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+      configureConnection(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+        configureConnection(db);
+      }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
       db.execSQL(SmsDatabase.CREATE_TABLE);
       db.execSQL(MmsDatabase.CREATE_TABLE);
       db.execSQL(AttachmentDatabase.CREATE_TABLE);
+      db.execSQL(AttachmentDatabase.CREATE_RECLAIM_TABLE);
       db.execSQL(ThreadDatabase.CREATE_TABLE);
       db.execSQL(MmsAddressDatabase.CREATE_TABLE);
       db.execSQL(IdentityDatabase.CREATE_TABLE);
       db.execSQL(DraftDatabase.CREATE_TABLE);
       db.execSQL(RecipientPreferenceDatabase.CREATE_TABLE);
+      db.execSQL(MessageTimelineDatabase.CREATE_TABLE);
+      executeStatements(db, SearchIndexDatabase.CREATE_TABLES);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -239,6 +417,11 @@ public class DatabaseFactory {
       executeStatements(db, ThreadDatabase.CREATE_INDEXS);
       executeStatements(db, MmsAddressDatabase.CREATE_INDEXS);
       executeStatements(db, DraftDatabase.CREATE_INDEXS);
+      executeStatements(db, MessageTimelineDatabase.CREATE_INDEXS);
+      executeStatements(db, MessageTimelineDatabase.CREATE_TRIGGERS);
+      executeStatements(db, ThreadSummaryDatabase.CREATE_TRIGGERS);
+      executeStatements(db, SearchIndexDatabase.CREATE_INDEXS);
+      executeStatements(db, SearchIndexDatabase.CREATE_TRIGGERS);
     }
 
     @Override
@@ -571,6 +754,39 @@ public class DatabaseFactory {
         db.execSQL("ALTER TABLE part ADD COLUMN digest BLOB");
       }
 
+      if (oldVersion < INTRODUCED_MESSAGE_TIMELINE_VERSION) {
+        db.execSQL("CREATE TABLE message_timeline (_id INTEGER PRIMARY KEY, thread_id INTEGER, date_received INTEGER, transport TEXT NOT NULL, message_id INTEGER NOT NULL, attachment_id INTEGER DEFAULT NULL, unread INTEGER DEFAULT 0);");
+
+        executeStatements(db, MessageTimelineDatabase.BACKFILL);
+        executeStatements(db, MessageTimelineDatabase.CREATE_INDEXS);
+        executeStatements(db, MessageTimelineDatabase.CREATE_TRIGGERS);
+      }
+
+      if (oldVersion < INTRODUCED_TIMELINE_KEY_INDEX_VERSION) {
+        db.execSQL("DROP INDEX IF EXISTS message_timeline_thread_date_index");
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_timeline_thread_key_index ON message_timeline (thread_id, date_received, transport, message_id)");
+      }
+
+      if (oldVersion < INTRODUCED_SEARCH_INDEX_VERSION) {
+        db.execSQL("CREATE TABLE message_search (_id INTEGER PRIMARY KEY);");
+        db.execSQL("CREATE TABLE message_search_document (_id INTEGER PRIMARY KEY AUTOINCREMENT, thread_id INTEGER, date_received INTEGER, transport TEXT NOT NULL, message_id INTEGER NOT NULL);");
+        db.execSQL("CREATE TABLE message_search_garbage (_id INTEGER PRIMARY KEY);");
+
+        executeStatements(db, SearchIndexDatabase.CREATE_INDEXS);
+        executeStatements(db, SearchIndexDatabase.CREATE_TRIGGERS);
+      }
+
+      if (oldVersion < INTRODUCED_THREAD_SUMMARY_VERSION) {
+        executeStatements(db, ThreadSummaryDatabase.CREATE_TRIGGERS);
+
+        db.execSQL(ThreadSummaryDatabase.rebuildCount("1"));
+        db.execSQL(ThreadSummaryDatabase.rebuildSnippet(ThreadSummaryDatabase.NOT_DRAFT));
+      }
+
+      if (oldVersion < INTRODUCED_PART_RECLAIM_VERSION) {
+        db.execSQL("CREATE TABLE part_reclaim (_id INTEGER PRIMARY KEY, path TEXT NOT NULL);");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
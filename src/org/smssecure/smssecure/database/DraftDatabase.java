@@ -7,6 +7,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.smssecure.smssecure.R;
@@ -55,19 +56,8 @@ public class DraftDatabase extends Database {
   }
 
   public void clearDrafts(Set<Long> threadIds) {
-    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
-    StringBuilder  where     = new StringBuilder();
-    List<String>   arguments = new LinkedList<>();
-
-    for (long threadId : threadIds) {
-      where.append(" OR ")
-           .append(THREAD_ID)
-           .append(" = ?");
-
-      arguments.add(String.valueOf(threadId));
-    }
-
-    db.delete(TABLE_NAME, where.toString().substring(4), arguments.toArray(new String[0]));
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.delete(TABLE_NAME, THREAD_ID + " IN (" + TextUtils.join(", ", threadIds) + ")", null);
   }
 
   public void clearAllDrafts() {
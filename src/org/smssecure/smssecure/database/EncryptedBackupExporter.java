@@ -33,11 +33,20 @@ public class EncryptedBackupExporter {
   public static void exportToStorage(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForExport();
     exportDirectory(context, "");
+    exportMessageDatabase(context);
   }
 
   public static void importFromStorage(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForImport();
-    importDirectory(context, "");
+
+    DatabaseFactory databaseFactory = DatabaseFactory.getInstance(context);
+    databaseFactory.closeForRestore(context);
+
+    try {
+      importDirectory(context, "");
+    } finally {
+      databaseFactory.reset(context);
+    }
   }
 
   private static String getExportDirectoryPath() {
@@ -82,6 +91,15 @@ public class EncryptedBackupExporter {
     }
   }
 
+  private static void exportMessageDatabase(Context context) throws IOException {
+    File databaseDirectory = DatabaseFactory.getDatabaseFile(context).getParentFile();
+    String directoryName   = databaseDirectory.getAbsolutePath().substring(context.getFilesDir().getParent().length());
+    File exportDirectory   = new File(getExportDirectoryPath() + File.separatorChar + directoryName);
+
+    exportDirectory.mkdirs();
+    DatabaseFactory.getInstance(context).backupTo(context, exportDirectory);
+  }
+
   private static void exportDirectory(Context context, String directoryName) throws IOException {
     if (!directoryName.equals("/lib")) {
       File directory       = new File(context.getFilesDir().getParent() + File.separatorChar + directoryName);
@@ -96,7 +114,9 @@ public class EncryptedBackupExporter {
           throw new IOException("directory.listFiles() is null for " + context.getFilesDir().getParent() + File.separatorChar + directoryName + "!");
 
           for (File localFile : contents) {
-              if (localFile.isFile() && !localFile.getAbsolutePath().contains("libcurve25519.so")) {
+              if (DatabaseFactory.isDatabaseFile(context, localFile)) {
+                  continue;
+              } else if (localFile.isFile() && !localFile.getAbsolutePath().contains("libcurve25519.so")) {
                   File exportedFile = new File(exportDirectory.getAbsolutePath() + File.separator + localFile.getName());
                   migrateFile(localFile, exportedFile);
               } else {
@@ -121,6 +141,9 @@ public class EncryptedBackupExporter {
       for (File exportedFile : contents) {
         if (exportedFile.isFile()) {
           File localFile = new File(importDirectory.getAbsolutePath() + File.separator + exportedFile.getName());
+
+          if (DatabaseFactory.isSharedMemoryFile(context, localFile)) continue;
+
           migrateFile(exportedFile, localFile);
         } else if (exportedFile.isDirectory()) {
           importDirectory(context, directoryName + File.separator + exportedFile.getName());
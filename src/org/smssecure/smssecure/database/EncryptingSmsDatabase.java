@@ -18,7 +18,9 @@ package org.smssecure.smssecure.database;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import android.util.Pair;
 
@@ -29,18 +31,23 @@ import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
 import org.smssecure.smssecure.sms.IncomingTextMessage;
 import org.smssecure.smssecure.sms.OutgoingTextMessage;
-import org.smssecure.smssecure.util.LRUCache;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterCipherPool;
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.crypto.SearchTokenizer;
+import org.smssecure.smssecure.database.SearchIndexDatabase.Entry;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class EncryptingSmsDatabase extends SmsDatabase {
 
-  private final PlaintextCache plaintextCache = new PlaintextCache();
+  private static final String ASYMMETRIC_WHERE = TYPE + " & " + Types.ENCRYPTION_ASYMMETRIC_BIT + " != 0";
+
+  private final PlaintextCache plaintextCache = PlaintextCache.getInstance();
 
   public EncryptingSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -52,22 +59,39 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   }
 
   private String getEncryptedBody(MasterSecret masterSecret, String body) {
-    MasterCipher bodyCipher = new MasterCipher(masterSecret);
-    String ciphertext       = bodyCipher.encryptBody(body);
-    plaintextCache.put(ciphertext, body);
-
-    return ciphertext;
+    MasterCipher bodyCipher = MasterCipherPool.get(masterSecret);
+    return bodyCipher.encryptBody(body);
   }
 
   public long insertMessageOutbox(MasterSecret masterSecret, long threadId,
                                   OutgoingTextMessage message, boolean forceSms,
                                   long timestamp)
   {
-    long type = Types.BASE_SENDING_TYPE;
-    message   = message.withBody(getEncryptedBody(masterSecret, message.getMessageBody()));
-    type     |= Types.ENCRYPTION_SYMMETRIC_BIT;
+    long           type       = Types.BASE_SENDING_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT;
+    String         plaintext  = message.getMessageBody();
+    String         ciphertext = getEncryptedBody(masterSecret, plaintext);
+    SQLiteDatabase db         = databaseHelper.getWritableDatabase();
+    long           messageId;
+
+    db.beginTransaction();
+
+    try {
+      messageId = writeMessageOutbox(threadId, message.withBody(ciphertext), type, forceSms, timestamp);
 
-    return insertMessageOutbox(threadId, message, type, forceSms, timestamp);
+      plaintextCache.put(PlaintextCache.SMS, messageId, ciphertext, plaintext);
+
+      if (!message.isKeyExchange()) {
+        index(masterSecret, messageId, plaintext);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    onOutboxMessageWritten(threadId);
+
+    return messageId;
   }
 
   public Pair<Long, Long> insertMessageInbox(MasterSecret masterSecret,
@@ -77,12 +101,35 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
     if (masterSecret == null && message.isSecureMessage()) {
       type |= Types.ENCRYPTION_REMOTE_BIT;
-    } else {
-      type |= Types.ENCRYPTION_SYMMETRIC_BIT;
-      message = message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+      return insertMessageInbox(message, type);
     }
 
-    return insertMessageInbox(message, type);
+    String              plaintext  = message.getMessageBody();
+    String              ciphertext = getEncryptedBody(masterSecret, plaintext);
+    IncomingTextMessage encrypted  = message.withMessageBody(ciphertext);
+    long                threadId   = getThreadIdForInbox(encrypted);
+    SQLiteDatabase      db         = databaseHelper.getWritableDatabase();
+    long                messageId;
+
+    db.beginTransaction();
+
+    try {
+      messageId = writeMessageInbox(encrypted, type | Types.ENCRYPTION_SYMMETRIC_BIT, threadId);
+
+      plaintextCache.put(PlaintextCache.SMS, messageId, ciphertext, plaintext);
+
+      if (!message.isSecureMessage() && !message.isKeyExchange()) {
+        index(masterSecret, messageId, plaintext);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    onInboxMessageWritten(encrypted, messageId, threadId);
+
+    return new Pair<>(messageId, threadId);
   }
 
   public Pair<Long, Long> insertMessageInbox(AsymmetricMasterSecret masterSecret,
@@ -101,15 +148,49 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   }
 
   public Pair<Long, Long> updateBundleMessageBody(MasterSecret masterSecret, long messageId, String body) {
-    String encryptedBody = getEncryptedBody(masterSecret, body);
-    return updateMessageBodyAndType(messageId, encryptedBody, Types.TOTAL_MASK,
-                                    Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT | Types.SECURE_MESSAGE_BIT);
+    String         encryptedBody = getEncryptedBody(masterSecret, body);
+    SQLiteDatabase db            = databaseHelper.getWritableDatabase();
+
+    plaintextCache.put(PlaintextCache.SMS, messageId, encryptedBody, body);
+    db.beginTransaction();
+
+    try {
+      writeMessageBodyAndType(messageId, encryptedBody, Types.TOTAL_MASK,
+                              Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT | Types.SECURE_MESSAGE_BIT);
+
+      index(masterSecret, messageId, body);
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return onMessageBodyUpdated(messageId);
   }
 
   public void updateMessageBody(MasterSecret masterSecret, long messageId, String body) {
-    String encryptedBody = getEncryptedBody(masterSecret, body);
-    updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK,
-                             Types.ENCRYPTION_SYMMETRIC_BIT);
+    String         encryptedBody = getEncryptedBody(masterSecret, body);
+    SQLiteDatabase db            = databaseHelper.getWritableDatabase();
+
+    plaintextCache.put(PlaintextCache.SMS, messageId, encryptedBody, body);
+    db.beginTransaction();
+
+    try {
+      writeMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK,
+                              Types.ENCRYPTION_SYMMETRIC_BIT);
+
+      index(masterSecret, messageId, body);
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    onMessageBodyUpdated(messageId);
+  }
+
+  private void index(MasterSecret masterSecret, long messageId, String body) {
+    DatabaseFactory.getSearchIndexDatabase(context).index(masterSecret, MmsSmsDatabase.SMS_TRANSPORT, messageId, body);
   }
 
   public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
@@ -142,18 +223,96 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     return new DecryptingReader(masterSecret, cursor);
   }
 
+  public int getAsymmetricMessageCount() {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {"COUNT(*)"}, ASYMMETRIC_WHERE, null, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getInt(0);
+      else                                        return 0;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  /**
+   * Returns up to limit asymmetrically encrypted rows (id, body) with an id
+   * greater than afterId, in id order.
+   */
+  public Cursor getAsymmetricMessages(long afterId, int limit) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, new String[] {ID, BODY}, ID + " > ? AND " + ASYMMETRIC_WHERE,
+                    new String[] {String.valueOf(afterId)}, null, null, ID, String.valueOf(limit));
+  }
+
+  /**
+   * Replaces the bodies of asymmetrically encrypted messages with the given
+   * symmetric ciphertext in a single transaction.  Rows that are no longer
+   * asymmetric (because an {@link org.smssecure.smssecure.jobs.SmsDecryptJob}
+   * got to them first) are left alone.
+   *
+   * @return the number of rows upgraded.
+   */
+  public int upgradeAsymmetricMessages(SearchTokenizer tokenizer, List<UpgradedBody> bodies) {
+    SQLiteDatabase  db        = databaseHelper.getWritableDatabase();
+    SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + BODY + " = ?, " +
+                                                    TYPE + " = (" + TYPE + " & " + (Types.TOTAL_MASK - Types.ENCRYPTION_MASK) +
+                                                    " | " + Types.ENCRYPTION_SYMMETRIC_BIT + ") " +
+                                                    "WHERE " + ID + " = ? AND " + ASYMMETRIC_WHERE);
+    Set<Long>       threadIds = new HashSet<>();
+    List<Entry>     entries   = new ArrayList<>(bodies.size());
+    int             upgraded  = 0;
+
+    db.beginTransaction();
+
+    try {
+      for (UpgradedBody body : bodies) {
+        statement.clearBindings();
+        statement.bindString(1, body.ciphertext);
+        statement.bindLong(2, body.messageId);
+
+        if (statement.executeUpdateDelete() > 0) {
+          plaintextCache.put(PlaintextCache.SMS, body.messageId, body.ciphertext, body.plaintext);
+          threadIds.add(getThreadIdForMessage(body.messageId));
+          entries.add(new Entry(MmsSmsDatabase.SMS_TRANSPORT, body.messageId, body.plaintext));
+          upgraded++;
+        }
+      }
+
+      DatabaseFactory.getSearchIndexDatabase(context).index(tokenizer, entries);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      statement.close();
+    }
+
+    for (UpgradedBody body : bodies) {
+      UnreadIndex.getInstance().onSmsMessageChanged(body.messageId);
+    }
+
+    for (long threadId : threadIds) {
+      DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+      notifyConversationListeners(threadId);
+    }
+
+    return upgraded;
+  }
+
   public class DecryptingReader extends SmsDatabase.Reader {
 
-    private final MasterCipher masterCipher;
+    private final MasterSecret masterSecret;
 
     public DecryptingReader(MasterSecret masterSecret, Cursor cursor) {
       super(cursor);
-      this.masterCipher = new MasterCipher(masterSecret);
+      this.masterSecret = masterSecret;
     }
 
     @Override
     protected DisplayRecord.Body getBody(Cursor cursor) {
-      long type         = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
+      long   type       = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
+      long   messageId  = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
       String ciphertext = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
 
       if (ciphertext == null) {
@@ -162,14 +321,16 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
       try {
         if (SmsDatabase.Types.isSymmetricEncryption(type)) {
-          String plaintext = plaintextCache.get(ciphertext);
+          String plaintext = plaintextCache.get(PlaintextCache.SMS, messageId, ciphertext);
 
           if (plaintext != null)
             return new DisplayRecord.Body(plaintext, true);
 
-          plaintext = masterCipher.decryptBody(ciphertext);
+          plaintext = decryptWindow(cursor);
+
+          if (plaintext == null)
+            throw new InvalidMessageException("Unable to decrypt body");
 
-          plaintextCache.put(ciphertext, plaintext);
           return new DisplayRecord.Body(plaintext, true);
         } else {
           return new DisplayRecord.Body(ciphertext, true);
@@ -179,29 +340,61 @@ public class EncryptingSmsDatabase extends SmsDatabase {
         return new DisplayRecord.Body(context.getString(R.string.EncryptingSmsDatabase_error_decrypting_message), true);
       }
     }
-  }
-
-  private static class PlaintextCache {
-    private static final int MAX_CACHE_SIZE = 2000;
-    private static final Map<String, SoftReference<String>> decryptedBodyCache =
-        Collections.synchronizedMap(new LRUCache<String, SoftReference<String>>(MAX_CACHE_SIZE));
 
-    public void put(String ciphertext, String plaintext) {
-      decryptedBodyCache.put(ciphertext, new SoftReference<String>(plaintext));
-    }
+    /**
+     * Decrypts the current row along with the uncached symmetric rows that
+     * follow it in the cursor window, filling the plaintext cache in one
+     * batch.  Returns the plaintext of the current row.
+     */
+    private String decryptWindow(Cursor cursor) {
+      int          position        = cursor.getPosition();
+      int          end             = getWindowEnd(cursor, position, DECRYPT_WINDOW_SIZE);
+      int          idColumn        = cursor.getColumnIndexOrThrow(SmsDatabase.ID);
+      int          typeColumn      = cursor.getColumnIndexOrThrow(SmsDatabase.TYPE);
+      int          bodyColumn      = cursor.getColumnIndexOrThrow(SmsDatabase.BODY);
+      int          transportColumn = cursor.getColumnIndex(MmsSmsDatabase.TRANSPORT);
+      List<Long>   messageIds      = new ArrayList<>(end - position);
+      List<String> ciphertexts     = new ArrayList<>(end - position);
 
-    public String get(String ciphertext) {
-      SoftReference<String> plaintextReference = decryptedBodyCache.get(ciphertext);
+      try {
+        for (int i = position; i < end && cursor.moveToPosition(i); i++) {
+          long   messageId  = cursor.getLong(idColumn);
+          String ciphertext = cursor.getString(bodyColumn);
+
+          if (i != position) {
+            if (transportColumn != -1 && !MmsSmsDatabase.SMS_TRANSPORT.equals(cursor.getString(transportColumn))) continue;
+            if (ciphertext == null || !SmsDatabase.Types.isSymmetricEncryption(cursor.getLong(typeColumn)))       continue;
+            if (plaintextCache.get(PlaintextCache.SMS, messageId, ciphertext) != null)                            continue;
+          }
+
+          messageIds.add(messageId);
+          ciphertexts.add(ciphertext);
+        }
+      } finally {
+        cursor.moveToPosition(position);
+      }
 
-      if (plaintextReference != null) {
-        String plaintext = plaintextReference.get();
+      List<String> plaintexts = MasterCipherPool.get(masterSecret).decryptBodies(ciphertexts);
 
-        if (plaintext != null) {
-          return plaintext;
+      for (int i = 0; i < ciphertexts.size(); i++) {
+        if (plaintexts.get(i) != null) {
+          plaintextCache.put(PlaintextCache.SMS, messageIds.get(i), ciphertexts.get(i), plaintexts.get(i));
         }
       }
 
-      return null;
+      return plaintexts.get(0);
+    }
+  }
+
+  public static class UpgradedBody {
+    private final long   messageId;
+    private final String ciphertext;
+    private final String plaintext;
+
+    public UpgradedBody(long messageId, String ciphertext, String plaintext) {
+      this.messageId  = messageId;
+      this.ciphertext = ciphertext;
+      this.plaintext  = plaintext;
     }
   }
 }
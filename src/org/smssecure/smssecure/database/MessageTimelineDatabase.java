@@ -0,0 +1,119 @@
+package org.smssecure.smssecure.database;
+
+/**
+ * Schema of the message timeline, a row per SMS and MMS message holding
+ * what conversation queries filter and sort on.
+ *
+ * The timeline is maintained by triggers on the sms, mms and part tables, so
+ * every write path keeps it current without knowing about it.  Conversation
+ * queries range-scan it by thread and date and join the message tables by
+ * primary key only for the rows they return.
+ */
+public class MessageTimelineDatabase {
+
+  public  static final String TABLE_NAME    = "message_timeline";
+  public  static final String ID            = "_id";
+  public  static final String THREAD_ID     = "thread_id";
+  public  static final String DATE_RECEIVED = "date_received";
+  public  static final String TRANSPORT     = "transport";
+  public  static final String MESSAGE_ID    = "message_id";
+  public  static final String ATTACHMENT_ID = "attachment_id";
+  public  static final String UNREAD        = "unread";
+
+  private static final String SMS  = "'" + MmsSmsDatabase.SMS_TRANSPORT + "'";
+  private static final String MMS  = "'" + MmsSmsDatabase.MMS_TRANSPORT + "'";
+  private static final String PART = AttachmentDatabase.TABLE_NAME;
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+    THREAD_ID + " INTEGER, " + DATE_RECEIVED + " INTEGER, " + TRANSPORT + " TEXT NOT NULL, " +
+    MESSAGE_ID + " INTEGER NOT NULL, " + ATTACHMENT_ID + " INTEGER DEFAULT NULL, " + UNREAD + " INTEGER DEFAULT 0);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE INDEX IF NOT EXISTS message_timeline_thread_key_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ");",
+    "CREATE UNIQUE INDEX IF NOT EXISTS message_timeline_message_index ON " + TABLE_NAME + " (" + TRANSPORT + ", " + MESSAGE_ID + ");",
+    "CREATE INDEX IF NOT EXISTS message_timeline_unread_index ON " + TABLE_NAME + " (" + UNREAD + ", " + DATE_RECEIVED + ");"
+  };
+
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS sms_timeline_insert AFTER INSERT ON " + SmsDatabase.TABLE_NAME + " BEGIN " +
+      "INSERT OR REPLACE INTO " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ", " + UNREAD + ") " +
+      "VALUES (new." + SmsDatabase.THREAD_ID + ", new." + SmsDatabase.DATE_RECEIVED + ", " + SMS + ", new." + SmsDatabase.ID + ", new." + SmsDatabase.READ + " = 0); " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS sms_timeline_update AFTER UPDATE OF " + SmsDatabase.THREAD_ID + ", " + SmsDatabase.DATE_RECEIVED + ", " + SmsDatabase.READ + " ON " + SmsDatabase.TABLE_NAME + " BEGIN " +
+      "UPDATE " + TABLE_NAME + " SET " + THREAD_ID + " = new." + SmsDatabase.THREAD_ID + ", " + DATE_RECEIVED + " = new." + SmsDatabase.DATE_RECEIVED + ", " + UNREAD + " = new." + SmsDatabase.READ + " = 0 " +
+      "WHERE " + TRANSPORT + " = " + SMS + " AND " + MESSAGE_ID + " = new." + SmsDatabase.ID + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS sms_timeline_delete AFTER DELETE ON " + SmsDatabase.TABLE_NAME + " BEGIN " +
+      "DELETE FROM " + TABLE_NAME + " WHERE " + TRANSPORT + " = " + SMS + " AND " + MESSAGE_ID + " = old." + SmsDatabase.ID + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS mms_timeline_insert AFTER INSERT ON " + MmsDatabase.TABLE_NAME + " BEGIN " +
+      "INSERT OR REPLACE INTO " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ", " + ATTACHMENT_ID + ", " + UNREAD + ") " +
+      "VALUES (new." + MmsDatabase.THREAD_ID + ", new." + MmsDatabase.DATE_RECEIVED + ", " + MMS + ", new." + MmsDatabase.ID + ", " +
+      "(SELECT MIN(" + AttachmentDatabase.ROW_ID + ") FROM " + PART + " WHERE " + AttachmentDatabase.MMS_ID + " = new." + MmsDatabase.ID + "), " +
+      "new." + MmsDatabase.READ + " = 0); " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS mms_timeline_update AFTER UPDATE OF " + MmsDatabase.THREAD_ID + ", " + MmsDatabase.DATE_RECEIVED + ", " + MmsDatabase.READ + " ON " + MmsDatabase.TABLE_NAME + " BEGIN " +
+      "UPDATE " + TABLE_NAME + " SET " + THREAD_ID + " = new." + MmsDatabase.THREAD_ID + ", " + DATE_RECEIVED + " = new." + MmsDatabase.DATE_RECEIVED + ", " + UNREAD + " = new." + MmsDatabase.READ + " = 0 " +
+      "WHERE " + TRANSPORT + " = " + MMS + " AND " + MESSAGE_ID + " = new." + MmsDatabase.ID + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS mms_timeline_delete AFTER DELETE ON " + MmsDatabase.TABLE_NAME + " BEGIN " +
+      "DELETE FROM " + TABLE_NAME + " WHERE " + TRANSPORT + " = " + MMS + " AND " + MESSAGE_ID + " = old." + MmsDatabase.ID + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS part_timeline_insert AFTER INSERT ON " + PART + " BEGIN " +
+      "UPDATE " + TABLE_NAME + " SET " + ATTACHMENT_ID + " = new." + AttachmentDatabase.ROW_ID + " " +
+      "WHERE " + TRANSPORT + " = " + MMS + " AND " + MESSAGE_ID + " = new." + AttachmentDatabase.MMS_ID + " " +
+      "AND (" + ATTACHMENT_ID + " IS NULL OR " + ATTACHMENT_ID + " > new." + AttachmentDatabase.ROW_ID + "); " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS part_timeline_update AFTER UPDATE OF " + AttachmentDatabase.MMS_ID + " ON " + PART + " BEGIN " +
+      "UPDATE " + TABLE_NAME + " SET " + ATTACHMENT_ID + " = " + firstAttachment("old") + " " +
+      "WHERE " + TRANSPORT + " = " + MMS + " AND " + MESSAGE_ID + " = old." + AttachmentDatabase.MMS_ID + "; " +
+      "UPDATE " + TABLE_NAME + " SET " + ATTACHMENT_ID + " = " + firstAttachment("new") + " " +
+      "WHERE " + TRANSPORT + " = " + MMS + " AND " + MESSAGE_ID + " = new." + AttachmentDatabase.MMS_ID + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS part_timeline_delete AFTER DELETE ON " + PART + " BEGIN " +
+      "UPDATE " + TABLE_NAME + " SET " + ATTACHMENT_ID + " = " + firstAttachment("old") + " " +
+      "WHERE " + TRANSPORT + " = " + MMS + " AND " + MESSAGE_ID + " = old." + AttachmentDatabase.MMS_ID + " " +
+      "AND " + ATTACHMENT_ID + " = old." + AttachmentDatabase.ROW_ID + "; " +
+    "END;"
+  };
+
+  /**
+   * Fills the timeline from existing messages.  Run before the triggers are
+   * created.
+   */
+  public static final String[] BACKFILL = {
+    "INSERT INTO " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ", " + UNREAD + ") " +
+      "SELECT " + SmsDatabase.THREAD_ID + ", " + SmsDatabase.DATE_RECEIVED + ", " + SMS + ", " + SmsDatabase.ID + ", " + SmsDatabase.READ + " = 0 " +
+      "FROM " + SmsDatabase.TABLE_NAME + ";",
+
+    "INSERT INTO " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ", " + ATTACHMENT_ID + ", " + UNREAD + ") " +
+      "SELECT " + MmsDatabase.THREAD_ID + ", " + MmsDatabase.DATE_RECEIVED + ", " + MMS + ", " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + ", " +
+      "(SELECT MIN(" + AttachmentDatabase.ROW_ID + ") FROM " + PART + " WHERE " + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + "), " +
+      MmsDatabase.READ + " = 0 " +
+      "FROM " + MmsDatabase.TABLE_NAME + ";"
+  };
+
+  /**
+   * @return a selection on message ids, "IN (SELECT ...)", matching up to
+   *         limit of the oldest messages of a transport in a thread that are
+   *         older than the key.  It takes the key's selection arguments.
+   */
+  static String getOlderMessagesSelection(long threadId, String transport, TimelineKey key, int limit) {
+    return "IN (SELECT " + MESSAGE_ID + " FROM " + TABLE_NAME + " " +
+           "WHERE " + THREAD_ID + " = " + threadId + " AND " + TRANSPORT + " = '" + transport + "' AND " +
+           key.getOlderSelection(DATE_RECEIVED, TRANSPORT, MESSAGE_ID) + " " +
+           "ORDER BY " + DATE_RECEIVED + " LIMIT " + limit + ")";
+  }
+
+  private static String firstAttachment(String row) {
+    return "(SELECT MIN(" + AttachmentDatabase.ROW_ID + ") FROM " + PART + " WHERE " + AttachmentDatabase.MMS_ID + " = " + row + "." + AttachmentDatabase.MMS_ID + ")";
+  }
+}
@@ -8,9 +8,12 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.smssecure.smssecure.ApplicationContext;
 import org.smssecure.smssecure.database.documents.Document;
 import org.smssecure.smssecure.database.documents.IdentityKeyMismatch;
 import org.smssecure.smssecure.database.documents.IdentityKeyMismatchList;
+import org.smssecure.smssecure.jobs.TrimThreadJob;
+import org.smssecure.smssecure.jobs.WalCheckpointJob;
 import org.smssecure.smssecure.util.JsonUtils;
 import org.whispersystems.libsignal.IdentityKey;
 
@@ -30,6 +33,14 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   protected abstract String getTableName();
 
+  /**
+   * Queues the maintenance that follows writing a message to a thread.
+   */
+  protected void onMessageWritten(long threadId) {
+    ApplicationContext.getInstance(context).getJobManager().add(new TrimThreadJob(context, threadId));
+    WalCheckpointJob.schedule(context);
+  }
+
   public void setMismatchedIdentity(long messageId, final long recipientId, final IdentityKey identityKey) {
     List<IdentityKeyMismatch> items = new ArrayList<IdentityKeyMismatch>() {{
       add(new IdentityKeyMismatch(recipientId, identityKey));
@@ -16,12 +16,12 @@
  */
 package org.smssecure.smssecure.database;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.google.android.mms.pdu_alt.PduHeaders;
 
@@ -51,18 +51,15 @@ public class MmsAddressDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS mms_addresses_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");",
   };
 
+  private static final String INSERT_ADDRESS = "INSERT INTO " + TABLE_NAME + " (" + MMS_ID + ", " + TYPE + ", " + ADDRESS + ", " +
+                                               ADDRESS_CHARSET + ") VALUES (?, ?, ?, 'UTF-8')";
+
   public MmsAddressDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   private void insertAddress(long messageId, int type, @NonNull String value) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(MMS_ID, messageId);
-    contentValues.put(TYPE, type);
-    contentValues.put(ADDRESS, value);
-    contentValues.put(ADDRESS_CHARSET, "UTF-8");
-    database.insert(TABLE_NAME, null, contentValues);
+    executeInsert(INSERT_ADDRESS, messageId, type, value);
   }
 
   private void insertAddress(long messageId, int type, @NonNull List<String> addresses) {
@@ -144,6 +141,15 @@ public class MmsAddressDatabase extends Database {
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {messageId+""});
   }
 
+  /**
+   * Deletes the addresses of every message matching the selection on their
+   * message id, such as "IN (SELECT ...)".
+   */
+  void deleteAddressesForMessages(@NonNull String mmsIdSelection, @Nullable String[] selectionArgs) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.delete(TABLE_NAME, MMS_ID + " " + mmsIdSelection, selectionArgs);
+  }
+
   public void deleteAllAddresses() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
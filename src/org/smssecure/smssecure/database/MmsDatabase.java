@@ -38,7 +38,7 @@ import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.attachments.Attachment;
 import org.smssecure.smssecure.attachments.DatabaseAttachment;
 import org.smssecure.smssecure.attachments.MmsNotificationAttachment;
-import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterCipherPool;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.documents.IdentityKeyMismatch;
 import org.smssecure.smssecure.database.documents.IdentityKeyMismatchList;
@@ -48,7 +48,8 @@ import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.MediaMmsMessageRecord;
 import org.smssecure.smssecure.database.model.MessageRecord;
 import org.smssecure.smssecure.database.model.NotificationMmsMessageRecord;
-import org.smssecure.smssecure.jobs.TrimThreadJob;
+import org.smssecure.smssecure.jobs.AttachmentReclaimJob;
+import org.smssecure.smssecure.jobs.JobDispatcher;
 import org.smssecure.smssecure.mms.IncomingMediaMessage;
 import org.smssecure.smssecure.mms.OutgoingMediaMessage;
 import org.smssecure.smssecure.mms.OutgoingSecureMediaMessage;
@@ -62,11 +63,11 @@ import org.smssecure.smssecure.util.JsonUtils;
 import org.smssecure.smssecure.util.ServiceUtil;
 import org.smssecure.smssecure.util.SilencePreferences;
 import org.smssecure.smssecure.util.Util;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -145,7 +146,14 @@ public class MmsDatabase extends MessagingDatabase {
 
   private static final String RAW_ID_WHERE = TABLE_NAME + "._id = ?";
 
-  private final JobManager jobManager;
+  private static final String UPDATE_MAILBOX_BITMASK = "UPDATE " + TABLE_NAME + " SET " + MESSAGE_BOX + " = (" + MESSAGE_BOX + " & ? | ?) " +
+                                                       "WHERE " + ID + " = ?";
+
+  private static final String UPDATE_STATUS = "UPDATE " + TABLE_NAME + " SET " + STATUS + " = ? WHERE " + ID + " = ?";
+
+  private static final String UPDATE_NOTIFIED = "UPDATE " + TABLE_NAME + " SET " + NOTIFIED + " = 1 WHERE " + ID + " = ?";
+
+  private final JobDispatcher jobManager;
 
   public MmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -289,10 +297,9 @@ public class MmsDatabase extends MessagingDatabase {
   }
 
   private void updateMailboxBitmask(long id, long maskOff, long maskOn) {
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.execSQL("UPDATE " + TABLE_NAME +
-                   " SET " + MESSAGE_BOX + " = (" + MESSAGE_BOX + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + " )" +
-                   " WHERE " + ID + " = ?", new String[] {id + ""});
+    executeUpdateDelete(UPDATE_MAILBOX_BITMASK, Types.TOTAL_MASK - maskOff, maskOn, id);
+
+    UnreadIndex.getInstance().onMmsMessageChanged(id);
 
     DatabaseFactory.getThreadDatabase(context).update(getThreadIdForMessage(id), false);
   }
@@ -323,20 +330,13 @@ public class MmsDatabase extends MessagingDatabase {
   }
 
   public void markDownloadState(long messageId, long state) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(STATUS, state);
-
-    database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {messageId + ""});
+    executeUpdateDelete(UPDATE_STATUS, state, messageId);
+    UnreadIndex.getInstance().onMmsMessageChanged(messageId);
     notifyConversationListeners(getThreadIdForMessage(messageId));
   }
 
   public void markDeliveryStatus(long messageId, int status) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(STATUS, status);
-
-    database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {messageId + ""});
+    executeUpdateDelete(UPDATE_STATUS, status, messageId);
     notifyConversationListeners(getThreadIdForMessage(messageId));
   }
 
@@ -369,12 +369,32 @@ public class MmsDatabase extends MessagingDatabase {
   }
 
   public void markAsNotified(long id) {
-    SQLiteDatabase database      = databaseHelper.getWritableDatabase();
-    ContentValues  contentValues = new ContentValues();
+    executeUpdateDelete(UPDATE_NOTIFIED, id);
+    UnreadIndex.getInstance().onMmsMessageChanged(id);
+  }
+
+  /**
+   * Marks a set of messages as notified in one transaction.
+   */
+  public void markAsNotified(Collection<Long> ids) {
+    if (ids.isEmpty()) return;
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+
+    try {
+      for (long id : ids) {
+        executeUpdateDelete(UPDATE_NOTIFIED, id);
+      }
 
-    contentValues.put(NOTIFIED, 1);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
 
-    database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(id)});
+    for (long id : ids) {
+      UnreadIndex.getInstance().onMmsMessageChanged(id);
+    }
   }
 
   public void setMessagesRead(long threadId) {
@@ -383,6 +403,7 @@ public class MmsDatabase extends MessagingDatabase {
     contentValues.put(READ, 1);
 
     database.update(TABLE_NAME, contentValues, THREAD_ID + " = ?", new String[] {threadId + ""});
+    UnreadIndex.getInstance().onThreadRead(threadId);
   }
 
   public void setAllMessagesRead() {
@@ -391,6 +412,7 @@ public class MmsDatabase extends MessagingDatabase {
     contentValues.put(READ, 1);
 
     database.update(TABLE_NAME, contentValues, null, null);
+    UnreadIndex.getInstance().reset();
   }
 
   public Optional<MmsNotificationInfo> getNotification(long messageId) {
@@ -541,7 +563,7 @@ public class MmsDatabase extends MessagingDatabase {
     DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     notifyConversationListeners(threadId);
-    jobManager.add(new TrimThreadJob(context, threadId));
+    onMessageWritten(threadId);
 
     return new Pair<>(messageId, threadId);
   }
@@ -620,6 +642,8 @@ public class MmsDatabase extends MessagingDatabase {
       addressDatabase.insertAddressesForId(messageId, MmsAddresses.forFrom(Util.toIsoString(notification.getFrom().getTextString())));
     }
 
+    UnreadIndex.getInstance().onMmsMessageChanged(messageId);
+
     return new Pair<>(messageId, threadId);
   }
 
@@ -631,7 +655,7 @@ public class MmsDatabase extends MessagingDatabase {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    jobManager.add(new TrimThreadJob(context, threadId));
+    onMessageWritten(threadId);
   }
 
   public long insertMessageOutbox(MasterSecret masterSecret, OutgoingMediaMessage message,
@@ -670,7 +694,7 @@ public class MmsDatabase extends MessagingDatabase {
                                         message.getAttachments(), contentValues);
 
     DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
-    jobManager.add(new TrimThreadJob(context, threadId));
+    onMessageWritten(threadId);
 
     return messageId;
   }
@@ -680,8 +704,7 @@ public class MmsDatabase extends MessagingDatabase {
   {
     try {
       if (!TextUtils.isEmpty(body) && Types.isSymmetricEncryption(outboxType)) {
-        MasterCipher masterCipher = new MasterCipher(masterSecret);
-        return masterCipher.decryptBody(body);
+        return MasterCipherPool.get(masterSecret).decryptBody(body);
       } else {
         return body;
       }
@@ -703,26 +726,41 @@ public class MmsDatabase extends MessagingDatabase {
     AttachmentDatabase partsDatabase   = DatabaseFactory.getAttachmentDatabase(context);
     MmsAddressDatabase addressDatabase = DatabaseFactory.getMmsAddressDatabase(context);
 
+    String ciphertext = null;
+
     if (Types.isSymmetricEncryption(contentValues.getAsLong(MESSAGE_BOX))) {
       if (!TextUtils.isEmpty(body)) {
-        contentValues.put(BODY, new MasterCipher(masterSecret).encryptBody(body));
+        ciphertext = MasterCipherPool.get(masterSecret).encryptBody(body);
+        contentValues.put(BODY, ciphertext);
       }
     }
 
     contentValues.put(PART_COUNT, attachments.size());
 
+    long messageId = -1;
+
     db.beginTransaction();
     try {
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      messageId = db.insert(TABLE_NAME, null, contentValues);
 
       addressDatabase.insertAddressesForId(messageId, addresses);
       partsDatabase.insertAttachmentsForMessage(masterSecret, messageId, attachments);
 
+      if (!TextUtils.isEmpty(body)) {
+        DatabaseFactory.getSearchIndexDatabase(context).index(masterSecret, MmsSmsDatabase.MMS_TRANSPORT, messageId, body);
+      }
+
       db.setTransactionSuccessful();
+
+      if (ciphertext != null) {
+        PlaintextCache.getInstance().put(PlaintextCache.MMS, messageId, ciphertext, body);
+      }
+
       return messageId;
     } finally {
       db.endTransaction();
 
+      if (messageId != -1) UnreadIndex.getInstance().onMmsMessageChanged(messageId);
       notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
       DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
     }
@@ -737,75 +775,60 @@ public class MmsDatabase extends MessagingDatabase {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+    PlaintextCache.getInstance().remove(PlaintextCache.MMS, messageId);
+    UnreadIndex.getInstance().onMmsMessageChanged(messageId);
     boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
     notifyConversationListeners(threadId);
+    jobManager.add(new AttachmentReclaimJob(context));
     return threadDeleted;
   }
 
-  public void deleteThread(long threadId) {
-    Set<Long> singleThreadSet = new HashSet<>();
-    singleThreadSet.add(threadId);
-    deleteThreads(singleThreadSet);
-  }
-
+  /**
+   * Deletes every message of the threads, with their addresses and
+   * attachments, using one statement per table.  Attachment files are only
+   * queued for reclaiming, and the caller is expected to hold a transaction,
+   * to schedule the {@link AttachmentReclaimJob} and to notify listeners.
+   */
   /*package*/ void deleteThreads(Set<Long> threadIds) {
-    SQLiteDatabase db    = databaseHelper.getWritableDatabase();
-    StringBuilder  where = new StringBuilder();
-    Cursor cursor        = null;
-
-    for (long threadId : threadIds) {
-      where.append(THREAD_ID + " = '").append(threadId).append("' OR ");
-    }
-
-    where = new StringBuilder(where.substring(0, where.length() - 4));
+    SQLiteDatabase db              = databaseHelper.getWritableDatabase();
+    String         threadSelection = THREAD_ID + " IN (" + TextUtils.join(", ", threadIds) + ")";
+    String         mmsIdSelection  = "IN (SELECT " + ID + " FROM " + TABLE_NAME + " WHERE " + threadSelection + ")";
 
-    try {
-      cursor = db.query(TABLE_NAME, new String[] {ID}, where.toString(), null, null, null, null);
-
-      while (cursor != null && cursor.moveToNext()) {
-        delete(cursor.getLong(0));
-      }
+    DatabaseFactory.getAttachmentDatabase(context).deleteAttachmentsForMessages(mmsIdSelection, null);
+    DatabaseFactory.getMmsAddressDatabase(context).deleteAddressesForMessages(mmsIdSelection, null);
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+    db.delete(TABLE_NAME, threadSelection, null);
+    UnreadIndex.getInstance().onThreadsChanged(threadIds);
   }
 
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    Cursor cursor = null;
-
-    try {
-      SQLiteDatabase db   = databaseHelper.getReadableDatabase();
-      StringBuilder where = new StringBuilder(THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ");
-
-      for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-        where.append(" WHEN ").append(outgoingType).append(" THEN ").append(DATE_SENT).append(" < ").append(date);
-      }
-
-      where.append(" ELSE " + DATE_RECEIVED + " < ").append(date).append(" END)");
-
-      Log.w("MmsDatabase", "Executing trim query: " + where);
-      cursor = db.query(TABLE_NAME, new String[] {ID}, where.toString(), new String[] {threadId+""}, null, null, null);
-
-      while (cursor != null && cursor.moveToNext()) {
-        Log.w("MmsDatabase", "Trimming: " + cursor.getLong(0));
-        delete(cursor.getLong(0));
-      }
-
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+  /**
+   * Deletes up to limit of the oldest messages of a thread that are older
+   * than the key, with their addresses and attachments, using one statement
+   * per table.
+   *
+   * @return the number of messages deleted.
+   */
+  /*package*/ int deleteMessagesInThreadBefore(long threadId, @NonNull TimelineKey key, int limit) {
+    SQLiteDatabase db             = databaseHelper.getWritableDatabase();
+    String         mmsIdSelection = MessageTimelineDatabase.getOlderMessagesSelection(threadId, MmsSmsDatabase.MMS_TRANSPORT, key, limit);
+    String[]       selectionArgs  = key.getSelectionArgs();
+
+    DatabaseFactory.getAttachmentDatabase(context).deleteAttachmentsForMessages(mmsIdSelection, selectionArgs);
+    DatabaseFactory.getMmsAddressDatabase(context).deleteAddressesForMessages(mmsIdSelection, selectionArgs);
+
+    int deleted = db.delete(TABLE_NAME, ID + " " + mmsIdSelection, selectionArgs);
+    UnreadIndex.getInstance().onThreadChanged(threadId);
+
+    return deleted;
   }
 
-
   public void deleteAllThreads() {
     DatabaseFactory.getAttachmentDatabase(context).deleteAllAttachments();
     DatabaseFactory.getMmsAddressDatabase(context).deleteAllAddresses();
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
+    UnreadIndex.getInstance().reset();
   }
 
   public Cursor getCarrierMmsInformation(String apn) {
@@ -864,14 +887,10 @@ public class MmsDatabase extends MessagingDatabase {
 
     private final Cursor       cursor;
     private final MasterSecret masterSecret;
-    private final MasterCipher masterCipher;
 
     public Reader(MasterSecret masterSecret, Cursor cursor) {
       this.cursor       = cursor;
       this.masterSecret = masterSecret;
-
-      if (masterSecret != null) masterCipher = new MasterCipher(masterSecret);
-      else                      masterCipher = null;
     }
 
     public MessageRecord getNext() {
@@ -996,9 +1015,17 @@ public class MmsDatabase extends MessagingDatabase {
         String body = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY));
         long box    = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
 
-        if (!TextUtils.isEmpty(body) && masterCipher != null && Types.isSymmetricEncryption(box)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
-        } else if (!TextUtils.isEmpty(body) && masterCipher == null && Types.isSymmetricEncryption(box)) {
+        if (!TextUtils.isEmpty(body) && masterSecret != null && Types.isSymmetricEncryption(box)) {
+          long   messageId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
+          String plaintext = PlaintextCache.getInstance().get(PlaintextCache.MMS, messageId, body);
+
+          if (plaintext == null) {
+            plaintext = MasterCipherPool.get(masterSecret).decryptBody(body);
+            PlaintextCache.getInstance().put(PlaintextCache.MMS, messageId, body, plaintext);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
+        } else if (!TextUtils.isEmpty(body) && masterSecret == null && Types.isSymmetricEncryption(box)) {
           return new DisplayRecord.Body(body, false);
         } else {
           return new DisplayRecord.Body(body == null ? "" : body, true);
@@ -23,12 +23,14 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.model.MessageRecord;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -64,22 +66,146 @@ public class MmsSmsDatabase extends Database {
                                               AttachmentDatabase.NAME,
                                               AttachmentDatabase.TRANSFER_STATE};
 
+  private static final String[] KEY_PROJECTION = {MessageTimelineDatabase.DATE_RECEIVED,
+                                                  MessageTimelineDatabase.TRANSPORT,
+                                                  MessageTimelineDatabase.MESSAGE_ID};
+
+  private static final String KEY_ORDER_DESC      = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + TRANSPORT + " DESC, " + MmsSmsColumns.ID + " DESC";
+  private static final String TIMELINE_ORDER_DESC = MessageTimelineDatabase.DATE_RECEIVED + " DESC, " + MessageTimelineDatabase.TRANSPORT + " DESC, " + MessageTimelineDatabase.MESSAGE_ID + " DESC";
+  private static final String TIMELINE_ORDER_ASC  = MessageTimelineDatabase.DATE_RECEIVED + " ASC, " + MessageTimelineDatabase.TRANSPORT + " ASC, " + MessageTimelineDatabase.MESSAGE_ID + " ASC";
+
+  private static final String TIMELINE = MessageTimelineDatabase.TABLE_NAME;
+  private static final String SMS      = SmsDatabase.TABLE_NAME;
+  private static final String MMS      = MmsDatabase.TABLE_NAME;
+  private static final String PART     = AttachmentDatabase.TABLE_NAME;
+
+  /**
+   * Every message with the columns of its SMS or MMS row and of its first
+   * attachment.  Selections and orderings on the thread, date, transport,
+   * id or unread columns resolve to the timeline table and its indexes, so
+   * the message tables are only joined for the rows returned.
+   */
+  private static final String TIMELINE_QUERY =
+      "SELECT " +
+      TIMELINE + "." + MessageTimelineDatabase.MESSAGE_ID + " AS " + MmsSmsColumns.ID + ", " +
+      TIMELINE + "." + MessageTimelineDatabase.THREAD_ID + " AS " + MmsSmsColumns.THREAD_ID + ", " +
+      TIMELINE + "." + MessageTimelineDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+      TIMELINE + "." + MessageTimelineDatabase.TRANSPORT + " AS " + TRANSPORT + ", " +
+      TIMELINE + "." + MessageTimelineDatabase.UNREAD + " AS " + MessageTimelineDatabase.UNREAD + ", " +
+      TIMELINE + "." + MessageTimelineDatabase.ATTACHMENT_ID + " AS " + AttachmentDatabase.ATTACHMENT_ID_ALIAS + ", " +
+      "COALESCE(" + SMS + "." + SmsDatabase.DATE_SENT + ", " + MMS + "." + MmsDatabase.DATE_SENT + ") AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + ", " +
+      "UPPER(" + TIMELINE + "." + MessageTimelineDatabase.TRANSPORT + ") || '::' || " + TIMELINE + "." + MessageTimelineDatabase.MESSAGE_ID + " || '::' || " +
+        "COALESCE(" + SMS + "." + SmsDatabase.DATE_SENT + ", " + MMS + "." + MmsDatabase.DATE_SENT + ") AS " + MmsSmsColumns.UNIQUE_ROW_ID + ", " +
+      shared(MmsSmsColumns.BODY) + ", " +
+      shared(MmsSmsColumns.READ) + ", " +
+      shared(MmsSmsColumns.ADDRESS) + ", " +
+      shared(MmsSmsColumns.ADDRESS_DEVICE_ID) + ", " +
+      shared(MmsSmsColumns.DATE_DELIVERY_RECEIVED) + ", " +
+      shared(MmsSmsColumns.MISMATCHED_IDENTITIES) + ", " +
+      shared(MmsSmsColumns.SUBSCRIPTION_ID) + ", " +
+      shared(MmsSmsColumns.NOTIFIED) + ", " +
+      column(SMS, SmsDatabase.TYPE) + ", " +
+      column(SMS, SmsDatabase.SUBJECT) + ", " +
+      column(SMS, SmsDatabase.STATUS) + ", " +
+      column(MMS, MmsDatabase.MESSAGE_TYPE) + ", " +
+      column(MMS, MmsDatabase.MESSAGE_BOX) + ", " +
+      column(MMS, MmsDatabase.PART_COUNT) + ", " +
+      column(MMS, MmsDatabase.CONTENT_LOCATION) + ", " +
+      column(MMS, MmsDatabase.TRANSACTION_ID) + ", " +
+      column(MMS, MmsDatabase.MESSAGE_SIZE) + ", " +
+      column(MMS, MmsDatabase.EXPIRY) + ", " +
+      column(MMS, MmsDatabase.STATUS) + ", " +
+      column(MMS, MmsDatabase.NETWORK_FAILURE) + ", " +
+      column(PART, AttachmentDatabase.UNIQUE_ID) + ", " +
+      column(PART, AttachmentDatabase.MMS_ID) + ", " +
+      column(PART, AttachmentDatabase.SIZE) + ", " +
+      column(PART, AttachmentDatabase.DATA) + ", " +
+      column(PART, AttachmentDatabase.THUMBNAIL) + ", " +
+      column(PART, AttachmentDatabase.CONTENT_TYPE) + ", " +
+      column(PART, AttachmentDatabase.CONTENT_LOCATION) + ", " +
+      column(PART, AttachmentDatabase.DIGEST) + ", " +
+      column(PART, AttachmentDatabase.CONTENT_DISPOSITION) + ", " +
+      column(PART, AttachmentDatabase.NAME) + ", " +
+      column(PART, AttachmentDatabase.TRANSFER_STATE) + " " +
+      "FROM " + TIMELINE + " " +
+      "LEFT OUTER JOIN " + SMS + " ON " + TIMELINE + "." + MessageTimelineDatabase.TRANSPORT + " = '" + SMS_TRANSPORT + "' AND " +
+        SMS + "." + SmsDatabase.ID + " = " + TIMELINE + "." + MessageTimelineDatabase.MESSAGE_ID + " " +
+      "LEFT OUTER JOIN " + MMS + " ON " + TIMELINE + "." + MessageTimelineDatabase.TRANSPORT + " = '" + MMS_TRANSPORT + "' AND " +
+        MMS + "." + MmsDatabase.ID + " = " + TIMELINE + "." + MessageTimelineDatabase.MESSAGE_ID + " " +
+      "LEFT OUTER JOIN " + PART + " ON " + PART + "." + AttachmentDatabase.ROW_ID + " = " + TIMELINE + "." + MessageTimelineDatabase.ATTACHMENT_ID;
+
   public MmsSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
-  public Cursor getConversation(long threadId, long limit) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  /**
+   * Returns up to {@code count} messages of a thread, newest first, starting
+   * at the message with key {@code newest}, or at the newest message if null.
+   */
+  public Cursor getConversationWindow(long threadId, @Nullable TimelineKey newest, int count) {
+    String   selection     = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String[] selectionArgs = null;
+
+    if (newest != null) {
+      selection     += " AND " + newest.getOlderOrEqualSelection(MmsSmsColumns.NORMALIZED_DATE_RECEIVED, TRANSPORT, MmsSmsColumns.ID);
+      selectionArgs  = newest.getSelectionArgs();
+    }
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limit > 0 ? String.valueOf(limit) : null);
+    Cursor cursor = queryTables(PROJECTION, selection, selectionArgs, KEY_ORDER_DESC, String.valueOf(count));
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
-  public Cursor getConversation(long threadId) {
-    return getConversation(threadId, 0);
+  /**
+   * @return the keys of up to {@code limit} messages of a thread, newest
+   *         first, starting at {@code from}, or at the newest message if null.
+   */
+  public @NonNull List<TimelineKey> getKeysFrom(long threadId, @Nullable TimelineKey from, int limit) {
+    String   selection     = MessageTimelineDatabase.THREAD_ID + " = " + threadId;
+    String[] selectionArgs = null;
+
+    if (from != null) {
+      selection     += " AND " + from.getOlderOrEqualSelection(MessageTimelineDatabase.DATE_RECEIVED, MessageTimelineDatabase.TRANSPORT, MessageTimelineDatabase.MESSAGE_ID);
+      selectionArgs  = from.getSelectionArgs();
+    }
+
+    return queryKeys(selection, selectionArgs, TIMELINE_ORDER_DESC, limit);
+  }
+
+  /**
+   * @return the keys of up to {@code limit} messages of a thread that are
+   *         newer than {@code after}, oldest first.
+   */
+  public @NonNull List<TimelineKey> getKeysAfter(long threadId, @NonNull TimelineKey after, int limit) {
+    String selection = MessageTimelineDatabase.THREAD_ID + " = " + threadId + " AND " +
+                       after.getNewerSelection(MessageTimelineDatabase.DATE_RECEIVED, MessageTimelineDatabase.TRANSPORT, MessageTimelineDatabase.MESSAGE_ID);
+
+    return queryKeys(selection, after.getSelectionArgs(), TIMELINE_ORDER_ASC, limit);
+  }
+
+  /**
+   * @return the key of the oldest message of a thread received after the
+   *         given date, or null if there is none.
+   */
+  public @Nullable TimelineKey getFirstKeyAfter(long threadId, long dateReceived) {
+    String            selection = MessageTimelineDatabase.THREAD_ID + " = ? AND " + MessageTimelineDatabase.DATE_RECEIVED + " > ?";
+    List<TimelineKey> keys      = queryKeys(selection, new String[] {String.valueOf(threadId), String.valueOf(dateReceived)},
+                                            TIMELINE_ORDER_ASC, 1);
+
+    return keys.isEmpty() ? null : keys.get(0);
+  }
+
+  /**
+   * @return the key of the message at a position of a thread, counting from
+   *         0 at the newest, or null if the thread is not that long.  Only
+   *         the timeline index is read.
+   */
+  public @Nullable TimelineKey getKeyAt(long threadId, int position) {
+    List<TimelineKey> keys = queryKeys(MessageTimelineDatabase.THREAD_ID + " = " + threadId, null,
+                                       TIMELINE_ORDER_DESC, position + ", 1");
+
+    return keys.isEmpty() ? null : keys.get(0);
   }
 
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
@@ -92,169 +218,87 @@ public class MmsSmsDatabase extends Database {
     return cursor;
   }
 
-  public Cursor getConversationSnippet(long threadId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  public Cursor getUnread() {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = MessageTimelineDatabase.UNREAD + " = 1 AND " + MmsSmsColumns.NOTIFIED + " = 0";
 
-    return  queryTables(PROJECTION, selection, order, "1");
+    return queryTables(PROJECTION, selection, order, null);
   }
 
-  public Cursor getUnread() {
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-    String selection       = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0";
+  /**
+   * Returns the unread, unnotified messages among the given SMS and MMS ids,
+   * along with every unread, unnotified message in the given threads.
+   */
+  public Cursor getUnread(@NonNull Set<Long> smsIds, @NonNull Set<Long> mmsIds, @NonNull Set<Long> threadIds) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = MessageTimelineDatabase.UNREAD + " = 1 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND (" +
+                       "(" + TRANSPORT + " = '" + SMS_TRANSPORT + "' AND " + MmsSmsColumns.ID + " IN (" + TextUtils.join(",", smsIds) + ")) OR " +
+                       "(" + TRANSPORT + " = '" + MMS_TRANSPORT + "' AND " + MmsSmsColumns.ID + " IN (" + TextUtils.join(",", mmsIds) + ")) OR " +
+                       MmsSmsColumns.THREAD_ID + " IN (" + TextUtils.join(",", threadIds) + "))";
 
     return queryTables(PROJECTION, selection, order, null);
   }
 
   public int getConversationCount(long threadId) {
-    int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
-    count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
-
-    return count;
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(MessageTimelineDatabase.TABLE_NAME, new String[] {"COUNT(*)"},
+                        MessageTimelineDatabase.THREAD_ID + " = ?", new String[] {String.valueOf(threadId)},
+                        null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getInt(0);
+      else                                        return 0;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
-    String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
-                              "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
-                                  + " || '::' || " + MmsDatabase.DATE_SENT
-                                  + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " AS " + AttachmentDatabase.ATTACHMENT_ID_ALIAS,
-                              SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              MmsSmsColumns.DATE_DELIVERY_RECEIVED, MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsSmsColumns.SUBSCRIPTION_ID,
-                              MmsSmsColumns.NOTIFIED,
-                              MmsDatabase.NETWORK_FAILURE,  TRANSPORT,
-                              AttachmentDatabase.UNIQUE_ID,
-                              AttachmentDatabase.MMS_ID,
-                              AttachmentDatabase.SIZE,
-                              AttachmentDatabase.DATA,
-                              AttachmentDatabase.THUMBNAIL,
-                              AttachmentDatabase.CONTENT_TYPE,
-                              AttachmentDatabase.CONTENT_LOCATION,
-                              AttachmentDatabase.DIGEST,
-                              AttachmentDatabase.CONTENT_DISPOSITION,
-                              AttachmentDatabase.NAME,
-                              AttachmentDatabase.TRANSFER_STATE};
-
-    String[] smsProjection = {SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsSmsColumns.ID,
-                              "'SMS::' || " + MmsSmsColumns.ID
-                                  + " || '::' || " + SmsDatabase.DATE_SENT
-                                  + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "NULL AS " + AttachmentDatabase.ATTACHMENT_ID_ALIAS,
-                              SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              MmsSmsColumns.DATE_DELIVERY_RECEIVED, MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsSmsColumns.SUBSCRIPTION_ID,
-                              MmsSmsColumns.NOTIFIED,
-                              MmsDatabase.NETWORK_FAILURE, TRANSPORT,
-                              AttachmentDatabase.UNIQUE_ID,
-                              AttachmentDatabase.MMS_ID,
-                              AttachmentDatabase.SIZE,
-                              AttachmentDatabase.DATA,
-                              AttachmentDatabase.THUMBNAIL,
-                              AttachmentDatabase.CONTENT_TYPE,
-                              AttachmentDatabase.CONTENT_LOCATION,
-                              AttachmentDatabase.DIGEST,
-                              AttachmentDatabase.CONTENT_DISPOSITION,
-                              AttachmentDatabase.NAME,
-                              AttachmentDatabase.TRANSFER_STATE};
-
-    SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
-    SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
-
-    mmsQueryBuilder.setDistinct(true);
-    smsQueryBuilder.setDistinct(true);
-
-    smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
-                              AttachmentDatabase.TABLE_NAME +
-                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " = " +
-                                  " (SELECT " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID +
-                                  " FROM " + AttachmentDatabase.TABLE_NAME + " WHERE " +
-                                  AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " +
-                                  MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " LIMIT 1)");
-
-
-    Set<String> mmsColumnsPresent = new HashSet<>();
-    mmsColumnsPresent.add(MmsSmsColumns.ID);
-    mmsColumnsPresent.add(MmsSmsColumns.READ);
-    mmsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    mmsColumnsPresent.add(MmsSmsColumns.BODY);
-    mmsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    mmsColumnsPresent.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
-    mmsColumnsPresent.add(MmsSmsColumns.DATE_DELIVERY_RECEIVED);
-    mmsColumnsPresent.add(MmsSmsColumns.MISMATCHED_IDENTITIES);
-    mmsColumnsPresent.add(MmsSmsColumns.SUBSCRIPTION_ID);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_TYPE);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_BOX);
-    mmsColumnsPresent.add(MmsDatabase.DATE_SENT);
-    mmsColumnsPresent.add(MmsDatabase.DATE_RECEIVED);
-    mmsColumnsPresent.add(MmsDatabase.PART_COUNT);
-    mmsColumnsPresent.add(MmsDatabase.CONTENT_LOCATION);
-    mmsColumnsPresent.add(MmsDatabase.TRANSACTION_ID);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_SIZE);
-    mmsColumnsPresent.add(MmsDatabase.EXPIRY);
-    mmsColumnsPresent.add(MmsDatabase.NOTIFIED);
-    mmsColumnsPresent.add(MmsDatabase.STATUS);
-    mmsColumnsPresent.add(MmsDatabase.NETWORK_FAILURE);
-
-    mmsColumnsPresent.add(AttachmentDatabase.ROW_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.UNIQUE_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.MMS_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.SIZE);
-    mmsColumnsPresent.add(AttachmentDatabase.DATA);
-    mmsColumnsPresent.add(AttachmentDatabase.THUMBNAIL);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_TYPE);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_LOCATION);
-    mmsColumnsPresent.add(AttachmentDatabase.DIGEST);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_DISPOSITION);
-    mmsColumnsPresent.add(AttachmentDatabase.NAME);
-    mmsColumnsPresent.add(AttachmentDatabase.TRANSFER_STATE);
-
-    Set<String> smsColumnsPresent = new HashSet<>();
-    smsColumnsPresent.add(MmsSmsColumns.ID);
-    smsColumnsPresent.add(MmsSmsColumns.BODY);
-    smsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    smsColumnsPresent.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
-    smsColumnsPresent.add(MmsSmsColumns.READ);
-    smsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    smsColumnsPresent.add(MmsSmsColumns.DATE_DELIVERY_RECEIVED);
-    smsColumnsPresent.add(MmsSmsColumns.MISMATCHED_IDENTITIES);
-    smsColumnsPresent.add(MmsSmsColumns.SUBSCRIPTION_ID);
-    smsColumnsPresent.add(MmsSmsColumns.NOTIFIED);
-    smsColumnsPresent.add(SmsDatabase.TYPE);
-    smsColumnsPresent.add(SmsDatabase.SUBJECT);
-    smsColumnsPresent.add(SmsDatabase.DATE_SENT);
-    smsColumnsPresent.add(SmsDatabase.DATE_RECEIVED);
-    smsColumnsPresent.add(SmsDatabase.STATUS);
+    return queryTables(projection, selection, null, order, limit);
+  }
+
+  private Cursor queryTables(String[] projection, String selection, String[] selectionArgs, String order, String limit) {
+    SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+    queryBuilder.setTables("(" + TIMELINE_QUERY + ")");
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, null, null);
-    @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
+    String query = queryBuilder.buildQuery(projection, selection, null, null, null, order, limit);
 
-    SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
-    String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.rawQuery(query, selectionArgs);
+  }
 
-    SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
-    outerQueryBuilder.setTables("(" + unionQuery + ")");
+  private List<TimelineKey> queryKeys(String selection, String[] selectionArgs, String order, int limit) {
+    return queryKeys(selection, selectionArgs, order, String.valueOf(limit));
+  }
 
-    @SuppressWarnings("deprecation")
-    String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, null, null);
+  private List<TimelineKey> queryKeys(String selection, String[] selectionArgs, String order, String limit) {
+    SQLiteDatabase    db      = databaseHelper.getReadableDatabase();
+    List<TimelineKey> results = new LinkedList<>();
+    Cursor            cursor  = null;
 
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.rawQuery(query, null);
+    try {
+      cursor = db.query(MessageTimelineDatabase.TABLE_NAME, KEY_PROJECTION, selection, selectionArgs,
+                        null, null, order, limit);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(new TimelineKey(cursor.getLong(0), cursor.getString(1), cursor.getLong(2)));
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return results;
+  }
+
+  private static String column(String table, String column) {
+    return table + "." + column + " AS " + column;
+  }
+
+  private static String shared(String column) {
+    return "COALESCE(" + SMS + "." + column + ", " + MMS + "." + column + ") AS " + column;
   }
 
   public Reader readerFor(@NonNull Cursor cursor, @Nullable MasterSecret masterSecret) {
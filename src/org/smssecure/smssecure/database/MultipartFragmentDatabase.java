@@ -0,0 +1,142 @@
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import org.smssecure.smssecure.sms.MultipartSmsReassemblyBuffer.FragmentStore;
+import org.smssecure.smssecure.sms.MultipartSmsReassemblyBuffer.StoredFragment;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Persists the fragments of incomplete multipart messages so they survive a
+ * process restart.  Fragments arrive while the app may be locked, so they are
+ * stored exactly as they arrived over the air, in their own database file,
+ * outside the master secret.
+ *
+ * Only wire prefixed messages are fragmented, so a stored fragment is part
+ * of a remotely encrypted message or of a key exchange, never plaintext.
+ * The sender number and the arrival time are not protected, which is the
+ * same exposure as a secure message received while locked in
+ * {@link SmsDatabase}.  Fragments are deleted as soon as their message is
+ * complete, and expire otherwise.
+ */
+public class MultipartFragmentDatabase implements FragmentStore {
+
+  private static final String TAG = MultipartFragmentDatabase.class.getSimpleName();
+
+  private static final int    DATABASE_VERSION = 1;
+  private static final String DATABASE_NAME    = "multipart_fragments.db";
+  private static final String TABLE            = "fragments";
+  private static final String ID               = "_id";
+  private static final String SENDER           = "sender";
+  private static final String KEY              = "message_key";
+  private static final String COUNT            = "fragment_count";
+  private static final String INITIALIZED      = "initialized";
+  private static final String FRAGMENT_INDEX   = "fragment_index";
+  private static final String FRAGMENT         = "fragment";
+
+  private static final String DATABASE_CREATE = "CREATE TABLE " + TABLE + " (" + ID + " INTEGER PRIMARY KEY, " +
+                                                SENDER + " TEXT, " + KEY + " TEXT NOT NULL, " + COUNT + " INTEGER, " +
+                                                INITIALIZED + " INTEGER, " + FRAGMENT_INDEX + " INTEGER, " +
+                                                FRAGMENT + " BLOB, UNIQUE (" + KEY + ", " + FRAGMENT_INDEX + ") ON CONFLICT REPLACE);";
+
+  private static final String[] CREATE_INDEXS = {
+    "CREATE INDEX IF NOT EXISTS fragments_initialized_index ON " + TABLE + " (" + INITIALIZED + ");"
+  };
+
+  private static MultipartFragmentDatabase instance;
+
+  private final DatabaseHelper databaseHelper;
+
+  public synchronized static MultipartFragmentDatabase getInstance(Context context) {
+    if (instance == null)
+      instance = new MultipartFragmentDatabase(context.getApplicationContext());
+
+    return instance;
+  }
+
+  private MultipartFragmentDatabase(Context context) {
+    this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  @Override
+  public void insert(String sender, String key, int count, long initializedTime, int index, byte[] fragment) {
+    ContentValues values = new ContentValues(6);
+    values.put(SENDER, sender);
+    values.put(KEY, key);
+    values.put(COUNT, count);
+    values.put(INITIALIZED, initializedTime);
+    values.put(FRAGMENT_INDEX, index);
+    values.put(FRAGMENT, fragment);
+
+    databaseHelper.getWritableDatabase().insert(TABLE, null, values);
+  }
+
+  @Override
+  public void delete(String key) {
+    databaseHelper.getWritableDatabase().delete(TABLE, KEY + " = ?", new String[] {key});
+  }
+
+  @Override
+  public void deleteOlderThan(long time) {
+    int deleted = databaseHelper.getWritableDatabase().delete(TABLE, INITIALIZED + " < ?", new String[] {String.valueOf(time)});
+    if (deleted > 0) Log.w(TAG, "Deleted " + deleted + " expired fragments.");
+  }
+
+  @Override
+  public List<StoredFragment> getFragments() {
+    List<StoredFragment> fragments = new LinkedList<>();
+    Cursor               cursor    = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE, null, null, null, null, null, ID + " ASC");
+
+      while (cursor != null && cursor.moveToNext()) {
+        fragments.add(new StoredFragment(cursor.getString(cursor.getColumnIndexOrThrow(SENDER)),
+                                         cursor.getString(cursor.getColumnIndexOrThrow(KEY)),
+                                         cursor.getInt(cursor.getColumnIndexOrThrow(COUNT)),
+                                         cursor.getLong(cursor.getColumnIndexOrThrow(INITIALIZED)),
+                                         cursor.getInt(cursor.getColumnIndexOrThrow(FRAGMENT_INDEX)),
+                                         cursor.getBlob(cursor.getColumnIndexOrThrow(FRAGMENT))));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return fragments;
+  }
+
+  private static class DatabaseHelper extends SQLiteOpenHelper {
+
+    public DatabaseHelper(Context context, String name, CursorFactory factory, int version) {
+      super(context, name, factory, version);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+      db.execSQL(DATABASE_CREATE);
+
+      for (String index : CREATE_INDEXS) {
+        db.execSQL(index);
+      }
+    }
+
+    /**
+     * Fragments are short lived and can be resent, so a schema change simply
+     * starts over with empty tables.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      db.execSQL("DROP TABLE IF EXISTS " + TABLE + ";");
+      onCreate(db);
+    }
+  }
+}
@@ -15,7 +15,9 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 
@@ -58,27 +60,27 @@ public class PlaintextBackupImporter {
       throws IOException
   {
     Log.w("PlaintextBackupImporter", "importPlaintext()");
-    SmsDatabase    db          = DatabaseFactory.getSmsDatabase(context);
-    SQLiteDatabase transaction = db.beginTransaction();
+    SmsDatabase     db          = DatabaseFactory.getSmsDatabase(context);
+    SQLiteDatabase  transaction = db.beginTransaction();
+    SQLiteStatement statement   = db.createInsertStatement(transaction);
 
     try {
-      ThreadDatabase threads         = DatabaseFactory.getThreadDatabase(context);
-      XmlBackup      backup          = new XmlBackup(path);
-      MasterCipher   masterCipher    = new MasterCipher(masterSecret);
-      Set<Long>      modifiedThreads = new HashSet<Long>();
+      ThreadDatabase    threads         = DatabaseFactory.getThreadDatabase(context);
+      XmlBackup         backup          = new XmlBackup(path);
+      MasterCipher      masterCipher    = new MasterCipher(masterSecret);
+      Map<String, Long> threadIds       = new HashMap<>();
+      Set<Long>         modifiedThreads = new HashSet<Long>();
       XmlBackup.XmlBackupItem item;
 
       while ((item = backup.getNext()) != null) {
-        Recipients      recipients = RecipientFactory.getRecipientsFromString(context, item.getAddress(), false);
-        long            threadId   = threads.getThreadIdFor(recipients);
-        SQLiteStatement statement  = db.createInsertStatement(transaction);
-
         if (item.getAddress() == null || item.getAddress().equals("null"))
           continue;
 
         if (!isAppropriateTypeForImport(item.getType()))
           continue;
 
+        long threadId = getThreadId(context, threads, threadIds, item.getAddress());
+
         addStringToStatement(statement, 1, item.getAddress());
         addNullToStatement(statement, 2);
         addLongToStatement(statement, 3, item.getDate());
@@ -105,10 +107,24 @@ public class PlaintextBackupImporter {
       Log.w("PlaintextBackupImporter", e);
       throw new IOException("XML Parsing error!");
     } finally {
+      statement.close();
       db.endTransaction(transaction);
     }
   }
 
+  private static long getThreadId(Context context, ThreadDatabase threads, Map<String, Long> threadIds, String address) {
+    Long threadId = threadIds.get(address);
+
+    if (threadId == null) {
+      Recipients recipients = RecipientFactory.getRecipientsFromString(context, address, false);
+
+      threadId = threads.getThreadIdFor(recipients);
+      threadIds.put(address, threadId);
+    }
+
+    return threadId;
+  }
+
   private static void addEncryptedStingToStatement(MasterCipher masterCipher, SQLiteStatement statement, int index, String value) {
     if (value == null || value.equals("null")) {
       statement.bindNull(index);
@@ -0,0 +1,181 @@
+package org.smssecure.smssecure.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of decrypted message bodies, shared by the SMS and MMS tables.
+ *
+ * Entries are keyed by message id and checked against a hash of the stored
+ * ciphertext, so a body that is re-encrypted in place is never served stale.
+ * The cache is bounded by the total size of the cached plaintext rather than
+ * by entry count, and is split into independently locked stripes so that
+ * readers on different threads rarely contend.  It must be cleared whenever
+ * the master secret is.
+ */
+public class PlaintextCache {
+
+  public static final int SMS = 0;
+  public static final int MMS = 1;
+
+  private static final int  STRIPE_COUNT   = 16;
+  private static final long MAX_BYTES      = 1024 * 1024;
+  private static final int  ENTRY_OVERHEAD = 64;
+
+  private static final PlaintextCache instance = new PlaintextCache(MAX_BYTES);
+
+  private final Stripe[]   stripes;
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public static PlaintextCache getInstance() {
+    return instance;
+  }
+
+  PlaintextCache(long maxBytes) {
+    this.stripes = new Stripe[STRIPE_COUNT];
+
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripes[i] = new Stripe(maxBytes / STRIPE_COUNT);
+    }
+  }
+
+  public @Nullable String get(int table, long messageId, @NonNull String ciphertext) {
+    long   key       = getKey(table, messageId);
+    String plaintext = getStripe(key).get(key, ciphertext.hashCode(), ciphertext.length());
+
+    if (plaintext != null) hits.incrementAndGet();
+    else                   misses.incrementAndGet();
+
+    return plaintext;
+  }
+
+  public void put(int table, long messageId, @NonNull String ciphertext, @NonNull String plaintext) {
+    long key = getKey(table, messageId);
+    getStripe(key).put(key, new Entry(ciphertext.hashCode(), ciphertext.length(), plaintext));
+  }
+
+  public void remove(int table, long messageId) {
+    long key = getKey(table, messageId);
+    getStripe(key).remove(key);
+  }
+
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      stripe.clear();
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public long getSizeInBytes() {
+    long size = 0;
+
+    for (Stripe stripe : stripes) {
+      size += stripe.getSizeInBytes();
+    }
+
+    return size;
+  }
+
+  private static long getKey(int table, long messageId) {
+    return (messageId << 1) | table;
+  }
+
+  private Stripe getStripe(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return stripes[(int)(hash >>> 60) & (STRIPE_COUNT - 1)];
+  }
+
+  private static class Entry {
+    private final int    ciphertextHash;
+    private final int    ciphertextLength;
+    private final String plaintext;
+
+    private Entry(int ciphertextHash, int ciphertextLength, String plaintext) {
+      this.ciphertextHash   = ciphertextHash;
+      this.ciphertextLength = ciphertextLength;
+      this.plaintext        = plaintext;
+    }
+
+    private int getSize() {
+      return ENTRY_OVERHEAD + 2 * plaintext.length();
+    }
+  }
+
+  private class Stripe {
+    private final long                       maxBytes;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    private Stripe(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    private synchronized @Nullable String get(long key, int ciphertextHash, int ciphertextLength) {
+      Entry entry = entries.get(key);
+
+      if (entry == null) return null;
+
+      if (entry.ciphertextHash != ciphertextHash || entry.ciphertextLength != ciphertextLength) {
+        remove(key);
+        return null;
+      }
+
+      return entry.plaintext;
+    }
+
+    private synchronized void put(long key, Entry entry) {
+      if (entry.getSize() > maxBytes) {
+        remove(key);
+        return;
+      }
+
+      Entry previous = entries.put(key, entry);
+
+      if (previous != null) bytes -= previous.getSize();
+      bytes += entry.getSize();
+
+      Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+
+      while (bytes > maxBytes && iterator.hasNext()) {
+        Entry eldest = iterator.next().getValue();
+
+        iterator.remove();
+        bytes -= eldest.getSize();
+        evictions.incrementAndGet();
+      }
+    }
+
+    private synchronized void remove(long key) {
+      Entry entry = entries.remove(key);
+      if (entry != null) bytes -= entry.getSize();
+    }
+
+    private synchronized void clear() {
+      entries.clear();
+      bytes = 0;
+    }
+
+    private synchronized long getSizeInBytes() {
+      return bytes;
+    }
+  }
+}
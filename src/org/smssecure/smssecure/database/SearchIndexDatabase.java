@@ -0,0 +1,432 @@
+package org.smssecure.smssecure.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterCipherPool;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.crypto.SearchTokenizer;
+import org.smssecure.smssecure.database.MmsSmsColumns.Types;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A search index over message bodies that holds keyed tokens instead of
+ * words, see {@link SearchTokenizer}.
+ *
+ * Every indexed message has a document row carrying its timeline key, and
+ * every token of a message is a posting whose rowid packs the token into
+ * the high 32 bits and the document id into the low 32 bits.  The postings
+ * of a token are a range of the table's own b-tree, so the index costs a
+ * few bytes per posting and is only ever read by rowid.
+ *
+ * Documents follow the message timeline through triggers.  Reindexing or
+ * deleting a message drops its document, and the postings left behind are
+ * ignored by queries until {@link #purgeDeletedPostings()} removes them.
+ */
+public class SearchIndexDatabase extends Database {
+
+  private static final String TAG = SearchIndexDatabase.class.getSimpleName();
+
+  public  static final String TABLE_NAME          = "message_search";
+  public  static final String DOCUMENT_TABLE_NAME = "message_search_document";
+  private static final String GARBAGE_TABLE_NAME  = "message_search_garbage";
+
+  private static final String ID            = "_id";
+  private static final String THREAD_ID     = "thread_id";
+  private static final String DATE_RECEIVED = "date_received";
+  private static final String TRANSPORT     = "transport";
+  private static final String MESSAGE_ID    = "message_id";
+
+  private static final String DOCUMENT_MASK = "4294967295";
+
+  private static final int SCAN_THRESHOLD     = 1000;
+  private static final int PURGE_THRESHOLD    = 1000;
+  private static final int PURGE_CHUNK_SIZE   = 10000;
+  private static final int MAX_THREAD_MATCHES = 500;
+
+  public static final String[] CREATE_TABLES = {
+    "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY);",
+    "CREATE TABLE " + DOCUMENT_TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " + THREAD_ID + " INTEGER, " +
+      DATE_RECEIVED + " INTEGER, " + TRANSPORT + " TEXT NOT NULL, " + MESSAGE_ID + " INTEGER NOT NULL);",
+    "CREATE TABLE " + GARBAGE_TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY);"
+  };
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE UNIQUE INDEX IF NOT EXISTS message_search_document_message_index ON " + DOCUMENT_TABLE_NAME + " (" + TRANSPORT + ", " + MESSAGE_ID + ");",
+    "CREATE INDEX IF NOT EXISTS message_search_document_date_index ON " + DOCUMENT_TABLE_NAME + " (" + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ");",
+    "CREATE INDEX IF NOT EXISTS message_search_document_thread_index ON " + DOCUMENT_TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ");"
+  };
+
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS message_search_timeline_update AFTER UPDATE OF " + MessageTimelineDatabase.THREAD_ID + ", " + MessageTimelineDatabase.DATE_RECEIVED + " ON " + MessageTimelineDatabase.TABLE_NAME + " " +
+      "WHEN old." + MessageTimelineDatabase.THREAD_ID + " IS NOT new." + MessageTimelineDatabase.THREAD_ID + " OR old." + MessageTimelineDatabase.DATE_RECEIVED + " IS NOT new." + MessageTimelineDatabase.DATE_RECEIVED + " BEGIN " +
+      "UPDATE " + DOCUMENT_TABLE_NAME + " SET " + THREAD_ID + " = new." + MessageTimelineDatabase.THREAD_ID + ", " + DATE_RECEIVED + " = new." + MessageTimelineDatabase.DATE_RECEIVED + " " +
+      "WHERE " + TRANSPORT + " = new." + MessageTimelineDatabase.TRANSPORT + " AND " + MESSAGE_ID + " = new." + MessageTimelineDatabase.MESSAGE_ID + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS message_search_timeline_delete AFTER DELETE ON " + MessageTimelineDatabase.TABLE_NAME + " BEGIN " +
+      "DELETE FROM " + DOCUMENT_TABLE_NAME + " WHERE " + TRANSPORT + " = old." + MessageTimelineDatabase.TRANSPORT + " AND " + MESSAGE_ID + " = old." + MessageTimelineDatabase.MESSAGE_ID + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS message_search_document_delete AFTER DELETE ON " + DOCUMENT_TABLE_NAME + " BEGIN " +
+      "INSERT OR IGNORE INTO " + GARBAGE_TABLE_NAME + " (" + ID + ") VALUES (old." + ID + "); " +
+    "END;"
+  };
+
+  private static final String DOCUMENT_ORDER_DESC = "d." + DATE_RECEIVED + " DESC, d." + TRANSPORT + " DESC, d." + MESSAGE_ID + " DESC";
+
+  public SearchIndexDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * Indexes, or reindexes, a message under its plaintext body.
+   */
+  public void index(@NonNull MasterSecret masterSecret, @NonNull String transport, long messageId, @Nullable String body) {
+    index(MasterCipherPool.getSearchTokenizer(masterSecret), Collections.singletonList(new Entry(transport, messageId, body)));
+  }
+
+  /**
+   * Indexes, or reindexes, a batch of messages in a single transaction.
+   */
+  public void index(@NonNull SearchTokenizer tokenizer, @NonNull List<Entry> entries) {
+    index(tokenizer, entries, true);
+  }
+
+  /**
+   * Indexes a batch of messages read by {@link #getUnindexedMessages(long, int)},
+   * skipping any that were indexed since, as the batch may be older than a
+   * document written by a decrypt or an edit.
+   */
+  public void indexMissing(@NonNull SearchTokenizer tokenizer, @NonNull List<Entry> entries) {
+    index(tokenizer, entries, false);
+  }
+
+  private void index(@NonNull SearchTokenizer tokenizer, @NonNull List<Entry> entries, boolean replace) {
+    SQLiteDatabase  db       = databaseHelper.getWritableDatabase();
+    SQLiteStatement delete   = db.compileStatement("DELETE FROM " + DOCUMENT_TABLE_NAME + " WHERE " + TRANSPORT + " = ? AND " + MESSAGE_ID + " = ?");
+    SQLiteStatement document = db.compileStatement("INSERT OR IGNORE INTO " + DOCUMENT_TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ") " +
+                                                   "SELECT " + MessageTimelineDatabase.THREAD_ID + ", " + MessageTimelineDatabase.DATE_RECEIVED + ", " +
+                                                   MessageTimelineDatabase.TRANSPORT + ", " + MessageTimelineDatabase.MESSAGE_ID + " " +
+                                                   "FROM " + MessageTimelineDatabase.TABLE_NAME + " " +
+                                                   "WHERE " + MessageTimelineDatabase.TRANSPORT + " = ? AND " + MessageTimelineDatabase.MESSAGE_ID + " = ?");
+    SQLiteStatement posting  = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_NAME + " (" + ID + ") VALUES (?)");
+
+    db.beginTransaction();
+
+    try {
+      for (Entry entry : entries) {
+        if (replace) {
+          delete.bindString(1, entry.transport);
+          delete.bindLong(2, entry.messageId);
+          delete.executeUpdateDelete();
+        }
+
+        document.bindString(1, entry.transport);
+        document.bindLong(2, entry.messageId);
+
+        long documentId = document.executeInsert();
+
+        if (documentId == -1) continue;
+
+        for (int token : tokenizer.getIndexTokens(entry.body)) {
+          posting.bindLong(1, getPosting(token, documentId));
+          posting.executeInsert();
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      delete.close();
+      document.close();
+      posting.close();
+    }
+  }
+
+  /**
+   * @return up to {@code limit} messages without a document, in timeline
+   *         order after the given timeline row.  Symmetrically encrypted
+   *         bodies are returned as ciphertext, bodies that are still waiting
+   *         to be decrypted as null.
+   */
+  public @NonNull List<Entry> getUnindexedMessages(long afterId, int limit) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    List<Entry>    result = new LinkedList<>();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.rawQuery("SELECT t." + MessageTimelineDatabase.ID + ", t." + MessageTimelineDatabase.TRANSPORT + ", t." + MessageTimelineDatabase.MESSAGE_ID + ", " +
+                           "COALESCE(s." + SmsDatabase.BODY + ", m." + MmsDatabase.BODY + "), COALESCE(s." + SmsDatabase.TYPE + ", m." + MmsDatabase.MESSAGE_BOX + ") " +
+                           "FROM " + MessageTimelineDatabase.TABLE_NAME + " AS t " +
+                           "LEFT OUTER JOIN " + SmsDatabase.TABLE_NAME + " AS s ON t." + MessageTimelineDatabase.TRANSPORT + " = '" + MmsSmsDatabase.SMS_TRANSPORT + "' " +
+                           "AND s." + SmsDatabase.ID + " = t." + MessageTimelineDatabase.MESSAGE_ID + " " +
+                           "LEFT OUTER JOIN " + MmsDatabase.TABLE_NAME + " AS m ON t." + MessageTimelineDatabase.TRANSPORT + " = '" + MmsSmsDatabase.MMS_TRANSPORT + "' " +
+                           "AND m." + MmsDatabase.ID + " = t." + MessageTimelineDatabase.MESSAGE_ID + " " +
+                           "WHERE t." + MessageTimelineDatabase.ID + " > ? AND NOT EXISTS (SELECT 1 FROM " + DOCUMENT_TABLE_NAME + " AS d " +
+                           "WHERE d." + TRANSPORT + " = t." + MessageTimelineDatabase.TRANSPORT + " AND d." + MESSAGE_ID + " = t." + MessageTimelineDatabase.MESSAGE_ID + ") " +
+                           "ORDER BY t." + MessageTimelineDatabase.ID + " LIMIT " + limit,
+                           new String[] {String.valueOf(afterId)});
+
+      while (cursor.moveToNext()) {
+        long    type      = cursor.getLong(4);
+        String  body      = cursor.getString(3);
+        boolean encrypted = Types.isSymmetricEncryption(type);
+
+        if (!encrypted && (type & Types.ENCRYPTION_MASK) != 0) {
+          body = null;
+        }
+
+        result.add(new Entry(cursor.getLong(0), cursor.getString(1), cursor.getLong(2), body, encrypted));
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns messages matching every word of the query, newest first.
+   *
+   * @param threadId the thread to search, or -1 for all threads.
+   * @param before   the key of the last result of the previous page, or null.
+   */
+  public @NonNull List<SearchResult> search(@NonNull MasterSecret masterSecret, @NonNull String query,
+                                            long threadId, @Nullable TimelineKey before, int limit)
+  {
+    List<Integer>  tokens  = new ArrayList<>(MasterCipherPool.getSearchTokenizer(masterSecret).getQueryTokens(query));
+    List<Integer>  probes  = new LinkedList<>();
+    List<String>   args    = new LinkedList<>();
+    StringBuilder  sql     = new StringBuilder();
+    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
+
+    if (tokens.isEmpty()) return new LinkedList<>();
+
+    final long[] counts = new long[tokens.size()];
+
+    for (int i = 0; i < tokens.size(); i++) {
+      counts[i] = getPostingCount(db, tokens.get(i));
+      if (counts[i] == 0) return new LinkedList<>();
+    }
+
+    List<Integer> order = new ArrayList<>(tokens.size());
+    for (int i = 0; i < tokens.size(); i++) order.add(i);
+
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer lhs, Integer rhs) {
+        return Long.valueOf(counts[lhs]).compareTo(counts[rhs]);
+      }
+    });
+
+    int rarest = order.get(0);
+
+    sql.append("SELECT d.").append(THREAD_ID).append(", d.").append(DATE_RECEIVED).append(", d.")
+       .append(TRANSPORT).append(", d.").append(MESSAGE_ID).append(" ");
+
+    if (counts[rarest] < SCAN_THRESHOLD) {
+      long start = getPosting(tokens.get(rarest), 0);
+
+      sql.append("FROM ").append(TABLE_NAME).append(" AS s ")
+         .append("JOIN ").append(DOCUMENT_TABLE_NAME).append(" AS d ON d.").append(ID).append(" = (s.").append(ID).append(" & ").append(DOCUMENT_MASK).append(") ")
+         .append("WHERE s.").append(ID).append(" BETWEEN ").append(start).append(" AND ").append(start + 0xFFFFFFFFL);
+
+      for (int i = 1; i < order.size(); i++) probes.add(tokens.get(order.get(i)));
+    } else {
+      sql.append("FROM ").append(DOCUMENT_TABLE_NAME).append(" AS d WHERE 1");
+
+      for (int i : order) probes.add(tokens.get(i));
+    }
+
+    for (int token : probes) {
+      sql.append(" AND EXISTS (SELECT 1 FROM ").append(TABLE_NAME).append(" AS p WHERE p.").append(ID)
+         .append(" = ").append(getPosting(token, 0)).append(" + d.").append(ID).append(")");
+    }
+
+    if (threadId != -1) {
+      sql.append(" AND d.").append(THREAD_ID).append(" = ").append(threadId);
+    }
+
+    if (before != null) {
+      sql.append(" AND ").append(before.getOlderSelection("d." + DATE_RECEIVED, "d." + TRANSPORT, "d." + MESSAGE_ID));
+      Collections.addAll(args, before.getSelectionArgs());
+    }
+
+    sql.append(" ORDER BY ").append(DOCUMENT_ORDER_DESC).append(" LIMIT ").append(limit);
+
+    List<SearchResult> results = new LinkedList<>();
+    Cursor             cursor  = null;
+
+    try {
+      cursor = db.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+
+      while (cursor.moveToNext()) {
+        results.add(new SearchResult(cursor.getLong(0), new TimelineKey(cursor.getLong(1), cursor.getString(2), cursor.getLong(3))));
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return results;
+  }
+
+  /**
+   * @return the threads of the newest messages matching the query, most
+   *         recently matched first.
+   */
+  public @NonNull Set<Long> getMatchingThreads(@NonNull MasterSecret masterSecret, @NonNull String query) {
+    Set<Long> threadIds = new LinkedHashSet<>();
+
+    for (SearchResult result : search(masterSecret, query, -1, null, MAX_THREAD_MATCHES)) {
+      threadIds.add(result.getThreadId());
+    }
+
+    return threadIds;
+  }
+
+  /**
+   * Deletes the postings of dropped documents once enough of them have
+   * accumulated, a chunk of the posting table per transaction.
+   */
+  public void purgeDeletedPostings() {
+    SQLiteDatabase db      = databaseHelper.getWritableDatabase();
+    long           garbage = DatabaseUtils.queryNumEntries(db, GARBAGE_TABLE_NAME);
+
+    if (garbage < PURGE_THRESHOLD) return;
+
+    long            maxDocumentId = DatabaseUtils.longForQuery(db, "SELECT MAX(" + ID + ") FROM " + GARBAGE_TABLE_NAME, null);
+    long            position      = Long.MIN_VALUE;
+    int             purged        = 0;
+    SQLiteStatement statement     = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " + ID + " > ? AND " + ID + " <= ? AND " +
+                                                        "(" + ID + " & " + DOCUMENT_MASK + ") IN " +
+                                                        "(SELECT " + ID + " FROM " + GARBAGE_TABLE_NAME + " WHERE " + ID + " <= ?)");
+
+    Log.w(TAG, "Purging postings of " + garbage + " documents...");
+
+    try {
+      Long end;
+
+      while ((end = getChunkEnd(db, position)) != null) {
+        db.beginTransaction();
+
+        try {
+          statement.bindLong(1, position);
+          statement.bindLong(2, end);
+          statement.bindLong(3, maxDocumentId);
+
+          purged += statement.executeUpdateDelete();
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+
+        position = end;
+      }
+    } finally {
+      statement.close();
+    }
+
+    db.delete(GARBAGE_TABLE_NAME, ID + " <= ?", new String[] {String.valueOf(maxDocumentId)});
+    Log.w(TAG, "Purged " + purged + " postings.");
+  }
+
+  private @Nullable Long getChunkEnd(SQLiteDatabase db, long position) {
+    Cursor cursor = null;
+
+    try {
+      cursor = db.rawQuery("SELECT MAX(" + ID + ") FROM (SELECT " + ID + " FROM " + TABLE_NAME + " " +
+                           "WHERE " + ID + " > ? ORDER BY " + ID + " LIMIT " + PURGE_CHUNK_SIZE + ")",
+                           new String[] {String.valueOf(position)});
+
+      if (cursor.moveToFirst() && !cursor.isNull(0)) return cursor.getLong(0);
+      else                                           return null;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  /**
+   * @return the number of postings of a token, counted up to the point where
+   *         scanning documents by date becomes the cheaper plan.
+   */
+  private long getPostingCount(SQLiteDatabase db, int token) {
+    long start = getPosting(token, 0);
+
+    return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM (SELECT 1 FROM " + TABLE_NAME + " " +
+                                          "WHERE " + ID + " BETWEEN " + start + " AND " + (start + 0xFFFFFFFFL) + " " +
+                                          "LIMIT " + SCAN_THRESHOLD + ")", null);
+  }
+
+  private static long getPosting(int token, long documentId) {
+    return ((long) token << 32) | documentId;
+  }
+
+  public static class Entry {
+    private final           long    timelineId;
+    private final           String  transport;
+    private final           long    messageId;
+    private final @Nullable String  body;
+    private final           boolean encrypted;
+
+    public Entry(@NonNull String transport, long messageId, @Nullable String plaintext) {
+      this(-1, transport, messageId, plaintext, false);
+    }
+
+    private Entry(long timelineId, @NonNull String transport, long messageId, @Nullable String body, boolean encrypted) {
+      this.timelineId = timelineId;
+      this.transport  = transport;
+      this.messageId  = messageId;
+      this.body       = body;
+      this.encrypted  = encrypted;
+    }
+
+    public long getTimelineId() {
+      return timelineId;
+    }
+
+    public @Nullable String getBody() {
+      return body;
+    }
+
+    public boolean isEncrypted() {
+      return encrypted;
+    }
+
+    public @NonNull Entry withPlaintext(@Nullable String plaintext) {
+      return new Entry(timelineId, transport, messageId, plaintext, false);
+    }
+  }
+
+  public static class SearchResult {
+    private final long        threadId;
+    private final TimelineKey key;
+
+    public SearchResult(long threadId, @NonNull TimelineKey key) {
+      this.threadId = threadId;
+      this.key      = key;
+    }
+
+    public long getThreadId() {
+      return threadId;
+    }
+
+    public @NonNull TimelineKey getKey() {
+      return key;
+    }
+  }
+}
@@ -19,20 +19,20 @@ package org.smssecure.smssecure.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
-import org.smssecure.smssecure.ApplicationContext;
 import org.smssecure.smssecure.database.documents.IdentityKeyMismatch;
 import org.smssecure.smssecure.database.documents.IdentityKeyMismatchList;
 import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
-import org.smssecure.smssecure.jobs.TrimThreadJob;
 import org.smssecure.smssecure.recipients.Recipient;
 import org.smssecure.smssecure.recipients.RecipientFactory;
 import org.smssecure.smssecure.recipients.RecipientFormattingException;
@@ -42,9 +42,9 @@ import org.smssecure.smssecure.sms.IncomingTextMessage;
 import org.smssecure.smssecure.sms.OutgoingTextMessage;
 import org.smssecure.smssecure.util.InvalidNumberException;
 import org.smssecure.smssecure.util.JsonUtils;
-import org.whispersystems.jobqueue.JobManager;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -99,11 +99,33 @@ public class SmsDatabase extends MessagingDatabase {
       NOTIFIED
   };
 
-  private final JobManager jobManager;
+  private static final String DECRYPT_IN_PROGRESS_WHERE = TYPE + " & " + (Types.ENCRYPTION_REMOTE_BIT | Types.ENCRYPTION_ASYMMETRIC_BIT) + " != 0";
+
+  private static final String UPDATE_TYPE_BITMASK = "UPDATE " + TABLE_NAME + " SET " + TYPE + " = (" + TYPE + " & ? | ?) " +
+                                                    "WHERE " + ID + " = ?";
+
+  private static final String UPDATE_PENDING_TYPE_BITMASK = UPDATE_TYPE_BITMASK + " AND " + DECRYPT_IN_PROGRESS_WHERE;
+
+  private static final String UPDATE_STATUS = "UPDATE " + TABLE_NAME + " SET " + STATUS + " = ? WHERE " + ID + " = ?";
+
+  private static final String UPDATE_DELIVERY_RECEIVED = "UPDATE " + TABLE_NAME + " SET " + DATE_DELIVERY_RECEIVED + " = ? " +
+                                                         "WHERE " + ID + " = ?";
+
+  private static final String UPDATE_NOTIFIED = "UPDATE " + TABLE_NAME + " SET " + NOTIFIED + " = 1 WHERE " + ID + " = ?";
+
+  private static final String INSERT_INBOX = "INSERT INTO " + TABLE_NAME + " (" + ADDRESS + ", " + ADDRESS_DEVICE_ID + ", " +
+                                             DATE_RECEIVED + ", " + DATE_SENT + ", " + PROTOCOL + ", " + READ + ", " +
+                                             SUBSCRIPTION_ID + ", " + SUBJECT + ", " + REPLY_PATH_PRESENT + ", " +
+                                             SERVICE_CENTER + ", " + BODY + ", " + TYPE + ", " + THREAD_ID + ") " +
+                                             "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  private static final String INSERT_OUTBOX = "INSERT INTO " + TABLE_NAME + " (" + ADDRESS + ", " + THREAD_ID + ", " + BODY + ", " +
+                                              DATE_RECEIVED + ", " + DATE_SENT + ", " + DATE_DELIVERY_RECEIVED + ", " +
+                                              READ + ", " + TYPE + ", " + SUBSCRIPTION_ID + ") " +
+                                              "VALUES (?, ?, ?, ?, ?, 0, 1, ?, ?)";
 
   public SmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
-    this.jobManager = ApplicationContext.getInstance(context).getJobManager();
   }
 
   protected String getTableName() {
@@ -113,10 +135,24 @@ public class SmsDatabase extends MessagingDatabase {
   private void updateTypeBitmask(long id, long maskOff, long maskOn) {
     Log.w("MessageDatabase", "Updating ID: " + id + " to base type: " + maskOn);
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.execSQL("UPDATE " + TABLE_NAME +
-               " SET " + TYPE + " = (" + TYPE + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + " )" +
-               " WHERE " + ID + " = ?", new String[] {id+""});
+    executeUpdateDelete(UPDATE_TYPE_BITMASK, Types.TOTAL_MASK - maskOff, maskOn, id);
+    onTypeChanged(id);
+  }
+
+  /**
+   * Records the outcome of a failed decrypt, unless the message is no longer
+   * waiting to be decrypted because another decrypt of it has already won.
+   */
+  private void updatePendingTypeBitmask(long id, long maskOff, long maskOn) {
+    if (executeUpdateDelete(UPDATE_PENDING_TYPE_BITMASK, Types.TOTAL_MASK - maskOff, maskOn, id) > 0) {
+      onTypeChanged(id);
+    } else {
+      Log.w(TAG, "Message " + id + " is no longer pending decryption, keeping its type.");
+    }
+  }
+
+  private void onTypeChanged(long id) {
+    UnreadIndex.getInstance().onSmsMessageChanged(id);
 
     long threadId = getThreadIdForMessage(id);
 
@@ -124,6 +160,12 @@ public class SmsDatabase extends MessagingDatabase {
     notifyConversationListeners(threadId);
   }
 
+  public boolean isDecryptInProgress(long id) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return DatabaseUtils.queryNumEntries(db, TABLE_NAME, ID + " = ? AND " + DECRYPT_IN_PROGRESS_WHERE,
+                                         new String[] {String.valueOf(id)}) > 0;
+  }
+
   public long getThreadIdForMessage(long id) {
     String sql        = "SELECT " + THREAD_ID + " FROM " + TABLE_NAME + " WHERE " + ID + " = ?";
     String[] sqlArgs  = new String[] {id+""};
@@ -240,6 +282,22 @@ public class SmsDatabase extends MessagingDatabase {
     updateTypeBitmask(id, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_LEGACY_BIT);
   }
 
+  public void markPendingAsDecryptFailed(long id) {
+    updatePendingTypeBitmask(id, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_FAILED_BIT);
+  }
+
+  public void markPendingAsDecryptDuplicate(long id) {
+    updatePendingTypeBitmask(id, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_DUPLICATE_BIT);
+  }
+
+  public void markPendingAsNoSession(long id) {
+    updatePendingTypeBitmask(id, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_NO_SESSION_BIT);
+  }
+
+  public void markPendingAsLegacyVersion(long id) {
+    updatePendingTypeBitmask(id, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_LEGACY_BIT);
+  }
+
   public void markAsOutbox(long id) {
     updateTypeBitmask(id, Types.BASE_TYPE_MASK, Types.BASE_OUTBOX_TYPE);
   }
@@ -250,20 +308,12 @@ public class SmsDatabase extends MessagingDatabase {
 
   public void markAsReceived(long id) {
     markStatus(id, 0);
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(DATE_DELIVERY_RECEIVED, System.currentTimeMillis());
-
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
+    executeUpdateDelete(UPDATE_DELIVERY_RECEIVED, System.currentTimeMillis(), id);
   }
 
   public void markStatus(long id, int status) {
     Log.w("MessageDatabase", "Updating ID: " + id + " to status: " + status);
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(STATUS, status);
-
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
+    executeUpdateDelete(UPDATE_STATUS, status, id);
 
     long threadId = getThreadIdForMessage(id);
     DatabaseFactory.getThreadDatabase(context).update(threadId, false);
@@ -275,12 +325,32 @@ public class SmsDatabase extends MessagingDatabase {
   }
 
   public void markAsNotified(long id) {
-    SQLiteDatabase database      = databaseHelper.getWritableDatabase();
-    ContentValues  contentValues = new ContentValues();
+    executeUpdateDelete(UPDATE_NOTIFIED, id);
+    UnreadIndex.getInstance().onSmsMessageChanged(id);
+  }
+
+  /**
+   * Marks a set of messages as notified in one transaction.
+   */
+  public void markAsNotified(Collection<Long> ids) {
+    if (ids.isEmpty()) return;
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
 
-    contentValues.put(NOTIFIED, 1);
+    try {
+      for (long id : ids) {
+        executeUpdateDelete(UPDATE_NOTIFIED, id);
+      }
 
-    database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(id)});
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    for (long id : ids) {
+      UnreadIndex.getInstance().onSmsMessageChanged(id);
+    }
   }
 
   public void setMessagesRead(long threadId) {
@@ -291,6 +361,8 @@ public class SmsDatabase extends MessagingDatabase {
     database.update(TABLE_NAME, contentValues,
                     THREAD_ID + " = ? AND " + READ + " = 0",
                     new String[] {threadId+""});
+
+    UnreadIndex.getInstance().onThreadRead(threadId);
   }
 
   public void setAllMessagesRead() {
@@ -299,14 +371,28 @@ public class SmsDatabase extends MessagingDatabase {
     contentValues.put(READ, 1);
 
     database.update(TABLE_NAME, contentValues, null, null);
+    UnreadIndex.getInstance().reset();
   }
 
   protected Pair<Long, Long> updateMessageBodyAndType(long messageId, String body, long maskOff, long maskOn) {
+    writeMessageBodyAndType(messageId, body, maskOff, maskOn);
+    return onMessageBodyUpdated(messageId);
+  }
+
+  /**
+   * Only rewrites the row, so that a subclass can do it inside its own
+   * transaction and call {@link #onMessageBodyUpdated(long)} after commit.
+   */
+  protected void writeMessageBodyAndType(long messageId, String body, long maskOff, long maskOn) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.execSQL("UPDATE " + TABLE_NAME + " SET " + BODY + " = ?, " +
                    TYPE + " = (" + TYPE + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + ") " +
                    "WHERE " + ID + " = ?",
                new String[] {body, messageId + ""});
+  }
+
+  protected Pair<Long, Long> onMessageBodyUpdated(long messageId) {
+    UnreadIndex.getInstance().onSmsMessageChanged(messageId);
 
     long threadId = getThreadIdForMessage(messageId);
 
@@ -336,16 +422,53 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db           = databaseHelper.getWritableDatabase();
     long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
 
+    UnreadIndex.getInstance().onSmsMessageChanged(newMessageId);
+
     DatabaseFactory.getThreadDatabase(context).update(record.getThreadId(), true);
     notifyConversationListeners(record.getThreadId());
 
-    jobManager.add(new TrimThreadJob(context, record.getThreadId()));
+    onMessageWritten(record.getThreadId());
     reader.close();
 
     return new Pair<>(newMessageId, record.getThreadId());
   }
 
   protected Pair<Long, Long> insertMessageInbox(IncomingTextMessage message, long type) {
+    long threadId  = getThreadIdForInbox(message);
+    long messageId = writeMessageInbox(message, type, threadId);
+
+    onInboxMessageWritten(message, messageId, threadId);
+
+    return new Pair<>(messageId, threadId);
+  }
+
+  protected long getThreadIdForInbox(IncomingTextMessage message) {
+    Recipients recipients;
+
+    if (message.getSender() != null) {
+      recipients = RecipientFactory.getRecipientsFromString(context, message.getSender(), true);
+    } else {
+      Log.w(TAG, "Sender is null, returning unknown recipient");
+      recipients = RecipientFactory.getRecipientsFor(context, Recipient.getUnknownRecipient(), false);
+    }
+
+    Recipients groupRecipients;
+
+    if (message.getGroupId() == null) {
+      groupRecipients = null;
+    } else {
+      groupRecipients = RecipientFactory.getRecipientsFromString(context, message.getGroupId(), true);
+    }
+
+    if (groupRecipients == null) return DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipients);
+    else                         return DatabaseFactory.getThreadDatabase(context).getThreadIdFor(groupRecipients);
+  }
+
+  /**
+   * Only inserts the row, so that a subclass can do it inside its own
+   * transaction and call {@link #onInboxMessageWritten} after commit.
+   */
+  protected long writeMessageInbox(IncomingTextMessage message, long type, long threadId) {
     if (message.isKeyExchange()) {
       type |= Types.KEY_EXCHANGE_BIT;
       if      (((IncomingKeyExchangeMessage)message).isStale())          type |= Types.KEY_EXCHANGE_STALE_BIT;
@@ -371,61 +494,30 @@ public class SmsDatabase extends MessagingDatabase {
 
     if (message.isPush()) type |= Types.PUSH_MESSAGE_BIT;
 
-    Recipients recipients;
-
-    if (message.getSender() != null) {
-      recipients = RecipientFactory.getRecipientsFromString(context, message.getSender(), true);
-    } else {
-      Log.w(TAG, "Sender is null, returning unknown recipient");
-      recipients = RecipientFactory.getRecipientsFor(context, Recipient.getUnknownRecipient(), false);
-    }
-
-    Recipients groupRecipients;
-
-    if (message.getGroupId() == null) {
-      groupRecipients = null;
-    } else {
-      groupRecipients = RecipientFactory.getRecipientsFromString(context, message.getGroupId(), true);
-    }
-
-    boolean    unread     = org.smssecure.smssecure.util.Util.isDefaultSmsProvider(context) ||
-                            message.isSecureMessage() || message.isKeyExchange();
-
-    long       threadId;
+    String subject = TextUtils.isEmpty(message.getPseudoSubject()) ? null : message.getPseudoSubject();
 
-    if (groupRecipients == null) threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipients);
-    else                         threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(groupRecipients);
-
-    ContentValues values = new ContentValues();
-    values.put(ADDRESS, message.getSender());
-    values.put(ADDRESS_DEVICE_ID,  message.getSenderDeviceId());
-    values.put(DATE_RECEIVED, System.currentTimeMillis());
-    values.put(DATE_SENT, message.getSentTimestampMillis());
-    values.put(PROTOCOL, message.getProtocol());
-    values.put(READ, unread ? 0 : 1);
-    values.put(SUBSCRIPTION_ID, message.getSubscriptionId());
-
-    if (!TextUtils.isEmpty(message.getPseudoSubject()))
-      values.put(SUBJECT, message.getPseudoSubject());
-
-    values.put(REPLY_PATH_PRESENT, message.isReplyPathPresent());
-    values.put(SERVICE_CENTER, message.getServiceCenterAddress());
-    values.put(BODY, message.getMessageBody());
-    values.put(TYPE, type);
-    values.put(THREAD_ID, threadId);
+    return executeInsert(INSERT_INBOX, message.getSender(), message.getSenderDeviceId(),
+                         System.currentTimeMillis(), message.getSentTimestampMillis(),
+                         message.getProtocol(), isUnread(message) ? 0 : 1, message.getSubscriptionId(), subject,
+                         message.isReplyPathPresent(), message.getServiceCenterAddress(),
+                         message.getMessageBody(), type, threadId);
+  }
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long messageId    = db.insert(TABLE_NAME, null, values);
+  protected void onInboxMessageWritten(IncomingTextMessage message, long messageId, long threadId) {
+    UnreadIndex.getInstance().onSmsMessageChanged(messageId);
 
-    if (unread) {
+    if (isUnread(message)) {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
     DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     notifyConversationListeners(threadId);
-    jobManager.add(new TrimThreadJob(context, threadId));
+    onMessageWritten(threadId);
+  }
 
-    return new Pair<>(messageId, threadId);
+  private boolean isUnread(IncomingTextMessage message) {
+    return org.smssecure.smssecure.util.Util.isDefaultSmsProvider(context) ||
+           message.isSecureMessage() || message.isKeyExchange();
   }
 
   public Pair<Long, Long> insertMessageInbox(IncomingTextMessage message) {
@@ -434,32 +526,37 @@ public class SmsDatabase extends MessagingDatabase {
 
   protected long insertMessageOutbox(long threadId, OutgoingTextMessage message,
                                      long type, boolean forceSms, long date)
+  {
+    long messageId = writeMessageOutbox(threadId, message, type, forceSms, date);
+
+    onOutboxMessageWritten(threadId);
+
+    return messageId;
+  }
+
+  /**
+   * Only inserts the row, so that a subclass can do it inside its own
+   * transaction and call {@link #onOutboxMessageWritten(long)} after commit.
+   */
+  protected long writeMessageOutbox(long threadId, OutgoingTextMessage message,
+                                    long type, boolean forceSms, long date)
   {
     if      (message.isKeyExchange())   type |= Types.KEY_EXCHANGE_BIT;
     else if (message.isSecureMessage()) type |= Types.SECURE_MESSAGE_BIT;
     else if (message.isEndSession())    type |= Types.END_SESSION_BIT;
     if      (forceSms)                  type |= Types.MESSAGE_FORCE_SMS_BIT;
 
-    ContentValues contentValues = new ContentValues(7);
-    contentValues.put(ADDRESS, PhoneNumberUtils.formatNumber(message.getRecipients().getPrimaryRecipient().getNumber()));
-    contentValues.put(THREAD_ID, threadId);
-    contentValues.put(BODY, message.getMessageBody());
-    contentValues.put(DATE_RECEIVED, date);
-    contentValues.put(DATE_SENT, date);
-    contentValues.put(DATE_DELIVERY_RECEIVED, "0");
-    contentValues.put(READ, 1);
-    contentValues.put(TYPE, type);
-    contentValues.put(SUBSCRIPTION_ID, message.getSubscriptionId());
+    String address = PhoneNumberUtils.formatNumber(message.getRecipients().getPrimaryRecipient().getNumber());
 
-    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
-    long           messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
+    return executeInsert(INSERT_OUTBOX, address, threadId, message.getMessageBody(), date, date,
+                         type, message.getSubscriptionId());
+  }
 
+  protected void onOutboxMessageWritten(long threadId) {
     DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
     notifyConversationListeners(threadId);
-    jobManager.add(new TrimThreadJob(context, threadId));
-
-    return messageId;
+    onMessageWritten(threadId);
   }
 
   Cursor getMessages(int skip, int limit) {
@@ -474,9 +571,8 @@ public class SmsDatabase extends MessagingDatabase {
   }
 
   public Cursor getDecryptInProgressMessages() {
-    String where       = TYPE + " & " + (Types.ENCRYPTION_REMOTE_BIT | Types.ENCRYPTION_ASYMMETRIC_BIT) + " != 0";
-    SQLiteDatabase db  = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, where, null, null, null, null);
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, DECRYPT_IN_PROGRESS_WHERE, null, null, null, ID);
   }
 
   public Cursor getEncryptedRogueMessages(Recipient recipient) {
@@ -500,45 +596,39 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId     = getThreadIdForMessage(messageId);
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+    PlaintextCache.getInstance().remove(PlaintextCache.SMS, messageId);
+    UnreadIndex.getInstance().onSmsMessageChanged(messageId);
     boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
 
-  /*package */void deleteThread(long threadId) {
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.delete(TABLE_NAME, THREAD_ID + " = ?", new String[] {threadId+""});
-  }
-
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    SQLiteDatabase db   = databaseHelper.getWritableDatabase();
-    StringBuilder where = new StringBuilder(THREAD_ID + " = ? AND (CASE " + TYPE);
-
-    for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-      where.append(" WHEN ").append(outgoingType).append(" THEN ").append(DATE_SENT).append(" < ").append(date);
-    }
+  /**
+   * Deletes up to limit of the oldest messages of a thread that are older
+   * than the key.
+   *
+   * @return the number of messages deleted.
+   */
+  /*package*/ int deleteMessagesInThreadBefore(long threadId, @NonNull TimelineKey key, int limit) {
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    String         selection = ID + " " + MessageTimelineDatabase.getOlderMessagesSelection(threadId, MmsSmsDatabase.SMS_TRANSPORT, key, limit);
 
-    where.append(" ELSE " + DATE_RECEIVED + " < ").append(date).append(" END)");
+    int deleted = db.delete(TABLE_NAME, selection, key.getSelectionArgs());
+    UnreadIndex.getInstance().onThreadChanged(threadId);
 
-    db.delete(TABLE_NAME, where.toString(), new String[] {threadId + ""});
+    return deleted;
   }
 
   /*package*/ void deleteThreads(Set<Long> threadIds) {
-    SQLiteDatabase db    = databaseHelper.getWritableDatabase();
-    StringBuilder  where = new StringBuilder();
-
-    for (long threadId : threadIds) {
-      where.append(THREAD_ID + " = '").append(threadId).append("' OR ");
-    }
-
-    where = new StringBuilder(where.substring(0, where.length() - 4));
-
-    db.delete(TABLE_NAME, where.toString(), null);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.delete(TABLE_NAME, THREAD_ID + " IN (" + TextUtils.join(", ", threadIds) + ")", null);
+    UnreadIndex.getInstance().onThreadsChanged(threadIds);
   }
 
   /*package */ void deleteAllThreads() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, null, null);
+    UnreadIndex.getInstance().reset();
   }
 
   /*package*/ SQLiteDatabase beginTransaction() {
@@ -550,6 +640,7 @@ public class SmsDatabase extends MessagingDatabase {
   /*package*/ void endTransaction(SQLiteDatabase database) {
     database.setTransactionSuccessful();
     database.endTransaction();
+    UnreadIndex.getInstance().reset();
   }
 
   /*package*/ SQLiteStatement createInsertStatement(SQLiteDatabase database) {
@@ -24,7 +24,7 @@ import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.util.Log;
 
-import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterCipherPool;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.recipients.RecipientFactory;
 import org.smssecure.smssecure.recipients.RecipientFormattingException;
@@ -159,8 +159,7 @@ public class SmsMigrator {
 
   private static String encrypt(MasterSecret masterSecret, String body)
   {
-    MasterCipher masterCipher = new MasterCipher(masterSecret);
-    return masterCipher.encryptBody(body);
+    return MasterCipherPool.get(masterSecret).encryptBody(body);
   }
 
   private static void migrateConversation(Context context, MasterSecret masterSecret,
@@ -182,21 +181,25 @@ public class SmsMigrator {
         return;
       }
 
-      SQLiteDatabase transaction = ourSmsDatabase.beginTransaction();
-      SQLiteStatement statement  = ourSmsDatabase.createInsertStatement(transaction);
+      SQLiteDatabase  transaction = ourSmsDatabase.beginTransaction();
+      SQLiteStatement statement   = ourSmsDatabase.createInsertStatement(transaction);
 
-      while (cursor != null && cursor.moveToNext()) {
-        int typeColumn = cursor.getColumnIndex(SmsDatabase.TYPE);
+      try {
+        while (cursor != null && cursor.moveToNext()) {
+          int typeColumn = cursor.getColumnIndex(SmsDatabase.TYPE);
 
-        if (cursor.isNull(typeColumn) || isAppropriateTypeForMigration(cursor, typeColumn)) {
-          getContentValuesForRow(context, masterSecret, cursor, ourThreadId, statement);
-          statement.execute();
-        }
+          if (cursor.isNull(typeColumn) || isAppropriateTypeForMigration(cursor, typeColumn)) {
+            getContentValuesForRow(context, masterSecret, cursor, ourThreadId, statement);
+            statement.execute();
+          }
 
-        listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getPosition()));
+          listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getPosition()));
+        }
+      } finally {
+        statement.close();
+        ourSmsDatabase.endTransaction(transaction);
       }
 
-      ourSmsDatabase.endTransaction(transaction);
       DatabaseFactory.getThreadDatabase(context).update(ourThreadId, true);
       DatabaseFactory.getThreadDatabase(context).notifyConversationListeners(ourThreadId);
 
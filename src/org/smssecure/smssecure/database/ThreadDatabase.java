@@ -19,38 +19,44 @@ package org.smssecure.smssecure.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.smssecure.smssecure.ApplicationContext;
 import org.smssecure.smssecure.R;
-import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterCipherPool;
+import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.model.DisplayRecord;
-import org.smssecure.smssecure.database.model.MediaMmsMessageRecord;
-import org.smssecure.smssecure.database.model.MessageRecord;
 import org.smssecure.smssecure.database.model.ThreadRecord;
-import org.smssecure.smssecure.mms.Slide;
-import org.smssecure.smssecure.mms.SlideDeck;
+import org.smssecure.smssecure.jobs.AttachmentReclaimJob;
 import org.smssecure.smssecure.recipients.Recipient;
 import org.smssecure.smssecure.recipients.RecipientFactory;
 import org.smssecure.smssecure.recipients.Recipients;
-import org.smssecure.smssecure.util.Util;
 import org.whispersystems.libsignal.InvalidMessageException;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ThreadDatabase extends Database {
 
   private static final String TAG = ThreadDatabase.class.getSimpleName();
 
+  private static final int TRIM_CHUNK_SIZE = 500;
+
           static final String TABLE_NAME      = "thread";
   public  static final String ID              = "_id";
   public  static final String DATE            = "date";
@@ -131,25 +137,6 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
-                            long date, int status, long type, boolean unarchive)  {
-    ContentValues contentValues = new ContentValues(6);
-    contentValues.put(DATE, date - date % 1000);
-    contentValues.put(MESSAGE_COUNT, count);
-    contentValues.put(SNIPPET, body);
-    contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
-    contentValues.put(SNIPPET_TYPE, type);
-    contentValues.put(STATUS, status);
-
-    if (unarchive) {
-      contentValues.put(ARCHIVED, 0);
-    }
-
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
-  }
-
   public void updateSnippet(long threadId, String snippet, @Nullable Uri attachment, long date, long type, boolean unarchive) {
     ContentValues contentValues = new ContentValues(4);
 
@@ -174,17 +161,8 @@ public class ThreadDatabase extends Database {
   }
 
   private void deleteThreads(Set<Long> threadIds) {
-    SQLiteDatabase db    = databaseHelper.getWritableDatabase();
-    StringBuilder  where = new StringBuilder();
-
-    for (long threadId : threadIds) {
-      where.append(ID + " = '").append(threadId).append("' OR ");
-    }
-
-    where = new StringBuilder(where.substring(0, where.length() - 4));
-
-    db.delete(TABLE_NAME, where.toString(), null);
-    notifyConversationListListeners();
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.delete(TABLE_NAME, ID + " IN (" + TextUtils.join(", ", threadIds) + ")", null);
   }
 
   private void deleteAllThreads() {
@@ -193,50 +171,88 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
-  public void trimAllThreads(int length, ProgressListener listener) {
-    Cursor cursor   = null;
-    int threadCount = 0;
-    int complete    = 0;
+  /**
+   * Trims every thread longer than length, one thread at a time.  Threads
+   * are picked from their maintained message counts, so short ones cost
+   * nothing.
+   */
+  public void trimAllThreads(int length) {
+    if (length <= 0) return;
 
-    try {
-      cursor = this.getConversationList();
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    List<Long>     threadIds = new LinkedList<>();
+    Cursor         cursor    = null;
 
-      if (cursor != null)
-        threadCount = cursor.getCount();
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {ID}, MESSAGE_COUNT + " > ?",
+                        new String[] {String.valueOf(length)}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-        trimThread(threadId, length);
-
-        listener.onProgress(++complete, threadCount);
+        threadIds.add(cursor.getLong(0));
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
+
+    for (long threadId : threadIds) {
+      trimThread(threadId, length);
+    }
   }
 
+  /**
+   * Keeps the newest length messages of a thread and deletes the rest.  The
+   * oldest kept message is found with a single offset query on the timeline
+   * index, and older messages are deleted in chunks of TRIM_CHUNK_SIZE per
+   * transaction so that readers get in between.
+   */
   public void trimThread(long threadId, int length) {
-    Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
-    Cursor cursor = null;
+    if (length <= 0 || getMessageCount(threadId) <= length) return;
 
-    try {
-      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    TimelineKey cutoff = DatabaseFactory.getMmsSmsDatabase(context).getKeyAt(threadId, length - 1);
 
-      if (cursor != null && length > 0 && cursor.getCount() > length) {
-        Log.w("ThreadDatabase", "Cursor count is greater than length!");
-        cursor.moveToPosition(length - 1);
+    if (cutoff == null) return;
 
-        long lastTweetDate = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+    Log.w(TAG, "Trimming thread: " + threadId + " to: " + length);
 
-        Log.w("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
+    SQLiteDatabase db          = databaseHelper.getWritableDatabase();
+    SmsDatabase    smsDatabase = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase    mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    int            deleted     = 0;
+    int            chunk;
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-
-        update(threadId, false);
-        notifyConversationListeners(threadId);
+    do {
+      db.beginTransaction();
+      try {
+        chunk  = smsDatabase.deleteMessagesInThreadBefore(threadId, cutoff, TRIM_CHUNK_SIZE);
+        chunk += mmsDatabase.deleteMessagesInThreadBefore(threadId, cutoff, TRIM_CHUNK_SIZE);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
       }
+
+      deleted += chunk;
+    } while (chunk > 0);
+
+    Log.w(TAG, "Trimmed " + deleted + " messages from thread: " + threadId);
+
+    if (deleted > 0) {
+      ApplicationContext.getInstance(context).getJobManager().add(new AttachmentReclaimJob(context));
+      notifyConversationListeners(threadId);
+      notifyConversationListListeners();
+    }
+  }
+
+  private long getMessageCount(long threadId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT}, ID_WHERE,
+                        new String[] {String.valueOf(threadId)}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getLong(0);
+      else                                        return 0;
     } finally {
       if (cursor != null)
         cursor.close();
@@ -285,35 +301,31 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
-  public Cursor getFilteredConversationList(List<String> filter) {
-    if (filter == null || filter.size() == 0)
-      return null;
-
-    List<Long> rawRecipientIds = DatabaseFactory.getAddressDatabase(context).getCanonicalAddressIds(filter);
+  /**
+   * Returns, newest first, the threads with one of the given addresses as
+   * their only recipient along with the given threads.  The ids are inlined
+   * rather than bound, so any number of them can go into the one query.
+   */
+  public Cursor getFilteredConversationList(@Nullable List<String> filter, @NonNull Collection<Long> threadIds) {
+    List<Long> recipientIds = filter == null || filter.size() == 0 ? Collections.<Long>emptyList()
+                              : DatabaseFactory.getAddressDatabase(context).getCanonicalAddressIds(filter);
 
-    if (rawRecipientIds == null || rawRecipientIds.size() == 0)
+    if (recipientIds.isEmpty() && threadIds.isEmpty())
       return null;
 
-    SQLiteDatabase   db                      = databaseHelper.getReadableDatabase();
-    List<List<Long>> partitionedRecipientIds = Util.partition(rawRecipientIds, 900);
-    List<Cursor>     cursors                 = new LinkedList<>();
+    List<String> clauses = new LinkedList<>();
 
-    for (List<Long> recipientIds : partitionedRecipientIds) {
-      StringBuilder selection     = new StringBuilder(RECIPIENT_IDS + " = ?");
-      String[]      selectionArgs = new String[recipientIds.size()];
-
-      for (int i=0;i<recipientIds.size()-1;i++)
-        selection.append(" OR " + RECIPIENT_IDS + " = ?");
-
-      int i= 0;
-      for (long id : recipientIds) {
-        selectionArgs[i++] = String.valueOf(id);
-      }
+    if (!recipientIds.isEmpty()) {
+      clauses.add(RECIPIENT_IDS + " IN ('" + TextUtils.join("', '", recipientIds) + "')");
+    }
 
-      cursors.add(db.query(TABLE_NAME, null, selection.toString(), selectionArgs, null, null, DATE + " DESC"));
+    if (!threadIds.isEmpty()) {
+      clauses.add(ID + " IN (" + TextUtils.join(", ", threadIds) + ")");
     }
 
-    Cursor cursor = cursors.size() > 1 ? new MergeCursor(cursors.toArray(new Cursor[cursors.size()])) : cursors.get(0);
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = db.query(TABLE_NAME, null, TextUtils.join(" OR ", clauses), null, null, null, DATE + " DESC");
+
     setNotifyConverationListListeners(cursor);
     return cursor;
   }
@@ -404,19 +416,34 @@ public class ThreadDatabase extends Database {
   }
 
   public void deleteConversation(long threadId) {
-    DatabaseFactory.getSmsDatabase(context).deleteThread(threadId);
-    DatabaseFactory.getMmsDatabase(context).deleteThread(threadId);
-    DatabaseFactory.getDraftDatabase(context).clearDrafts(threadId);
-    deleteThread(threadId);
-    notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    deleteConversations(Collections.singleton(threadId));
   }
 
+  /**
+   * Deletes the threads and all of their messages in one transaction.  The
+   * thread rows go first, so the summary triggers have nothing to maintain
+   * while the messages are removed, and listeners are notified once at the
+   * end.  Attachment files are unlinked afterwards by an
+   * {@link AttachmentReclaimJob}.
+   */
   public void deleteConversations(Set<Long> selectedConversations) {
-    DatabaseFactory.getSmsDatabase(context).deleteThreads(selectedConversations);
-    DatabaseFactory.getMmsDatabase(context).deleteThreads(selectedConversations);
-    DatabaseFactory.getDraftDatabase(context).clearDrafts(selectedConversations);
-    deleteThreads(selectedConversations);
+    if (selectedConversations.isEmpty()) return;
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      deleteThreads(selectedConversations);
+      DatabaseFactory.getSmsDatabase(context).deleteThreads(selectedConversations);
+      DatabaseFactory.getMmsDatabase(context).deleteThreads(selectedConversations);
+      DatabaseFactory.getDraftDatabase(context).clearDrafts(selectedConversations);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    ApplicationContext.getInstance(context).getJobManager().add(new AttachmentReclaimJob(context));
+
     notifyConversationListeners(selectedConversations);
     notifyConversationListListeners();
   }
@@ -493,53 +520,54 @@ public class ThreadDatabase extends Database {
     return null;
   }
 
+  /**
+   * Deletes the thread if it no longer has messages, otherwise unarchives it
+   * if asked to.  The count and snippet are kept current by the triggers of
+   * {@link ThreadSummaryDatabase}, except that a draft snippet is replaced
+   * by the newest message here once the draft is gone.
+   *
+   * @return true if the thread was deleted.
+   */
   public boolean update(long threadId, boolean unarchive) {
-    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
-    long count                    = mmsSmsDatabase.getConversationCount(threadId);
-
-    if (count == 0) {
-      deleteThread(threadId);
-      notifyConversationListListeners();
-      return true;
-    }
-
-    MmsSmsDatabase.Reader reader = null;
+    SQLiteDatabase db     = databaseHelper.getWritableDatabase();
+    String[]       args   = new String[] {String.valueOf(threadId)};
+    Cursor         cursor = null;
+    long           count  = 0;
+    long           type   = 0;
 
     try {
-      reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
-      MessageRecord record;
-
-      if (reader != null && (record = reader.getNext()) != null) {
-        updateThread(threadId, count, record.getBody().getBody(), getAttachmentUriFor(record),
-                     record.getTimestamp(), record.getDeliveryStatus(), record.getType(), unarchive);
-        notifyConversationListListeners();
-        return false;
-      } else {
-        deleteThread(threadId);
-        notifyConversationListListeners();
-        return true;
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT, SNIPPET_TYPE}, ID_WHERE, args, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        count = cursor.getLong(0);
+        type  = cursor.getLong(1);
       }
     } finally {
-      if (reader != null)
-        reader.close();
+      if (cursor != null)
+        cursor.close();
     }
-  }
 
-  private @Nullable Uri getAttachmentUriFor(MessageRecord record) {
-    if (!record.isMms() || record.isMmsNotification() || record.isGroupAction()) return null;
+    if (count <= 0) {
+      deleteThread(threadId);
+      return true;
+    }
 
-    SlideDeck slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-    Slide     thumbnail = slideDeck.getThumbnailSlide();
+    if (MmsSmsColumns.Types.isDraftMessageType(type)) {
+      db.execSQL(ThreadSummaryDatabase.rebuildSnippet(ID_WHERE), args);
+    }
 
-    return thumbnail != null ? thumbnail.getThumbnailUri() : null;
-  }
+    if (unarchive) {
+      ContentValues contentValues = new ContentValues(1);
+      contentValues.put(ARCHIVED, 0);
+      db.update(TABLE_NAME, contentValues, ID_WHERE, args);
+    }
 
-  public static interface ProgressListener {
-    public void onProgress(int complete, int total);
+    notifyConversationListListeners();
+    return false;
   }
 
-  public Reader readerFor(Cursor cursor, MasterCipher masterCipher) {
-    return new Reader(cursor, masterCipher);
+  public Reader readerFor(Cursor cursor, @Nullable MasterSecret masterSecret) {
+    return new Reader(cursor, masterSecret);
   }
 
   public static class DistributionTypes {
@@ -552,11 +580,13 @@ public class ThreadDatabase extends Database {
   public class Reader {
 
     private final Cursor       cursor;
-    private final MasterCipher masterCipher;
+    private final MasterSecret masterSecret;
+
+    private final Map<Integer, String> decryptedSnippets = new HashMap<>();
 
-    public Reader(Cursor cursor, MasterCipher masterCipher) {
+    public Reader(Cursor cursor, @Nullable MasterSecret masterSecret) {
       this.cursor       = cursor;
-      this.masterCipher = masterCipher;
+      this.masterSecret = masterSecret;
     }
 
     public ThreadRecord getNext() {
@@ -591,9 +621,14 @@ public class ThreadDatabase extends Database {
         long type   = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_TYPE));
         String body = cursor.getString(cursor.getColumnIndexOrThrow(SNIPPET));
 
-        if (!TextUtils.isEmpty(body) && masterCipher != null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
-        } else if (!TextUtils.isEmpty(body) && masterCipher == null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
+        if (!TextUtils.isEmpty(body) && masterSecret != null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
+          String plaintext = getDecryptedSnippet(cursor);
+
+          if (plaintext == null)
+            throw new InvalidMessageException("Unable to decrypt snippet");
+
+          return new DisplayRecord.Body(plaintext, true);
+        } else if (!TextUtils.isEmpty(body) && masterSecret == null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
           return new DisplayRecord.Body(body, false);
         } else {
           return new DisplayRecord.Body(body, true);
@@ -604,6 +639,59 @@ public class ThreadDatabase extends Database {
       }
     }
 
+    private @Nullable String getDecryptedSnippet(Cursor cursor) {
+      int position = cursor.getPosition();
+
+      if (!decryptedSnippets.containsKey(position)) {
+        decryptWindow(cursor);
+      }
+
+      return decryptedSnippets.get(position);
+    }
+
+    /**
+     * Decrypts the snippets of the rows around the current one in the cursor
+     * window in one batch, so scrolling either way finds its rows decrypted.
+     * Snippets far from the current row are dropped, and the ones still kept
+     * are not decrypted again.
+     */
+    private void decryptWindow(Cursor cursor) {
+      int           position    = cursor.getPosition();
+      int           start       = getWindowStart(cursor, position, DECRYPT_WINDOW_SIZE / 2);
+      int           end         = getWindowEnd(cursor, position, DECRYPT_WINDOW_SIZE / 2);
+      int           typeColumn  = cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_TYPE);
+      int           bodyColumn  = cursor.getColumnIndexOrThrow(SNIPPET);
+      List<Integer> positions   = new ArrayList<>(end - start);
+      List<String>  ciphertexts = new ArrayList<>(end - start);
+
+      Iterator<Integer> cached = decryptedSnippets.keySet().iterator();
+
+      while (cached.hasNext()) {
+        if (Math.abs(cached.next() - position) > DECRYPT_WINDOW_SIZE) cached.remove();
+      }
+
+      try {
+        for (int i = start; i < end && cursor.moveToPosition(i); i++) {
+          if (decryptedSnippets.containsKey(i)) continue;
+
+          String body = cursor.getString(bodyColumn);
+
+          if (!TextUtils.isEmpty(body) && MmsSmsColumns.Types.isSymmetricEncryption(cursor.getLong(typeColumn))) {
+            positions.add(i);
+            ciphertexts.add(body);
+          }
+        }
+      } finally {
+        cursor.moveToPosition(position);
+      }
+
+      List<String> plaintexts = MasterCipherPool.get(masterSecret).decryptBodies(ciphertexts);
+
+      for (int i = 0; i < positions.size(); i++) {
+        decryptedSnippets.put(positions.get(i), plaintexts.get(i));
+      }
+    }
+
     private @Nullable Uri getSnippetUri(Cursor cursor) {
       if (cursor.isNull(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_URI))) {
         return null;
@@ -0,0 +1,144 @@
+package org.smssecure.smssecure.database;
+
+import com.google.android.mms.pdu_alt.PduHeaders;
+
+import org.smssecure.smssecure.database.MmsSmsColumns.Types;
+import org.smssecure.smssecure.mms.PartAuthority;
+
+/**
+ * Triggers that keep the summary columns of every thread (message count,
+ * snippet, snippet type, snippet thumbnail, date and status) current.
+ *
+ * Counts are adjusted by one as timeline rows come and go, and the snippet is
+ * only rewritten when the newest message of a thread changes, so a message
+ * write updates its thread's summary in the same statement, whichever path
+ * made it.  A full rebuild is only needed for migration and repair.
+ */
+public class ThreadSummaryDatabase {
+
+  private static final String THREAD   = ThreadDatabase.TABLE_NAME;
+  private static final String TIMELINE = MessageTimelineDatabase.TABLE_NAME;
+  private static final String SMS      = "'" + MmsSmsDatabase.SMS_TRANSPORT + "'";
+  private static final String MMS      = "'" + MmsSmsDatabase.MMS_TRANSPORT + "'";
+
+  private static final String SNIPPET_BODY = "CASE WHEN t." + MessageTimelineDatabase.TRANSPORT + " = " + SMS + " THEN s." + SmsDatabase.BODY + " " +
+                                             "WHEN m." + MmsDatabase.MESSAGE_TYPE + " = " + PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + " THEN '' " +
+                                             "ELSE COALESCE(m." + MmsDatabase.BODY + ", '') END";
+
+  private static final String SNIPPET_TYPE = "CASE WHEN t." + MessageTimelineDatabase.TRANSPORT + " = " + SMS + " THEN s." + SmsDatabase.TYPE + " " +
+                                             "ELSE m." + MmsDatabase.MESSAGE_BOX + " END";
+
+  private static final String SNIPPET_URI  = "CASE WHEN t." + MessageTimelineDatabase.TRANSPORT + " = " + MMS + " " +
+                                             "AND m." + MmsDatabase.MESSAGE_TYPE + " != " + PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + " " +
+                                             "AND (m." + MmsDatabase.MESSAGE_BOX + " & " + (Types.GROUP_UPDATE_BIT | Types.GROUP_QUIT_BIT) + ") = 0 " +
+                                             "AND p." + AttachmentDatabase.THUMBNAIL + " IS NOT NULL " +
+                                             "AND SUBSTR(p." + AttachmentDatabase.CONTENT_TYPE + ", 1, 6) IN ('image/', 'video/', 'audio/') " +
+                                             "THEN '" + PartAuthority.THUMB_URI_STRING + "/' || p." + AttachmentDatabase.UNIQUE_ID + " || '/' || p." + AttachmentDatabase.ROW_ID + " " +
+                                             "ELSE NULL END";
+
+  private static final String SNIPPET_DATE   = "t." + MessageTimelineDatabase.DATE_RECEIVED + " - t." + MessageTimelineDatabase.DATE_RECEIVED + " % 1000";
+  private static final String SNIPPET_STATUS = "CASE WHEN t." + MessageTimelineDatabase.TRANSPORT + " = " + SMS + " THEN s." + SmsDatabase.STATUS + " " +
+                                               "ELSE " + SmsDatabase.Status.STATUS_NONE + " END";
+
+  /**
+   * Matches threads whose snippet is not a draft, which is kept until the
+   * draft is cleared.
+   */
+  public static final String NOT_DRAFT = "(" + ThreadDatabase.SNIPPET_TYPE + " & " + Types.BASE_TYPE_MASK + ") != " + Types.BASE_DRAFT_TYPE;
+
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS thread_summary_timeline_insert AFTER INSERT ON " + TIMELINE + " BEGIN " +
+      adjustCount("new." + MessageTimelineDatabase.THREAD_ID, "+ 1", null) +
+      updateSnippet("new." + MessageTimelineDatabase.THREAD_ID, isNewest("new")) +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS thread_summary_timeline_delete AFTER DELETE ON " + TIMELINE + " BEGIN " +
+      adjustCount("old." + MessageTimelineDatabase.THREAD_ID, "- 1", null) +
+      updateSnippet("old." + MessageTimelineDatabase.THREAD_ID, isNewest("old")) +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS thread_summary_timeline_move AFTER UPDATE OF " + MessageTimelineDatabase.THREAD_ID + ", " + MessageTimelineDatabase.DATE_RECEIVED + " ON " + TIMELINE + " " +
+      "WHEN old." + MessageTimelineDatabase.THREAD_ID + " IS NOT new." + MessageTimelineDatabase.THREAD_ID + " " +
+      "OR old." + MessageTimelineDatabase.DATE_RECEIVED + " IS NOT new." + MessageTimelineDatabase.DATE_RECEIVED + " BEGIN " +
+      adjustCount("old." + MessageTimelineDatabase.THREAD_ID, "- 1", "old." + MessageTimelineDatabase.THREAD_ID + " IS NOT new." + MessageTimelineDatabase.THREAD_ID) +
+      adjustCount("new." + MessageTimelineDatabase.THREAD_ID, "+ 1", "old." + MessageTimelineDatabase.THREAD_ID + " IS NOT new." + MessageTimelineDatabase.THREAD_ID) +
+      updateSnippet("old." + MessageTimelineDatabase.THREAD_ID, null) +
+      updateSnippet("new." + MessageTimelineDatabase.THREAD_ID, "old." + MessageTimelineDatabase.THREAD_ID + " IS NOT new." + MessageTimelineDatabase.THREAD_ID) +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS thread_summary_timeline_attachment AFTER UPDATE OF " + MessageTimelineDatabase.ATTACHMENT_ID + " ON " + TIMELINE + " " +
+      "WHEN old." + MessageTimelineDatabase.ATTACHMENT_ID + " IS NOT new." + MessageTimelineDatabase.ATTACHMENT_ID + " BEGIN " +
+      updateSnippet("new." + MessageTimelineDatabase.THREAD_ID, isNewest("new") + " AND " + NOT_DRAFT) +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS thread_summary_sms_update AFTER UPDATE OF " + SmsDatabase.BODY + ", " + SmsDatabase.TYPE + ", " + SmsDatabase.STATUS + " ON " + SmsDatabase.TABLE_NAME + " BEGIN " +
+      updateSnippet("new." + SmsDatabase.THREAD_ID, isNewest("new." + SmsDatabase.THREAD_ID, "new." + SmsDatabase.DATE_RECEIVED, SMS, "new." + SmsDatabase.ID) + " AND " + NOT_DRAFT) +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS thread_summary_mms_update AFTER UPDATE OF " + MmsDatabase.BODY + ", " + MmsDatabase.MESSAGE_BOX + ", " + MmsDatabase.MESSAGE_TYPE + " ON " + MmsDatabase.TABLE_NAME + " BEGIN " +
+      updateSnippet("new." + MmsDatabase.THREAD_ID, isNewest("new." + MmsDatabase.THREAD_ID, "new." + MmsDatabase.DATE_RECEIVED, MMS, "new." + MmsDatabase.ID) + " AND " + NOT_DRAFT) +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS thread_summary_part_update AFTER UPDATE OF " + AttachmentDatabase.CONTENT_TYPE + ", " + AttachmentDatabase.THUMBNAIL + ", " + AttachmentDatabase.UNIQUE_ID + " ON " + AttachmentDatabase.TABLE_NAME + " BEGIN " +
+      updateSnippet("(SELECT " + MessageTimelineDatabase.THREAD_ID + " FROM " + TIMELINE + " WHERE " + MessageTimelineDatabase.TRANSPORT + " = " + MMS + " " +
+                    "AND " + MessageTimelineDatabase.MESSAGE_ID + " = new." + AttachmentDatabase.MMS_ID + " AND " + MessageTimelineDatabase.ATTACHMENT_ID + " = new." + AttachmentDatabase.ROW_ID + ")",
+                    isNewest(THREAD + "." + ThreadDatabase.ID, "(SELECT " + MmsDatabase.DATE_RECEIVED + " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.ID + " = new." + AttachmentDatabase.MMS_ID + ")",
+                             MMS, "new." + AttachmentDatabase.MMS_ID) + " AND " + NOT_DRAFT) +
+    "END;"
+  };
+
+  /**
+   * @return a statement recounting the messages of the threads matching the
+   *         selection.
+   */
+  public static String rebuildCount(String selection) {
+    return "UPDATE " + THREAD + " SET " + ThreadDatabase.MESSAGE_COUNT + " = " +
+           "(SELECT COUNT(*) FROM " + TIMELINE + " WHERE " + MessageTimelineDatabase.THREAD_ID + " = " + THREAD + "." + ThreadDatabase.ID + ") " +
+           "WHERE " + selection;
+  }
+
+  /**
+   * @return a statement rewriting the snippet of the non empty threads
+   *         matching the selection from their newest message.
+   */
+  public static String rebuildSnippet(String selection) {
+    return updateSnippet(THREAD + "." + ThreadDatabase.ID, selection);
+  }
+
+  private static String adjustCount(String threadId, String delta, String condition) {
+    return "UPDATE " + THREAD + " SET " + ThreadDatabase.MESSAGE_COUNT + " = " + ThreadDatabase.MESSAGE_COUNT + " " + delta + " " +
+           "WHERE " + ThreadDatabase.ID + " = " + threadId + (condition != null ? " AND " + condition : "") + "; ";
+  }
+
+  private static String updateSnippet(String threadId, String condition) {
+    return "UPDATE " + THREAD + " SET " +
+           ThreadDatabase.SNIPPET      + " = " + getNewest(SNIPPET_BODY, threadId)   + ", " +
+           ThreadDatabase.SNIPPET_TYPE + " = " + getNewest(SNIPPET_TYPE, threadId)   + ", " +
+           ThreadDatabase.SNIPPET_URI  + " = " + getNewest(SNIPPET_URI, threadId)    + ", " +
+           ThreadDatabase.DATE         + " = " + getNewest(SNIPPET_DATE, threadId)   + ", " +
+           ThreadDatabase.STATUS       + " = " + getNewest(SNIPPET_STATUS, threadId) + " " +
+           "WHERE " + ThreadDatabase.ID + " = " + threadId + " AND " + ThreadDatabase.MESSAGE_COUNT + " > 0" +
+           (condition != null ? " AND " + condition : "") + "; ";
+  }
+
+  private static String getNewest(String expression, String threadId) {
+    return "(SELECT " + expression + " FROM " + TIMELINE + " AS t " +
+           "LEFT OUTER JOIN " + SmsDatabase.TABLE_NAME + " AS s ON t." + MessageTimelineDatabase.TRANSPORT + " = " + SMS + " AND s." + SmsDatabase.ID + " = t." + MessageTimelineDatabase.MESSAGE_ID + " " +
+           "LEFT OUTER JOIN " + MmsDatabase.TABLE_NAME + " AS m ON t." + MessageTimelineDatabase.TRANSPORT + " = " + MMS + " AND m." + MmsDatabase.ID + " = t." + MessageTimelineDatabase.MESSAGE_ID + " " +
+           "LEFT OUTER JOIN " + AttachmentDatabase.TABLE_NAME + " AS p ON p." + AttachmentDatabase.ROW_ID + " = t." + MessageTimelineDatabase.ATTACHMENT_ID + " " +
+           "WHERE t." + MessageTimelineDatabase.THREAD_ID + " = " + threadId + " " +
+           "ORDER BY t." + MessageTimelineDatabase.DATE_RECEIVED + " DESC, t." + MessageTimelineDatabase.TRANSPORT + " DESC, t." + MessageTimelineDatabase.MESSAGE_ID + " DESC LIMIT 1)";
+  }
+
+  private static String isNewest(String row) {
+    return isNewest(row + "." + MessageTimelineDatabase.THREAD_ID, row + "." + MessageTimelineDatabase.DATE_RECEIVED,
+                    row + "." + MessageTimelineDatabase.TRANSPORT, row + "." + MessageTimelineDatabase.MESSAGE_ID);
+  }
+
+  private static String isNewest(String threadId, String date, String transport, String messageId) {
+    return "NOT EXISTS (SELECT 1 FROM " + TIMELINE + " AS n WHERE n." + MessageTimelineDatabase.THREAD_ID + " = " + threadId + " " +
+           "AND n." + MessageTimelineDatabase.DATE_RECEIVED + " >= " + date + " AND (n." + MessageTimelineDatabase.DATE_RECEIVED + " > " + date + " " +
+           "OR n." + MessageTimelineDatabase.TRANSPORT + " > " + transport + " " +
+           "OR (n." + MessageTimelineDatabase.TRANSPORT + " = " + transport + " AND n." + MessageTimelineDatabase.MESSAGE_ID + " > " + messageId + ")))";
+  }
+}
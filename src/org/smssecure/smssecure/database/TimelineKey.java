@@ -0,0 +1,90 @@
+package org.smssecure.smssecure.database;
+
+import android.support.annotation.NonNull;
+
+/**
+ * The position of a message in its conversation.  Messages are ordered by
+ * received date, then transport, then id, which is unique and stable, so a
+ * key can bound a page of a conversation without an offset.
+ */
+public class TimelineKey {
+
+  private final long   dateReceived;
+  private final String transport;
+  private final long   messageId;
+
+  public TimelineKey(long dateReceived, @NonNull String transport, long messageId) {
+    this.dateReceived = dateReceived;
+    this.transport    = transport;
+    this.messageId    = messageId;
+  }
+
+  public long getDateReceived() {
+    return dateReceived;
+  }
+
+  public @NonNull String getTransport() {
+    return transport;
+  }
+
+  public long getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * @return a selection matching keys at or before this one.  It takes the
+   *         arguments from {@link #getSelectionArgs()}.
+   */
+  String getOlderOrEqualSelection(String dateColumn, String transportColumn, String idColumn) {
+    return getSelection(dateColumn, transportColumn, idColumn, "<", "<=");
+  }
+
+  /**
+   * @return a selection matching keys before this one.  It takes the
+   *         arguments from {@link #getSelectionArgs()}.
+   */
+  String getOlderSelection(String dateColumn, String transportColumn, String idColumn) {
+    return getSelection(dateColumn, transportColumn, idColumn, "<", "<");
+  }
+
+  /**
+   * @return a selection matching keys after this one.  It takes the
+   *         arguments from {@link #getSelectionArgs()}.
+   */
+  String getNewerSelection(String dateColumn, String transportColumn, String idColumn) {
+    return getSelection(dateColumn, transportColumn, idColumn, ">", ">");
+  }
+
+  String[] getSelectionArgs() {
+    String date = String.valueOf(dateReceived);
+    String id   = String.valueOf(messageId);
+
+    return new String[] {date, date, date, transport, transport, id};
+  }
+
+  private static String getSelection(String date, String transport, String id, String strict, String last) {
+    return date + " " + strict + "= ? AND (" +
+           date + " " + strict + " ? OR (" + date + " = ? AND (" +
+           transport + " " + strict + " ? OR (" + transport + " = ? AND " + id + " " + last + " ?))))";
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof TimelineKey)) return false;
+
+    TimelineKey that = (TimelineKey) other;
+    return this.dateReceived == that.dateReceived &&
+           this.transport.equals(that.transport)  &&
+           this.messageId == that.messageId;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (dateReceived ^ (dateReceived >>> 32)) ^ transport.hashCode() ^ (int) messageId;
+  }
+
+  @Override
+  public String toString() {
+    return transport + ":" + messageId + "@" + dateReceived;
+  }
+}
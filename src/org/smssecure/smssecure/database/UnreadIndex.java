@@ -0,0 +1,132 @@
+package org.smssecure.smssecure.database;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A journal of changes to unread, unnotified messages since it was last read.
+ *
+ * The SMS, MMS and thread tables record every write that can add, change or
+ * remove an unread message here, and the notifier takes the accumulated
+ * {@link Delta} to refresh only what changed instead of re-reading every
+ * unread message.  Entries only say where to look; the rows are always
+ * re-read from the database, so the order in which changes were recorded
+ * does not matter.
+ */
+public class UnreadIndex {
+
+  private static final UnreadIndex instance = new UnreadIndex();
+
+  private Set<Long> smsMessages    = new HashSet<>();
+  private Set<Long> mmsMessages    = new HashSet<>();
+  private Set<Long> changedThreads = new HashSet<>();
+  private Set<Long> readThreads    = new HashSet<>();
+  private boolean   reset          = true;
+
+  public static UnreadIndex getInstance() {
+    return instance;
+  }
+
+  synchronized void onSmsMessageChanged(long messageId) {
+    if (!reset) smsMessages.add(messageId);
+  }
+
+  synchronized void onMmsMessageChanged(long messageId) {
+    if (!reset) mmsMessages.add(messageId);
+  }
+
+  synchronized void onThreadChanged(long threadId) {
+    if (!reset) changedThreads.add(threadId);
+  }
+
+  synchronized void onThreadsChanged(Set<Long> threadIds) {
+    if (!reset) changedThreads.addAll(threadIds);
+  }
+
+  synchronized void onThreadRead(long threadId) {
+    if (!reset) readThreads.add(threadId);
+  }
+
+  /**
+   * Forces the next reader to rebuild from the database.
+   */
+  public synchronized void reset() {
+    reset = true;
+    smsMessages.clear();
+    mmsMessages.clear();
+    changedThreads.clear();
+    readThreads.clear();
+  }
+
+  public synchronized @NonNull Delta takeDelta() {
+    Delta delta = new Delta(reset, smsMessages, mmsMessages, changedThreads, readThreads);
+
+    reset          = false;
+    smsMessages    = new HashSet<>();
+    mmsMessages    = new HashSet<>();
+    changedThreads = new HashSet<>();
+    readThreads    = new HashSet<>();
+
+    return delta;
+  }
+
+  public static class Delta {
+    private final boolean   reset;
+    private final Set<Long> smsMessages;
+    private final Set<Long> mmsMessages;
+    private final Set<Long> changedThreads;
+    private final Set<Long> readThreads;
+
+    private Delta(boolean reset, Set<Long> smsMessages, Set<Long> mmsMessages,
+                  Set<Long> changedThreads, Set<Long> readThreads)
+    {
+      this.reset          = reset;
+      this.smsMessages    = Collections.unmodifiableSet(smsMessages);
+      this.mmsMessages    = Collections.unmodifiableSet(mmsMessages);
+      this.changedThreads = Collections.unmodifiableSet(changedThreads);
+      this.readThreads    = Collections.unmodifiableSet(readThreads);
+    }
+
+    /**
+     * @return true if every unread message must be re-read.
+     */
+    public boolean isReset() {
+      return reset;
+    }
+
+    public boolean isEmpty() {
+      return !reset && smsMessages.isEmpty() && mmsMessages.isEmpty() &&
+             changedThreads.isEmpty() && readThreads.isEmpty();
+    }
+
+    public int size() {
+      return smsMessages.size() + mmsMessages.size() + changedThreads.size() + readThreads.size();
+    }
+
+    public Set<Long> getSmsMessages() {
+      return smsMessages;
+    }
+
+    public Set<Long> getMmsMessages() {
+      return mmsMessages;
+    }
+
+    /**
+     * @return threads whose unread messages must all be re-read.
+     */
+    public Set<Long> getChangedThreads() {
+      return changedThreads;
+    }
+
+    /**
+     * @return threads that no longer have any unread messages, unless they are
+     *         also listed as changed or contain a changed message.
+     */
+    public Set<Long> getReadThreads() {
+      return readThreads;
+    }
+  }
+}
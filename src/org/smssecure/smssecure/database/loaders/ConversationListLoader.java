@@ -6,22 +6,27 @@ import android.database.MatrixCursor;
 import android.database.MergeCursor;
 
 import org.smssecure.smssecure.contacts.ContactAccessor;
+import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.ThreadDatabase;
 import org.smssecure.smssecure.util.AbstractCursorLoader;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 public class ConversationListLoader extends AbstractCursorLoader {
 
+  private final MasterSecret masterSecret;
   private final String filter;
   private final boolean archived;
 
-  public ConversationListLoader(Context context, String filter, boolean archived) {
+  public ConversationListLoader(Context context, MasterSecret masterSecret, String filter, boolean archived) {
     super(context);
-    this.filter   = filter;
-    this.archived = archived;
+    this.masterSecret = masterSecret;
+    this.filter       = filter;
+    this.archived     = archived;
   }
 
   @Override
@@ -60,7 +65,10 @@ public class ConversationListLoader extends AbstractCursorLoader {
   }
 
   private Cursor getFilteredConversationList(String filter) {
-    List<String> numbers = ContactAccessor.getInstance().getNumbersForThreadSearchFilter(context, filter);
-    return DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(numbers);
+    List<String> numbers   = ContactAccessor.getInstance().getNumbersForThreadSearchFilter(context, filter);
+    Set<Long>    threadIds = masterSecret == null ? Collections.<Long>emptySet()
+                             : DatabaseFactory.getSearchIndexDatabase(context).getMatchingThreads(masterSecret, filter);
+
+    return DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(numbers, threadIds);
   }
 }
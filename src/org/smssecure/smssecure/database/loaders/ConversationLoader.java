@@ -2,36 +2,103 @@ package org.smssecure.smssecure.database.loaders;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
+import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.MmsSmsDatabase;
+import org.smssecure.smssecure.database.SearchIndexDatabase.SearchResult;
+import org.smssecure.smssecure.database.TimelineKey;
 import org.smssecure.smssecure.util.AbstractCursorLoader;
 
+import java.util.Collections;
+import java.util.List;
+
 public class ConversationLoader extends AbstractCursorLoader {
-  private final long threadId;
-  private       long limit;
-  private       long lastSeen;
 
-  public ConversationLoader(Context context, long threadId, long limit, long lastSeen) {
-    super(context);
-    this.threadId = threadId;
-    this.limit    = limit;
-    this.lastSeen = lastSeen;
+  public enum Move {
+    RELOAD, NEWEST, OLDER, NEWER, UNREAD, MATCH
   }
 
-  public boolean hasLimit() {
-    return limit > 0;
+  private final @Nullable MasterSecret       masterSecret;
+  private final           long               threadId;
+  private final @Nullable String             query;
+  private                 long               lastSeen;
+  private                 Move               move;
+  private volatile        ConversationWindow window;
+
+  public ConversationLoader(Context context, @Nullable MasterSecret masterSecret, long threadId, long lastSeen,
+                            @Nullable ConversationWindow window, @NonNull Move move, @Nullable String query)
+  {
+    super(context);
+    this.masterSecret = masterSecret;
+    this.threadId     = threadId;
+    this.lastSeen     = lastSeen;
+    this.window       = window;
+    this.move         = move;
+    this.query        = query;
   }
 
   public long getLastSeen() {
     return lastSeen;
   }
 
+  /**
+   * @return the window of the last loaded cursor.
+   */
+  public ConversationWindow getWindow() {
+    return window;
+  }
+
   @Override
   public Cursor getCursor() {
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+
     if (lastSeen == -1) {
       this.lastSeen = DatabaseFactory.getThreadDatabase(context).getLastSeen(threadId);
     }
 
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, limit);
+    ConversationWindow resolved = resolveWindow(database);
+
+    this.window = resolved;
+    this.move   = Move.RELOAD;
+
+    return database.getConversationWindow(threadId, resolved.getNewest(), resolved.getSize());
+  }
+
+  private @NonNull ConversationWindow resolveWindow(@NonNull MmsSmsDatabase database) {
+    if (window == null && (move == Move.RELOAD || move == Move.OLDER || move == Move.NEWER)) {
+      move = Move.UNREAD;
+    }
+
+    switch (move) {
+      case OLDER:  return window.older(database, threadId);
+      case NEWER:  return window.newer(database, threadId);
+      case NEWEST: return ConversationWindow.atNewest();
+      case UNREAD: return getUnreadWindow(database);
+      case MATCH:  return getMatchWindow(database);
+      default:     return window.reloaded();
+    }
+  }
+
+  private @NonNull ConversationWindow getUnreadWindow(@NonNull MmsSmsDatabase database) {
+    TimelineKey firstUnread = lastSeen > 0 ? database.getFirstKeyAfter(threadId, lastSeen) : null;
+
+    if (firstUnread == null) return ConversationWindow.atNewest();
+    else                     return ConversationWindow.around(database, threadId, firstUnread);
+  }
+
+  /**
+   * Opens the conversation at its newest message matching the search query,
+   * or at the first unread message if nothing in it matches.
+   */
+  private @NonNull ConversationWindow getMatchWindow(@NonNull MmsSmsDatabase database) {
+    List<SearchResult> results = masterSecret != null && query != null
+                                 ? DatabaseFactory.getSearchIndexDatabase(context).search(masterSecret, query, threadId, null, 1)
+                                 : Collections.<SearchResult>emptyList();
+
+    if (results.isEmpty()) return getUnreadWindow(database);
+    else                   return ConversationWindow.around(database, threadId, results.get(0).getKey());
   }
 }
@@ -0,0 +1,126 @@
+package org.smssecure.smssecure.database.loaders;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.smssecure.smssecure.database.MmsSmsDatabase;
+import org.smssecure.smssecure.database.TimelineKey;
+
+import java.util.List;
+
+/**
+ * A contiguous range of a conversation, newest first, as loaded by
+ * {@link ConversationLoader}.
+ *
+ * A window is bounded by the key of its newest message, or follows the
+ * newest message of the thread when that key is null, and by a row count.
+ * Windows move a page at a time and never grow past {@link #MAX_SIZE}, so
+ * loading and reloading one costs the same however long the thread is.
+ */
+public class ConversationWindow {
+
+  public static final int PAGE_SIZE    = 100;
+  public static final int MAX_SIZE     = 5 * PAGE_SIZE;
+  public static final int INITIAL_SIZE = 2 * PAGE_SIZE;
+
+  private final @Nullable TimelineKey newest;
+  private final int                   size;
+  private final int                   shift;
+  private final int                   targetPosition;
+
+  ConversationWindow(@Nullable TimelineKey newest, int size, int shift, int targetPosition) {
+    this.newest         = newest;
+    this.size           = size;
+    this.shift          = shift;
+    this.targetPosition = targetPosition;
+  }
+
+  public static @NonNull ConversationWindow atNewest() {
+    return new ConversationWindow(null, INITIAL_SIZE, 0, 0);
+  }
+
+  /**
+   * @return a window with the given message in its middle, or following the
+   *         newest message when fewer than a page of newer messages exist.
+   */
+  public static @NonNull ConversationWindow around(@NonNull MmsSmsDatabase database, long threadId,
+                                                   @NonNull TimelineKey key)
+  {
+    List<TimelineKey> newer = database.getKeysAfter(threadId, key, PAGE_SIZE + 1);
+
+    if (newer.size() <= PAGE_SIZE) {
+      return new ConversationWindow(null, Math.max(INITIAL_SIZE, newer.size() + 1 + PAGE_SIZE), 0, newer.size());
+    } else {
+      return new ConversationWindow(newer.get(PAGE_SIZE - 1), 2 * PAGE_SIZE + 1, 0, PAGE_SIZE);
+    }
+  }
+
+  /**
+   * @return this window extended by a page of older messages, evicting the
+   *         newest ones beyond {@link #MAX_SIZE}.
+   */
+  public @NonNull ConversationWindow older(@NonNull MmsSmsDatabase database, long threadId) {
+    int extended = size + PAGE_SIZE;
+
+    if (extended <= MAX_SIZE) {
+      return new ConversationWindow(newest, extended, 0, -1);
+    }
+
+    int               evicted = extended - MAX_SIZE;
+    List<TimelineKey> keys    = database.getKeysFrom(threadId, newest, evicted + 1);
+
+    if (keys.size() <= evicted) return reloaded();
+    else                        return new ConversationWindow(keys.get(evicted), MAX_SIZE, -evicted, -1);
+  }
+
+  /**
+   * @return this window extended by a page of newer messages, evicting the
+   *         oldest ones beyond {@link #MAX_SIZE}.
+   */
+  public @NonNull ConversationWindow newer(@NonNull MmsSmsDatabase database, long threadId) {
+    if (newest == null) return reloaded();
+
+    List<TimelineKey> keys = database.getKeysAfter(threadId, newest, PAGE_SIZE + 1);
+
+    if (keys.size() <= PAGE_SIZE) {
+      return new ConversationWindow(null, Math.min(size + keys.size(), MAX_SIZE), keys.size(), -1);
+    } else {
+      return new ConversationWindow(keys.get(PAGE_SIZE - 1), Math.min(size + PAGE_SIZE, MAX_SIZE), PAGE_SIZE, -1);
+    }
+  }
+
+  /**
+   * @return the same range, for reloading after the conversation changed.
+   */
+  public @NonNull ConversationWindow reloaded() {
+    if (shift == 0 && targetPosition == -1) return this;
+    return new ConversationWindow(newest, size, 0, -1);
+  }
+
+  public @Nullable TimelineKey getNewest() {
+    return newest;
+  }
+
+  public boolean isAtNewest() {
+    return newest == null;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return how many rows were added, or removed if negative, at the newest
+   *         end compared to the window this one was moved from.
+   */
+  public int getShift() {
+    return shift;
+  }
+
+  /**
+   * @return the position of the message this window was opened at, or -1.
+   */
+  public int getTargetPosition() {
+    return targetPosition;
+  }
+}
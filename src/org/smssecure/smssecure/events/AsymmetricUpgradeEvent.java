@@ -0,0 +1,16 @@
+package org.smssecure.smssecure.events;
+
+public class AsymmetricUpgradeEvent {
+
+  public final int total;
+  public final int progress;
+
+  public AsymmetricUpgradeEvent(int total, int progress) {
+    this.total    = total;
+    this.progress = progress;
+  }
+
+  public boolean isComplete() {
+    return progress >= total;
+  }
+}
@@ -0,0 +1,171 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import org.greenrobot.eventbus.EventBus;
+import org.smssecure.smssecure.crypto.AsymmetricMasterCipher;
+import org.smssecure.smssecure.crypto.MasterCipherPool;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.crypto.MasterSecretUtil;
+import org.smssecure.smssecure.crypto.SearchTokenizer;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.EncryptingSmsDatabase;
+import org.smssecure.smssecure.database.EncryptingSmsDatabase.UpgradedBody;
+import org.smssecure.smssecure.database.SmsDatabase;
+import org.smssecure.smssecure.events.AsymmetricUpgradeEvent;
+import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
+import org.smssecure.smssecure.service.KeyCachingService;
+import org.whispersystems.jobqueue.JobParameters;
+import org.whispersystems.libsignal.InvalidMessageException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts every message that was stored with the local asymmetric key while
+ * the app was locked to regular symmetric encryption, in bulk, right after
+ * unlock.
+ *
+ * Rows are streamed in id order and batches are decrypted across all cores,
+ * then written back in a single transaction per batch.  Each batch commits on
+ * its own and only asymmetric rows are ever selected, so if the app locks
+ * again part way through, the job stops and simply picks up the remaining
+ * rows on the next unlock.
+ */
+@Lane(JobLane.MAINTENANCE)
+public class AsymmetricUpgradeJob extends MasterSecretJob {
+
+  private static final String TAG = AsymmetricUpgradeJob.class.getSimpleName();
+
+  private static final int BATCH_SIZE   = 100;
+  private static final int THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+  public AsymmetricUpgradeJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .withGroupId(AsymmetricUpgradeJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  public void onRun(MasterSecret masterSecret) throws RequirementNotMetException {
+    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+    int                   total    = database.getAsymmetricMessageCount();
+
+    if (total == 0) return;
+
+    Log.w(TAG, "Upgrading " + total + " asymmetric messages...");
+
+    AsymmetricMasterCipher asymmetricCipher = new AsymmetricMasterCipher(MasterSecretUtil.getAsymmetricMasterSecret(context, masterSecret));
+    SearchTokenizer        tokenizer        = new SearchTokenizer(masterSecret);
+    ExecutorService        executor         = Executors.newFixedThreadPool(THREAD_COUNT);
+    int                    progress         = 0;
+    long                   lastId           = 0;
+
+    try {
+      while (true) {
+        if (KeyCachingService.getMasterSecret(context) == null) {
+          Log.w(TAG, "Locked after " + progress + " of " + total + " messages, pausing.");
+          throw new RequirementNotMetException();
+        }
+
+        List<Future<UpgradedBody>> results = new LinkedList<>();
+        Cursor                     cursor  = database.getAsymmetricMessages(lastId, BATCH_SIZE);
+
+        try {
+          while (cursor != null && cursor.moveToNext()) {
+            long   messageId = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
+            String body      = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
+
+            results.add(executor.submit(new UpgradeTask(masterSecret, asymmetricCipher, messageId, body)));
+            lastId = messageId;
+          }
+        } finally {
+          if (cursor != null) cursor.close();
+        }
+
+        if (results.isEmpty()) break;
+
+        List<UpgradedBody> bodies = new ArrayList<>(results.size());
+
+        for (Future<UpgradedBody> result : results) {
+          UpgradedBody body = getResult(result);
+          if (body != null) bodies.add(body);
+        }
+
+        database.upgradeAsymmetricMessages(tokenizer, bodies);
+
+        progress = Math.min(total, progress + results.size());
+        EventBus.getDefault().postSticky(new AsymmetricUpgradeEvent(total, progress));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    EventBus.getDefault().postSticky(new AsymmetricUpgradeEvent(total, total));
+    Log.w(TAG, "Asymmetric upgrade complete.");
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Asymmetric upgrade canceled.");
+  }
+
+  private UpgradedBody getResult(Future<UpgradedBody> result) {
+    try {
+      return result.get();
+    } catch (InterruptedException | ExecutionException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  private static class UpgradeTask implements Callable<UpgradedBody> {
+
+    private final MasterSecret           masterSecret;
+    private final AsymmetricMasterCipher asymmetricCipher;
+    private final long                   messageId;
+    private final String                 body;
+
+    private UpgradeTask(MasterSecret masterSecret, AsymmetricMasterCipher asymmetricCipher,
+                        long messageId, String body)
+    {
+      this.masterSecret     = masterSecret;
+      this.asymmetricCipher = asymmetricCipher;
+      this.messageId        = messageId;
+      this.body             = body;
+    }
+
+    @Override
+    public UpgradedBody call() {
+      if (body == null) return null;
+
+      try {
+        String plaintext  = asymmetricCipher.decryptBody(body);
+        String ciphertext = MasterCipherPool.get(masterSecret).encryptBody(plaintext);
+
+        return new UpgradedBody(messageId, ciphertext, plaintext);
+      } catch (InvalidMessageException | IOException e) {
+        Log.w(TAG, "Unable to upgrade message " + messageId, e);
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.smssecure.smssecure.database.AttachmentDatabase;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.jobs.persistence.JobRecord;
+import org.smssecure.smssecure.jobs.persistence.PersistentJob;
+import org.whispersystems.jobqueue.JobParameters;
+
+/**
+ * Unlinks the files of deleted attachments, a batch at a time, from the
+ * queue that deletions fill in their own transactions.
+ *
+ * The job is persisted and the queue lives in the database, so files left
+ * over when the process dies are reclaimed by the next run.
+ */
+@Lane(JobLane.MAINTENANCE)
+public class AttachmentReclaimJob extends ContextJob implements PersistentJob {
+
+  private static final String TAG = AttachmentReclaimJob.class.getSimpleName();
+
+  private static final int BATCH_SIZE = 100;
+
+  public AttachmentReclaimJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withPersistence()
+                                .withGroupId(AttachmentReclaimJob.class.getSimpleName())
+                                .create());
+  }
+
+  public AttachmentReclaimJob(Context context, JobRecord record) {
+    this(context);
+  }
+
+  @Override
+  public void writeTo(@NonNull JobRecord record) {}
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  protected void onRunJob() {
+    AttachmentDatabase database  = DatabaseFactory.getAttachmentDatabase(context);
+    int                reclaimed = 0;
+    int                count;
+
+    while ((count = database.reclaimDeletedFiles(BATCH_SIZE)) > 0) {
+      reclaimed += count;
+    }
+
+    if (reclaimed > 0) Log.w(TAG, "Reclaimed " + reclaimed + " attachment files.");
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Attachment reclaiming canceled.");
+  }
+}
@@ -2,6 +2,7 @@ package org.smssecure.smssecure.jobs;
 
 import android.content.Context;
 
+import org.smssecure.smssecure.ApplicationContext;
 import org.whispersystems.jobqueue.Job;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.dependencies.ContextDependent;
@@ -15,6 +16,26 @@ public abstract class ContextJob extends Job implements ContextDependent {
     this.context = context;
   }
 
+  /**
+   * Runs the job, reporting the run to the {@link JobDispatcher}.
+   */
+  @Override
+  public final void onRun() throws Exception {
+    JobDispatcher dispatcher = ApplicationContext.getInstance(context).getJobManager();
+    boolean       success    = false;
+
+    dispatcher.onJobStarted(this);
+
+    try {
+      onRunJob();
+      success = true;
+    } finally {
+      dispatcher.onJobFinished(this, success);
+    }
+  }
+
+  protected abstract void onRunJob() throws Exception;
+
   public void setContext(Context context) {
     this.context = context;
   }
@@ -1,9 +1,12 @@
 package org.smssecure.smssecure.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.jobs.persistence.JobRecord;
+import org.smssecure.smssecure.jobs.persistence.PersistentJob;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.util.dualsim.DualSimUtil;
 import org.smssecure.smssecure.util.dualsim.SubscriptionInfoCompat;
@@ -13,7 +16,8 @@ import org.whispersystems.jobqueue.JobParameters;
 
 import java.util.List;
 
-public class GenerateKeysJob extends MasterSecretJob {
+@Lane(JobLane.INBOUND)
+public class GenerateKeysJob extends MasterSecretJob implements PersistentJob {
   private static final String TAG = GenerateKeysJob.class.getSimpleName();
 
   private List<SubscriptionInfoCompat> activeSubscriptions;
@@ -27,6 +31,13 @@ public class GenerateKeysJob extends MasterSecretJob {
     this.activeSubscriptions = activeSubscriptions;
   }
 
+  public GenerateKeysJob(Context context, JobRecord record) {
+    this(context);
+  }
+
+  @Override
+  public void writeTo(@NonNull JobRecord record) {}
+
   @Override
   public void onAdded() {}
 
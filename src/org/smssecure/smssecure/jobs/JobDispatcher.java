@@ -0,0 +1,210 @@
+package org.smssecure.smssecure.jobs;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.smssecure.smssecure.ApplicationContext;
+import org.smssecure.smssecure.jobs.persistence.EncryptingJobSerializer;
+import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirementProvider;
+import org.smssecure.smssecure.jobs.requirements.MediaNetworkRequirementProvider;
+import org.smssecure.smssecure.jobs.requirements.ServiceRequirementProvider;
+import org.whispersystems.jobqueue.EncryptionKeys;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobManager;
+import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes each job to the {@link JobManager} of its {@link JobLane} and keeps
+ * queue depth and wait time statistics per lane, and per job class through
+ * {@link JobTelemetry}.
+ *
+ * Jobs report each run through {@link #onJobStarted(Job)} and
+ * {@link #onJobFinished(Job, boolean)}, which also moves the consumer thread
+ * to its lane's priority.
+ */
+public class JobDispatcher {
+
+  private static final String TAG = JobDispatcher.class.getSimpleName();
+
+  private static final long SLOW_WAIT_MILLIS = 1000;
+
+  private final Map<JobLane, JobManager>              managers                 = new EnumMap<>(JobLane.class);
+  private final Map<JobLane, LaneStats>               stats                    = new EnumMap<>(JobLane.class);
+  private final Map<Job, Long>                        addedTimes               = Collections.synchronizedMap(new WeakHashMap<Job, Long>());
+  private final Set<Job>                              startedJobs              = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Job, Boolean>()));
+  private final ThreadLocal<long[]>                   runStartTimes            = new ThreadLocal<>();
+  private final List<MediaNetworkRequirementProvider> mediaNetworkRequirements = new LinkedList<>();
+  private final JobTelemetry                          telemetry                = new JobTelemetry();
+
+  public JobDispatcher(@NonNull ApplicationContext context) {
+    for (JobLane lane : JobLane.values()) {
+      MediaNetworkRequirementProvider mediaNetworkRequirementProvider = new MediaNetworkRequirementProvider();
+
+      managers.put(lane, JobManager.newBuilder(context)
+                                   .withName(lane.getQueueName())
+                                   .withDependencyInjector(context)
+                                   .withJobSerializer(new EncryptingJobSerializer(context))
+                                   .withRequirementProviders(new MasterSecretRequirementProvider(context),
+                                                             new ServiceRequirementProvider(context),
+                                                             new NetworkRequirementProvider(context),
+                                                             mediaNetworkRequirementProvider)
+                                   .withConsumerThreads(lane.getConsumerThreads())
+                                   .build());
+
+      stats.put(lane, new LaneStats());
+      mediaNetworkRequirements.add(mediaNetworkRequirementProvider);
+    }
+  }
+
+  public void add(@NonNull Job job) {
+    JobLane lane = JobLane.forClass(job.getClass());
+
+    stats.get(lane).onAdded();
+    telemetry.onAdded(job.getClass());
+    addedTimes.put(job, System.currentTimeMillis());
+    managers.get(lane).add(job);
+  }
+
+  public void setEncryptionKeys(EncryptionKeys keys) {
+    for (JobManager manager : managers.values()) {
+      manager.setEncryptionKeys(keys);
+    }
+  }
+
+  public void notifyMediaControlEvent() {
+    for (MediaNetworkRequirementProvider provider : mediaNetworkRequirements) {
+      provider.notifyMediaControlEvent();
+    }
+  }
+
+  /**
+   * Called by a job on its consumer thread each time it starts to run.
+   */
+  public void onJobStarted(@NonNull Job job) {
+    JobLane lane      = JobLane.forClass(job.getClass());
+    Long    addedTime = addedTimes.remove(job);
+    boolean retry     = !startedJobs.add(job);
+    long    now       = System.currentTimeMillis();
+    long    waitTime  = addedTime != null ? now - addedTime : -1;
+
+    Process.setThreadPriority(lane.getThreadPriority());
+    getRunStartTime()[0] = now;
+    telemetry.onStarted(job.getClass(), waitTime, retry);
+
+    if (addedTime != null) {
+      stats.get(lane).onStarted(waitTime);
+
+      if (waitTime > SLOW_WAIT_MILLIS) {
+        Log.w(TAG, job.getClass().getSimpleName() + " waited " + waitTime + "ms in " + lane + ": " + stats.get(lane));
+      }
+    }
+  }
+
+  /**
+   * Called by a job on its consumer thread when a run returns or throws.
+   */
+  public void onJobFinished(@NonNull Job job, boolean success) {
+    long[] runStartTime = getRunStartTime();
+
+    if (runStartTime[0] != 0) {
+      telemetry.onFinished(job.getClass(), System.currentTimeMillis() - runStartTime[0], success);
+      runStartTime[0] = 0;
+    }
+  }
+
+  public @NonNull LaneStats getStats(@NonNull JobLane lane) {
+    return stats.get(lane);
+  }
+
+  public @NonNull JobTelemetry getTelemetry() {
+    return telemetry;
+  }
+
+  /**
+   * @return the lane and per job statistics as a plain text report.
+   */
+  public @NonNull String getReport() {
+    StringBuilder report = new StringBuilder();
+
+    for (JobLane lane : JobLane.values()) {
+      report.append(lane).append(": ").append(stats.get(lane)).append('\n');
+    }
+
+    return report.append('\n').append(telemetry.getReport()).toString();
+  }
+
+  private long[] getRunStartTime() {
+    long[] runStartTime = runStartTimes.get();
+
+    if (runStartTime == null) {
+      runStartTime = new long[1];
+      runStartTimes.set(runStartTime);
+    }
+
+    return runStartTime;
+  }
+
+  /**
+   * Counts the jobs added to a lane by this process.  Jobs restored from
+   * storage at startup are not counted.
+   */
+  public static class LaneStats {
+    private final AtomicInteger depth     = new AtomicInteger();
+    private final AtomicLong    started   = new AtomicLong();
+    private final AtomicLong    totalWait = new AtomicLong();
+    private final AtomicLong    maxWait   = new AtomicLong();
+
+    private void onAdded() {
+      depth.incrementAndGet();
+    }
+
+    private void onStarted(long waitTime) {
+      depth.decrementAndGet();
+      started.incrementAndGet();
+      totalWait.addAndGet(waitTime);
+
+      long max;
+
+      do {
+        max = maxWait.get();
+      } while (waitTime > max && !maxWait.compareAndSet(max, waitTime));
+    }
+
+    /**
+     * @return the number of jobs that were added but have not started yet.
+     */
+    public int getDepth() {
+      return depth.get();
+    }
+
+    public long getStartedCount() {
+      return started.get();
+    }
+
+    public long getAverageWaitMillis() {
+      long count = started.get();
+      return count == 0 ? 0 : totalWait.get() / count;
+    }
+
+    public long getMaxWaitMillis() {
+      return maxWait.get();
+    }
+
+    @Override
+    public String toString() {
+      return "depth: " + getDepth() + ", started: " + getStartedCount() +
+             ", average wait: " + getAverageWaitMillis() + "ms, max wait: " + getMaxWaitMillis() + "ms";
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package org.smssecure.smssecure.jobs;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+/**
+ * The priority classes that jobs are scheduled in, highest first.
+ *
+ * Every lane has its own queue and consumer threads, so a burst of downloads
+ * or maintenance can never occupy the threads an outgoing message needs.
+ * Lower lanes also run their consumers at a lower thread priority, so they
+ * yield the CPU to higher lanes whenever both have work.
+ *
+ * A job declares its lane with {@link Lane}; undeclared jobs are maintenance.
+ */
+public enum JobLane {
+
+  SEND       ("SilenceJobs",             2, Process.THREAD_PRIORITY_DEFAULT),
+  INBOUND    ("SilenceJobs-inbound",     2, Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE),
+  MAINTENANCE("SilenceJobs-maintenance", 1, Process.THREAD_PRIORITY_BACKGROUND);
+
+  private final String name;
+  private final int    consumerThreads;
+  private final int    threadPriority;
+
+  JobLane(String name, int consumerThreads, int threadPriority) {
+    this.name            = name;
+    this.consumerThreads = consumerThreads;
+    this.threadPriority  = threadPriority;
+  }
+
+  /**
+   * @return the name of the lane's queue.  The send lane keeps the name of the
+   *         original single queue, so jobs persisted by older versions still run.
+   */
+  public String getQueueName() {
+    return name;
+  }
+
+  public int getConsumerThreads() {
+    return consumerThreads;
+  }
+
+  public int getThreadPriority() {
+    return threadPriority;
+  }
+
+  public static @NonNull JobLane forClass(@NonNull Class<?> jobClass) {
+    Lane lane = jobClass.getAnnotation(Lane.class);
+    return lane == null ? MAINTENANCE : lane.value();
+  }
+}
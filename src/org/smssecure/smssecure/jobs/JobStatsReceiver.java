@@ -0,0 +1,29 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import org.smssecure.smssecure.ApplicationContext;
+
+/**
+ * Writes the job statistics report to the log, for example with
+ * <code>adb shell am broadcast -a org.smssecure.smssecure.jobs.DUMP_STATS</code>.
+ */
+public class JobStatsReceiver extends BroadcastReceiver {
+
+  private static final String TAG         = JobStatsReceiver.class.getSimpleName();
+  public static final  String DUMP_ACTION = "org.smssecure.smssecure.jobs.DUMP_STATS";
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    if (!DUMP_ACTION.equals(intent.getAction())) return;
+
+    String report = ApplicationContext.getInstance(context).getJobManager().getReport();
+
+    for (String line : report.split("\n")) {
+      Log.w(TAG, line);
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package org.smssecure.smssecure.jobs;
+
+import android.support.annotation.NonNull;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates job execution statistics per job class.
+ *
+ * Counters cover the life of the process, latencies cover the last one to
+ * two hours.  After the first job of a class, recording does not allocate.
+ */
+public class JobTelemetry {
+
+  private static final long WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final Map<Class<?>, JobStats> stats = new ConcurrentHashMap<>();
+
+  public void onAdded(@NonNull Class<?> jobClass) {
+    getStats(jobClass).added.incrementAndGet();
+  }
+
+  /**
+   * @param waitMillis time since the job was added, or -1 for jobs that were
+   *                   restored from storage.
+   */
+  public void onStarted(@NonNull Class<?> jobClass, long waitMillis, boolean retry) {
+    JobStats jobStats = getStats(jobClass);
+
+    jobStats.runs.incrementAndGet();
+
+    if (retry) {
+      jobStats.retries.incrementAndGet();
+    } else if (waitMillis >= 0) {
+      jobStats.started.incrementAndGet();
+      jobStats.waitLatency.record(waitMillis);
+    }
+  }
+
+  public void onFinished(@NonNull Class<?> jobClass, long runMillis, boolean success) {
+    JobStats jobStats = getStats(jobClass);
+
+    jobStats.runLatency.record(runMillis);
+    if (!success) jobStats.failures.incrementAndGet();
+  }
+
+  public @NonNull JobStats getStats(@NonNull Class<?> jobClass) {
+    JobStats jobStats = stats.get(jobClass);
+
+    if (jobStats == null) {
+      synchronized (stats) {
+        jobStats = stats.get(jobClass);
+
+        if (jobStats == null) {
+          jobStats = new JobStats();
+          stats.put(jobClass, jobStats);
+        }
+      }
+    }
+
+    return jobStats;
+  }
+
+  public @NonNull String getReport() {
+    Map<String, JobStats> sorted = new TreeMap<>();
+    StringBuilder         report = new StringBuilder();
+
+    for (Map.Entry<Class<?>, JobStats> entry : stats.entrySet()) {
+      sorted.put(entry.getKey().getSimpleName(), entry.getValue());
+    }
+
+    report.append("Job statistics (latencies over the last 1-2 hours, in ms)\n");
+
+    for (Map.Entry<String, JobStats> entry : sorted.entrySet()) {
+      report.append('\n').append(entry.getKey()).append('\n').append(entry.getValue());
+    }
+
+    return report.toString();
+  }
+
+  public static class JobStats {
+    private final AtomicLong       added       = new AtomicLong();
+    private final AtomicLong       started     = new AtomicLong();
+    private final AtomicLong       runs        = new AtomicLong();
+    private final AtomicLong       retries     = new AtomicLong();
+    private final AtomicLong       failures    = new AtomicLong();
+    private final LatencyHistogram waitLatency = new LatencyHistogram(WINDOW_MILLIS);
+    private final LatencyHistogram runLatency  = new LatencyHistogram(WINDOW_MILLIS);
+
+    /**
+     * @return jobs added by this process that have not started yet.
+     */
+    public long getDepth() {
+      return Math.max(0, added.get() - started.get());
+    }
+
+    public long getAddedCount() {
+      return added.get();
+    }
+
+    public long getRunCount() {
+      return runs.get();
+    }
+
+    public long getRetryCount() {
+      return retries.get();
+    }
+
+    public long getFailureCount() {
+      return failures.get();
+    }
+
+    /**
+     * @return the share of runs that threw, in percent.
+     */
+    public int getFailureRate() {
+      long count = runs.get();
+      return count == 0 ? 0 : (int) (failures.get() * 100 / count);
+    }
+
+    public @NonNull LatencyHistogram getWaitLatency() {
+      return waitLatency;
+    }
+
+    public @NonNull LatencyHistogram getRunLatency() {
+      return runLatency;
+    }
+
+    @Override
+    public String toString() {
+      return "  added: " + getAddedCount() + ", depth: " + getDepth() + ", runs: " + getRunCount() +
+             ", retries: " + getRetryCount() + ", failures: " + getFailureCount() +
+             " (" + getFailureRate() + "%)\n" +
+             "  wait: " + format(waitLatency) + "\n" +
+             "  run:  " + format(runLatency) + "\n";
+    }
+
+    private static String format(LatencyHistogram histogram) {
+      return "n=" + histogram.getCount() + " avg=" + histogram.getAverage() +
+             " p50=" + histogram.getPercentile(50) + " p90=" + histogram.getPercentile(90) +
+             " p99=" + histogram.getPercentile(99) + " max=" + histogram.getMax();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package org.smssecure.smssecure.jobs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in power-of-two millisecond buckets over a rolling window.
+ *
+ * Two windows are kept and the older one is cleared when the newer one has
+ * been open for a full window, so queries cover between one and two windows.
+ * Recording never allocates.
+ */
+public class LatencyHistogram {
+
+  static final int BUCKETS = 24;
+
+  private static final int COUNT = BUCKETS;
+  private static final int SUM   = BUCKETS + 1;
+  private static final int MAX   = BUCKETS + 2;
+  private static final int SLOTS = BUCKETS + 3;
+
+  private final long              windowMillis;
+  private final AtomicLongArray[] windows = {new AtomicLongArray(SLOTS), new AtomicLongArray(SLOTS)};
+
+  private volatile int  current;
+  private volatile long windowStart;
+
+  public LatencyHistogram(long windowMillis) {
+    this(windowMillis, System.currentTimeMillis());
+  }
+
+  LatencyHistogram(long windowMillis, long now) {
+    this.windowMillis = windowMillis;
+    this.windowStart  = now;
+  }
+
+  public void record(long latencyMillis) {
+    record(latencyMillis, System.currentTimeMillis());
+  }
+
+  void record(long latencyMillis, long now) {
+    if (latencyMillis < 0) latencyMillis = 0;
+
+    AtomicLongArray window = getWindow(now);
+    long            max;
+
+    window.incrementAndGet(bucketFor(latencyMillis));
+    window.incrementAndGet(COUNT);
+    window.addAndGet(SUM, latencyMillis);
+
+    do {
+      max = window.get(MAX);
+    } while (latencyMillis > max && !window.compareAndSet(MAX, max, latencyMillis));
+  }
+
+  public long getCount() {
+    return windows[0].get(COUNT) + windows[1].get(COUNT);
+  }
+
+  public long getAverage() {
+    long count = getCount();
+    return count == 0 ? 0 : (windows[0].get(SUM) + windows[1].get(SUM)) / count;
+  }
+
+  public long getMax() {
+    return Math.max(windows[0].get(MAX), windows[1].get(MAX));
+  }
+
+  /**
+   * @return the upper bound of the bucket holding the given percentile, in
+   *         milliseconds, capped at the largest latency seen.
+   */
+  public long getPercentile(int percentile) {
+    long count = getCount();
+
+    if (count == 0) return 0;
+
+    long target = (count * percentile + 99) / 100;
+    long seen   = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += windows[0].get(i) + windows[1].get(i);
+      if (seen >= target) return Math.min(upperBound(i), getMax());
+    }
+
+    return getMax();
+  }
+
+  private AtomicLongArray getWindow(long now) {
+    if (now - windowStart >= windowMillis) {
+      synchronized (this) {
+        if (now - windowStart >= windowMillis) {
+          int             next   = current ^ 1;
+          AtomicLongArray window = windows[next];
+
+          for (int i = 0; i < SLOTS; i++) window.set(i, 0);
+
+          if (now - windowStart >= 2 * windowMillis) {
+            for (int i = 0; i < SLOTS; i++) windows[current].set(i, 0);
+          }
+
+          windowStart = now;
+          current     = next;
+        }
+      }
+    }
+
+    return windows[current];
+  }
+
+  static int bucketFor(long latencyMillis) {
+    int bucket = 64 - Long.numberOfLeadingZeros(latencyMillis);
+    return Math.min(bucket, BUCKETS - 1);
+  }
+
+  private static long upperBound(int bucket) {
+    return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+  }
+}
@@ -13,7 +13,7 @@ public abstract class MasterSecretJob extends ContextJob {
   }
 
   @Override
-  public void onRun() throws Exception {
+  protected final void onRunJob() throws Exception {
     MasterSecret masterSecret = getMasterSecret();
     onRun(masterSecret);
   }
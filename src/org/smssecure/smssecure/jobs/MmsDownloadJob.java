@@ -4,6 +4,7 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
+import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.Pair;
 
@@ -22,6 +23,8 @@ import org.smssecure.smssecure.crypto.storage.SilenceSignalProtocolStore;
 import org.smssecure.smssecure.database.AttachmentDatabase;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.MmsDatabase;
+import org.smssecure.smssecure.jobs.persistence.JobRecord;
+import org.smssecure.smssecure.jobs.persistence.PersistentJob;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.jobs.requirements.MediaNetworkRequirement;
 import org.smssecure.smssecure.mms.ApnUnavailableException;
@@ -59,10 +62,15 @@ import java.util.concurrent.TimeUnit;
 
 import org.smssecure.smssecure.mms.MmsException;
 
-public class MmsDownloadJob extends MasterSecretJob {
+@Lane(JobLane.INBOUND)
+public class MmsDownloadJob extends MasterSecretJob implements PersistentJob {
 
   private static final String TAG = MmsDownloadJob.class.getSimpleName();
 
+  private static final int FIELD_MESSAGE_ID = 1;
+  private static final int FIELD_THREAD_ID  = 2;
+  private static final int FIELD_AUTOMATIC  = 3;
+
   private final long    messageId;
   private final long    threadId;
   private final boolean automatic;
@@ -73,7 +81,6 @@ public class MmsDownloadJob extends MasterSecretJob {
                                 .withRequirement(new MasterSecretRequirement(context))
                                 .withRequirement(new NetworkRequirement(context))
                                 .withRequirement(new MediaNetworkRequirement(context, messageId, automatic))
-                                .withGroupId("mms-operation")
                                 .withWakeLock(true, 30, TimeUnit.SECONDS)
                                 .create());
 
@@ -82,6 +89,18 @@ public class MmsDownloadJob extends MasterSecretJob {
     this.automatic = automatic;
   }
 
+  public MmsDownloadJob(Context context, JobRecord record) {
+    this(context, record.getLong(FIELD_MESSAGE_ID, -1), record.getLong(FIELD_THREAD_ID, -1),
+         record.getBoolean(FIELD_AUTOMATIC, false));
+  }
+
+  @Override
+  public void writeTo(@NonNull JobRecord record) {
+    record.putLong(FIELD_MESSAGE_ID, messageId);
+    record.putLong(FIELD_THREAD_ID, threadId);
+    record.putBoolean(FIELD_AUTOMATIC, automatic);
+  }
+
   @Override
   public void onAdded() {
     if (automatic && KeyCachingService.getMasterSecret(context) == null) {
@@ -1,6 +1,7 @@
 package org.smssecure.smssecure.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.Pair;
 
@@ -13,6 +14,8 @@ import org.smssecure.smssecure.ApplicationContext;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.MmsDatabase;
+import org.smssecure.smssecure.jobs.persistence.JobRecord;
+import org.smssecure.smssecure.jobs.persistence.PersistentJob;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.recipients.RecipientFactory;
 import org.smssecure.smssecure.recipients.Recipients;
@@ -22,19 +25,21 @@ import org.smssecure.smssecure.util.SilencePreferences;
 import org.smssecure.smssecure.util.Util;
 import org.whispersystems.jobqueue.JobParameters;
 
-public class MmsReceiveJob extends ContextJob {
+@Lane(JobLane.INBOUND)
+public class MmsReceiveJob extends ContextJob implements PersistentJob {
 
   private static final long serialVersionUID = 1L;
 
   private static final String TAG = MmsReceiveJob.class.getSimpleName();
 
+  private static final int FIELD_DATA            = 1;
+  private static final int FIELD_SUBSCRIPTION_ID = 2;
+
   private final byte[] data;
   private final int    subscriptionId;
 
   public MmsReceiveJob(Context context, byte[] data, int subscriptionId) {
-    super(context, JobParameters.newBuilder()
-                                .withWakeLock(true)
-                                .withPersistence().create());
+    super(context, constructParameters());
 
     Log.w(TAG, "subscriptionId: " + subscriptionId);
     Log.w(TAG, "Found app subscription ID: " + DualSimUtil.getSubscriptionIdFromDeviceSubscriptionId(context, subscriptionId));
@@ -43,13 +48,26 @@ public class MmsReceiveJob extends ContextJob {
     this.subscriptionId = DualSimUtil.getSubscriptionIdFromDeviceSubscriptionId(context, subscriptionId);
   }
 
+  public MmsReceiveJob(Context context, JobRecord record) {
+    super(context, constructParameters());
+
+    this.data           = record.getBytes(FIELD_DATA);
+    this.subscriptionId = record.getInt(FIELD_SUBSCRIPTION_ID, -1);
+  }
+
+  @Override
+  public void writeTo(@NonNull JobRecord record) {
+    record.putBytes(FIELD_DATA, data);
+    record.putInt(FIELD_SUBSCRIPTION_ID, subscriptionId);
+  }
+
   @Override
   public void onAdded() {
 
   }
 
   @Override
-  public void onRun() {
+  protected void onRunJob() {
     if (data == null) {
       Log.w(TAG, "Received NULL pdu, ignoring...");
       return;
@@ -109,4 +127,11 @@ public class MmsReceiveJob extends ContextJob {
   private boolean isNotification(GenericPdu pdu) {
     return pdu != null && pdu.getMessageType() == PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND;
   }
+
+  private static JobParameters constructParameters() {
+    return JobParameters.newBuilder()
+                        .withWakeLock(true)
+                        .withPersistence()
+                        .create();
+  }
 }
@@ -1,6 +1,7 @@
 package org.smssecure.smssecure.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
@@ -26,6 +27,8 @@ import org.smssecure.smssecure.crypto.storage.SilenceSignalProtocolStore;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.MmsDatabase;
 import org.smssecure.smssecure.database.NoSuchMessageException;
+import org.smssecure.smssecure.jobs.persistence.JobRecord;
+import org.smssecure.smssecure.jobs.persistence.PersistentJob;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.mms.CompatMmsConnection;
 import org.smssecure.smssecure.mms.MediaConstraints;
@@ -55,17 +58,18 @@ import java.util.List;
 
 import org.smssecure.smssecure.mms.MmsException;
 
-public class MmsSendJob extends SendJob {
+public class MmsSendJob extends SendJob implements PersistentJob {
 
   private static final long serialVersionUID = 0L;
 
   private static final String TAG = MmsSendJob.class.getSimpleName();
 
+  private static final int FIELD_MESSAGE_ID = 1;
+
   private final long messageId;
 
   public MmsSendJob(Context context, long messageId) {
     super(context, JobParameters.newBuilder()
-                                .withGroupId("mms-operation")
                                 .withRequirement(new NetworkRequirement(context))
                                 .withRequirement(new MasterSecretRequirement(context))
                                 .withPersistence()
@@ -74,6 +78,15 @@ public class MmsSendJob extends SendJob {
     this.messageId = messageId;
   }
 
+  public MmsSendJob(Context context, JobRecord record) {
+    this(context, record.getLong(FIELD_MESSAGE_ID, -1));
+  }
+
+  @Override
+  public void writeTo(@NonNull JobRecord record) {
+    record.putLong(FIELD_MESSAGE_ID, messageId);
+  }
+
   @Override
   public void onAdded() {
 //    MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
@@ -0,0 +1,103 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterCipherPool;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.crypto.SearchTokenizer;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.SearchIndexDatabase;
+import org.smssecure.smssecure.database.SearchIndexDatabase.Entry;
+import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
+import org.smssecure.smssecure.service.KeyCachingService;
+import org.whispersystems.jobqueue.JobParameters;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Indexes every message that is missing from the search index, then purges
+ * the postings of deleted messages, after unlock.
+ *
+ * Messages are read in timeline order and indexed a batch per transaction,
+ * so if the app locks again part way through, the job stops and the next
+ * unlock picks up the messages that are still missing.
+ */
+@Lane(JobLane.MAINTENANCE)
+public class SearchIndexJob extends MasterSecretJob {
+
+  private static final String TAG = SearchIndexJob.class.getSimpleName();
+
+  private static final int BATCH_SIZE = 200;
+
+  public SearchIndexJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .withGroupId(SearchIndexJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  public void onRun(MasterSecret masterSecret) throws RequirementNotMetException {
+    SearchIndexDatabase database  = DatabaseFactory.getSearchIndexDatabase(context);
+    SearchTokenizer     tokenizer = new SearchTokenizer(masterSecret);
+    int                 indexed   = 0;
+    long                lastId    = 0;
+
+    while (true) {
+      if (KeyCachingService.getMasterSecret(context) == null) {
+        Log.w(TAG, "Locked after indexing " + indexed + " messages, pausing.");
+        throw new RequirementNotMetException();
+      }
+
+      List<Entry> entries = database.getUnindexedMessages(lastId, BATCH_SIZE);
+
+      if (entries.isEmpty()) break;
+
+      database.indexMissing(tokenizer, getPlaintextEntries(masterSecret, entries));
+
+      lastId   = entries.get(entries.size() - 1).getTimelineId();
+      indexed += entries.size();
+    }
+
+    if (indexed > 0) Log.w(TAG, "Indexed " + indexed + " messages.");
+
+    database.purgeDeletedPostings();
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Search indexing canceled.");
+  }
+
+  private List<Entry> getPlaintextEntries(MasterSecret masterSecret, List<Entry> entries) {
+    List<String> ciphertexts = new LinkedList<>();
+
+    for (Entry entry : entries) {
+      if (entry.isEncrypted()) ciphertexts.add(entry.getBody());
+    }
+
+    if (ciphertexts.isEmpty()) return entries;
+
+    List<String> plaintexts = MasterCipherPool.get(masterSecret).decryptBodies(ciphertexts);
+    List<Entry>  results    = new ArrayList<>(entries.size());
+    int          index      = 0;
+
+    for (Entry entry : entries) {
+      if (entry.isEncrypted()) results.add(entry.withPlaintext(plaintexts.get(index++)));
+      else                     results.add(entry);
+    }
+
+    return results;
+  }
+}
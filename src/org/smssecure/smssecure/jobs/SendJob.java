@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
+@Lane(JobLane.SEND)
 public abstract class SendJob extends MasterSecretJob {
 
   private final static String TAG = SendJob.class.getSimpleName();
@@ -0,0 +1,241 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.smssecure.smssecure.ApplicationContext;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.EncryptingSmsDatabase;
+import org.smssecure.smssecure.database.SmsDatabase;
+import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.jobs.persistence.JobRecord;
+import org.smssecure.smssecure.jobs.persistence.PersistentJob;
+import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
+import org.smssecure.smssecure.notifications.MessageNotifier;
+import org.smssecure.smssecure.service.KeyCachingService;
+import org.whispersystems.jobqueue.JobParameters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decrypts every remotely encrypted message that is waiting in the SMS table,
+ * in bulk, instead of through one persisted {@link SmsDecryptJob} per message.
+ *
+ * Pending rows are grouped by sender into lanes.  Each lane is processed in
+ * arrival order on a single thread, so a session is only ever advanced by
+ * one message at a time.  Session decryption itself is serialized by
+ * libsignal's global session lock, so lanes do not decrypt in parallel; two
+ * threads only let one lane re-encrypt, store and index its plaintext while
+ * another holds the session lock.  The rows themselves are the queue, so a
+ * run that is interrupted by a lock simply resumes with whatever is still
+ * pending on the next unlock.
+ *
+ * {@link SmsReceiveJob} may decrypt a row while it is in a lane, so rows that
+ * are no longer pending are skipped, and failures are only recorded on rows
+ * that are still pending.
+ *
+ * Asymmetrically encrypted rows are left to their own {@link SmsDecryptJob}s
+ * and the {@link AsymmetricUpgradeJob}.
+ *
+ * At most one drain is queued per process.  A drain restored from storage
+ * after a restart counts as queued, and drains share a group id, so any
+ * that do overlap run one after the other and the later one finds nothing
+ * left to do.
+ */
+@Lane(JobLane.INBOUND)
+public class SmsDecryptBacklogJob extends MasterSecretJob implements PersistentJob {
+
+  private static final String TAG = SmsDecryptBacklogJob.class.getSimpleName();
+
+  private static final int THREAD_COUNT = 2;
+
+  private static final AtomicBoolean queued = new AtomicBoolean(false);
+
+  public SmsDecryptBacklogJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withPersistence()
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .withGroupId(SmsDecryptBacklogJob.class.getSimpleName())
+                                .create());
+  }
+
+  public SmsDecryptBacklogJob(Context context, JobRecord record) {
+    this(context);
+    queued.set(true);
+  }
+
+  /**
+   * Queues a drain unless one is already waiting to run.
+   */
+  public static void enqueue(Context context) {
+    if (queued.compareAndSet(false, true)) {
+      ApplicationContext.getInstance(context).getJobManager().add(new SmsDecryptBacklogJob(context));
+    }
+  }
+
+  @Override
+  public void writeTo(@NonNull JobRecord record) {}
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  public void onRun(MasterSecret masterSecret) throws RequirementNotMetException {
+    queued.set(false);
+
+    List<List<SmsMessageRecord>> lanes = getLanes(masterSecret);
+
+    if (lanes.isEmpty()) return;
+
+    long                  startTime = System.currentTimeMillis();
+    ExecutorService       executor  = Executors.newFixedThreadPool(Math.min(THREAD_COUNT, lanes.size()));
+    SmsDecryptor          decryptor = new SmsDecryptor(context, false);
+    AtomicInteger         failed    = new AtomicInteger();
+    List<Future<Integer>> results   = new LinkedList<>();
+
+    try {
+      for (List<SmsMessageRecord> lane : lanes) {
+        results.add(executor.submit(new LaneTask(masterSecret, decryptor, lane, failed)));
+      }
+
+      int processed = 0;
+
+      for (Future<Integer> result : results) {
+        processed += getResult(result);
+      }
+
+      Log.w(TAG, "Decrypted " + processed + " messages from " + lanes.size() + " senders in " +
+                 (System.currentTimeMillis() - startTime) + "ms, " + failed.get() + " failed");
+
+      if (processed > 0) {
+        MessageNotifier.updateNotification(context, masterSecret);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    if (KeyCachingService.getMasterSecret(context) == null) {
+      Log.w(TAG, "Locked during drain, pausing.");
+      queued.set(true);
+      throw new RequirementNotMetException();
+    }
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Decrypt backlog canceled.");
+  }
+
+  private List<List<SmsMessageRecord>> getLanes(MasterSecret masterSecret) {
+    Map<String, List<SmsMessageRecord>> lanes    = new HashMap<>();
+    EncryptingSmsDatabase               database = DatabaseFactory.getEncryptingSmsDatabase(context);
+    SmsDatabase.Reader                  reader   = database.getDecryptInProgressMessages(masterSecret);
+
+    try {
+      SmsMessageRecord record;
+
+      while ((record = reader.getNext()) != null) {
+        if (record.isAsymmetricEncryption()) continue;
+
+        String                 sender = record.getIndividualRecipient().getNumber();
+        List<SmsMessageRecord> lane   = lanes.get(sender);
+
+        if (lane == null) {
+          lane = new LinkedList<>();
+          lanes.put(sender, lane);
+        }
+
+        lane.add(record);
+      }
+    } finally {
+      reader.close();
+    }
+
+    List<List<SmsMessageRecord>> sorted = new ArrayList<>(lanes.values());
+
+    Collections.sort(sorted, new Comparator<List<SmsMessageRecord>>() {
+      @Override
+      public int compare(List<SmsMessageRecord> lhs, List<SmsMessageRecord> rhs) {
+        return rhs.size() - lhs.size();
+      }
+    });
+
+    return sorted;
+  }
+
+  private int getResult(Future<Integer> result) {
+    try {
+      return result.get();
+    } catch (InterruptedException | ExecutionException e) {
+      Log.w(TAG, e);
+      return 0;
+    }
+  }
+
+  private class LaneTask implements Callable<Integer> {
+
+    private final MasterSecret           masterSecret;
+    private final SmsDecryptor           decryptor;
+    private final List<SmsMessageRecord> records;
+    private final AtomicInteger          failed;
+
+    private LaneTask(MasterSecret masterSecret, SmsDecryptor decryptor,
+                     List<SmsMessageRecord> records, AtomicInteger failed)
+    {
+      this.masterSecret = masterSecret;
+      this.decryptor    = decryptor;
+      this.records      = records;
+      this.failed       = failed;
+    }
+
+    @Override
+    public Integer call() {
+      EncryptingSmsDatabase database  = DatabaseFactory.getEncryptingSmsDatabase(context);
+      int                   processed = 0;
+
+      for (SmsMessageRecord record : records) {
+        if (KeyCachingService.getMasterSecret(context) == null) break;
+        if (!database.isDecryptInProgress(record.getId()))      continue;
+
+        try {
+          if (decryptor.decrypt(masterSecret, record)) processed++;
+          else                                         failed.incrementAndGet();
+        } catch (RuntimeException e) {
+          Log.w(TAG, "Failed to decrypt message " + record.getId(), e);
+          markAsDecryptFailed(record.getId());
+          failed.incrementAndGet();
+        }
+      }
+
+      return processed;
+    }
+
+    private void markAsDecryptFailed(long messageId) {
+      try {
+        DatabaseFactory.getEncryptingSmsDatabase(context).markPendingAsDecryptFailed(messageId);
+      } catch (RuntimeException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
+}
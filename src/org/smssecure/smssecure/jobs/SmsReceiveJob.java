@@ -1,6 +1,7 @@
 package org.smssecure.smssecure.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.telephony.SmsMessage;
 import android.util.Log;
 import android.util.Pair;
@@ -8,38 +9,51 @@ import android.util.Pair;
 import org.smssecure.smssecure.ApplicationContext;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.crypto.MasterSecretUtil;
+import org.smssecure.smssecure.crypto.SecurityEvent;
+import org.smssecure.smssecure.crypto.SmsCipher;
+import org.smssecure.smssecure.crypto.storage.SilenceSignalProtocolStore;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.EncryptingSmsDatabase;
+import org.smssecure.smssecure.database.MultipartFragmentDatabase;
+import org.smssecure.smssecure.jobs.persistence.JobRecord;
+import org.smssecure.smssecure.jobs.persistence.PersistentJob;
 import org.smssecure.smssecure.notifications.MessageNotifier;
-import org.smssecure.smssecure.protocol.WirePrefix;
 import org.smssecure.smssecure.recipients.RecipientFactory;
 import org.smssecure.smssecure.recipients.Recipients;
 import org.smssecure.smssecure.service.KeyCachingService;
+import org.smssecure.smssecure.sms.IncomingPreKeyBundleMessage;
 import org.smssecure.smssecure.sms.IncomingTextMessage;
 import org.smssecure.smssecure.sms.MultipartSmsMessageHandler;
 import org.smssecure.smssecure.util.dualsim.DualSimUtil;
 import org.whispersystems.jobqueue.JobParameters;
+import org.whispersystems.libsignal.DuplicateMessageException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.InvalidVersionException;
+import org.whispersystems.libsignal.LegacyMessageException;
+import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.UntrustedIdentityException;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.util.LinkedList;
 import java.util.List;
 
-public class SmsReceiveJob extends ContextJob {
+@Lane(JobLane.INBOUND)
+public class SmsReceiveJob extends ContextJob implements PersistentJob {
 
   private static final long serialVersionUID = 1L;
 
   private static final String TAG = SmsReceiveJob.class.getSimpleName();
 
-  private static MultipartSmsMessageHandler multipartMessageHandler = new MultipartSmsMessageHandler();
+  private static final int FIELD_PDU             = 1;
+  private static final int FIELD_SUBSCRIPTION_ID = 2;
+
+  private static MultipartSmsMessageHandler multipartMessageHandler;
 
   private final Object[] pdus;
   private final int      subscriptionId;
 
   public SmsReceiveJob(Context context, Object[] pdus, int subscriptionId) {
-    super(context, JobParameters.newBuilder()
-                                .withPersistence()
-                                .withWakeLock(true)
-                                .create());
+    super(context, constructParameters());
 
     Log.w(TAG, "subscriptionId: " + subscriptionId);
     Log.w(TAG, "Found app subscription ID: " + DualSimUtil.getSubscriptionIdFromDeviceSubscriptionId(context, subscriptionId));
@@ -48,19 +62,40 @@ public class SmsReceiveJob extends ContextJob {
     this.subscriptionId = DualSimUtil.getSubscriptionIdFromDeviceSubscriptionId(context, subscriptionId);
   }
 
+  public SmsReceiveJob(Context context, JobRecord record) {
+    super(context, constructParameters());
+
+    this.pdus           = record.getBytesList(FIELD_PDU).toArray();
+    this.subscriptionId = record.getInt(FIELD_SUBSCRIPTION_ID, -1);
+  }
+
+  @Override
+  public void writeTo(@NonNull JobRecord record) {
+    for (Object pdu : pdus) {
+      record.putBytes(FIELD_PDU, (byte[]) pdu);
+    }
+
+    record.putInt(FIELD_SUBSCRIPTION_ID, subscriptionId);
+  }
+
   @Override
   public void onAdded() {}
 
   @Override
-  public void onRun() {
+  protected void onRunJob() {
     MasterSecret masterSecret = KeyCachingService.getMasterSecret(context);
     Optional<IncomingTextMessage> message = assembleMessageFragments(pdus, subscriptionId, masterSecret);
 
     if (message.isPresent() && !isBlocked(message.get())) {
-      Pair<Long, Long> messageAndThreadId = storeMessage(message.get());
+      long             startTime          = System.currentTimeMillis();
+      Pair<Long, Long> messageAndThreadId = insertMessage(masterSecret, message.get());
+      boolean          decrypted          = decryptInProcess(masterSecret, message.get(), messageAndThreadId);
+
+      if (!decrypted) scheduleDecrypt(masterSecret, message.get(), messageAndThreadId.first);
 
       IncomingTextMessage incomingTextMessage = message.get();
-      if (incomingTextMessage.isReceivedWhenLocked() ||
+      if (decrypted                                  ||
+          incomingTextMessage.isReceivedWhenLocked() ||
          (!incomingTextMessage.isSecureMessage()     &&
           !incomingTextMessage.isKeyExchange()       &&
           !incomingTextMessage.isXmppExchange()))
@@ -68,6 +103,10 @@ public class SmsReceiveJob extends ContextJob {
         MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
       }
 
+      if (decrypted) {
+        Log.w(TAG, "Receive to notification: " + (System.currentTimeMillis() - startTime) + "ms (in process)");
+      }
+
       if (incomingTextMessage.getSender() != null) {
         Recipients recipients = RecipientFactory.getRecipientsFromString(context, incomingTextMessage.getSender(), false);
         DatabaseFactory.getRecipientPreferenceDatabase(context)
@@ -97,27 +136,72 @@ public class SmsReceiveJob extends ContextJob {
     return false;
   }
 
-  private Pair<Long, Long> storeMessage(IncomingTextMessage message) {
-    EncryptingSmsDatabase database     = DatabaseFactory.getEncryptingSmsDatabase(context);
-    MasterSecret          masterSecret = KeyCachingService.getMasterSecret(context);
+  /**
+   * Decrypts a secure message that was just stored as received, rewriting
+   * its row in place with the locally encrypted plaintext, which skips the
+   * persisted {@link SmsDecryptJob}.  The ciphertext is stored before the
+   * session advances, so if decryption fails the job path can still handle
+   * and record it exactly as before.  A running {@link SmsDecryptBacklogJob}
+   * may pick up the stored row first, in which case this decrypt fails as a
+   * duplicate and nothing is recorded here.
+   *
+   * @return true if the message was decrypted.
+   */
+  private boolean decryptInProcess(MasterSecret masterSecret, IncomingTextMessage message,
+                                   Pair<Long, Long> messageAndThreadId)
+  {
+    if (masterSecret == null || message.isReceivedWhenLocked()) return false;
+    if (!message.isSecureMessage() && !message.isPreKeyBundle()) return false;
+
+    try {
+      EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+      SmsCipher             cipher   = new SmsCipher(new SilenceSignalProtocolStore(context, masterSecret, message.getSubscriptionId()));
+
+      if (message.isPreKeyBundle()) {
+        IncomingTextMessage plaintext = cipher.decrypt(context, (IncomingPreKeyBundleMessage)message);
+        database.updateBundleMessageBody(masterSecret, messageAndThreadId.first, plaintext.getMessageBody());
+
+        SecurityEvent.broadcastSecurityUpdateEvent(context, messageAndThreadId.second);
+      } else {
+        IncomingTextMessage plaintext = cipher.decrypt(context, message);
+        database.updateMessageBody(masterSecret, messageAndThreadId.first, plaintext.getMessageBody());
+
+        if (message.isEndSession()) SecurityEvent.broadcastSecurityUpdateEvent(context, messageAndThreadId.second);
+      }
 
-    Pair<Long, Long> messageAndThreadId;
+      return true;
+    } catch (LegacyMessageException | InvalidMessageException | InvalidVersionException |
+             DuplicateMessageException | NoSessionException | UntrustedIdentityException e)
+    {
+      Log.w(TAG, "In process decrypt failed, deferring to the decrypt jobs", e);
+      return false;
+    }
+  }
+
+  private Pair<Long, Long> insertMessage(MasterSecret masterSecret, IncomingTextMessage message) {
+    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
 
     if (message.isSecureMessage()) {
-      messageAndThreadId = database.insertMessageInbox((MasterSecret)null, message);
+      return database.insertMessageInbox((MasterSecret)null, message);
     } else if (masterSecret == null) {
-      messageAndThreadId = database.insertMessageInbox(MasterSecretUtil.getAsymmetricMasterSecret(context, null), message);
+      return database.insertMessageInbox(MasterSecretUtil.getAsymmetricMasterSecret(context, null), message);
     } else {
-      messageAndThreadId = database.insertMessageInbox(masterSecret, message);
+      return database.insertMessageInbox(masterSecret, message);
     }
+  }
 
-    if (masterSecret == null || message.isSecureMessage() || message.isKeyExchange() || message.isEndSession() || message.isXmppExchange()) {
+  private void scheduleDecrypt(MasterSecret masterSecret, IncomingTextMessage message, long messageId) {
+    if (message.isSecureMessage()) {
+      if (DatabaseFactory.getSmsDatabase(context).isDecryptInProgress(messageId)) {
+        SmsDecryptBacklogJob.enqueue(context);
+      } else {
+        Log.w(TAG, "Message " + messageId + " was already handled by the decrypt backlog.");
+      }
+    } else if (masterSecret == null || message.isKeyExchange() || message.isEndSession() || message.isXmppExchange()) {
       ApplicationContext.getInstance(context)
                         .getJobManager()
-                        .add(new SmsDecryptJob(context, messageAndThreadId.first, masterSecret == null));
+                        .add(new SmsDecryptJob(context, messageId, masterSecret == null));
     }
-
-    return messageAndThreadId;
   }
 
   private Optional<IncomingTextMessage> assembleMessageFragments(Object[] pdus, int subscriptionId, MasterSecret masterSecret) {
@@ -136,10 +220,25 @@ public class SmsReceiveJob extends ContextJob {
 
     IncomingTextMessage message = new IncomingTextMessage(messages);
 
-    if (WirePrefix.isPrefixedMessage(message.getMessageBody())) {
-      return Optional.fromNullable(multipartMessageHandler.processPotentialMultipartMessage(message));
+    if (message.getWirePrefix().isPrefixedMessage()) {
+      return Optional.fromNullable(getMultipartMessageHandler(context).processPotentialMultipartMessage(message));
     } else {
       return Optional.of(message);
     }
   }
+
+  private static synchronized MultipartSmsMessageHandler getMultipartMessageHandler(Context context) {
+    if (multipartMessageHandler == null) {
+      multipartMessageHandler = new MultipartSmsMessageHandler(MultipartFragmentDatabase.getInstance(context));
+    }
+
+    return multipartMessageHandler;
+  }
+
+  private static JobParameters constructParameters() {
+    return JobParameters.newBuilder()
+                        .withPersistence()
+                        .withWakeLock(true)
+                        .create();
+  }
 }
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
+import android.support.annotation.NonNull;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SmsManager;
 import android.util.Log;
@@ -17,6 +18,8 @@ import org.smssecure.smssecure.database.EncryptingSmsDatabase;
 import org.smssecure.smssecure.database.NoSuchMessageException;
 import org.smssecure.smssecure.database.SmsDatabase;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.jobs.persistence.JobRecord;
+import org.smssecure.smssecure.jobs.persistence.PersistentJob;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.jobs.requirements.NetworkOrServiceRequirement;
 import org.smssecure.smssecure.jobs.requirements.ServiceRequirement;
@@ -35,10 +38,13 @@ import org.whispersystems.libsignal.UntrustedIdentityException;
 
 import java.util.ArrayList;
 
-public class SmsSendJob extends SendJob {
+public class SmsSendJob extends SendJob implements PersistentJob {
 
   private static final String TAG = SmsSendJob.class.getSimpleName();
 
+  private static final int FIELD_MESSAGE_ID = 1;
+  private static final int FIELD_NAME       = 2;
+
   private final long messageId;
 
   public SmsSendJob(Context context, long messageId, String name) {
@@ -46,6 +52,16 @@ public class SmsSendJob extends SendJob {
     this.messageId = messageId;
   }
 
+  public SmsSendJob(Context context, JobRecord record) {
+    this(context, record.getLong(FIELD_MESSAGE_ID, -1), record.getString(FIELD_NAME));
+  }
+
+  @Override
+  public void writeTo(@NonNull JobRecord record) {
+    record.putLong(FIELD_MESSAGE_ID, messageId);
+    record.putString(FIELD_NAME, getGroupId());
+  }
+
   @Override
   public void onAdded() {}
 
@@ -2,6 +2,7 @@ package org.smssecure.smssecure.jobs;
 
 import android.app.Activity;
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.telephony.SmsManager;
 import android.util.Log;
 
@@ -13,6 +14,8 @@ import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.EncryptingSmsDatabase;
 import org.smssecure.smssecure.database.NoSuchMessageException;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.jobs.persistence.JobRecord;
+import org.smssecure.smssecure.jobs.persistence.PersistentJob;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.service.SmsDeliveryListener;
@@ -20,10 +23,15 @@ import org.smssecure.smssecure.util.SilencePreferences;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.libsignal.state.SessionStore;
 
-public class SmsSentJob extends MasterSecretJob {
+@Lane(JobLane.SEND)
+public class SmsSentJob extends MasterSecretJob implements PersistentJob {
 
   private static final String TAG = SmsSentJob.class.getSimpleName();
 
+  private static final int FIELD_MESSAGE_ID = 1;
+  private static final int FIELD_ACTION     = 2;
+  private static final int FIELD_RESULT     = 3;
+
   private final long   messageId;
   private final String action;
   private final int    result;
@@ -39,6 +47,17 @@ public class SmsSentJob extends MasterSecretJob {
     this.result    = result;
   }
 
+  public SmsSentJob(Context context, JobRecord record) {
+    this(context, record.getLong(FIELD_MESSAGE_ID, -1), record.getString(FIELD_ACTION), record.getInt(FIELD_RESULT, 0));
+  }
+
+  @Override
+  public void writeTo(@NonNull JobRecord record) {
+    record.putLong(FIELD_MESSAGE_ID, messageId);
+    record.putString(FIELD_ACTION, action);
+    record.putInt(FIELD_RESULT, result);
+  }
+
   @Override
   public void onAdded() {
 
@@ -20,21 +20,34 @@ import android.content.Context;
 import android.util.Log;
 
 import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.ThreadDatabase;
 import org.smssecure.smssecure.util.SilencePreferences;
-import org.whispersystems.jobqueue.Job;
 import org.whispersystems.jobqueue.JobParameters;
 
-public class TrimThreadJob extends Job {
+@Lane(JobLane.MAINTENANCE)
+public class TrimThreadJob extends ContextJob {
 
   private static final String TAG = TrimThreadJob.class.getSimpleName();
 
-  private final Context context;
-  private final long    threadId;
+  public static final long ALL_THREADS = -1;
+
+  private static final int PREFERENCE_LENGTH = -1;
+
+  private final long threadId;
+  private final int  length;
 
   public TrimThreadJob(Context context, long threadId) {
-    super(JobParameters.newBuilder().withGroupId(TrimThreadJob.class.getSimpleName()).create());
-    this.context  = context;
+    this(context, threadId, PREFERENCE_LENGTH);
+  }
+
+  /**
+   * Trims a thread, or every thread with {@link #ALL_THREADS}, to an explicit
+   * length, whether or not trimming is enabled in the preferences.
+   */
+  public TrimThreadJob(Context context, long threadId, int length) {
+    super(context, JobParameters.newBuilder().withGroupId(TrimThreadJob.class.getSimpleName()).create());
     this.threadId = threadId;
+    this.length   = length;
   }
 
   @Override
@@ -43,14 +56,15 @@ public class TrimThreadJob extends Job {
   }
 
   @Override
-  public void onRun() {
-    boolean trimmingEnabled   = SilencePreferences.isThreadLengthTrimmingEnabled(context);
-    int     threadLengthLimit = SilencePreferences.getThreadTrimLength(context);
-
-    if (!trimmingEnabled)
+  protected void onRunJob() {
+    if (length == PREFERENCE_LENGTH && !SilencePreferences.isThreadLengthTrimmingEnabled(context))
       return;
 
-    DatabaseFactory.getThreadDatabase(context).trimThread(threadId, threadLengthLimit);
+    ThreadDatabase threadDatabase    = DatabaseFactory.getThreadDatabase(context);
+    int            threadLengthLimit = length == PREFERENCE_LENGTH ? SilencePreferences.getThreadTrimLength(context) : length;
+
+    if (threadId == ALL_THREADS) threadDatabase.trimAllThreads(threadLengthLimit);
+    else                         threadDatabase.trimThread(threadId, threadLengthLimit);
   }
 
   @Override
@@ -0,0 +1,57 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.ApplicationContext;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.whispersystems.jobqueue.JobParameters;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Copies the write-ahead log of the message database back into the database
+ * after message writes, so that commits rarely have to checkpoint.
+ *
+ * At most one run is queued at a time; writes made while it waits are
+ * covered by that run.
+ */
+@Lane(JobLane.MAINTENANCE)
+public class WalCheckpointJob extends ContextJob {
+
+  private static final String TAG = WalCheckpointJob.class.getSimpleName();
+
+  private static final AtomicBoolean pending = new AtomicBoolean(false);
+
+  public static void schedule(Context context) {
+    if (pending.compareAndSet(false, true)) {
+      ApplicationContext.getInstance(context).getJobManager().add(new WalCheckpointJob(context));
+    }
+  }
+
+  private WalCheckpointJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(WalCheckpointJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  protected void onRunJob() {
+    pending.set(false);
+    DatabaseFactory.getInstance(context).checkpoint();
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    pending.set(false);
+    Log.w(TAG, "Checkpoint canceled.");
+  }
+}
@@ -1,7 +1,11 @@
 package org.smssecure.smssecure.jobs.persistence;
 
+import android.content.Context;
+
 import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterCipherPool;
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.util.Base64;
 import org.smssecure.smssecure.util.ParcelUtil;
 import org.whispersystems.jobqueue.EncryptionKeys;
 import org.whispersystems.jobqueue.Job;
@@ -9,47 +13,95 @@ import org.whispersystems.jobqueue.persistence.JavaJobSerializer;
 import org.whispersystems.jobqueue.persistence.JobSerializer;
 import org.whispersystems.libsignal.InvalidMessageException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 
+/**
+ * Persists jobs as {@link JobRecord}s, encrypted with the master secret when
+ * the job carries one.
+ *
+ * Jobs without a binary form, and rows written before it existed, still go
+ * through Java serialization.  Binary rows start with a prefix that is not
+ * part of the Base64 alphabet, so the two can always be told apart.
+ */
 public class EncryptingJobSerializer implements JobSerializer {
 
+  private static final String BINARY_PREFIX = "#1";
+
+  private final Context           context;
   private final JavaJobSerializer delegate;
 
-  public EncryptingJobSerializer() {
+  public EncryptingJobSerializer(Context context) {
+    this.context  = context.getApplicationContext();
     this.delegate = new JavaJobSerializer();
   }
 
   @Override
   public String serialize(Job job) throws IOException {
-    String plaintext = delegate.serialize(job);
+    byte[] encoded = JobCodec.encode(job);
 
-    if (job.getEncryptionKeys() != null) {
-      MasterSecret masterSecret = ParcelUtil.deserialize(job.getEncryptionKeys().getEncoded(),
-                                                         MasterSecret.CREATOR);
-      MasterCipher masterCipher = new MasterCipher(masterSecret);
+    if (encoded == null) {
+      return serializeLegacy(job);
+    }
 
-      return masterCipher.encryptBody(plaintext);
-    } else {
-      return plaintext;
+    if (job.getEncryptionKeys() != null) {
+      encoded = getMasterCipher(job.getEncryptionKeys()).encryptBytes(encoded);
     }
+
+    return BINARY_PREFIX + Base64.encodeBytes(encoded);
   }
 
   @Override
   public Job deserialize(EncryptionKeys keys, boolean encrypted, String serialized) throws IOException {
     try {
-      String plaintext;
+      if (!serialized.startsWith(BINARY_PREFIX)) {
+        return deserializeLegacy(keys, encrypted, serialized);
+      }
+
+      byte[] encoded = Base64.decode(serialized.substring(BINARY_PREFIX.length()));
 
       if (encrypted) {
-        MasterSecret masterSecret = ParcelUtil.deserialize(keys.getEncoded(), MasterSecret.CREATOR);
-        MasterCipher masterCipher = new MasterCipher(masterSecret);
-        plaintext = masterCipher.decryptBody(serialized);
-      } else {
-        plaintext = serialized;
+        encoded = getMasterCipher(keys).decryptBytes(encoded);
       }
 
-      return delegate.deserialize(keys, encrypted, plaintext);
+      Job job = JobCodec.decode(context, encoded, 0);
+      job.setEncryptionKeys(keys);
+
+      return job;
     } catch (InvalidMessageException e) {
       throw new IOException(e);
     }
   }
+
+  private String serializeLegacy(Job job) throws IOException {
+    String plaintext = delegate.serialize(job);
+
+    if (job.getEncryptionKeys() != null) {
+      return getMasterCipher(job.getEncryptionKeys()).encryptBody(plaintext);
+    } else {
+      return plaintext;
+    }
+  }
+
+  private Job deserializeLegacy(EncryptionKeys keys, boolean encrypted, String serialized)
+      throws IOException, InvalidMessageException
+  {
+    String plaintext = encrypted ? getMasterCipher(keys).decryptBody(serialized) : serialized;
+    byte[] bytes     = android.util.Base64.decode(plaintext, android.util.Base64.NO_WRAP);
+
+    try (ObjectInputStream in = new LegacyJobInputStream(new ByteArrayInputStream(bytes))) {
+      Job job = (Job) in.readObject();
+      job.setEncryptionKeys(keys);
+
+      return job;
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static MasterCipher getMasterCipher(EncryptionKeys keys) {
+    MasterSecret masterSecret = ParcelUtil.deserialize(keys.getEncoded(), MasterSecret.CREATOR);
+    return MasterCipherPool.get(masterSecret);
+  }
 }
@@ -0,0 +1,90 @@
+package org.smssecure.smssecure.jobs.persistence;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.smssecure.smssecure.jobs.AttachmentReclaimJob;
+import org.smssecure.smssecure.jobs.GenerateKeysJob;
+import org.smssecure.smssecure.jobs.MmsDownloadJob;
+import org.smssecure.smssecure.jobs.MmsReceiveJob;
+import org.smssecure.smssecure.jobs.MmsSendJob;
+import org.smssecure.smssecure.jobs.SmsDecryptBacklogJob;
+import org.smssecure.smssecure.jobs.SmsDecryptJob;
+import org.smssecure.smssecure.jobs.SmsReceiveJob;
+import org.smssecure.smssecure.jobs.SmsSendJob;
+import org.smssecure.smssecure.jobs.SmsSentJob;
+import org.whispersystems.jobqueue.Job;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps {@link PersistentJob}s to and from their binary {@link JobRecord}.
+ *
+ * Every job type has a fixed tag here.  Tags are stored with each job, so
+ * they must never be changed or reused.
+ */
+public class JobCodec {
+
+  private static final int SMS_RECEIVE         = 1;
+  private static final int SMS_DECRYPT         = 2;
+  private static final int SMS_SEND            = 3;
+  private static final int SMS_SENT            = 4;
+  private static final int MMS_RECEIVE         = 5;
+  private static final int MMS_DOWNLOAD        = 6;
+  private static final int MMS_SEND            = 7;
+  private static final int GENERATE_KEYS       = 8;
+  private static final int SMS_DECRYPT_BACKLOG = 9;
+  private static final int ATTACHMENT_RECLAIM  = 10;
+
+  private static final Map<Class<? extends Job>, Integer> TYPES = new HashMap<>();
+
+  static {
+    TYPES.put(SmsReceiveJob.class,        SMS_RECEIVE);
+    TYPES.put(SmsDecryptJob.class,        SMS_DECRYPT);
+    TYPES.put(SmsSendJob.class,           SMS_SEND);
+    TYPES.put(SmsSentJob.class,           SMS_SENT);
+    TYPES.put(MmsReceiveJob.class,        MMS_RECEIVE);
+    TYPES.put(MmsDownloadJob.class,       MMS_DOWNLOAD);
+    TYPES.put(MmsSendJob.class,           MMS_SEND);
+    TYPES.put(GenerateKeysJob.class,      GENERATE_KEYS);
+    TYPES.put(SmsDecryptBacklogJob.class, SMS_DECRYPT_BACKLOG);
+    TYPES.put(AttachmentReclaimJob.class, ATTACHMENT_RECLAIM);
+  }
+
+  /**
+   * @return the encoded job, or null if it has no binary form.
+   */
+  public static @Nullable byte[] encode(@NonNull Job job) {
+    Integer type = TYPES.get(job.getClass());
+
+    if (type == null || !(job instanceof PersistentJob)) return null;
+
+    JobRecord record = new JobRecord(type);
+    ((PersistentJob) job).writeTo(record);
+
+    return record.encode();
+  }
+
+  public static @NonNull Job decode(@NonNull Context context, @NonNull byte[] encoded, int offset)
+      throws IOException
+  {
+    JobRecord record = JobRecord.decode(encoded, offset);
+
+    switch (record.getType()) {
+      case SMS_RECEIVE:         return new SmsReceiveJob(context, record);
+      case SMS_DECRYPT:         return new SmsDecryptJob(context, record);
+      case SMS_SEND:            return new SmsSendJob(context, record);
+      case SMS_SENT:            return new SmsSentJob(context, record);
+      case MMS_RECEIVE:         return new MmsReceiveJob(context, record);
+      case MMS_DOWNLOAD:        return new MmsDownloadJob(context, record);
+      case MMS_SEND:            return new MmsSendJob(context, record);
+      case GENERATE_KEYS:       return new GenerateKeysJob(context, record);
+      case SMS_DECRYPT_BACKLOG: return new SmsDecryptBacklogJob(context, record);
+      case ATTACHMENT_RECLAIM:  return new AttachmentReclaimJob(context, record);
+      default:                  throw new IOException("Unknown job type: " + record.getType());
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package org.smssecure.smssecure.jobs.persistence;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The persisted fields of a job, keyed by explicit numeric tags.
+ *
+ * Each field is written as its tag, a wire type and a value, where the
+ * value is either a zigzag varint or a length-prefixed byte string.  A field
+ * may repeat, and readers skip tags they do not know, so fields can be added
+ * to a job without breaking rows written by older or newer versions.  A tag
+ * must never be reused for a field with a different meaning.
+ */
+public class JobRecord {
+
+  private static final int WIRE_VARINT = 0;
+  private static final int WIRE_BYTES  = 1;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final int                        type;
+  private final Map<Integer, List<Object>> fields = new LinkedHashMap<>();
+
+  public JobRecord(int type) {
+    this.type = type;
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public JobRecord putLong(int tag, long value) {
+    return add(tag, value);
+  }
+
+  public JobRecord putInt(int tag, int value) {
+    return add(tag, (long) value);
+  }
+
+  public JobRecord putBoolean(int tag, boolean value) {
+    return add(tag, value ? 1L : 0L);
+  }
+
+  public JobRecord putString(int tag, @Nullable String value) {
+    if (value == null) return this;
+    return add(tag, value.getBytes(UTF_8));
+  }
+
+  public JobRecord putBytes(int tag, @Nullable byte[] value) {
+    if (value == null) return this;
+    return add(tag, value);
+  }
+
+  public long getLong(int tag, long defaultValue) {
+    Object value = get(tag);
+    return value instanceof Long ? (Long) value : defaultValue;
+  }
+
+  public int getInt(int tag, int defaultValue) {
+    return (int) getLong(tag, defaultValue);
+  }
+
+  public boolean getBoolean(int tag, boolean defaultValue) {
+    return getLong(tag, defaultValue ? 1 : 0) != 0;
+  }
+
+  public @Nullable String getString(int tag) {
+    byte[] value = getBytes(tag);
+    return value == null ? null : new String(value, UTF_8);
+  }
+
+  public @Nullable byte[] getBytes(int tag) {
+    Object value = get(tag);
+    return value instanceof byte[] ? (byte[]) value : null;
+  }
+
+  /**
+   * @return every value of a repeated byte string field, in the order added.
+   */
+  public @NonNull List<byte[]> getBytesList(int tag) {
+    List<byte[]> results = new LinkedList<>();
+    List<Object> values  = fields.get(tag);
+
+    if (values != null) {
+      for (Object value : values) {
+        if (value instanceof byte[]) results.add((byte[]) value);
+      }
+    }
+
+    return results;
+  }
+
+  public @NonNull byte[] encode() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+    writeVarint(out, type);
+
+    for (Map.Entry<Integer, List<Object>> field : fields.entrySet()) {
+      for (Object value : field.getValue()) {
+        writeVarint(out, field.getKey());
+
+        if (value instanceof Long) {
+          out.write(WIRE_VARINT);
+          writeVarint(out, zigzag((Long) value));
+        } else {
+          byte[] bytes = (byte[]) value;
+
+          out.write(WIRE_BYTES);
+          writeVarint(out, bytes.length);
+          out.write(bytes, 0, bytes.length);
+        }
+      }
+    }
+
+    return out.toByteArray();
+  }
+
+  public static @NonNull JobRecord decode(@NonNull byte[] encoded, int offset) throws IOException {
+    int[]     position = {offset};
+    JobRecord record   = new JobRecord((int) readVarint(encoded, position));
+
+    while (position[0] < encoded.length) {
+      int tag  = (int) readVarint(encoded, position);
+      int wire = readByte(encoded, position);
+
+      if (wire == WIRE_VARINT) {
+        record.add(tag, unzigzag(readVarint(encoded, position)));
+      } else if (wire == WIRE_BYTES) {
+        long length = readVarint(encoded, position);
+
+        if (length < 0 || length > encoded.length - position[0]) {
+          throw new IOException("Bad field length: " + length);
+        }
+
+        byte[] value = new byte[(int) length];
+        System.arraycopy(encoded, position[0], value, 0, value.length);
+        position[0] += value.length;
+
+        record.add(tag, value);
+      } else {
+        throw new IOException("Unknown wire type: " + wire);
+      }
+    }
+
+    return record;
+  }
+
+  private JobRecord add(int tag, Object value) {
+    List<Object> values = fields.get(tag);
+
+    if (values == null) {
+      values = new ArrayList<>(1);
+      fields.put(tag, values);
+    }
+
+    values.add(value);
+    return this;
+  }
+
+  private @Nullable Object get(int tag) {
+    List<Object> values = fields.get(tag);
+    return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+
+    out.write((int) value);
+  }
+
+  private static long readVarint(byte[] encoded, int[] position) throws IOException {
+    long result = 0;
+
+    for (int shift = 0; shift < 64; shift += 7) {
+      int value = readByte(encoded, position);
+
+      result |= (long) (value & 0x7F) << shift;
+      if ((value & 0x80) == 0) return result;
+    }
+
+    throw new IOException("Malformed varint");
+  }
+
+  private static int readByte(byte[] encoded, int[] position) throws IOException {
+    if (position[0] >= encoded.length) throw new IOException("Truncated job record");
+    return encoded[position[0]++] & 0xFF;
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
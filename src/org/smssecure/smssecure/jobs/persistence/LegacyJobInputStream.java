@@ -0,0 +1,68 @@
+package org.smssecure.smssecure.jobs.persistence;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+
+/**
+ * Reads jobs that were persisted with Java serialization.
+ *
+ * Most of our jobs never declared a serialVersionUID, so any change to their
+ * methods changes the computed one and would make older rows unreadable.
+ * As long as the stored fields are unchanged, the local class description
+ * is used in place of the stored one.
+ */
+class LegacyJobInputStream extends ObjectInputStream {
+
+  private static final String TAG = LegacyJobInputStream.class.getSimpleName();
+
+  private static final String APP_PACKAGE = "org.smssecure.smssecure.";
+
+  LegacyJobInputStream(InputStream in) throws IOException {
+    super(in);
+  }
+
+  @Override
+  protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+    ObjectStreamClass stored = super.readClassDescriptor();
+
+    if (!stored.getName().startsWith(APP_PACKAGE)) return stored;
+
+    ObjectStreamClass local = ObjectStreamClass.lookup(Class.forName(stored.getName()));
+
+    if (local != null && local.getSerialVersionUID() != stored.getSerialVersionUID() && hasSameFields(stored, local)) {
+      Log.w(TAG, "Reading " + stored.getName() + " with a changed serialVersionUID.");
+      return local;
+    }
+
+    return stored;
+  }
+
+  private static boolean hasSameFields(ObjectStreamClass stored, ObjectStreamClass local) {
+    ObjectStreamField[] storedFields = stored.getFields();
+    ObjectStreamField[] localFields  = local.getFields();
+
+    if (storedFields.length != localFields.length) return false;
+
+    for (int i = 0; i < storedFields.length; i++) {
+      ObjectStreamField storedField = storedFields[i];
+      ObjectStreamField localField  = localFields[i];
+
+      if (!storedField.getName().equals(localField.getName()) ||
+          storedField.getTypeCode() != localField.getTypeCode())
+      {
+        return false;
+      }
+
+      if (!storedField.isPrimitive() && !storedField.getTypeString().equals(localField.getTypeString())) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,12 @@
+package org.smssecure.smssecure.jobs.persistence;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A job that is persisted as a tagged {@link JobRecord} rather than through
+ * Java serialization.  Implementations also provide a constructor taking a
+ * context and a record, which {@link JobCodec} calls to restore them.
+ */
+public interface PersistentJob {
+  void writeTo(@NonNull JobRecord record);
+}
@@ -14,10 +14,29 @@ import com.google.android.mms.pdu_alt.SendConf;
 import org.smssecure.smssecure.transport.UndeliverableMessageException;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsConnection {
   private static final String TAG = CompatMmsConnection.class.getSimpleName();
 
+  private static final long RADIO_LOCK_TIMEOUT_SECONDS = 120;
+
+  /**
+   * Lollipop sends share one broadcast action and pending intent, as do
+   * Lollipop downloads, so only one of each can be waiting for its result.
+   * Those waits are bounded by the connection's own result timeout.
+   */
+  private static final Object SEND_LOCK     = new Object();
+  private static final Object RETRIEVE_LOCK = new Object();
+
+  /**
+   * Legacy sends and downloads both bring up the MMS radio, so they never
+   * overlap, but neither waits for the radio longer than
+   * {@link #RADIO_LOCK_TIMEOUT_SECONDS}.
+   */
+  private static final ReentrantLock RADIO_LOCK = new ReentrantLock();
+
   private Context context;
 
   public CompatMmsConnection(Context context) {
@@ -32,7 +51,9 @@ public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsCo
     if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
       try {
         Log.w(TAG, "Sending via Lollipop API");
-        return new OutgoingLollipopMmsConnection(context).send(pduBytes, subscriptionId);
+        synchronized (SEND_LOCK) {
+          return new OutgoingLollipopMmsConnection(context).send(pduBytes, subscriptionId);
+        }
       } catch (UndeliverableMessageException e) {
         Log.w(TAG, e);
       }
@@ -40,7 +61,7 @@ public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsCo
 
     Log.w(TAG, "Falling back to legacy connection...");
 
-    if (subscriptionId == -1) {
+    if (subscriptionId == -1 && acquireRadio()) {
       Log.w(TAG, "Sending via legacy connection");
       try {
         SendConf result = new OutgoingLegacyMmsConnection(context).send(pduBytes, subscriptionId);
@@ -52,6 +73,8 @@ public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsCo
         }
       } catch (UndeliverableMessageException | ApnUnavailableException e) {
         Log.w(TAG, e);
+      } finally {
+        RADIO_LOCK.unlock();
       }
     }
 
@@ -67,18 +90,35 @@ public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsCo
   {
     if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
       Log.w(TAG, "Receiving via Lollipop API");
-      return new IncomingLollipopMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId);
+      synchronized (RETRIEVE_LOCK) {
+        return new IncomingLollipopMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId);
+      }
     }
 
-    if (subscriptionId == -1) {
+    if (subscriptionId == -1 && acquireRadio()) {
       Log.w(TAG, "Falling back to receiving via legacy connection");
       try {
         return new IncomingLegacyMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId);
       } catch (MmsRadioException | ApnUnavailableException | IOException e) {
         Log.w(TAG, e);
+      } finally {
+        RADIO_LOCK.unlock();
       }
     }
 
     throw new IOException("Both lollipop and fallback APIs failed...");
   }
+
+  private static boolean acquireRadio() {
+    try {
+      if (RADIO_LOCK.tryLock(RADIO_LOCK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) return true;
+
+      Log.w(TAG, "Timed out waiting for the MMS radio");
+      return false;
+    } catch (InterruptedException e) {
+      Log.w(TAG, e);
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
 }
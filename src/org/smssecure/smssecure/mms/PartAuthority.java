@@ -20,7 +20,7 @@ import java.io.InputStream;
 public class PartAuthority {
 
   private static final String PART_URI_STRING   = "content://org.smssecure.smssecure/part";
-  private static final String THUMB_URI_STRING  = "content://org.smssecure.smssecure/thumb";
+  public  static final String THUMB_URI_STRING  = "content://org.smssecure.smssecure/thumb";
   private static final Uri    PART_CONTENT_URI  = Uri.parse(PART_URI_STRING);
   private static final Uri    THUMB_CONTENT_URI = Uri.parse(THUMB_URI_STRING);
 
@@ -8,6 +8,9 @@ import android.os.AsyncTask;
 
 import org.smssecure.smssecure.database.DatabaseFactory;
 
+import java.util.LinkedList;
+import java.util.List;
+
 public class DeleteNotificationReceiver extends BroadcastReceiver {
 
   public static String DELETE_NOTIFICATION_ACTION = "org.smssecure.smssecure.DELETE_NOTIFICATION";
@@ -28,11 +31,17 @@ public class DeleteNotificationReceiver extends BroadcastReceiver {
       new AsyncTask<Void, Void, Void>() {
         @Override
         protected Void doInBackground(Void... params) {
+          List<Long> smsIds = new LinkedList<>();
+          List<Long> mmsIds = new LinkedList<>();
+
           for (int i=0;i<ids.length;i++) {
-            if (!mms[i]) DatabaseFactory.getSmsDatabase(context).markAsNotified(ids[i]);
-            else         DatabaseFactory.getMmsDatabase(context).markAsNotified(ids[i]);
+            if (!mms[i]) smsIds.add(ids[i]);
+            else         mmsIds.add(ids[i]);
           }
 
+          DatabaseFactory.getSmsDatabase(context).markAsNotified(smsIds);
+          DatabaseFactory.getMmsDatabase(context).markAsNotified(mmsIds);
+
           return null;
         }
       }.execute();
@@ -22,7 +22,6 @@ import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.media.AudioAttributes;
 import android.media.AudioManager;
 import android.media.Ringtone;
@@ -35,7 +34,6 @@ import android.service.notification.StatusBarNotification;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationManagerCompat;
-import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -45,17 +43,10 @@ import org.smssecure.smssecure.ConversationListActivity;
 import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.DatabaseFactory;
-import org.smssecure.smssecure.database.MmsSmsDatabase;
-import org.smssecure.smssecure.database.SmsDatabase;
 import org.smssecure.smssecure.database.ThreadDatabase;
-import org.smssecure.smssecure.database.model.MediaMmsMessageRecord;
-import org.smssecure.smssecure.database.model.MessageRecord;
-import org.smssecure.smssecure.mms.SlideDeck;
-import org.smssecure.smssecure.recipients.Recipient;
 import org.smssecure.smssecure.recipients.Recipients;
 import org.smssecure.smssecure.service.KeyCachingService;
 import org.smssecure.smssecure.util.ServiceUtil;
-import org.smssecure.smssecure.util.SpanUtil;
 import org.smssecure.smssecure.util.SilencePreferences;
 
 import java.util.List;
@@ -79,6 +70,15 @@ public class MessageNotifier {
 
   private volatile static long visibleThread = -1;
 
+  private static final NotificationIndex index = new NotificationIndex();
+
+  private static final NotificationCoalescer coalescer = new NotificationCoalescer(new NotificationCoalescer.Rebuilder() {
+    @Override
+    public void rebuild(Context context, MasterSecret masterSecret, int flags, int reminderCount) {
+      rebuildNotification(context, masterSecret, flags, reminderCount);
+    }
+  });
+
   public static final  String EXTRA_REMOTE_REPLY = "extra_remote_reply";
 
   public static void setVisibleThread(long threadId) {
@@ -212,45 +212,44 @@ public class MessageNotifier {
     }
   }
 
+  /**
+   * @return the number of notification updates that were merged into another rebuild.
+   */
+  public static long getCoalescedUpdateCount() {
+    return coalescer.getCoalescedCount();
+  }
+
   private static void updateNotification(Context context, MasterSecret masterSecret, int flags, int reminderCount) {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
-
-    try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-
-      if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
-          (pushCursor == null || pushCursor.isAfterLast()))
-      {
-        cancelActiveNotifications(context);
-        updateBadge(context, 0);
-        clearReminder(context);
-        return;
-      }
+    coalescer.schedule(context, masterSecret, flags, reminderCount);
+  }
 
-      NotificationState notificationState = constructNotificationState(context, masterSecret, telcoCursor);
+  private static void rebuildNotification(Context context, MasterSecret masterSecret, int flags, int reminderCount) {
+    NotificationState notificationState = index.update(context, masterSecret);
 
-      if (notificationState.hasMultipleThreads()) {
-        if (Build.VERSION.SDK_INT >= 23) {
-          for (long threadId : notificationState.getThreads()) {
-            sendSingleThreadNotification(context, masterSecret, new NotificationState(notificationState.getNotificationsForThread(threadId)), 0, true);
-          }
-        }
+    if (notificationState == null) {
+      cancelActiveNotifications(context);
+      updateBadge(context, 0);
+      clearReminder(context);
+      return;
+    }
 
-        sendMultipleThreadNotification(context, notificationState, flags);
-      } else {
-        sendSingleThreadNotification(context, masterSecret, notificationState, flags, false);
+    if (notificationState.hasMultipleThreads()) {
+      if (Build.VERSION.SDK_INT >= 23) {
+        for (long threadId : notificationState.getThreads()) {
+          sendSingleThreadNotification(context, masterSecret, new NotificationState(notificationState.getNotificationsForThread(threadId)), 0, true);
+        }
       }
 
-      cancelOrphanedNotifications(context, notificationState);
-      updateBadge(context, notificationState.getMessageCount());
+      sendMultipleThreadNotification(context, notificationState, flags);
+    } else {
+      sendSingleThreadNotification(context, masterSecret, notificationState, flags, false);
+    }
 
-      if (newNotificationRequested(flags)) {
-        scheduleReminder(context, reminderCount);
-      }
-    } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+    cancelOrphanedNotifications(context, notificationState);
+    updateBadge(context, notificationState.getMessageCount());
+
+    if (newNotificationRequested(flags)) {
+      scheduleReminder(context, reminderCount);
     }
   }
 
@@ -403,53 +402,6 @@ public class MessageNotifier {
     ringtone.play();
   }
 
-  private static NotificationState constructNotificationState(Context context,
-                                                              MasterSecret masterSecret,
-                                                              Cursor cursor)
-  {
-    NotificationState notificationState = new NotificationState();
-    MessageRecord record;
-    MmsSmsDatabase.Reader reader;
-
-    if (masterSecret == null) reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
-    else                      reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor, masterSecret);
-
-    while ((record = reader.getNext()) != null) {
-      long         id               = record.getId();
-      boolean      mms              = record.isMms() || record.isMmsNotification();
-      Recipient    recipient        = record.getIndividualRecipient();
-      Recipients   recipients       = record.getRecipients();
-      long         threadId         = record.getThreadId();
-      CharSequence body             = record.getDisplayBody();
-      Recipients   threadRecipients = null;
-      SlideDeck    slideDeck        = null;
-      long         timestamp        = record.getTimestamp();
-
-      if (threadId != -1) {
-        threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
-      }
-
-      if (SmsDatabase.Types.isDecryptInProgressType(record.getType()) || !record.getBody().isPlaintext()) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_encrypted_message));
-      } else if (record.isMms() && TextUtils.isEmpty(body)) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      } else if (record.isMms() && !record.isMmsNotification()) {
-        String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
-        int    italicLength = message.length() - body.length();
-        body = SpanUtil.italic(message, italicLength);
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      }
-
-      if (threadRecipients == null || !threadRecipients.isMuted()) {
-        notificationState.addNotification(new NotificationItem(id, mms, recipient, recipients, threadRecipients, threadId, body, timestamp, slideDeck));
-      }
-    }
-
-    reader.close();
-    return notificationState;
-  }
-
   private static void scheduleReminder(Context context, int count) {
     if (count >= SilencePreferences.getRepeatAlertsCount(context)) {
       return;
@@ -0,0 +1,107 @@
+package org.smssecure.smssecure.notifications;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses bursts of notification updates into a single rebuild.
+ *
+ * The first request opens a short window; every request that arrives before
+ * it closes is merged into the pending one, and the rebuild then runs once
+ * on a single worker thread with the most recent master secret.  Flags are
+ * combined, so a burst that contains new content still alerts, but only once.
+ */
+class NotificationCoalescer {
+
+  private static final String TAG = NotificationCoalescer.class.getSimpleName();
+
+  private static final long WINDOW_MILLIS = 250;
+
+  private final ScheduledExecutorService executor  = Executors.newSingleThreadScheduledExecutor();
+  private final AtomicLong               coalesced = new AtomicLong();
+  private final Rebuilder                rebuilder;
+
+  private Pending pending;
+
+  NotificationCoalescer(@NonNull Rebuilder rebuilder) {
+    this.rebuilder = rebuilder;
+  }
+
+  void schedule(@NonNull Context context, @Nullable MasterSecret masterSecret, int flags, int reminderCount) {
+    synchronized (this) {
+      if (pending != null) {
+        pending.merge(masterSecret, flags, reminderCount);
+        coalesced.incrementAndGet();
+        return;
+      }
+
+      pending = new Pending(context.getApplicationContext(), masterSecret, flags, reminderCount);
+    }
+
+    executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        Pending update;
+
+        synchronized (NotificationCoalescer.this) {
+          update  = pending;
+          pending = null;
+        }
+
+        if (update.count > 1) {
+          Log.w(TAG, "Coalesced " + update.count + " notification updates into one.");
+        }
+
+        try {
+          rebuilder.rebuild(update.context, update.masterSecret, update.flags, update.reminderCount);
+        } catch (RuntimeException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the number of requested updates that were absorbed into another one.
+   */
+  long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  interface Rebuilder {
+    void rebuild(Context context, MasterSecret masterSecret, int flags, int reminderCount);
+  }
+
+  private static class Pending {
+    private final Context context;
+
+    private MasterSecret masterSecret;
+    private int          flags;
+    private int          reminderCount;
+    private int          count;
+
+    private Pending(Context context, MasterSecret masterSecret, int flags, int reminderCount) {
+      this.context       = context;
+      this.masterSecret  = masterSecret;
+      this.flags         = flags;
+      this.reminderCount = reminderCount;
+      this.count         = 1;
+    }
+
+    private void merge(MasterSecret masterSecret, int flags, int reminderCount) {
+      this.masterSecret  = masterSecret;
+      this.flags        |= flags;
+      this.reminderCount = Math.min(this.reminderCount, reminderCount);
+      this.count++;
+    }
+  }
+}
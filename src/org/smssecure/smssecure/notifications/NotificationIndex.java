@@ -0,0 +1,204 @@
+package org.smssecure.smssecure.notifications;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.smssecure.smssecure.R;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.MmsSmsDatabase;
+import org.smssecure.smssecure.database.SmsDatabase;
+import org.smssecure.smssecure.database.UnreadIndex;
+import org.smssecure.smssecure.database.model.MediaMmsMessageRecord;
+import org.smssecure.smssecure.database.model.MessageRecord;
+import org.smssecure.smssecure.mms.SlideDeck;
+import org.smssecure.smssecure.recipients.Recipient;
+import org.smssecure.smssecure.recipients.Recipients;
+import org.smssecure.smssecure.util.SpanUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The unread messages currently shown in notifications, kept up to date from
+ * the {@link UnreadIndex} journal.
+ *
+ * Each update only re-reads the messages and threads that were touched since
+ * the previous one.  Everything is re-read on the first update, when the
+ * journal was reset, when the delta is too large to be worth applying, and
+ * when the app is locked or unlocked, since that changes how bodies render.
+ */
+class NotificationIndex {
+
+  private static final String TAG = NotificationIndex.class.getSimpleName();
+
+  private static final int MAX_DELTA_SIZE = 500;
+
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  private boolean loaded;
+  private boolean unlocked;
+
+  /**
+   * @return the unread messages, oldest first, or null if there are none.
+   */
+  synchronized @Nullable NotificationState update(@NonNull Context context, @Nullable MasterSecret masterSecret) {
+    UnreadIndex.Delta delta = UnreadIndex.getInstance().takeDelta();
+
+    try {
+      if (!loaded || delta.isReset() || delta.size() > MAX_DELTA_SIZE || unlocked != (masterSecret != null)) {
+        reload(context, masterSecret);
+      } else if (!delta.isEmpty()) {
+        apply(context, masterSecret, delta);
+      }
+    } catch (RuntimeException e) {
+      loaded = false;
+      throw e;
+    }
+
+    if (entries.isEmpty()) return null;
+
+    return getNotificationState();
+  }
+
+  private void reload(@NonNull Context context, @Nullable MasterSecret masterSecret) {
+    entries.clear();
+    load(context, masterSecret, DatabaseFactory.getMmsSmsDatabase(context).getUnread());
+
+    loaded   = true;
+    unlocked = masterSecret != null;
+
+    Log.w(TAG, "Reloaded " + entries.size() + " unread messages.");
+  }
+
+  private void apply(@NonNull Context context, @Nullable MasterSecret masterSecret, @NonNull UnreadIndex.Delta delta) {
+    Set<Long> threads = new HashSet<>(delta.getChangedThreads());
+    threads.addAll(delta.getReadThreads());
+
+    for (long id : delta.getSmsMessages()) entries.remove(getKey(false, id));
+    for (long id : delta.getMmsMessages()) entries.remove(getKey(true, id));
+
+    Iterator<Entry> iterator = entries.values().iterator();
+
+    while (iterator.hasNext()) {
+      if (threads.contains(iterator.next().item.getThreadId())) iterator.remove();
+    }
+
+    if (delta.getSmsMessages().isEmpty() && delta.getMmsMessages().isEmpty() && delta.getChangedThreads().isEmpty()) {
+      return;
+    }
+
+    load(context, masterSecret, DatabaseFactory.getMmsSmsDatabase(context)
+                                               .getUnread(delta.getSmsMessages(),
+                                                          delta.getMmsMessages(),
+                                                          delta.getChangedThreads()));
+  }
+
+  private void load(@NonNull Context context, @Nullable MasterSecret masterSecret, @Nullable Cursor cursor) {
+    if (cursor == null) return;
+
+    Map<Long, Recipients> threadRecipients = new HashMap<>();
+    MmsSmsDatabase.Reader reader           = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor, masterSecret);
+
+    try {
+      MessageRecord record;
+
+      while ((record = reader.getNext()) != null) {
+        long       threadId   = record.getThreadId();
+        Recipients recipients = null;
+
+        if (threadId != -1) {
+          if (threadRecipients.containsKey(threadId)) {
+            recipients = threadRecipients.get(threadId);
+          } else {
+            recipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
+            threadRecipients.put(threadId, recipients);
+          }
+        }
+
+        Entry entry = new Entry(createNotificationItem(context, record, recipients), recipients, record.getDateReceived());
+        entries.put(getKey(entry.item.isMms(), entry.item.getId()), entry);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private @NonNull NotificationState getNotificationState() {
+    List<Entry> sorted = new ArrayList<>(entries.values());
+
+    Collections.sort(sorted, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry lhs, Entry rhs) {
+        if (lhs.dateReceived != rhs.dateReceived) return lhs.dateReceived < rhs.dateReceived ? -1 : 1;
+        if (lhs.item.getId() != rhs.item.getId()) return lhs.item.getId() < rhs.item.getId() ? -1 : 1;
+        return 0;
+      }
+    });
+
+    NotificationState notificationState = new NotificationState();
+
+    for (Entry entry : sorted) {
+      if (entry.threadRecipients == null || !entry.threadRecipients.isMuted()) {
+        notificationState.addNotification(entry.item);
+      }
+    }
+
+    return notificationState;
+  }
+
+  private static @NonNull NotificationItem createNotificationItem(@NonNull Context context,
+                                                                  @NonNull MessageRecord record,
+                                                                  @Nullable Recipients threadRecipients)
+  {
+    long         id         = record.getId();
+    boolean      mms        = record.isMms() || record.isMmsNotification();
+    Recipient    recipient  = record.getIndividualRecipient();
+    Recipients   recipients = record.getRecipients();
+    long         threadId   = record.getThreadId();
+    CharSequence body       = record.getDisplayBody();
+    SlideDeck    slideDeck  = null;
+    long         timestamp  = record.getTimestamp();
+
+    if (SmsDatabase.Types.isDecryptInProgressType(record.getType()) || !record.getBody().isPlaintext()) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_encrypted_message));
+    } else if (record.isMms() && TextUtils.isEmpty(body)) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    } else if (record.isMms() && !record.isMmsNotification()) {
+      String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
+      int    italicLength = message.length() - body.length();
+      body = SpanUtil.italic(message, italicLength);
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    }
+
+    return new NotificationItem(id, mms, recipient, recipients, threadRecipients, threadId, body, timestamp, slideDeck);
+  }
+
+  private static String getKey(boolean mms, long id) {
+    return (mms ? "M" : "S") + id;
+  }
+
+  private static class Entry {
+    private final NotificationItem item;
+    private final Recipients       threadRecipients;
+    private final long             dateReceived;
+
+    private Entry(NotificationItem item, Recipients threadRecipients, long dateReceived) {
+      this.item             = item;
+      this.threadRecipients = threadRecipients;
+      this.dateReceived     = dateReceived;
+    }
+  }
+}
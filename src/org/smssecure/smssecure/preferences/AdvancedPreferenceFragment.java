@@ -1,15 +1,18 @@
 package org.smssecure.smssecure.preferences;
 
 import android.app.Activity;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.ContactsContract;
 import android.util.Log;
 import android.support.annotation.Nullable;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.preference.ListPreference;
 import android.support.v7.preference.Preference;
 
+import org.smssecure.smssecure.ApplicationContext;
 import org.smssecure.smssecure.ApplicationPreferencesActivity;
 import org.smssecure.smssecure.LogSubmitActivity;
 import org.smssecure.smssecure.R;
@@ -23,6 +26,7 @@ public class AdvancedPreferenceFragment extends ListSummaryPreferenceFragment {
 
   private static final String SYSTEM_EMOJI_PREF     = SilencePreferences.SYSTEM_EMOJI_PREF;
   private static final String SUBMIT_DEBUG_LOG_PREF = "pref_submit_debug_logs";
+  private static final String JOB_STATISTICS_PREF   = "pref_job_statistics";
 
   @Override
   public void onCreate(Bundle paramBundle) {
@@ -30,6 +34,8 @@ public class AdvancedPreferenceFragment extends ListSummaryPreferenceFragment {
 
     this.findPreference(SUBMIT_DEBUG_LOG_PREF)
       .setOnPreferenceClickListener(new SubmitDebugLogListener());
+    this.findPreference(JOB_STATISTICS_PREF)
+      .setOnPreferenceClickListener(new JobStatisticsListener());
 
     this.findPreference(SilencePreferences.ENTER_KEY_TYPE).setOnPreferenceChangeListener(new ListSummaryListener());
     initializeListSummary((ListPreference) this.findPreference(SilencePreferences.ENTER_KEY_TYPE));
@@ -58,4 +64,27 @@ public class AdvancedPreferenceFragment extends ListSummaryPreferenceFragment {
       return true;
     }
   }
+
+  private class JobStatisticsListener implements Preference.OnPreferenceClickListener {
+    @Override
+    public boolean onPreferenceClick(Preference preference) {
+      final String report = ApplicationContext.getInstance(getActivity()).getJobManager().getReport();
+
+      new AlertDialog.Builder(getActivity())
+          .setTitle(R.string.preferences_advanced__job_statistics)
+          .setMessage(report)
+          .setPositiveButton(android.R.string.ok, null)
+          .setNeutralButton(R.string.preferences_advanced__share, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+              Intent intent = new Intent(Intent.ACTION_SEND);
+              intent.setType("text/plain");
+              intent.putExtra(Intent.EXTRA_TEXT, report);
+              startActivity(Intent.createChooser(intent, getString(R.string.preferences_advanced__job_statistics)));
+            }
+          })
+          .show();
+      return true;
+    }
+  }
 }
@@ -19,6 +19,7 @@ package org.smssecure.smssecure.protocol;
 
 import org.smssecure.smssecure.util.Base64;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -40,32 +41,45 @@ public abstract class WirePrefix {
 
   public abstract String calculatePrefix(String message);
 
+  private static final String BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+  private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  public static Classification classify(String message) {
+    return new Classification(message);
+  }
+
   public static boolean isKeyExchange(String message) {
-    return verifyPrefix("?TSK", message);
+    return classify(message).isKeyExchange();
   }
 
   public static boolean isEncryptedMessage(String message) {
-    return verifyPrefix("?TSM", message);
+    return classify(message).isEncryptedMessage();
   }
 
   public static boolean isPreKeyBundle(String message) {
-    return verifyPrefix("?TSP", message);
+    return classify(message).isPreKeyBundle();
   }
 
   public static boolean isEndSession(String message) {
-    return verifyPrefix("?TSE", message);
+    return classify(message).isEndSession();
   }
 
   public static boolean isXmppExchange(String message) {
-    return verifyPrefix("?TSX", message);
+    return classify(message).isXmppExchange();
   }
 
   public static boolean isPrefixedMessage(String message) {
-    return isEncryptedMessage(message) ||
-           isKeyExchange(message)      ||
-           isPreKeyBundle(message)     ||
-           isEndSession(message)       ||
-           isXmppExchange(message);
+    return classify(message).isPrefixedMessage();
   }
 
   public static String calculateKeyExchangePrefix(String message) {
@@ -88,20 +102,6 @@ public abstract class WirePrefix {
     return calculatePrefix(("?TSX" + message).getBytes(), PREFIX_BYTES);
   }
 
-  private static boolean verifyPrefix(String prefixType, String message) {
-    if (message.length() <= PREFIX_SIZE)
-      return false;
-
-    String prefix           = message.substring(0, PREFIX_SIZE);
-    message                 = message.substring(PREFIX_SIZE);
-
-    String calculatedPrefix = calculatePrefix((prefixType + message).getBytes(), PREFIX_BYTES);
-
-    assert(calculatedPrefix.length() == PREFIX_SIZE);
-
-    return prefix.equals(calculatedPrefix);
-  }
-
   private static String calculatePrefix(byte[] message, int byteCount) {
     try {
       MessageDigest md     = MessageDigest.getInstance("SHA1");
@@ -141,4 +141,128 @@ public abstract class WirePrefix {
     String calculatedPrefix = calculatePrefix(postfix.getBytes(), 6);
     return calculatedPrefix.equals(prefix);
   }
+
+  /**
+   * The wire prefix types a single message body carries.
+   *
+   * Bodies that cannot be a prefixed message (too short, or not unpadded
+   * Base64) are rejected without hashing.  Otherwise each type's hash chain
+   * is computed at most once, on first use, with a reused digest.
+   */
+  public static class Classification {
+
+    private static final int      SECURE_MESSAGE = 1;
+    private static final int      KEY_EXCHANGE   = 1 << 1;
+    private static final int      PREKEY_BUNDLE  = 1 << 2;
+    private static final int      END_SESSION    = 1 << 3;
+    private static final int      XMPP_EXCHANGE  = 1 << 4;
+    private static final byte[][] TYPES          = {"?TSM".getBytes(), "?TSK".getBytes(), "?TSP".getBytes(),
+                                                    "?TSE".getBytes(), "?TSX".getBytes()};
+
+    private final String  message;
+    private final boolean candidate;
+
+    private byte[] prefix;
+    private byte[] body;
+    private int    checked;
+    private int    matched;
+
+    private Classification(String message) {
+      this.message   = message;
+      this.candidate = isCandidate(message);
+    }
+
+    public boolean isPrefixedMessage() {
+      return isEncryptedMessage() ||
+             isKeyExchange()      ||
+             isPreKeyBundle()     ||
+             isEndSession()       ||
+             isXmppExchange();
+    }
+
+    public boolean isEncryptedMessage() {
+      return is(SECURE_MESSAGE);
+    }
+
+    public boolean isKeyExchange() {
+      return is(KEY_EXCHANGE);
+    }
+
+    public boolean isPreKeyBundle() {
+      return is(PREKEY_BUNDLE);
+    }
+
+    public boolean isEndSession() {
+      return is(END_SESSION);
+    }
+
+    public boolean isXmppExchange() {
+      return is(XMPP_EXCHANGE);
+    }
+
+    private synchronized boolean is(int type) {
+      if (!candidate) return false;
+
+      if ((checked & type) == 0) {
+        if (verify(TYPES[Integer.numberOfTrailingZeros(type)])) matched |= type;
+        checked |= type;
+      }
+
+      return (matched & type) != 0;
+    }
+
+    private boolean verify(byte[] type) {
+      if (prefix == null) {
+        prefix = decodePrefix(message);
+        body   = message.substring(PREFIX_SIZE).getBytes();
+      }
+
+      try {
+        MessageDigest md            = DIGEST.get();
+        byte[]        runningDigest = new byte[md.getDigestLength()];
+
+        md.update(type);
+        md.update(body);
+        md.digest(runningDigest, 0, runningDigest.length);
+
+        for (int i=1;i<HASH_ITERATIONS;i++) {
+          md.update(runningDigest);
+          md.digest(runningDigest, 0, runningDigest.length);
+        }
+
+        for (int i=0;i<PREFIX_BYTES;i++) {
+          if (runningDigest[i] != prefix[i]) return false;
+        }
+
+        return true;
+      } catch (DigestException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private static boolean isCandidate(String message) {
+      if (message == null || message.length() <= PREFIX_SIZE) return false;
+      if ((message.length() - PREFIX_SIZE) % 4 == 1)           return false;
+
+      for (int i=0;i<message.length();i++) {
+        if (!isBase64Character(message.charAt(i))) return false;
+      }
+
+      return true;
+    }
+
+    private static boolean isBase64Character(char c) {
+      return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/';
+    }
+
+    private static byte[] decodePrefix(String message) {
+      int bits = 0;
+
+      for (int i=0;i<PREFIX_SIZE;i++) {
+        bits = (bits << 6) | BASE64_ALPHABET.indexOf(message.charAt(i));
+      }
+
+      return new byte[] {(byte)(bits >> 16), (byte)(bits >> 8), (byte)bits};
+    }
+  }
 }
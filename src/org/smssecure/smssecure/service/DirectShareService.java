@@ -14,7 +14,6 @@ import android.service.chooser.ChooserTargetService;
 import android.support.annotation.RequiresApi;
 
 import org.smssecure.smssecure.ShareActivity;
-import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.ThreadDatabase;
@@ -44,7 +43,7 @@ public class DirectShareService extends ChooserTargetService {
     Cursor         cursor         = threadDatabase.getDirectShareList();
 
     try {
-      ThreadDatabase.Reader reader = threadDatabase.readerFor(cursor, new MasterCipher(masterSecret));
+      ThreadDatabase.Reader reader = threadDatabase.readerFor(cursor, masterSecret);
       ThreadRecord record;
 
       while ((record = reader.getNext()) != null && results.size() < 10) {
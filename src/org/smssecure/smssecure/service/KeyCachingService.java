@@ -38,8 +38,12 @@ import org.smssecure.smssecure.DatabaseUpgradeActivity;
 import org.smssecure.smssecure.DummyActivity;
 import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.crypto.InvalidPassphraseException;
+import org.smssecure.smssecure.crypto.MasterCipherPool;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.crypto.MasterSecretUtil;
+import org.smssecure.smssecure.database.PlaintextCache;
+import org.smssecure.smssecure.jobs.AsymmetricUpgradeJob;
+import org.smssecure.smssecure.jobs.SearchIndexJob;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.notifications.NotificationChannels;
 import org.smssecure.smssecure.util.DynamicLanguage;
@@ -111,6 +115,12 @@ public class KeyCachingService extends Service {
             ApplicationContext.getInstance(KeyCachingService.this)
                               .getJobManager()
                               .setEncryptionKeys(new EncryptionKeys(ParcelUtil.serialize(masterSecret)));
+            ApplicationContext.getInstance(KeyCachingService.this)
+                              .getJobManager()
+                              .add(new AsymmetricUpgradeJob(KeyCachingService.this));
+            ApplicationContext.getInstance(KeyCachingService.this)
+                              .getJobManager()
+                              .add(new SearchIndexJob(KeyCachingService.this));
             MessageNotifier.updateNotification(KeyCachingService.this, masterSecret);
           }
           return null;
@@ -191,6 +201,8 @@ public class KeyCachingService extends Service {
   private void handleClearKey() {
     Log.w("KeyCachingService", "handleClearKey()");
     KeyCachingService.masterSecret = null;
+    MasterCipherPool.clear();
+    PlaintextCache.getInstance().clear();
     stopForeground(true);
 
     Intent intent = new Intent(CLEAR_KEY_EVENT);
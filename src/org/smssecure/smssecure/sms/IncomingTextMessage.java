@@ -4,6 +4,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.telephony.SmsMessage;
 
+import org.smssecure.smssecure.protocol.WirePrefix;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.util.List;
@@ -35,6 +36,8 @@ public class IncomingTextMessage implements Parcelable {
   private final int     subscriptionId;
   private final boolean receivedWhenLocked;
 
+  private transient WirePrefix.Classification wirePrefix;
+
   public IncomingTextMessage(SmsMessage message, int subscriptionId) {
     this(message, subscriptionId, false);
   }
@@ -152,6 +155,18 @@ public class IncomingTextMessage implements Parcelable {
     return message;
   }
 
+  /**
+   * @return the wire prefix classification of this message's body, which is
+   *         computed once and shared by every stage that inspects it.
+   */
+  public synchronized WirePrefix.Classification getWirePrefix() {
+    if (wirePrefix == null) {
+      wirePrefix = WirePrefix.classify(message);
+    }
+
+    return wirePrefix;
+  }
+
   public IncomingTextMessage withMessageBody(String message) {
     return new IncomingTextMessage(this, message);
   }
@@ -16,19 +16,26 @@
  */
 package org.smssecure.smssecure.sms;
 
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.smssecure.smssecure.util.Base64;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
 
 public class MultipartSmsMessageHandler {
 
   private static final String TAG = MultipartSmsMessageHandler.class.getSimpleName();
 
-  private final HashMap<String, MultipartSmsTransportMessageFragments> partialMessages = new HashMap<>();
+  private final MultipartSmsReassemblyBuffer partialMessages;
+
+  public MultipartSmsMessageHandler() {
+    this(null);
+  }
+
+  public MultipartSmsMessageHandler(@Nullable MultipartSmsReassemblyBuffer.FragmentStore store) {
+    this.partialMessages = new MultipartSmsReassemblyBuffer(store);
+  }
 
   private IncomingTextMessage processLegacyMultipartMessage(MultipartSmsTransportMessage message)
     throws IOException
@@ -37,29 +44,18 @@ public class MultipartSmsMessageHandler {
     Log.w(TAG, "Multipart Count: " + message.getMultipartCount());
     Log.w(TAG, "Multipart ID: " + message.getIdentifier());
     Log.w(TAG, "Multipart Key: " + message.getKey());
-    MultipartSmsTransportMessageFragments container = partialMessages.get(message.getKey());
 
-    Log.w(TAG, "Found multipart container: " + container);
-
-    if (container == null || container.getSize() != message.getMultipartCount() || container.isExpired()) {
-      Log.w(TAG, "Constructing new container...");
-      container = new MultipartSmsTransportMessageFragments(message.getMultipartCount());
-      partialMessages.put(message.getKey(), container);
-    }
-
-    container.add(message);
+    byte[] joined = partialMessages.add(message);
 
     Log.w(TAG, "Filled buffer at index: " + message.getMultipartIndex());
 
-    if (!container.isComplete()) {
+    if (joined == null) {
       Log.w(TAG, "Container found, assuming wire prefix is incorrect...");
       message.redecodeWirePrefix(message.getWireType());
       return processLegacyMultipartMessage(message);
     }
 
-
-    partialMessages.remove(message.getKey());
-    String strippedMessage = Base64.encodeBytesWithoutPadding(container.getJoined());
+    String strippedMessage = Base64.encodeBytesWithoutPadding(joined);
 
     if (message.getWireType() == MultipartSmsTransportMessage.WIRETYPE_KEY) {
       return new IncomingKeyExchangeMessage(message.getBaseMessage(), strippedMessage);
@@ -87,7 +83,7 @@ public class MultipartSmsMessageHandler {
     }
   }
 
-  public synchronized IncomingTextMessage processPotentialMultipartMessage(IncomingTextMessage message) {
+  public IncomingTextMessage processPotentialMultipartMessage(IncomingTextMessage message) {
     try {
       MultipartSmsTransportMessage transportMessage = new MultipartSmsTransportMessage(message);
 
@@ -101,7 +97,7 @@ public class MultipartSmsMessageHandler {
     }
   }
 
-  public synchronized String getEncodedMessage(OutgoingTextMessage message) {
+  public String getEncodedMessage(OutgoingTextMessage message) {
     String number     = message.getRecipients().getPrimaryRecipient().getNumber();
     byte   identifier = MultipartSmsIdentifier.getInstance().getIdForRecipient(number);
     return MultipartSmsTransportMessage.getEncodedMessage(message, identifier);
@@ -0,0 +1,264 @@
+package org.smssecure.smssecure.sms;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the fragments of legacy multipart messages until they are complete.
+ *
+ * Containers are split into independently locked stripes by sender, so a
+ * burst of long messages from one sender never blocks reassembly for another.
+ * Each stripe holds a fixed share of a total byte budget and evicts its
+ * oldest incomplete containers first when the budget is exceeded, and
+ * containers older than {@link MultipartSmsTransportMessageFragments#VALID_TIME}
+ * are dropped whenever their stripe is touched.
+ *
+ * If a {@link FragmentStore} is supplied, every fragment is also written
+ * through to it and the buffer is restored from it on first use, so partial
+ * messages survive a process restart.
+ */
+public class MultipartSmsReassemblyBuffer {
+
+  private static final String TAG = MultipartSmsReassemblyBuffer.class.getSimpleName();
+
+  private static final int  STRIPE_COUNT = 16;
+  private static final long MAX_BYTES    = 512 * 1024;
+
+  private final @Nullable FragmentStore store;
+  private final Stripe[]                stripes;
+  private final AtomicLong              evictions = new AtomicLong();
+  private final AtomicLong              expired   = new AtomicLong();
+
+  private volatile boolean restored;
+
+  public MultipartSmsReassemblyBuffer(@Nullable FragmentStore store) {
+    this(store, MAX_BYTES);
+  }
+
+  MultipartSmsReassemblyBuffer(@Nullable FragmentStore store, long maxBytes) {
+    this.store    = store;
+    this.stripes  = new Stripe[STRIPE_COUNT];
+    this.restored = store == null;
+
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripes[i] = new Stripe(maxBytes / STRIPE_COUNT);
+    }
+  }
+
+  /**
+   * Adds a fragment to its container.
+   *
+   * @return the joined message if this fragment completed it, otherwise null.
+   */
+  public @Nullable byte[] add(@NonNull MultipartSmsTransportMessage message) {
+    return add(message.getBaseMessage().getSender(), message.getKey(), message.getMultipartCount(),
+               message.getMultipartIndex(), message.getStrippedMessage(), System.currentTimeMillis());
+  }
+
+  @Nullable byte[] add(String sender, String key, int count, int index, byte[] fragment, long now) {
+    restoreIfNecessary(now);
+    return getStripe(sender).add(sender, key, count, index, fragment, now);
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public long getExpiredCount() {
+    return expired.get();
+  }
+
+  public int getContainerCount() {
+    int count = 0;
+
+    for (Stripe stripe : stripes) {
+      count += stripe.getContainerCount();
+    }
+
+    return count;
+  }
+
+  public long getSizeInBytes() {
+    long size = 0;
+
+    for (Stripe stripe : stripes) {
+      size += stripe.getSizeInBytes();
+    }
+
+    return size;
+  }
+
+  private void restoreIfNecessary(long now) {
+    if (restored) return;
+
+    synchronized (this) {
+      if (restored) return;
+
+      store.deleteOlderThan(now - MultipartSmsTransportMessageFragments.VALID_TIME);
+
+      for (StoredFragment fragment : store.getFragments()) {
+        getStripe(fragment.sender).restore(fragment);
+      }
+
+      restored = true;
+    }
+  }
+
+  private Stripe getStripe(@Nullable String sender) {
+    int hash = sender == null ? 0 : sender.hashCode() * 0x9E3779B9;
+    return stripes[(hash >>> 28) & (STRIPE_COUNT - 1)];
+  }
+
+  /**
+   * A place to keep incomplete containers across process restarts.
+   * Implementations are called under a stripe lock, from any thread.
+   */
+  public interface FragmentStore {
+    void insert(String sender, String key, int count, long initializedTime, int index, byte[] fragment);
+    void delete(String key);
+    void deleteOlderThan(long time);
+    List<StoredFragment> getFragments();
+  }
+
+  public static class StoredFragment {
+    private final String sender;
+    private final String key;
+    private final int    count;
+    private final long   initializedTime;
+    private final int    index;
+    private final byte[] fragment;
+
+    public StoredFragment(String sender, String key, int count, long initializedTime, int index, byte[] fragment) {
+      this.sender          = sender;
+      this.key             = key;
+      this.count           = count;
+      this.initializedTime = initializedTime;
+      this.index           = index;
+      this.fragment        = fragment;
+    }
+  }
+
+  private class Stripe {
+    private final long maxBytes;
+    private final LinkedHashMap<String, MultipartSmsTransportMessageFragments> containers = new LinkedHashMap<>();
+
+    private long bytes;
+
+    private Stripe(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    private synchronized @Nullable byte[] add(String sender, String key, int count, int index,
+                                              byte[] fragment, long now)
+    {
+      removeExpired(now);
+
+      MultipartSmsTransportMessageFragments container = containers.get(key);
+
+      if (container == null || container.getSize() != count) {
+        if (container != null) remove(key);
+
+        container = new MultipartSmsTransportMessageFragments(count, now);
+        containers.put(key, container);
+        bytes += container.getSizeInBytes();
+      }
+
+      boolean duplicate = Arrays.equals(container.getFragment(index), fragment);
+
+      if (!duplicate) {
+        bytes -= container.getSizeInBytes();
+        container.add(index, fragment);
+        bytes += container.getSizeInBytes();
+      }
+
+      if (container.isComplete()) {
+        remove(key);
+        return container.getJoined();
+      }
+
+      if (store != null && !duplicate) {
+        store.insert(sender, key, count, container.getInitializedTime(), index, fragment);
+      }
+
+      evictIfNecessary();
+      return null;
+    }
+
+    private synchronized void restore(StoredFragment fragment) {
+      if (fragment.index < 0 || fragment.index >= fragment.count) return;
+
+      MultipartSmsTransportMessageFragments container = containers.get(fragment.key);
+
+      if (container == null || container.getSize() != fragment.count) {
+        if (container != null) bytes -= container.getSizeInBytes();
+
+        container = new MultipartSmsTransportMessageFragments(fragment.count, fragment.initializedTime);
+        containers.put(fragment.key, container);
+        bytes += container.getSizeInBytes();
+      }
+
+      bytes -= container.getSizeInBytes();
+      container.add(fragment.index, fragment.fragment);
+      bytes += container.getSizeInBytes();
+
+      evictIfNecessary();
+    }
+
+    private void removeExpired(long now) {
+      Iterator<Map.Entry<String, MultipartSmsTransportMessageFragments>> iterator = containers.entrySet().iterator();
+
+      while (iterator.hasNext()) {
+        Map.Entry<String, MultipartSmsTransportMessageFragments> entry = iterator.next();
+
+        if (!entry.getValue().isExpired(now)) continue;
+
+        Log.w(TAG, "Dropping expired multipart container: " + entry.getValue());
+        iterator.remove();
+        bytes -= entry.getValue().getSizeInBytes();
+        expired.incrementAndGet();
+
+        if (store != null) store.delete(entry.getKey());
+      }
+    }
+
+    private void evictIfNecessary() {
+      Iterator<Map.Entry<String, MultipartSmsTransportMessageFragments>> iterator = containers.entrySet().iterator();
+
+      while (bytes > maxBytes && iterator.hasNext()) {
+        Map.Entry<String, MultipartSmsTransportMessageFragments> eldest = iterator.next();
+
+        Log.w(TAG, "Evicting incomplete multipart container: " + eldest.getValue());
+        iterator.remove();
+        bytes -= eldest.getValue().getSizeInBytes();
+        evictions.incrementAndGet();
+
+        if (store != null) store.delete(eldest.getKey());
+      }
+    }
+
+    private void remove(String key) {
+      MultipartSmsTransportMessageFragments container = containers.remove(key);
+
+      if (container != null) {
+        bytes -= container.getSizeInBytes();
+        if (store != null) store.delete(key);
+      }
+    }
+
+    private synchronized int getContainerCount() {
+      return containers.size();
+    }
+
+    private synchronized long getSizeInBytes() {
+      return bytes;
+    }
+  }
+}
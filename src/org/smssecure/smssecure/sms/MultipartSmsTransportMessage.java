@@ -54,15 +54,13 @@ public class MultipartSmsTransportMessage {
     if (lastIncorrectWirePrefix >= LAST_PREFIX_TO_TEST)
       throw new IOException("Invalid message!");
 
-    if      (lastIncorrectWirePrefix < WIRETYPE_SECURE        &&
-             WirePrefix.isEncryptedMessage(message.getMessageBody())) wireType = WIRETYPE_SECURE;
-    else if (lastIncorrectWirePrefix < WIRETYPE_PREKEY        &&
-             WirePrefix.isPreKeyBundle(message.getMessageBody()))     wireType = WIRETYPE_PREKEY;
-    else if (lastIncorrectWirePrefix < WIRETYPE_END_SESSION   &&
-             WirePrefix.isEndSession(message.getMessageBody()))       wireType = WIRETYPE_END_SESSION;
-    else if (lastIncorrectWirePrefix < WIRETYPE_XMPP_EXCHANGE &&
-             WirePrefix.isXmppExchange(message.getMessageBody()))     wireType = WIRETYPE_XMPP_EXCHANGE;
-    else                                                              wireType = WIRETYPE_KEY;
+    WirePrefix.Classification prefix = message.getWirePrefix();
+
+    if      (lastIncorrectWirePrefix < WIRETYPE_SECURE        && prefix.isEncryptedMessage()) wireType = WIRETYPE_SECURE;
+    else if (lastIncorrectWirePrefix < WIRETYPE_PREKEY        && prefix.isPreKeyBundle())     wireType = WIRETYPE_PREKEY;
+    else if (lastIncorrectWirePrefix < WIRETYPE_END_SESSION   && prefix.isEndSession())       wireType = WIRETYPE_END_SESSION;
+    else if (lastIncorrectWirePrefix < WIRETYPE_XMPP_EXCHANGE && prefix.isXmppExchange())     wireType = WIRETYPE_XMPP_EXCHANGE;
+    else                                                                                      wireType = WIRETYPE_KEY;
 
     Log.w(TAG, "Decoded message with version:   " + getCurrentVersion());
     Log.w(TAG, "Decoded message with wire type: " + wireType);
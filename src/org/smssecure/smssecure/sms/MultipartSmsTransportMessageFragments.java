@@ -2,26 +2,60 @@ package org.smssecure.smssecure.sms;
 
 public class MultipartSmsTransportMessageFragments {
 
-  private static final long VALID_TIME = 60 * 60 * 1000; // 1 Hour
+  public static final long VALID_TIME = 60 * 60 * 1000; // 1 Hour
+
+  private static final int OVERHEAD          = 64;
+  private static final int FRAGMENT_OVERHEAD = 16;
 
   private final byte[][] fragments;
   private final long initializedTime;
 
+  private int bytes;
+
   public MultipartSmsTransportMessageFragments(int count) {
+    this(count, System.currentTimeMillis());
+  }
+
+  public MultipartSmsTransportMessageFragments(int count, long initializedTime) {
     this.fragments       = new byte[count][];
-    this.initializedTime = System.currentTimeMillis();
+    this.initializedTime = initializedTime;
   }
 
   public void add(MultipartSmsTransportMessage fragment) {
-    this.fragments[fragment.getMultipartIndex()] = fragment.getStrippedMessage();
+    add(fragment.getMultipartIndex(), fragment.getStrippedMessage());
+  }
+
+  public void add(int index, byte[] fragment) {
+    if (this.fragments[index] != null) bytes -= this.fragments[index].length;
+    this.fragments[index] = fragment;
+    bytes += fragment.length;
+  }
+
+  public byte[] getFragment(int index) {
+    return this.fragments[index];
   }
 
   public int getSize() {
     return this.fragments.length;
   }
 
+  public long getInitializedTime() {
+    return initializedTime;
+  }
+
+  /**
+   * @return an estimate of the heap held by this container, used to bound reassembly memory.
+   */
+  public int getSizeInBytes() {
+    return OVERHEAD + FRAGMENT_OVERHEAD * fragments.length + bytes;
+  }
+
   public boolean isExpired() {
-    return (System.currentTimeMillis() - initializedTime) >= VALID_TIME;
+    return isExpired(System.currentTimeMillis());
+  }
+
+  public boolean isExpired(long now) {
+    return (now - initializedTime) >= VALID_TIME;
   }
 
   public boolean isComplete() {
@@ -1330,6 +1330,84 @@ public class Base64
 
 
 
+    /**
+     * Decodes standard-alphabet Base64 characters directly into
+     * <var>destination</var> without any intermediate allocation.
+     * Unlike {@link #decode(String)} this never attempts to gunzip
+     * the result. <var>destination</var> must be at least
+     * {@link #getDecodedLengthUpperBound(int)} bytes long.
+     *
+     * @param source the Base64 encoded characters
+     * @param destination the array to hold the decoded bytes
+     * @return the number of decoded bytes written to <var>destination</var>
+     * @throws java.io.IOException If bogus characters exist in source data
+     */
+    public static int decode( CharSequence source, byte[] destination )
+    throws java.io.IOException {
+
+        byte[] DECODABET   = getDecodabet( NO_OPTIONS );
+        int    length      = source.length();
+        int    outBuffPosn = 0;
+        int    quartet     = 0;
+        int    quartetPosn = 0;
+        int    padding     = 0;
+
+        for( int i = 0; i < length; i++ ) {
+            char c         = source.charAt( i );
+            byte sbiDecode = c < 128 ? DECODABET[ c ] : (byte)-9;
+
+            if( sbiDecode < WHITE_SPACE_ENC ) {
+                throw new java.io.IOException( String.format(
+                "Bad Base64 input character '%c' in array position %d", c, i ) );
+            }
+
+            if( sbiDecode == WHITE_SPACE_ENC ) {
+                continue;
+            }
+
+            if( sbiDecode == EQUALS_SIGN_ENC ) {
+                if( quartetPosn < 2 ) {
+                    throw new java.io.IOException( "Unexpected padding in array position " + i );
+                }
+                padding++;
+                sbiDecode = 0;
+            } else if( padding > 0 ) {
+                throw new java.io.IOException( "Data after padding in array position " + i );
+            }
+
+            quartet = ( quartet << 6 ) | ( sbiDecode & 0xFF );
+
+            if( ++quartetPosn == 4 ) {
+                destination[ outBuffPosn++ ] = (byte)( quartet >>> 16 );
+                if( padding < 2 ) destination[ outBuffPosn++ ] = (byte)( quartet >>> 8 );
+                if( padding < 1 ) destination[ outBuffPosn++ ] = (byte)( quartet );
+
+                if( padding > 0 ) {
+                    break;
+                }
+
+                quartet     = 0;
+                quartetPosn = 0;
+            }
+        }
+
+        return outBuffPosn;
+    }   // end decode
+
+
+    /**
+     * Returns an upper bound on the number of bytes produced by
+     * decoding <var>encodedLength</var> Base64 characters.
+     *
+     * @param encodedLength the number of Base64 characters
+     * @return the maximum number of decoded bytes
+     */
+    public static int getDecodedLengthUpperBound( int encodedLength ) {
+        return ( encodedLength / 4 ) * 3 + 3;
+    }
+
+
+
     /**
      * Attempts to decode Base64 data and deserialize a Java
      * Object within. Returns <tt>null</tt> if there was an error.
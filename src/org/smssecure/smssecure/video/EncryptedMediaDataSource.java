@@ -3,10 +3,12 @@ package org.smssecure.smssecure.video;
 
 import android.media.MediaDataSource;
 import android.os.Build;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
 
 import org.smssecure.smssecure.crypto.DecryptingPartInputStream;
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.crypto.SeekableDecryptingPartInputStream;
 import org.smssecure.smssecure.util.Util;
 
 import java.io.File;
@@ -18,13 +20,23 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   private final File         mediaFile;
   private final MasterSecret masterSecret;
 
+  private SeekableDecryptingPartInputStream seekable;
+  private boolean                           sequential;
+
   public EncryptedMediaDataSource(MasterSecret masterSecret, File mediaFile) {
     this.mediaFile    = mediaFile;
     this.masterSecret = masterSecret;
   }
 
   @Override
-  public int readAt(long position, byte[] bytes, int offset, int length) throws IOException {
+  public synchronized int readAt(long position, byte[] bytes, int offset, int length) throws IOException {
+    SeekableDecryptingPartInputStream seekable = getSeekable();
+
+    if (seekable != null) {
+      seekable.seek(position);
+      return seekable.read(bytes, offset, length);
+    }
+
     DecryptingPartInputStream inputStream     = new DecryptingPartInputStream(mediaFile, masterSecret, null);
     byte[]                    buffer          = new byte[4096];
     long                      headerRemaining = position;
@@ -43,7 +55,13 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public long getSize() throws IOException {
+  public synchronized long getSize() throws IOException {
+    SeekableDecryptingPartInputStream seekable = getSeekable();
+
+    if (seekable != null) {
+      return seekable.getLength();
+    }
+
     DecryptingPartInputStream inputStream = new DecryptingPartInputStream(mediaFile, masterSecret, null);
     byte[]                    buffer      = new byte[4096];
     long                      size        = 0;
@@ -58,7 +76,26 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public void close() throws IOException {
+  public synchronized void close() throws IOException {
+    if (seekable != null) {
+      seekable.close();
+      seekable = null;
+    }
+
+    sequential = false;
+  }
+
+  /**
+   * Opens the part on first use and keeps it open until {@link #close()}.
+   *
+   * @return null if the part predates the chunked format and can only be read sequentially.
+   */
+  private @Nullable SeekableDecryptingPartInputStream getSeekable() throws IOException {
+    if (seekable == null && !sequential) {
+      seekable   = SeekableDecryptingPartInputStream.open(mediaFile, masterSecret, null);
+      sequential = seekable == null;
+    }
 
+    return seekable;
   }
 }
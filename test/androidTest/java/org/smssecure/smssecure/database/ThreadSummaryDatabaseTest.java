@@ -0,0 +1,214 @@
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.smssecure.smssecure.SilenceTestCase;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadSummaryDatabaseTest extends SilenceTestCase {
+  private static final int THREADS    = 5;
+  private static final int OPERATIONS = 2000;
+
+  private static final String[] SUMMARY_COLUMNS = {ThreadDatabase.ID, ThreadDatabase.MESSAGE_COUNT, ThreadDatabase.DATE,
+                                                   ThreadDatabase.SNIPPET, ThreadDatabase.SNIPPET_TYPE,
+                                                   ThreadDatabase.SNIPPET_URI, ThreadDatabase.STATUS};
+
+  private static final String[] CONTENT_TYPES = {"image/jpeg", "video/mp4", "audio/aac", "text/plain"};
+  private static final long[]   SMS_TYPES     = {20, 23, 87, 0x800000 | 20};
+  private static final long[]   MMS_BOXES     = {20, 23, 0x10000 | 20, 0x20000 | 23};
+
+  private SQLiteDatabase db;
+  private Random         random;
+
+  public void setUp() throws Exception {
+    super.setUp();
+    this.db     = SQLiteDatabase.create(null);
+    this.random = new Random(42);
+
+    db.execSQL(SmsDatabase.CREATE_TABLE);
+    db.execSQL(MmsDatabase.CREATE_TABLE);
+    db.execSQL(AttachmentDatabase.CREATE_TABLE);
+    db.execSQL(ThreadDatabase.CREATE_TABLE);
+    db.execSQL(MessageTimelineDatabase.CREATE_TABLE);
+
+    for (String statement : MessageTimelineDatabase.CREATE_INDEXS)   db.execSQL(statement);
+    for (String statement : MessageTimelineDatabase.CREATE_TRIGGERS) db.execSQL(statement);
+    for (String statement : ThreadSummaryDatabase.CREATE_TRIGGERS)   db.execSQL(statement);
+
+    for (int i = 1; i <= THREADS; i++) {
+      ContentValues values = new ContentValues();
+      values.put(ThreadDatabase.ID, i);
+      values.put(ThreadDatabase.MESSAGE_COUNT, 0);
+      db.insert(ThreadDatabase.TABLE_NAME, null, values);
+    }
+  }
+
+  public void tearDown() throws Exception {
+    db.close();
+  }
+
+  public void testIncrementalSummariesMatchRebuild() throws Exception {
+    for (int i = 0; i < OPERATIONS; i++) {
+      applyRandomOperation(i);
+      assertThat(getSummaries()).as("after operation " + i).isEqualTo(getRebuiltSummaries());
+    }
+  }
+
+  public void testDraftSnippetKeptUntilNewMessage() throws Exception {
+    long smsId = insertSms(1, 1000, "first");
+
+    ContentValues draft = new ContentValues();
+    draft.put(ThreadDatabase.SNIPPET, "draft");
+    draft.put(ThreadDatabase.SNIPPET_TYPE, MmsSmsColumns.Types.BASE_DRAFT_TYPE);
+    db.update(ThreadDatabase.TABLE_NAME, draft, ThreadDatabase.ID + " = 1", null);
+
+    db.execSQL("UPDATE " + SmsDatabase.TABLE_NAME + " SET " + SmsDatabase.BODY + " = 'edited' WHERE " + SmsDatabase.ID + " = " + smsId);
+    assertThat(getSummaries().get(0)).contains("draft");
+
+    insertSms(1, 2000, "second");
+    assertThat(getSummaries().get(0)).contains("second").doesNotContain("draft");
+  }
+
+  private void applyRandomOperation(int i) {
+    long threadId = 1 + random.nextInt(THREADS);
+    long date     = 500 * (1 + random.nextInt(40));
+
+    switch (random.nextInt(11)) {
+      case 0:
+        insertSms(threadId, date, "sms " + i);
+        break;
+      case 1:
+        long mmsId = insertMms(threadId, date, random.nextBoolean() ? "mms " + i : null);
+        for (int j = random.nextInt(3); j > 0; j--) insertPart(mmsId);
+        break;
+      case 2:
+        delete(SmsDatabase.TABLE_NAME, SmsDatabase.ID, getRandomId(SmsDatabase.TABLE_NAME));
+        break;
+      case 3:
+        Long deleted = getRandomId(MmsDatabase.TABLE_NAME);
+        delete(AttachmentDatabase.TABLE_NAME, AttachmentDatabase.MMS_ID, deleted);
+        delete(MmsDatabase.TABLE_NAME, MmsDatabase.ID, deleted);
+        break;
+      case 4:
+        update(SmsDatabase.TABLE_NAME, SmsDatabase.ID, getRandomId(SmsDatabase.TABLE_NAME), SmsDatabase.THREAD_ID, threadId);
+        break;
+      case 5:
+        update(MmsDatabase.TABLE_NAME, MmsDatabase.ID, getRandomId(MmsDatabase.TABLE_NAME), MmsDatabase.THREAD_ID, threadId);
+        break;
+      case 6:
+        update(SmsDatabase.TABLE_NAME, SmsDatabase.ID, getRandomId(SmsDatabase.TABLE_NAME), SmsDatabase.DATE_RECEIVED, date);
+        break;
+      case 7:
+        Long smsId = getRandomId(SmsDatabase.TABLE_NAME);
+        update(SmsDatabase.TABLE_NAME, SmsDatabase.ID, smsId, SmsDatabase.TYPE, SMS_TYPES[random.nextInt(SMS_TYPES.length)]);
+        update(SmsDatabase.TABLE_NAME, SmsDatabase.ID, smsId, SmsDatabase.STATUS, random.nextInt(3) * 32);
+        break;
+      case 8:
+        Long updated = getRandomId(MmsDatabase.TABLE_NAME);
+        update(MmsDatabase.TABLE_NAME, MmsDatabase.ID, updated, MmsDatabase.MESSAGE_BOX, MMS_BOXES[random.nextInt(MMS_BOXES.length)]);
+        update(MmsDatabase.TABLE_NAME, MmsDatabase.ID, updated, MmsDatabase.MESSAGE_TYPE, random.nextBoolean() ? 130 : 132);
+        break;
+      case 9:
+        Long partMmsId = getRandomId(MmsDatabase.TABLE_NAME);
+        if (partMmsId != null && random.nextBoolean()) insertPart(partMmsId);
+        else                                           delete(AttachmentDatabase.TABLE_NAME, AttachmentDatabase.ROW_ID, getRandomId(AttachmentDatabase.TABLE_NAME));
+        break;
+      default:
+        update(AttachmentDatabase.TABLE_NAME, AttachmentDatabase.ROW_ID, getRandomId(AttachmentDatabase.TABLE_NAME),
+               AttachmentDatabase.THUMBNAIL, random.nextBoolean() ? "thumbnail" : null);
+    }
+  }
+
+  private long insertSms(long threadId, long date, String body) {
+    ContentValues values = new ContentValues();
+    values.put(SmsDatabase.THREAD_ID, threadId);
+    values.put(SmsDatabase.DATE_RECEIVED, date);
+    values.put(SmsDatabase.TYPE, SMS_TYPES[random.nextInt(SMS_TYPES.length)]);
+    values.put(SmsDatabase.BODY, body);
+
+    return db.insert(SmsDatabase.TABLE_NAME, null, values);
+  }
+
+  private long insertMms(long threadId, long date, String body) {
+    ContentValues values = new ContentValues();
+    values.put(MmsDatabase.THREAD_ID, threadId);
+    values.put(MmsDatabase.DATE_RECEIVED, date);
+    values.put(MmsDatabase.MESSAGE_BOX, MMS_BOXES[random.nextInt(MMS_BOXES.length)]);
+    values.put(MmsDatabase.MESSAGE_TYPE, random.nextInt(4) == 0 ? 130 : 132);
+    values.put(MmsDatabase.BODY, body);
+
+    return db.insert(MmsDatabase.TABLE_NAME, null, values);
+  }
+
+  private void insertPart(long mmsId) {
+    ContentValues values = new ContentValues();
+    values.put(AttachmentDatabase.MMS_ID, mmsId);
+    values.put(AttachmentDatabase.CONTENT_TYPE, CONTENT_TYPES[random.nextInt(CONTENT_TYPES.length)]);
+    values.put(AttachmentDatabase.THUMBNAIL, random.nextBoolean() ? "thumbnail" : null);
+    values.put(AttachmentDatabase.UNIQUE_ID, random.nextInt(10));
+
+    db.insert(AttachmentDatabase.TABLE_NAME, null, values);
+  }
+
+  private void update(String table, String idColumn, Long id, String column, Object value) {
+    if (id == null) return;
+
+    ContentValues values = new ContentValues();
+    if (value == null) values.putNull(column);
+    else               values.put(column, value.toString());
+
+    db.update(table, values, idColumn + " = ?", new String[] {String.valueOf(id)});
+  }
+
+  private void delete(String table, String idColumn, Long id) {
+    if (id != null) db.delete(table, idColumn + " = ?", new String[] {String.valueOf(id)});
+  }
+
+  private Long getRandomId(String table) {
+    long count = DatabaseUtils.queryNumEntries(db, table);
+
+    if (count == 0) return null;
+
+    return DatabaseUtils.longForQuery(db, "SELECT _id FROM " + table + " ORDER BY _id LIMIT 1 OFFSET " + random.nextInt((int)count), null);
+  }
+
+  private List<List<String>> getRebuiltSummaries() {
+    db.beginTransaction();
+    try {
+      db.execSQL(ThreadSummaryDatabase.rebuildCount("1"));
+      db.execSQL(ThreadSummaryDatabase.rebuildSnippet("1"));
+      return getSummaries();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private List<List<String>> getSummaries() {
+    List<List<String>> summaries = new LinkedList<>();
+    Cursor             cursor    = db.query(ThreadDatabase.TABLE_NAME, SUMMARY_COLUMNS, null, null, null, null, ThreadDatabase.ID);
+
+    try {
+      while (cursor.moveToNext()) {
+        List<String> summary = new LinkedList<>();
+
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+          summary.add(cursor.getString(i));
+        }
+
+        summaries.add(summary);
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return summaries;
+  }
+}
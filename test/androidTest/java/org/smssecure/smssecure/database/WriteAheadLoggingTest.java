@@ -0,0 +1,192 @@
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.smssecure.smssecure.SilenceTestCase;
+import org.smssecure.smssecure.jobs.LatencyHistogram;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WriteAheadLoggingTest extends SilenceTestCase {
+  private static final String TAG = WriteAheadLoggingTest.class.getSimpleName();
+
+  private static final int  SEED_MESSAGES    = 5000;
+  private static final int  BURST_BATCHES    = 200;
+  private static final int  BURST_BATCH_SIZE = 50;
+  private static final int  THREADS          = 20;
+  private static final long HISTOGRAM_WINDOW = TimeUnit.HOURS.toMillis(1);
+
+  private File databaseFile;
+
+  public void setUp() throws Exception {
+    super.setUp();
+    this.databaseFile = new File(getInstrumentation().getTargetContext().getCacheDir(), "wal-test.db");
+    deleteDatabase();
+  }
+
+  public void tearDown() throws Exception {
+    deleteDatabase();
+  }
+
+  public void testReadsDoNotWaitForWriter() throws Exception {
+    final SQLiteDatabase db = openDatabase(true);
+
+    try {
+      final CountDownLatch writing = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+
+      Thread writer = new Thread() {
+        @Override
+        public void run() {
+          db.beginTransaction();
+          try {
+            insertSms(db, 1, 0);
+            writing.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            db.setTransactionSuccessful();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          } finally {
+            db.endTransaction();
+          }
+        }
+      };
+
+      writer.start();
+      assertThat(writing.await(10, TimeUnit.SECONDS)).isTrue();
+
+      long start = SystemClock.elapsedRealtime();
+      long count = DatabaseUtils.queryNumEntries(db, SmsDatabase.TABLE_NAME);
+      long took  = SystemClock.elapsedRealtime() - start;
+
+      release.countDown();
+      writer.join();
+
+      assertThat(count).isEqualTo(SEED_MESSAGES);
+      assertThat(took).isLessThan(1000);
+      assertThat(DatabaseUtils.queryNumEntries(db, SmsDatabase.TABLE_NAME)).isEqualTo(SEED_MESSAGES + 1);
+    } finally {
+      db.close();
+    }
+  }
+
+  /**
+   * Measures conversation reads during a sustained burst of batched inserts,
+   * with the default journal and with the settings of the message database.
+   * The results are logged rather than asserted, as they depend on the device.
+   */
+  public void testReadLatencyDuringWriteBurst() throws Exception {
+    LatencyHistogram rollback = measureReadLatency(false);
+
+    deleteDatabase();
+
+    LatencyHistogram wal = measureReadLatency(true);
+
+    Log.w(TAG, "Rollback journal: " + describe(rollback));
+    Log.w(TAG, "Write-ahead log:  " + describe(wal));
+
+    assertThat(rollback.getCount()).isGreaterThan(0);
+    assertThat(wal.getCount()).isGreaterThan(0);
+  }
+
+  private LatencyHistogram measureReadLatency(boolean writeAheadLogging) throws Exception {
+    final SQLiteDatabase   db        = openDatabase(writeAheadLogging);
+    final AtomicBoolean    writing   = new AtomicBoolean(true);
+    final LatencyHistogram histogram = new LatencyHistogram(HISTOGRAM_WINDOW);
+
+    try {
+      Thread writer = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < BURST_BATCHES; i++) {
+              db.beginTransaction();
+              try {
+                for (int j = 0; j < BURST_BATCH_SIZE; j++) {
+                  insertSms(db, 1 + (j % THREADS), SEED_MESSAGES + i * BURST_BATCH_SIZE + j);
+                }
+
+                db.setTransactionSuccessful();
+              } finally {
+                db.endTransaction();
+              }
+            }
+          } finally {
+            writing.set(false);
+          }
+        }
+      };
+
+      writer.start();
+
+      for (int i = 0; writing.get(); i++) {
+        long start = SystemClock.elapsedRealtime();
+
+        DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM (SELECT " + SmsDatabase.ID + " FROM " + SmsDatabase.TABLE_NAME +
+                                       " WHERE " + SmsDatabase.THREAD_ID + " = ? ORDER BY " + SmsDatabase.DATE_RECEIVED +
+                                       " DESC LIMIT 100)",
+                                   new String[] {String.valueOf(1 + (i % THREADS))});
+
+        histogram.record(SystemClock.elapsedRealtime() - start);
+      }
+
+      writer.join();
+    } finally {
+      db.close();
+    }
+
+    return histogram;
+  }
+
+  private SQLiteDatabase openDatabase(boolean writeAheadLogging) {
+    SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
+
+    if (writeAheadLogging) DatabaseFactory.configureConnection(db);
+
+    db.execSQL(SmsDatabase.CREATE_TABLE);
+    for (String statement : SmsDatabase.CREATE_INDEXS) db.execSQL(statement);
+
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < SEED_MESSAGES; i++) {
+        insertSms(db, 1 + (i % THREADS), i);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return db;
+  }
+
+  private void deleteDatabase() {
+    for (String suffix : new String[] {"", "-journal", "-wal", "-shm"}) {
+      new File(databaseFile.getPath() + suffix).delete();
+    }
+  }
+
+  private static void insertSms(SQLiteDatabase db, long threadId, long date) {
+    ContentValues values = new ContentValues();
+    values.put(SmsDatabase.THREAD_ID, threadId);
+    values.put(SmsDatabase.DATE_RECEIVED, date);
+    values.put(SmsDatabase.BODY, "message " + date);
+
+    db.insert(SmsDatabase.TABLE_NAME, null, values);
+  }
+
+  private static String describe(LatencyHistogram histogram) {
+    return histogram.getCount() + " reads, average " + histogram.getAverage() + "ms, p50 " +
+           histogram.getPercentile(50) + "ms, p95 " + histogram.getPercentile(95) + "ms, max " +
+           histogram.getMax() + "ms";
+  }
+}
@@ -0,0 +1,138 @@
+package org.smssecure.smssecure.jobs.persistence;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.smssecure.smssecure.SilenceTestCase;
+import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.jobs.MmsSendJob;
+import org.smssecure.smssecure.jobs.SmsDecryptJob;
+import org.smssecure.smssecure.jobs.SmsReceiveJob;
+import org.smssecure.smssecure.jobs.SmsSendJob;
+import org.smssecure.smssecure.jobs.SmsSentJob;
+import org.smssecure.smssecure.util.ParcelUtil;
+import org.whispersystems.jobqueue.EncryptionKeys;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.persistence.JavaJobSerializer;
+import org.whispersystems.jobqueue.persistence.JobSerializer;
+import org.whispersystems.libsignal.InvalidMessageException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EncryptingJobSerializerTest extends SilenceTestCase {
+  private static final String TAG = EncryptingJobSerializerTest.class.getSimpleName();
+
+  private static final int WARMUP_ITERATIONS = 200;
+  private static final int ITERATIONS        = 2000;
+
+  private Context        context;
+  private EncryptionKeys keys;
+
+  public void setUp() throws Exception {
+    super.setUp();
+
+    MasterSecret masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                                 new SecretKeySpec(new byte[16], "HmacSHA1"));
+
+    this.context = getInstrumentation().getTargetContext();
+    this.keys    = new EncryptionKeys(ParcelUtil.serialize(masterSecret));
+  }
+
+  /**
+   * Serializes and deserializes real jobs through the binary records and
+   * through the Java serialization, MasterCipher and Base64 path they
+   * replace.  The sizes are asserted, the throughput is logged rather than
+   * asserted, as it depends on the device.
+   */
+  public void testAgainstJavaSerialization() throws Exception {
+    JobSerializer binary = new EncryptingJobSerializer(context);
+    JobSerializer legacy = new LegacyJobSerializer();
+
+    for (Job job : getJobs()) {
+      job.setEncryptionKeys(keys);
+
+      String binaryRow = binary.serialize(job);
+      String legacyRow = legacy.serialize(job);
+
+      assertThat(binary.deserialize(keys, true, binaryRow).getClass()).isEqualTo(job.getClass());
+      assertThat(binaryRow.length()).isLessThan(legacyRow.length());
+
+      Log.w(TAG, job.getClass().getSimpleName() + ": " + binaryRow.length() + " vs " + legacyRow.length() + " chars, " +
+                 "binary " + describe(binary, job) + ", legacy " + describe(legacy, job));
+    }
+  }
+
+  private List<Job> getJobs() {
+    byte[] pdu = new byte[160];
+    Arrays.fill(pdu, (byte)0x2a);
+
+    return Arrays.<Job>asList(new SmsSentJob(context, 1234567L, "SENT_SMS_ACTION", -1),
+                              new SmsSendJob(context, 1234567L, "+15555550123"),
+                              new SmsDecryptJob(context, 1234567L),
+                              new SmsReceiveJob(context, new Object[] {pdu, pdu}, -1),
+                              new MmsSendJob(context, 1234567L));
+  }
+
+  private String describe(JobSerializer serializer, Job job) throws IOException {
+    String serialized = serializer.serialize(job);
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      serializer.deserialize(keys, true, serializer.serialize(job));
+    }
+
+    long start = SystemClock.elapsedRealtime();
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      serializer.serialize(job);
+    }
+
+    long serializeTime = SystemClock.elapsedRealtime() - start;
+
+    start = SystemClock.elapsedRealtime();
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      serializer.deserialize(keys, true, serialized);
+    }
+
+    long deserializeTime = SystemClock.elapsedRealtime() - start;
+
+    return getRate(serializeTime) + " serialize/s, " + getRate(deserializeTime) + " deserialize/s";
+  }
+
+  private static long getRate(long elapsedMillis) {
+    return ITERATIONS * 1000L / Math.max(1, elapsedMillis);
+  }
+
+  /**
+   * The persistence path before binary records: Java serialization and
+   * Base64, with the string encrypted as a message body.
+   */
+  private static class LegacyJobSerializer implements JobSerializer {
+
+    private final JavaJobSerializer delegate = new JavaJobSerializer();
+
+    @Override
+    public String serialize(Job job) throws IOException {
+      MasterSecret masterSecret = ParcelUtil.deserialize(job.getEncryptionKeys().getEncoded(), MasterSecret.CREATOR);
+      return new MasterCipher(masterSecret).encryptBody(delegate.serialize(job));
+    }
+
+    @Override
+    public Job deserialize(EncryptionKeys keys, boolean encrypted, String serialized) throws IOException {
+      try {
+        MasterSecret masterSecret = ParcelUtil.deserialize(keys.getEncoded(), MasterSecret.CREATOR);
+        return delegate.deserialize(keys, encrypted, new MasterCipher(masterSecret).decryptBody(serialized));
+      } catch (InvalidMessageException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package org.smssecure.smssecure.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.smssecure.smssecure.BaseUnitTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+@PowerMockIgnore({"javax.crypto.*", "javax.management.*", "com.sun.management.*"})
+public class DecryptingPartInputStreamTest extends BaseUnitTest {
+
+  private static final int MEGABYTE                   = 1024 * 1024;
+  private static final int MAX_ALLOCATED_PER_MEGABYTE = 64 * 1024;
+
+  private File file;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("part", ".mms");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testSmallReads() throws Exception {
+    for (int size : new int[] {1, 16, 8191, 8192, 8193, 100000}) {
+      byte[] data   = randomBytes(size);
+      byte[] digest = write(data);
+
+      for (int readSize : new int[] {1, 7, 4096, 65536}) {
+        DecryptingPartInputStream in     = new DecryptingPartInputStream(file, masterSecret, digest);
+        ByteArrayOutputStream     out    = new ByteArrayOutputStream();
+        byte[]                    buffer = new byte[readSize];
+        int                       read;
+
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+
+        in.close();
+        assertArrayEquals(data, out.toByteArray());
+      }
+    }
+  }
+
+  @Test
+  public void testSkip() throws Exception {
+    byte[] data = randomBytes(100000);
+    write(data);
+
+    DecryptingPartInputStream in = new DecryptingPartInputStream(file, masterSecret, null);
+
+    assertEquals(50000, in.skip(50000));
+    assertEquals(data[50000] & 0xff, in.read());
+    assertEquals(data.length - 50001, in.skip(data.length));
+    assertEquals(-1, in.read());
+    in.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadDigest() throws Exception {
+    byte[] digest = write(randomBytes(100000));
+    digest[0] ^= 0x01;
+
+    DecryptingPartInputStream in = new DecryptingPartInputStream(file, masterSecret, digest);
+    while (in.read(new byte[512]) != -1);
+  }
+
+  /**
+   * Decrypting with Glide-sized reads must not allocate per read.
+   */
+  @Test
+  public void testAllocationsPerMegabyte() throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+
+    byte[] digest    = write(randomBytes(8 * MEGABYTE));
+    byte[] buffer    = new byte[512];
+    long   allocated = 0;
+
+    for (int i = 0; i < 3; i++) {
+      long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+      DecryptingPartInputStream in = new DecryptingPartInputStream(file, masterSecret, digest);
+      while (in.read(buffer) != -1);
+      in.close();
+
+      allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+    }
+
+    assertTrue(allocated / 8 + " bytes allocated per MB decrypted", allocated / 8 < MAX_ALLOCATED_PER_MEGABYTE);
+  }
+
+  private byte[] write(byte[] data) throws IOException {
+    EncryptingPartOutputStream out = new EncryptingPartOutputStream(file, masterSecret);
+    out.write(data, 0, data.length);
+    out.close();
+
+    return out.getAttachmentDigest();
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
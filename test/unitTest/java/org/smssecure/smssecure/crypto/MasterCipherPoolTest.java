@@ -0,0 +1,63 @@
+package org.smssecure.smssecure.crypto;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.smssecure.smssecure.BaseUnitTest;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+@PowerMockIgnore("javax.crypto.*")
+public class MasterCipherPoolTest extends BaseUnitTest {
+
+  @Test
+  public void testReusesCipherOnSameThread() {
+    assertSame(MasterCipherPool.get(masterSecret), MasterCipherPool.get(masterSecret));
+  }
+
+  @Test
+  public void testReusesCipherForEqualSecret() {
+    MasterSecret copy = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                         new SecretKeySpec(new byte[16], "HmacSHA1"));
+
+    assertSame(MasterCipherPool.get(masterSecret), MasterCipherPool.get(copy));
+  }
+
+  @Test
+  public void testNewCipherForDifferentSecret() {
+    MasterSecret other = new MasterSecret(new SecretKeySpec(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES"),
+                                          new SecretKeySpec(new byte[16], "HmacSHA1"));
+
+    assertNotSame(MasterCipherPool.get(masterSecret), MasterCipherPool.get(other));
+  }
+
+  @Test
+  public void testClearDropsPooledCipher() throws Exception {
+    MasterCipher before     = MasterCipherPool.get(masterSecret);
+    String       ciphertext = before.encryptBody("hello");
+
+    MasterCipherPool.clear();
+
+    MasterCipher after = MasterCipherPool.get(masterSecret);
+
+    assertNotSame(before, after);
+    assertEquals("hello", after.decryptBody(ciphertext));
+  }
+
+  @Test
+  public void testReusesTokenizerUntilCleared() {
+    SearchTokenizer before = MasterCipherPool.getSearchTokenizer(masterSecret);
+
+    assertSame(before, MasterCipherPool.getSearchTokenizer(masterSecret));
+
+    MasterCipherPool.clear();
+
+    SearchTokenizer after = MasterCipherPool.getSearchTokenizer(masterSecret);
+
+    assertNotSame(before, after);
+    assertEquals(before.getQueryTokens("dinner"), after.getQueryTokens("dinner"));
+  }
+}
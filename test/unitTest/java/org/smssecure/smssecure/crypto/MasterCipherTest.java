@@ -6,6 +6,12 @@ import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.smssecure.smssecure.BaseUnitTest;
 import org.whispersystems.libsignal.InvalidMessageException;
 
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
 @PowerMockIgnore("javax.crypto.*")
 public class MasterCipherTest extends BaseUnitTest {
   private MasterCipher masterCipher;
@@ -21,4 +27,26 @@ public class MasterCipherTest extends BaseUnitTest {
   public void testEncryptBytesWithZeroBody() throws Exception {
     masterCipher.decryptBytes(new byte[]{});
   }
+
+  @Test
+  public void testDecryptBodyRoundTrip() throws Exception {
+    String body = "The quick brown fox jumps over the lazy dog";
+
+    assertEquals(body, masterCipher.decryptBody(masterCipher.encryptBody(body)));
+    assertEquals("", masterCipher.decryptBody(masterCipher.encryptBody("")));
+  }
+
+  @Test
+  public void testDecryptBodies() throws Exception {
+    String       shortBody = masterCipher.encryptBody("short");
+    String       longBody  = masterCipher.encryptBody(new String(new char[4096]).replace('\0', 'x'));
+    String       tampered  = shortBody.substring(0, shortBody.length() - 4) + "AAA=";
+    List<String> results   = masterCipher.decryptBodies(Arrays.asList(longBody, null, tampered, shortBody));
+
+    assertEquals(4, results.size());
+    assertEquals(4096, results.get(0).length());
+    assertNull(results.get(1));
+    assertNull(results.get(2));
+    assertEquals("short", results.get(3));
+  }
 }
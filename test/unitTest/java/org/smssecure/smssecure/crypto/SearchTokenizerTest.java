@@ -0,0 +1,63 @@
+package org.smssecure.smssecure.crypto;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.smssecure.smssecure.BaseUnitTest;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@PowerMockIgnore("javax.crypto.*")
+public class SearchTokenizerTest extends BaseUnitTest {
+  private SearchTokenizer tokenizer;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    tokenizer = new SearchTokenizer(masterSecret);
+  }
+
+  @Test
+  public void testGetWords() {
+    assertEquals(Arrays.asList("cafe", "a", "l", "ete", "42"), SearchTokenizer.getWords("Caf\u00e9 \u00e0 l'\u00c9t\u00e9, 42!"));
+    assertTrue(SearchTokenizer.getWords(null).isEmpty());
+    assertTrue(SearchTokenizer.getWords(" .,;").isEmpty());
+  }
+
+  @Test
+  public void testGetIndexTerms() {
+    assertEquals(Arrays.asList("ok"), SearchTokenizer.getIndexTerms("ok"));
+    assertEquals(Arrays.asList("tom", "tomo"), SearchTokenizer.getIndexTerms("tomo"));
+    assertEquals(Arrays.asList("tom", "tomo", "tomor", "tomorr", "tomorro", "tomorrow"),
+                 SearchTokenizer.getIndexTerms("tomorrows"));
+  }
+
+  @Test
+  public void testQueryMatchesPrefixes() {
+    Set<Integer> index = tokenizer.getIndexTokens("See you TOMORROWS at the caf\u00e9");
+
+    assertTrue(index.containsAll(tokenizer.getQueryTokens("tom")));
+    assertTrue(index.containsAll(tokenizer.getQueryTokens("Tomorrow, cafe")));
+    assertTrue(index.containsAll(tokenizer.getQueryTokens("tomorrowland")));
+    assertFalse(index.containsAll(tokenizer.getQueryTokens("to")));
+    assertFalse(index.containsAll(tokenizer.getQueryTokens("tomorrow dog")));
+  }
+
+  @Test
+  public void testTokensDependOnKey() {
+    MasterSecret    other          = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                                      new SecretKeySpec(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "HmacSHA1"));
+    SearchTokenizer otherTokenizer = new SearchTokenizer(other);
+
+    assertEquals(tokenizer.getQueryTokens("hello"), new SearchTokenizer(masterSecret).getQueryTokens("hello"));
+    assertFalse(tokenizer.getQueryTokens("hello").equals(otherTokenizer.getQueryTokens("hello")));
+  }
+}
@@ -0,0 +1,149 @@
+package org.smssecure.smssecure.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.smssecure.smssecure.BaseUnitTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@PowerMockIgnore("javax.crypto.*")
+public class SeekableDecryptingPartInputStreamTest extends BaseUnitTest {
+
+  private File file;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("part", ".mms");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    for (int size : new int[] {0, 1, ChunkedPartFormat.DEFAULT_CHUNK_SIZE, 3 * ChunkedPartFormat.DEFAULT_CHUNK_SIZE + 7}) {
+      byte[] data   = randomBytes(size);
+      byte[] digest = write(data, EncryptingPartOutputStream.VERSION_2);
+
+      InputStream in = DecryptingPartInputStream.createFor(file, masterSecret, digest);
+
+      assertTrue(in instanceof SeekableDecryptingPartInputStream);
+      assertArrayEquals(data, readFully(in));
+    }
+  }
+
+  @Test
+  public void testParallelRoundTrip() throws Exception {
+    for (int size : new int[] {0, 1, ChunkedPartFormat.DEFAULT_CHUNK_SIZE, 9 * ChunkedPartFormat.DEFAULT_CHUNK_SIZE + 7}) {
+      byte[]                data      = randomBytes(size);
+      ParallelPartEncryptor encryptor = new ParallelPartEncryptor(masterSecret);
+
+      assertEquals(size, encryptor.encrypt(new ByteArrayInputStream(data), file));
+
+      InputStream in = DecryptingPartInputStream.createFor(file, masterSecret, encryptor.getAttachmentDigest());
+
+      assertTrue(in instanceof SeekableDecryptingPartInputStream);
+      assertArrayEquals(data, readFully(in));
+    }
+  }
+
+  @Test
+  public void testSeek() throws Exception {
+    byte[] data = randomBytes(5 * ChunkedPartFormat.DEFAULT_CHUNK_SIZE + 123);
+    write(data, EncryptingPartOutputStream.VERSION_2);
+
+    SeekableDecryptingPartInputStream in     = SeekableDecryptingPartInputStream.open(file, masterSecret, null);
+    byte[]                            buffer = new byte[64];
+
+    assertEquals(data.length, in.getLength());
+
+    in.seek(4 * ChunkedPartFormat.DEFAULT_CHUNK_SIZE + 10);
+    assertEquals(64, in.read(buffer));
+    assertArrayEquals(Arrays.copyOfRange(data, 4 * ChunkedPartFormat.DEFAULT_CHUNK_SIZE + 10, 4 * ChunkedPartFormat.DEFAULT_CHUNK_SIZE + 74), buffer);
+
+    assertEquals(ChunkedPartFormat.DEFAULT_CHUNK_SIZE, in.skip(ChunkedPartFormat.DEFAULT_CHUNK_SIZE));
+    assertEquals(5 * ChunkedPartFormat.DEFAULT_CHUNK_SIZE + 74, in.getPosition());
+    in.close();
+  }
+
+  @Test
+  public void testVersion1StillReadable() throws Exception {
+    byte[] data   = randomBytes(100000);
+    byte[] digest = write(data, EncryptingPartOutputStream.VERSION_1);
+
+    InputStream in = DecryptingPartInputStream.createFor(file, masterSecret, digest);
+
+    assertFalse(in instanceof SeekableDecryptingPartInputStream);
+    assertArrayEquals(data, readFully(in));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTamperedChunk() throws Exception {
+    write(randomBytes(2 * ChunkedPartFormat.DEFAULT_CHUNK_SIZE), EncryptingPartOutputStream.VERSION_2);
+
+    RandomAccessFile raw = new RandomAccessFile(file, "rw");
+    raw.seek(ChunkedPartFormat.getChunkOffset(1, ChunkedPartFormat.DEFAULT_CHUNK_SIZE) + 5);
+    raw.write(0x42);
+    raw.close();
+
+    SeekableDecryptingPartInputStream in = SeekableDecryptingPartInputStream.open(file, masterSecret, null);
+    in.seek(ChunkedPartFormat.DEFAULT_CHUNK_SIZE + 1);
+    in.read(new byte[1]);
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedAtChunkBoundary() throws Exception {
+    write(randomBytes(2 * ChunkedPartFormat.DEFAULT_CHUNK_SIZE + 1), EncryptingPartOutputStream.VERSION_2);
+
+    RandomAccessFile raw = new RandomAccessFile(file, "rw");
+    raw.setLength(ChunkedPartFormat.getChunkOffset(1, ChunkedPartFormat.DEFAULT_CHUNK_SIZE));
+    raw.close();
+
+    readFully(SeekableDecryptingPartInputStream.open(file, masterSecret, null));
+  }
+
+  private byte[] write(byte[] data, int version) throws IOException {
+    EncryptingPartOutputStream out = new EncryptingPartOutputStream(file, masterSecret, version);
+    out.write(data, 0, data.length);
+    out.close();
+
+    return out.getAttachmentDigest();
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[4096];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    in.close();
+    return out.toByteArray();
+  }
+}
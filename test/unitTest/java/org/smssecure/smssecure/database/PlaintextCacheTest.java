@@ -0,0 +1,56 @@
+package org.smssecure.smssecure.database;
+
+import org.junit.Test;
+import org.smssecure.smssecure.BaseUnitTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlaintextCacheTest extends BaseUnitTest {
+
+  @Test public void testHitAndMiss() {
+    PlaintextCache cache = new PlaintextCache(1024 * 1024);
+
+    cache.put(PlaintextCache.SMS, 1, "ciphertext", "plaintext");
+
+    assertEquals("plaintext", cache.get(PlaintextCache.SMS, 1, "ciphertext"));
+    assertNull(cache.get(PlaintextCache.MMS, 1, "ciphertext"));
+    assertNull(cache.get(PlaintextCache.SMS, 2, "ciphertext"));
+
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test public void testChangedCiphertextIsMiss() {
+    PlaintextCache cache = new PlaintextCache(1024 * 1024);
+
+    cache.put(PlaintextCache.SMS, 1, "ciphertext", "plaintext");
+
+    assertNull(cache.get(PlaintextCache.SMS, 1, "reencrypted"));
+    assertNull(cache.get(PlaintextCache.SMS, 1, "ciphertext"));
+  }
+
+  @Test public void testBoundedByBytes() {
+    PlaintextCache cache     = new PlaintextCache(64 * 1024);
+    String         plaintext = new String(new char[1000]);
+
+    for (int i = 0; i < 1000; i++) {
+      cache.put(PlaintextCache.SMS, i, "ciphertext" + i, plaintext);
+    }
+
+    assertTrue(cache.getSizeInBytes() <= 64 * 1024);
+    assertTrue(cache.getEvictionCount() > 0);
+    assertEquals(plaintext, cache.get(PlaintextCache.SMS, 999, "ciphertext999"));
+  }
+
+  @Test public void testClear() {
+    PlaintextCache cache = new PlaintextCache(1024 * 1024);
+
+    cache.put(PlaintextCache.MMS, 1, "ciphertext", "plaintext");
+    cache.clear();
+
+    assertNull(cache.get(PlaintextCache.MMS, 1, "ciphertext"));
+    assertEquals(0, cache.getSizeInBytes());
+  }
+}
@@ -0,0 +1,55 @@
+package org.smssecure.smssecure.database;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.smssecure.smssecure.BaseUnitTest;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UnreadIndexTest extends BaseUnitTest {
+
+  private UnreadIndex index;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    index = UnreadIndex.getInstance();
+    index.reset();
+    index.takeDelta();
+  }
+
+  @Test public void testCollectsChanges() {
+    index.onSmsMessageChanged(1);
+    index.onSmsMessageChanged(1);
+    index.onMmsMessageChanged(1);
+    index.onThreadsChanged(new HashSet<>(Arrays.asList(4L, 5L)));
+    index.onThreadRead(6);
+
+    UnreadIndex.Delta delta = index.takeDelta();
+
+    assertFalse(delta.isReset());
+    assertEquals(5, delta.size());
+    assertTrue(delta.getSmsMessages().contains(1L));
+    assertTrue(delta.getMmsMessages().contains(1L));
+    assertTrue(delta.getReadThreads().contains(6L));
+    assertTrue(index.takeDelta().isEmpty());
+  }
+
+  @Test public void testResetSupersedesChanges() {
+    index.onSmsMessageChanged(1);
+    index.reset();
+    index.onThreadChanged(2);
+
+    UnreadIndex.Delta delta = index.takeDelta();
+
+    assertTrue(delta.isReset());
+    assertEquals(0, delta.size());
+    assertFalse(index.takeDelta().isReset());
+  }
+}
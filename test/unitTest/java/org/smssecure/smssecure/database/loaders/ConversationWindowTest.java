@@ -0,0 +1,119 @@
+package org.smssecure.smssecure.database.loaders;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.smssecure.smssecure.database.MmsSmsDatabase;
+import org.smssecure.smssecure.database.TimelineKey;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ConversationWindowTest {
+
+  private static final int MESSAGES = 2000;
+
+  private MmsSmsDatabase database;
+
+  @Before
+  public void setUp() {
+    database = mock(MmsSmsDatabase.class);
+
+    when(database.getKeysFrom(anyLong(), any(TimelineKey.class), anyInt())).thenAnswer(new Answer<List<TimelineKey>>() {
+      @Override
+      public List<TimelineKey> answer(InvocationOnMock invocation) {
+        TimelineKey from  = (TimelineKey) invocation.getArguments()[1];
+        int         limit = (Integer) invocation.getArguments()[2];
+        return getKeys(from == null ? MESSAGES - 1 : (int) from.getMessageId(), -1, limit);
+      }
+    });
+
+    when(database.getKeysAfter(anyLong(), any(TimelineKey.class), anyInt())).thenAnswer(new Answer<List<TimelineKey>>() {
+      @Override
+      public List<TimelineKey> answer(InvocationOnMock invocation) {
+        TimelineKey after = (TimelineKey) invocation.getArguments()[1];
+        int         limit = (Integer) invocation.getArguments()[2];
+        return getKeys((int) after.getMessageId() + 1, 1, limit);
+      }
+    });
+  }
+
+  @Test public void testOlderGrowsUpToMaxSize() {
+    ConversationWindow window = ConversationWindow.atNewest();
+
+    window = window.older(database, 1).older(database, 1).older(database, 1);
+
+    assertTrue(window.isAtNewest());
+    assertEquals(ConversationWindow.MAX_SIZE, window.getSize());
+    assertEquals(0, window.getShift());
+  }
+
+  @Test public void testOlderEvictsNewest() {
+    ConversationWindow window = ConversationWindow.atNewest();
+
+    for (int i = 0; i < 4; i++) window = window.older(database, 1);
+
+    assertFalse(window.isAtNewest());
+    assertEquals(ConversationWindow.MAX_SIZE, window.getSize());
+    assertEquals(-ConversationWindow.PAGE_SIZE, window.getShift());
+    assertEquals(MESSAGES - 1 - ConversationWindow.PAGE_SIZE, window.getNewest().getMessageId());
+  }
+
+  @Test public void testNewerReturnsToNewest() {
+    ConversationWindow window = ConversationWindow.around(database, 1, key(MESSAGES - 250));
+
+    assertFalse(window.isAtNewest());
+    assertEquals(ConversationWindow.PAGE_SIZE, window.getTargetPosition());
+
+    window = window.newer(database, 1);
+    assertEquals(ConversationWindow.PAGE_SIZE, window.getShift());
+    assertEquals(MESSAGES - 50, window.getNewest().getMessageId());
+
+    window = window.newer(database, 1);
+    assertTrue(window.isAtNewest());
+    assertEquals(49, window.getShift());
+  }
+
+  @Test public void testAroundRecentMessageFollowsNewest() {
+    ConversationWindow window = ConversationWindow.around(database, 1, key(MESSAGES - 10));
+
+    assertTrue(window.isAtNewest());
+    assertEquals(9, window.getTargetPosition());
+    assertEquals(ConversationWindow.INITIAL_SIZE, window.getSize());
+  }
+
+  @Test public void testReloadedKeepsRange() {
+    ConversationWindow window   = ConversationWindow.around(database, 1, key(500));
+    ConversationWindow reloaded = window.reloaded();
+
+    assertEquals(window.getNewest(), reloaded.getNewest());
+    assertEquals(window.getSize(), reloaded.getSize());
+    assertEquals(-1, reloaded.getTargetPosition());
+    assertSame(reloaded, reloaded.reloaded());
+  }
+
+  private static List<TimelineKey> getKeys(int start, int step, int limit) {
+    List<TimelineKey> keys = new LinkedList<>();
+
+    for (int id = start; id >= 0 && id < MESSAGES && keys.size() < limit; id += step) {
+      keys.add(key(id));
+    }
+
+    return keys;
+  }
+
+  private static TimelineKey key(int id) {
+    return new TimelineKey(id * 1000L, "sms", id);
+  }
+}
@@ -0,0 +1,21 @@
+package org.smssecure.smssecure.jobs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class JobLaneTest {
+
+  @Test public void testDeclaredLanes() {
+    assertEquals(JobLane.SEND, JobLane.forClass(SmsSendJob.class));
+    assertEquals(JobLane.SEND, JobLane.forClass(MmsSendJob.class));
+    assertEquals(JobLane.INBOUND, JobLane.forClass(SmsReceiveJob.class));
+    assertEquals(JobLane.INBOUND, JobLane.forClass(MmsDownloadJob.class));
+    assertEquals(JobLane.INBOUND, JobLane.forClass(GenerateKeysJob.class));
+    assertEquals(JobLane.MAINTENANCE, JobLane.forClass(TrimThreadJob.class));
+  }
+
+  @Test public void testUndeclaredJobsAreMaintenance() {
+    assertEquals(JobLane.MAINTENANCE, JobLane.forClass(Object.class));
+  }
+}
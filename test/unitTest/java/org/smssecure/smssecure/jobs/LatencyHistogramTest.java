@@ -0,0 +1,45 @@
+package org.smssecure.smssecure.jobs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+  @Test public void testBuckets() {
+    assertEquals(0, LatencyHistogram.bucketFor(0));
+    assertEquals(1, LatencyHistogram.bucketFor(1));
+    assertEquals(2, LatencyHistogram.bucketFor(3));
+    assertEquals(11, LatencyHistogram.bucketFor(1500));
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketFor(Long.MAX_VALUE));
+  }
+
+  @Test public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram(1000, 0);
+
+    for (int i = 0; i < 90; i++) histogram.record(5, 0);
+    for (int i = 0; i < 10; i++) histogram.record(900, 0);
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(94, histogram.getAverage());
+    assertEquals(7, histogram.getPercentile(50));
+    assertEquals(7, histogram.getPercentile(90));
+    assertEquals(900, histogram.getPercentile(99));
+    assertEquals(900, histogram.getMax());
+  }
+
+  @Test public void testRollingWindow() {
+    LatencyHistogram histogram = new LatencyHistogram(1000, 0);
+
+    histogram.record(100, 0);
+    histogram.record(10, 1000);
+    assertEquals(2, histogram.getCount());
+
+    histogram.record(10, 2000);
+    assertEquals(2, histogram.getCount());
+    assertEquals(10, histogram.getMax());
+
+    histogram.record(10, 5000);
+    assertEquals(1, histogram.getCount());
+  }
+}
@@ -0,0 +1,87 @@
+package org.smssecure.smssecure.jobs.persistence;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JobRecordTest {
+
+  @Test public void testRoundTrip() throws IOException {
+    JobRecord record = new JobRecord(4).putLong(1, Long.MIN_VALUE)
+                                       .putInt(2, -1)
+                                       .putBoolean(3, true)
+                                       .putString(4, "SENT_SMS_ACTION")
+                                       .putBytes(5, new byte[] {1, 2})
+                                       .putBytes(5, new byte[] {3});
+
+    JobRecord decoded = JobRecord.decode(record.encode(), 0);
+
+    assertEquals(4, decoded.getType());
+    assertEquals(Long.MIN_VALUE, decoded.getLong(1, 0));
+    assertEquals(-1, decoded.getInt(2, 0));
+    assertTrue(decoded.getBoolean(3, false));
+    assertEquals("SENT_SMS_ACTION", decoded.getString(4));
+
+    List<byte[]> parts = decoded.getBytesList(5);
+
+    assertEquals(2, parts.size());
+    assertArrayEquals(new byte[] {1, 2}, parts.get(0));
+    assertArrayEquals(new byte[] {3}, parts.get(1));
+  }
+
+  @Test public void testMissingAndUnknownFields() throws IOException {
+    byte[]    encoded = new JobRecord(1).putLong(99, 42).putString(100, "new").encode();
+    JobRecord decoded = JobRecord.decode(encoded, 0);
+
+    assertEquals(7, decoded.getLong(1, 7));
+    assertFalse(decoded.getBoolean(2, false));
+    assertNull(decoded.getString(3));
+    assertTrue(decoded.getBytesList(4).isEmpty());
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncated() throws IOException {
+    byte[] encoded   = new JobRecord(1).putString(1, "truncated").encode();
+    byte[] truncated = new byte[encoded.length - 1];
+
+    System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+    JobRecord.decode(truncated, 0);
+  }
+
+  @Test public void testSmallerThanJavaSerialization() throws IOException {
+    LegacySentJob legacy = new LegacySentJob(1234567L, "SENT_SMS_ACTION", -1);
+    byte[]        record = new JobRecord(4).putLong(1, legacy.messageId)
+                                           .putString(2, legacy.action)
+                                           .putInt(3, legacy.result)
+                                           .encode();
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream    out  = new ObjectOutputStream(baos);
+    out.writeObject(legacy);
+    out.close();
+
+    assertTrue(record.length * 2 < baos.size());
+  }
+
+  private static class LegacySentJob implements Serializable {
+    private final long   messageId;
+    private final String action;
+    private final int    result;
+
+    private LegacySentJob(long messageId, String action, int result) {
+      this.messageId = messageId;
+      this.action    = action;
+      this.result    = result;
+    }
+  }
+}
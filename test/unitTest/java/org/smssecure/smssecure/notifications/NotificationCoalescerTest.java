@@ -0,0 +1,48 @@
+package org.smssecure.smssecure.notifications;
+
+import android.content.Context;
+
+import org.junit.Test;
+import org.smssecure.smssecure.BaseUnitTest;
+import org.smssecure.smssecure.crypto.MasterSecret;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationCoalescerTest extends BaseUnitTest {
+
+  @Test public void testBurstIsRebuiltOnce() throws Exception {
+    final CountDownLatch latch    = new CountDownLatch(1);
+    final AtomicInteger  rebuilds = new AtomicInteger();
+    final AtomicInteger  flags    = new AtomicInteger();
+    final AtomicInteger  reminder = new AtomicInteger();
+
+    NotificationCoalescer coalescer = new NotificationCoalescer(new NotificationCoalescer.Rebuilder() {
+      @Override
+      public void rebuild(Context context, MasterSecret masterSecret, int rebuildFlags, int reminderCount) {
+        rebuilds.incrementAndGet();
+        flags.set(rebuildFlags);
+        reminder.set(reminderCount);
+        latch.countDown();
+      }
+    });
+
+    coalescer.schedule(context, masterSecret, MessageNotifier.MNF_LIGHTS_KEEP, 2);
+
+    for (int i = 0; i < 49; i++) {
+      coalescer.schedule(context, masterSecret, i == 10 ? MessageNotifier.MNF_DEFAULTS : MessageNotifier.MNF_LIGHTS_KEEP, 0);
+    }
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    Thread.sleep(500);
+
+    assertEquals(1, rebuilds.get());
+    assertEquals(MessageNotifier.MNF_DEFAULTS | MessageNotifier.MNF_LIGHTS_KEEP, flags.get());
+    assertEquals(0, reminder.get());
+    assertEquals(49, coalescer.getCoalescedCount());
+  }
+}
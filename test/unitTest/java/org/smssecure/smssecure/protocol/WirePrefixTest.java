@@ -0,0 +1,73 @@
+package org.smssecure.smssecure.protocol;
+
+import org.junit.Test;
+import org.smssecure.smssecure.BaseUnitTest;
+import org.smssecure.smssecure.util.Base64;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WirePrefixTest extends BaseUnitTest {
+
+  private static final String PLAINTEXT = "Hey, are we still on for dinner tonight? Let me know when you get out.";
+
+  private static final long MEASURE_NANOS         = 200 * 1000 * 1000L;
+  private static final long MIN_PLAINTEXT_SPEEDUP = 100;
+
+  @Test public void testClassifiesEachType() {
+    String body = randomBody();
+
+    assertTrue(WirePrefix.classify(WirePrefix.calculateEncryptedMesagePrefix(body) + body).isEncryptedMessage());
+    assertTrue(WirePrefix.classify(WirePrefix.calculateKeyExchangePrefix(body) + body).isKeyExchange());
+    assertTrue(WirePrefix.classify(WirePrefix.calculatePreKeyBundlePrefix(body) + body).isPreKeyBundle());
+    assertTrue(WirePrefix.classify(WirePrefix.calculateEndSessionPrefix(body) + body).isEndSession());
+    assertTrue(WirePrefix.classify(WirePrefix.calculateXmppExchangePrefix(body) + body).isXmppExchange());
+
+    WirePrefix.Classification secure = WirePrefix.classify(WirePrefix.calculateEncryptedMesagePrefix(body) + body);
+
+    assertTrue(secure.isPrefixedMessage());
+    assertFalse(secure.isKeyExchange());
+    assertFalse(secure.isPreKeyBundle());
+  }
+
+  @Test public void testRejectsPlaintext() {
+    String body = randomBody();
+
+    assertFalse(WirePrefix.isPrefixedMessage(PLAINTEXT));
+    assertFalse(WirePrefix.isPrefixedMessage("Hi"));
+    assertFalse(WirePrefix.isPrefixedMessage("AAAA" + body));
+  }
+
+  /**
+   * Plaintext is rejected without hashing, so it has to classify far faster
+   * than a secure message, which costs a full hash chain.  Comparing the two
+   * keeps the check independent of the speed of the machine.
+   */
+  @Test public void testPlaintextSkipsHashing() {
+    String body   = randomBody();
+    long   secure = getClassificationsPerSecond(WirePrefix.calculateEncryptedMesagePrefix(body) + body);
+    long   plain  = getClassificationsPerSecond(PLAINTEXT);
+
+    assertTrue("plaintext: " + plain + "/s, secure: " + secure + "/s", plain > secure * MIN_PLAINTEXT_SPEEDUP);
+  }
+
+  private static long getClassificationsPerSecond(String message) {
+    long start = System.nanoTime();
+    long count = 0;
+
+    while (System.nanoTime() - start < MEASURE_NANOS) {
+      WirePrefix.classify(message).isPrefixedMessage();
+      count++;
+    }
+
+    return count * 1000 * 1000 * 1000L / (System.nanoTime() - start);
+  }
+
+  private static String randomBody() {
+    byte[] bytes = new byte[100];
+    new Random(42).nextBytes(bytes);
+    return Base64.encodeBytesWithoutPadding(bytes);
+  }
+}
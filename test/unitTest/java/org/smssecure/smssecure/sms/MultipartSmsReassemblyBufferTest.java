@@ -0,0 +1,117 @@
+package org.smssecure.smssecure.sms;
+
+import org.junit.Test;
+import org.smssecure.smssecure.BaseUnitTest;
+import org.smssecure.smssecure.sms.MultipartSmsReassemblyBuffer.FragmentStore;
+import org.smssecure.smssecure.sms.MultipartSmsReassemblyBuffer.StoredFragment;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MultipartSmsReassemblyBufferTest extends BaseUnitTest {
+
+  private static final long HOUR = 60 * 60 * 1000;
+
+  @Test public void testReassemblesOutOfOrder() {
+    MultipartSmsReassemblyBuffer buffer = new MultipartSmsReassemblyBuffer(null);
+
+    assertNull(buffer.add("+1", "+11", 3, 2, new byte[] {5}, 0));
+    assertNull(buffer.add("+2", "+21", 2, 0, new byte[] {9}, 0));
+    assertNull(buffer.add("+1", "+11", 3, 0, new byte[] {1, 2}, 0));
+    assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, buffer.add("+1", "+11", 3, 1, new byte[] {3, 4}, 0));
+
+    assertEquals(1, buffer.getContainerCount());
+  }
+
+  @Test public void testExpiredContainersAreDropped() {
+    MultipartSmsReassemblyBuffer buffer = new MultipartSmsReassemblyBuffer(null);
+
+    assertNull(buffer.add("+1", "+11", 2, 0, new byte[] {1}, 0));
+    assertNull(buffer.add("+1", "+11", 2, 1, new byte[] {2}, HOUR));
+
+    assertEquals(1, buffer.getExpiredCount());
+    assertEquals(1, buffer.getContainerCount());
+  }
+
+  @Test public void testBoundedByBytes() {
+    MultipartSmsReassemblyBuffer buffer = new MultipartSmsReassemblyBuffer(null, 64 * 1024);
+
+    for (int i = 0; i < 1000; i++) {
+      buffer.add("+" + (i % 50), "+" + i, 8, 0, new byte[140], i);
+    }
+
+    assertTrue(buffer.getSizeInBytes() <= 64 * 1024);
+    assertTrue(buffer.getEvictionCount() > 0);
+    assertNull(buffer.add("+" + (999 % 50), "+999", 8, 1, new byte[140], 1000));
+  }
+
+  @Test public void testRestoresFromStore() {
+    MemoryStore                  store  = new MemoryStore();
+    MultipartSmsReassemblyBuffer buffer = new MultipartSmsReassemblyBuffer(store);
+
+    assertNull(buffer.add("+1", "+11", 2, 0, new byte[] {1}, 0));
+    assertNull(buffer.add("+2", "+21", 2, 0, new byte[] {7}, 0));
+    assertEquals(2, store.fragments.size());
+
+    MultipartSmsReassemblyBuffer restored = new MultipartSmsReassemblyBuffer(store);
+
+    assertArrayEquals(new byte[] {1, 2}, restored.add("+1", "+11", 2, 1, new byte[] {2}, 1));
+    assertEquals(1, store.fragments.size());
+
+    assertNull(new MultipartSmsReassemblyBuffer(store).add("+2", "+21", 2, 1, new byte[] {8}, HOUR));
+    assertEquals(1, store.fragments.size());
+  }
+
+  private static class MemoryStore implements FragmentStore {
+    private final List<StoredFragment> fragments = new LinkedList<>();
+    private final List<String>         keys      = new LinkedList<>();
+    private final List<Long>           times     = new LinkedList<>();
+
+    @Override
+    public synchronized void insert(String sender, String key, int count, long initializedTime, int index, byte[] fragment) {
+      fragments.add(new StoredFragment(sender, key, count, initializedTime, index, fragment));
+      keys.add(key);
+      times.add(initializedTime);
+    }
+
+    @Override
+    public synchronized void delete(String key) {
+      remove(key, Long.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized void deleteOlderThan(long time) {
+      remove(null, time);
+    }
+
+    @Override
+    public synchronized List<StoredFragment> getFragments() {
+      return new LinkedList<>(fragments);
+    }
+
+    private void remove(String key, long time) {
+      Iterator<StoredFragment> fragmentIterator = fragments.iterator();
+      Iterator<String>         keyIterator      = keys.iterator();
+      Iterator<Long>           timeIterator     = times.iterator();
+
+      while (fragmentIterator.hasNext()) {
+        fragmentIterator.next();
+
+        String fragmentKey  = keyIterator.next();
+        long   fragmentTime = timeIterator.next();
+
+        if ((key == null || key.equals(fragmentKey)) && fragmentTime < time) {
+          fragmentIterator.remove();
+          keyIterator.remove();
+          timeIterator.remove();
+        }
+      }
+    }
+  }
+}